@@ -0,0 +1,63 @@
+package ubongo.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Runs the benchmarks (java -jar ubongo-benchmarks.jar [JMH options] [benchmark regexps]).
+ * Unless given explicitly (-rf, -rff), the results are written in JSON to ubongo-benchmarks-[version].json, so that
+ * the results of different releases can be compared.
+ * The benchmarks that require a database ({@link FlowSubmissionBenchmark}) only run if a configuration is given
+ * (-Dconfig=[path to ubongo-config.xml]).
+ */
+public class BenchmarksRunner {
+
+    private static final String RESULTS_FILE_PATTERN = "ubongo-benchmarks-%s.json";
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException, IOException {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        if (commandLineOptions.shouldHelp()) {
+            commandLineOptions.showHelp();
+            return;
+        }
+        if (commandLineOptions.shouldList()) {
+            new Runner(commandLineOptions).list();
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+        if (!commandLineOptions.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLineOptions.getResult().hasValue()) {
+            options.result(String.format(RESULTS_FILE_PATTERN, getVersion()));
+        }
+        String configPath = System.getProperty(FlowSubmissionBenchmark.CONFIG_PATH);
+        if (configPath == null) {
+            options.exclude(FlowSubmissionBenchmark.class.getSimpleName());
+        } else { // the benchmarks run in forked JVMs
+            options.jvmArgsAppend("-D" + FlowSubmissionBenchmark.CONFIG_PATH + "=" + configPath,
+                    "-D" + FlowSubmissionBenchmark.QUERIES_PATH + "="
+                            + System.getProperty(FlowSubmissionBenchmark.QUERIES_PATH, ""));
+        }
+        new Runner(options.build()).run();
+    }
+
+    private static String getVersion() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = BenchmarksRunner.class.getResourceAsStream("/ubongo-benchmarks.properties")) {
+            if (in != null) {
+                properties.load(in);
+            }
+        }
+        return properties.getProperty("version", "unknown");
+    }
+}
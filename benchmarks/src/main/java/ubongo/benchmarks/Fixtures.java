@@ -0,0 +1,75 @@
+package ubongo.benchmarks;
+
+import ubongo.common.datatypes.Context;
+import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.datatypes.unit.Unit;
+import ubongo.common.datatypes.unit.UnitParameter;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data shared by the benchmarks. The sizes resemble those of a typical EEG study.
+ */
+final class Fixtures {
+
+    static final String STUDY = "EEGStudy";
+
+    private Fixtures() {}
+
+    static Unit unit(int id, String inputPaths, String outputDir) {
+        Unit unit = new Unit(id);
+        unit.setName("Unit" + id);
+        unit.setDescription("Benchmark unit " + id);
+        unit.setInputPaths(inputPaths);
+        unit.setOutputDir(outputDir);
+        List<UnitParameter> parameters = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            UnitParameter parameter = new UnitParameter();
+            parameter.setName("param" + i);
+            parameter.setDisplay("Parameter " + i);
+            parameter.setValue("{subject}_" + i);
+            parameters.add(parameter);
+        }
+        unit.setParameters(parameters);
+        return unit;
+    }
+
+    static Unit unit(int id) {
+        return unit(id, "/data/Experiments/{study}/{subject}/{run}/RawData/",
+                "/data/Experiments/{study}/{subject}/{run}/Unit" + id + "/");
+    }
+
+    static Context context(int subject) {
+        return new Context(STUDY, String.format("subject%04d", subject), "run1");
+    }
+
+    static Machine machine(int id) {
+        Machine machine = new Machine();
+        machine.setId(id);
+        machine.setHost("machine" + id);
+        machine.setDescription("machine" + id);
+        machine.setActive(true);
+        machine.setConnected(true);
+        machine.setLastHeartbeat(new Timestamp(System.currentTimeMillis()));
+        return machine;
+    }
+
+    static Task task(int id, int flowId, int serialNumber, TaskStatus status) {
+        return new Task(id, flowId, serialNumber, unit(serialNumber + 1), machine(1), context(id), status);
+    }
+
+    /**
+     * @return the tasks of an analysis with the given number of units (serial numbers 0..numUnits-1).
+     */
+    static List<Task> analysis(int numUnits) {
+        List<Task> tasks = new ArrayList<>(numUnits);
+        for (int serial = 0; serial < numUnits; serial++) {
+            tasks.add(new Task(serial, unit(serial + 1), null));
+        }
+        return tasks;
+    }
+}
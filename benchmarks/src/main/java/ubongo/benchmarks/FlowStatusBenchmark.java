@@ -0,0 +1,52 @@
+package ubongo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ubongo.common.datatypes.FlowStatus;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.persistence.db.DBProxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The computation of a flow's status, which follows every update of the status of one of its tasks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlowStatusBenchmark {
+
+    @Param({"10", "1000"})
+    public int flowSize;
+
+    private List<Task> inProgressFlow;
+    private List<Task> completedFlow;
+
+    @Setup
+    public void setup() {
+        inProgressFlow = new ArrayList<>(flowSize);
+        completedFlow = new ArrayList<>(flowSize);
+        for (int i = 0; i < flowSize; i++) {
+            // the first half is completed, a few tasks are running and the rest are waiting for them
+            TaskStatus status = i < flowSize / 2 ? TaskStatus.COMPLETED
+                    : i < flowSize / 2 + 4 ? TaskStatus.PROCESSING : TaskStatus.NEW;
+            inProgressFlow.add(Fixtures.task(i, 1, i, status));
+            completedFlow.add(Fixtures.task(i, 2, i, TaskStatus.COMPLETED));
+        }
+    }
+
+    @Benchmark
+    public FlowStatus inProgress() {
+        return DBProxy.computeFlowStatus(inProgressFlow);
+    }
+
+    @Benchmark
+    public FlowStatus completed() {
+        return DBProxy.computeFlowStatus(completedFlow);
+    }
+}
@@ -0,0 +1,81 @@
+package ubongo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ubongo.common.datatypes.Context;
+import ubongo.common.datatypes.Task;
+import ubongo.persistence.Configuration;
+import ubongo.persistence.Persistence;
+import ubongo.persistence.PersistenceImpl;
+import ubongo.persistence.exceptions.PersistenceException;
+
+import javax.xml.bind.UnmarshalException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The submission of an analysis for many subjects at once - in bulk (as done by POST /flows/bulk) versus one flow
+ * after the other (as done by the UI before the bulk submission was added).
+ * This benchmark requires a MySQL DB, which is configured as for the server:
+ * -Dconfig=[path to ubongo-config.xml] -Dqueries=[path to queries.properties].
+ * Every invocation creates [subjects] flows, so a scratch DB should be used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class FlowSubmissionBenchmark {
+
+    static final String CONFIG_PATH = "config";
+    static final String QUERIES_PATH = "queries";
+
+    private static final int NUM_UNITS = 3;
+
+    @Param({"10000"})
+    public int subjects;
+
+    private Persistence persistence;
+    private List<Context> contexts;
+    private List<Task> analysis;
+
+    @Setup(Level.Trial)
+    public void setup() throws UnmarshalException, PersistenceException {
+        String configPath = System.getProperty(CONFIG_PATH);
+        if (configPath == null) {
+            throw new IllegalStateException("Please supply the configuration path: -D" + CONFIG_PATH + "=<path>");
+        }
+        Configuration configuration = Configuration.loadConfiguration(configPath);
+        persistence = new PersistenceImpl(null, configuration.getDbConnectionProperties(),
+                configuration.getSshConnectionProperties(), configuration.getMachines(),
+                System.getProperty(QUERIES_PATH), false);
+        persistence.start();
+        contexts = new ArrayList<>(subjects);
+        for (int i = 0; i < subjects; i++) {
+            contexts.add(Fixtures.context(i));
+        }
+        analysis = Fixtures.analysis(NUM_UNITS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws PersistenceException {
+        persistence.stop();
+    }
+
+    @Benchmark
+    public List<Integer> bulk() throws PersistenceException {
+        return persistence.createFlows(contexts, analysis, true);
+    }
+
+    @Benchmark
+    public List<Integer> oneByOne() throws PersistenceException {
+        List<Integer> flowIds = new ArrayList<>(subjects);
+        for (Context context : contexts) {
+            int flowId = persistence.createFlow(context, analysis);
+            persistence.startFlow(flowId);
+            flowIds.add(flowId);
+        }
+        return flowIds;
+    }
+}
@@ -0,0 +1,55 @@
+package ubongo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ubongo.common.datatypes.Context;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.datatypes.unit.Unit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The resolution of the input and output paths of a task (done for every dispatched task), using the precompiled
+ * path templates versus the regular expressions that were used before them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathTemplateBenchmark {
+
+    private static final String[] VARIABLES = {"study", "subject", "run"};
+
+    private Task task;
+
+    @Setup
+    public void setup() {
+        task = Fixtures.task(1, 1, 0, TaskStatus.NEW);
+    }
+
+    @Benchmark
+    public void template(Blackhole blackhole) {
+        blackhole.consume(task.getInputPath());
+        blackhole.consume(task.getOutputPath());
+    }
+
+    @Benchmark
+    public void regex(Blackhole blackhole) {
+        Unit unit = task.getUnit();
+        blackhole.consume(replaceAll(unit.getInputPaths(), task.getContext()));
+        blackhole.consume(replaceAll(unit.getOutputDir(), task.getContext()));
+    }
+
+    /* the former implementation of Task.getInputPath and Task.getOutputPath */
+    private static String replaceAll(String source, Context context) {
+        String dest = source;
+        String[] values = {context.getStudy(), context.getSubject(), context.getRun()};
+        for (int i = 0; i < VARIABLES.length; i++) {
+            dest = dest.replaceAll("\\{" + VARIABLES[i] + "\\}", values[i]);
+        }
+        return dest;
+    }
+}
@@ -0,0 +1,46 @@
+package ubongo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ubongo.common.constants.MachineConstants;
+import ubongo.common.datatypes.RabbitData;
+import ubongo.common.datatypes.TaskStatus;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The serialization of the messages sent between the server and the machines (every dispatched task, every kill
+ * request and every status update is a RabbitData).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RabbitDataBenchmark {
+
+    private RabbitData data;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws IOException {
+        data = new RabbitData(Fixtures.task(1, 1, 0, TaskStatus.PROCESSING), MachineConstants.BASE_UNIT_REQUEST);
+        bytes = data.getBytes();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return data.getBytes();
+    }
+
+    @Benchmark
+    public RabbitData deserialize() throws IOException, ClassNotFoundException {
+        return RabbitData.fromBytes(bytes);
+    }
+
+    @Benchmark
+    public RabbitData roundTrip() throws IOException, ClassNotFoundException {
+        return RabbitData.fromBytes(data.getBytes());
+    }
+}
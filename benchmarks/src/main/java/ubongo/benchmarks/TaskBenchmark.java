@@ -0,0 +1,82 @@
+package ubongo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ubongo.common.datatypes.Context;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.datatypes.unit.Unit;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The creation of tasks: cloning (the producer and the consumers of the queue clone every task they handle) and the
+ * expansion of context wildcards, which lists a directory tree of [subjects] x [runs] directories.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskBenchmark {
+
+    @Param({"100"})
+    public int subjects;
+
+    @Param({"4"})
+    public int runs;
+
+    private Task task;
+    private Path dataDir;
+    private Unit unit;
+    private Context wildcardContext;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() throws IOException {
+        task = Fixtures.task(1, 1, 0, TaskStatus.NEW);
+        dataDir = Files.createTempDirectory("ubongo-benchmarks");
+        for (int subject = 0; subject < subjects; subject++) {
+            for (int run = 0; run < runs; run++) {
+                Files.createDirectories(dataDir.resolve(Fixtures.STUDY)
+                        .resolve(String.format("subject%04d", subject)).resolve("run" + run));
+            }
+        }
+        String root = dataDir.toString().replace('\\', '/');
+        unit = Fixtures.unit(1, root + "/{study}/{subject}/{run}/", root + "/{study}/{subject}/{run}/out/");
+        wildcardContext = new Context(Fixtures.STUDY, ".*", ".*");
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        Files.walkFileTree(dataDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Benchmark
+    public Object cloneTask() throws CloneNotSupportedException {
+        return task.clone();
+    }
+
+    @Benchmark
+    public List<Task> createTasksSequential() throws Exception {
+        return Task.createTasks(unit, wildcardContext, 0, Task::listSubDirectories, null);
+    }
+
+    @Benchmark
+    public List<Task> createTasksParallel() throws Exception {
+        return Task.createTasks(unit, wildcardContext, 0, Task::listSubDirectories, pool);
+    }
+}
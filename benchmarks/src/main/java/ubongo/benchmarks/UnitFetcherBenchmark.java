@@ -0,0 +1,50 @@
+package ubongo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ubongo.common.datatypes.unit.Unit;
+import ubongo.persistence.UnitFetcher;
+import ubongo.persistence.exceptions.UnitFetcherException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The loading of a unit from its XML settings file (done for every task that is read from the DB).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnitFetcherBenchmark {
+
+    private static final int UNIT_ID = 2;
+    private static final String UNIT_FILE_NAME = "unit_002.xml";
+
+    private Path unitsDir;
+    private UnitFetcher unitFetcher;
+
+    @Setup
+    public void setup() throws IOException {
+        unitsDir = Files.createTempDirectory("ubongo-units");
+        try (InputStream in = UnitFetcherBenchmark.class.getResourceAsStream("/" + UNIT_FILE_NAME)) {
+            Files.copy(in, unitsDir.resolve(UNIT_FILE_NAME));
+        }
+        unitFetcher = new UnitFetcher(unitsDir.toString());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(unitsDir.resolve(UNIT_FILE_NAME));
+        Files.delete(unitsDir);
+    }
+
+    @Benchmark
+    public Unit getUnit() throws UnitFetcherException {
+        return unitFetcher.getUnit(UNIT_ID);
+    }
+}
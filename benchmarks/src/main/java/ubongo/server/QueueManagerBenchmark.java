@@ -0,0 +1,129 @@
+package ubongo.server;
+
+import org.openjdk.jmh.annotations.*;
+import ubongo.common.constants.MachineConstants;
+import ubongo.common.datatypes.Context;
+import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.datatypes.unit.Unit;
+import ubongo.common.transport.InProcessTransport;
+import ubongo.persistence.exceptions.PersistenceException;
+import ubongo.persistence.memory.InMemoryPersistence;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The throughput (tasks per second) of the QueueManager from the moment flows are started until all of their tasks
+ * were completed, including the dependencies between the units of every flow. The tasks are kept in memory and sent
+ * through the in-process transport to machines that complete every task as soon as they receive it, so only the
+ * scheduling overhead is measured.
+ * This benchmark is in the server's package since the QueueManager and the MachinesManager are only created by the
+ * server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueManagerBenchmark {
+
+    private static final int NUM_FLOWS = 50;
+    private static final int NUM_UNITS = 3;
+    private static final int NUM_TASKS = NUM_FLOWS * NUM_UNITS;
+    private static final int NUM_MACHINES = 4;
+    private static final long MAX_WAIT_SECONDS = 60;
+
+    private InMemoryPersistence persistence;
+    private InProcessTransport transport;
+    private MachinesManager machinesManager;
+    private QueueManager queueManager;
+    private List<Unit> analysis;
+    private volatile CountDownLatch remainingTasks;
+
+    @Setup(Level.Trial)
+    public void setup() throws PersistenceException {
+        List<Machine> machines = new ArrayList<>();
+        for (int i = 1; i <= NUM_MACHINES; i++) {
+            Machine machine = new Machine();
+            machine.setId(i);
+            machine.setHost("machine" + i);
+            machine.setDescription("machine" + i);
+            machine.setActive(true);
+            machine.setConnected(true);
+            machines.add(machine);
+        }
+        // the units of the tasks are kept by the persistence when the flows are created, so no units directory
+        // is needed
+        persistence = new InMemoryPersistence(null, machines);
+        persistence.saveMachines(machines);
+        for (Machine machine : machines) {
+            persistence.updateMachine(machine); // a heartbeat
+        }
+        machinesManager = new MachinesManager(machines, persistence);
+        transport = new InProcessTransport();
+        queueManager = new QueueManager(persistence, machinesManager, new ExecutionProxy(transport));
+        for (Machine machine : machines) {
+            transport.listenForRequests(machine.getId(), message -> {
+                if (message.getMessage().equals(MachineConstants.BASE_UNIT_REQUEST)) {
+                    Task task = message.getTask();
+                    task.setStatus(TaskStatus.COMPLETED);
+                    try {
+                        transport.sendStatus(task);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        }
+        transport.listenForStatus(message -> {
+            queueManager.updateTaskAfterExecution(message.getTask());
+            remainingTasks.countDown();
+        });
+        queueManager.start();
+        analysis = new ArrayList<>();
+        for (int serial = 0; serial < NUM_UNITS; serial++) {
+            Unit unit = new Unit(serial + 1);
+            unit.setInputPaths("/data/{study}/{subject}/unit" + serial + "/");
+            unit.setOutputDir("/data/{study}/{subject}/unit" + (serial + 1) + "/");
+            unit.setParameters(new ArrayList<>());
+            analysis.add(unit);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queueManager.stop();
+        transport.close();
+        machinesManager.stop();
+    }
+
+    @Setup(Level.Invocation)
+    public void clear() {
+        persistence.clear();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_TASKS)
+    public void startFlows() throws PersistenceException, InterruptedException {
+        remainingTasks = new CountDownLatch(NUM_TASKS);
+        for (int i = 0; i < NUM_FLOWS; i++) {
+            Context context = new Context("study", "subject" + i, null);
+            List<Task> tasks = new ArrayList<>(NUM_UNITS);
+            for (int serial = 0; serial < NUM_UNITS; serial++) {
+                tasks.add(new Task(serial, analysis.get(serial), context));
+            }
+            int flowId = persistence.createFlow(context, tasks);
+            queueManager.startFlow(flowId);
+        }
+        if (!remainingTasks.await(MAX_WAIT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(remainingTasks.getCount() + " tasks were not completed");
+        }
+    }
+}
@@ -7,6 +7,11 @@ public class MachineConstants {
     public static final String BASE_UNIT_REQUEST = "Unit task";
     public static final String KILL_TASK_REQUEST = "Kill unit task";
     public static final String UPDATE_TASK_REQUEST = "Update task status";
+    public static final String BATCH_UNIT_REQUEST = "Unit task batch";
+    public static final String BATCH_UPDATE_REQUEST = "Update batch status";
+    public static final String RUNNING_TASKS_REQUEST = "Report running tasks";
+    public static final String RUNNING_TASKS_REPORT = "Running tasks";
+    public static final String TELEMETRY_REPORT = "Telemetry";
 
     public static final String INPUT_DIR_SUFFIX = "_ubongo_in";
     public static final String OUTPUT_DIR_SUFFIX = "_ubongo_out";
@@ -16,4 +21,6 @@ public class MachineConstants {
     public static final String ARG_WORKSPACE = "workspace";
     public static final String ARG_QUERIES_PATH = "queries";
     public static final String ARG_CONFIG_PATH = "config";
+    public static final String ARG_SLOTS = "slots";
+    public static final String ARG_TELEMETRY_SECONDS = "telemetry_seconds";
 }
@@ -5,5 +5,6 @@ public class SystemConstants {
     public static final String UBONGO_RABBIT_TASKS_QUEUE = "ubongo_tasks_queue";
     public static final String UBONGO_RABBIT_KILL_TASKS_QUEUE = "ubongo_kill_requests_queue";
     public static final String UBONGO_SERVER_TASKS_STATUS_QUEUE = "ubongo_tasks_status_queue";
+    public static final String UBONGO_RABBIT_TELEMETRY_EXCHANGE = "ubongo_telemetry";
 
 }
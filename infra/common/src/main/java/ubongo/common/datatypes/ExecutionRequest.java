@@ -74,9 +74,12 @@ public class ExecutionRequest implements Serializable {
         KILL_TASK ("Kill_Task"),
         RESUME_TASK ("Resume_Task"),
         RUN_FLOW ("Run_Flow"),
+        RUN_FLOWS ("Run_Flows"),
         CANCEL_FLOW ("Cancel_Flow"),
         ACTIVATE_MACHINE ("Activate_Machine"),
         DEACTIVATE_MACHINE ("Deactivate_Machine"),
+        DRAIN_MACHINE ("Drain_Machine"),
+        DRAIN_MACHINES ("Drain_Machines"), // a rolling drain of all machines - the entity is how many at a time
         GENERATE_BASH ("Generate_Bash");
 
         private String name;
@@ -0,0 +1,25 @@
+package ubongo.common.datatypes;
+
+/**
+ * Why a task has failed, as reported along with the status 'Failed'. Transient causes are those of the machine or
+ * of the network rather than of the task itself, so running the task again (preferably on another machine) is
+ * likely to succeed - these tasks are retried automatically according to the retry policy of their unit.
+ */
+public enum FailureCause {
+
+    DISPATCH (true),  // the task could not be sent to its machine
+    NETWORK (true),   // the machine failed to download the input files or to upload the output files
+    WORKSPACE (true), // the machine failed to create the local directories of the task
+    NO_INPUT (false), // no input files matched the input path of the unit
+    UNIT (false);     // the unit itself has failed
+
+    private final boolean isTransient;
+
+    FailureCause(boolean isTransient) {
+        this.isTransient = isTransient;
+    }
+
+    public boolean isTransient() {
+        return isTransient;
+    }
+}
@@ -0,0 +1,35 @@
+package ubongo.common.datatypes;
+
+import java.io.Serializable;
+
+/**
+ * A Lease is a named claim of one of the execution servers (its owner) on something that only one server may handle
+ * at a time - e.g., a flow, or a slot for a task on a machine. The owner has to renew its leases before they expire,
+ * and a lease that has expired may be taken by any other server.
+ * Whether the lease has expired is decided by the clock of the DB, so the clocks of the servers do not matter.
+ * Lease objects are immutable.
+ */
+public class Lease implements Serializable {
+
+    private final String name;
+    private final String owner;
+    private final boolean expired;
+
+    public Lease(String name, String owner, boolean expired) {
+        this.name = name;
+        this.owner = owner;
+        this.expired = expired;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public boolean isExpired() {
+        return expired;
+    }
+}
@@ -17,8 +17,15 @@ public class Machine implements Serializable {
 
     private boolean connected = false;
     private boolean active = true;
+    private boolean draining = false; // no new tasks are sent to the machine, while the tasks it runs end
+    private boolean drained = false; // the machine was drained and may be taken down (it is inactive until activated)
     private java.sql.Timestamp lastHeartbeat;
 
+    /* as the machine has registered itself (0 if unknown, e.g. for the machines of the configuration) */
+    private int cores;
+    private int memoryMb;
+    private int slots; // the number of tasks the machine runs at once
+
     public int getId() {
         return id;
     }
@@ -43,6 +50,46 @@ public class Machine implements Serializable {
         this.active = active;
     }
 
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    public boolean isDrained() {
+        return drained;
+    }
+
+    public void setDrained(boolean drained) {
+        this.drained = drained;
+    }
+
+    public int getCores() {
+        return cores;
+    }
+
+    public void setCores(int cores) {
+        this.cores = cores;
+    }
+
+    public int getMemoryMb() {
+        return memoryMb;
+    }
+
+    public void setMemoryMb(int memoryMb) {
+        this.memoryMb = memoryMb;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public void setSlots(int slots) {
+        this.slots = slots;
+    }
+
     public java.sql.Timestamp getLastHeartbeat() {
         return lastHeartbeat;
     }
@@ -0,0 +1,123 @@
+package ubongo.common.datatypes;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sample of the resources of a machine, which the machine sends to the servers with its telemetry (see
+ * {@link ubongo.common.transport.Transport#sendTelemetry(MachineTelemetry)}). The values that the machine could not
+ * measure are negative.
+ */
+public class MachineTelemetry implements Serializable {
+
+    private int machineId;
+    private String host;
+    private long time; // when the sample was taken (millis since the epoch)
+    private double loadAverage; // of the last minute
+    private int cores;
+    private long freeMemoryMb;
+    private long freeDiskMb; // in the workspace of the machine
+    private int runningTasks; // including the tasks of its batches that have not started yet
+    private List<TaskUsage> taskUsages = new ArrayList<>(); // of the tasks whose processes run
+
+    public int getMachineId() {
+        return machineId;
+    }
+
+    public void setMachineId(int machineId) {
+        this.machineId = machineId;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public double getLoadAverage() {
+        return loadAverage;
+    }
+
+    public void setLoadAverage(double loadAverage) {
+        this.loadAverage = loadAverage;
+    }
+
+    public int getCores() {
+        return cores;
+    }
+
+    public void setCores(int cores) {
+        this.cores = cores;
+    }
+
+    public long getFreeMemoryMb() {
+        return freeMemoryMb;
+    }
+
+    public void setFreeMemoryMb(long freeMemoryMb) {
+        this.freeMemoryMb = freeMemoryMb;
+    }
+
+    public long getFreeDiskMb() {
+        return freeDiskMb;
+    }
+
+    public void setFreeDiskMb(long freeDiskMb) {
+        this.freeDiskMb = freeDiskMb;
+    }
+
+    public int getRunningTasks() {
+        return runningTasks;
+    }
+
+    public void setRunningTasks(int runningTasks) {
+        this.runningTasks = runningTasks;
+    }
+
+    public List<TaskUsage> getTaskUsages() {
+        return taskUsages;
+    }
+
+    public void setTaskUsages(List<TaskUsage> taskUsages) {
+        this.taskUsages = taskUsages;
+    }
+
+    /**
+     * The resources that the processes of a task (the unit's script and all the processes it has started) use.
+     */
+    public static class TaskUsage implements Serializable {
+
+        private final int taskId;
+        private final long rssMb;
+        private final double cpuPercent; // of one core, since the previous sample (may exceed 100 on several cores)
+
+        public TaskUsage(int taskId, long rssMb, double cpuPercent) {
+            this.taskId = taskId;
+            this.rssMb = rssMb;
+            this.cpuPercent = cpuPercent;
+        }
+
+        public int getTaskId() {
+            return taskId;
+        }
+
+        public long getRssMb() {
+            return rssMb;
+        }
+
+        public double getCpuPercent() {
+            return cpuPercent;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package ubongo.common.datatypes;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A PathTemplate is the compiled form of a string with context variables, such as the input paths, the output
+ * directory and the parameter values of a unit (e.g., "/data/{study}/{subject}/{run}/input"). The string is parsed
+ * once into literal segments and variables, and then rendered for any number of contexts without regular expressions
+ * and with a single allocation of the result. Variables are replaced by the corresponding part of the context;
+ * variables with no value (and unknown variables) are left in place, as written.
+ * PathTemplate objects are immutable.
+ */
+public final class PathTemplate implements Serializable {
+
+    public static final String STUDY = "study";
+    public static final String SUBJECT = "subject";
+    public static final String RUN = "run";
+
+    private static final String[] NO_VARIABLES = new String[0];
+
+    private final String source;
+
+    /* literals[i] precedes variables[i]; the last literal follows the last variable */
+    private final String[] literals;
+    private final String[] variables;
+    private final int literalsLength;
+
+    private PathTemplate(String source, String[] literals, String[] variables) {
+        this.source = source;
+        this.literals = literals;
+        this.variables = variables;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalsLength = length;
+    }
+
+    /**
+     * Parses the source. A variable is any text enclosed in braces, as in "{subject}".
+     * @param source to parse (may be null).
+     * @return the compiled template, or null if the source is null.
+     */
+    public static PathTemplate compile(String source) {
+        if (source == null) {
+            return null;
+        }
+        List<String> literals = new ArrayList<>();
+        List<String> variables = new ArrayList<>();
+        int literalStart = 0;
+        int open = source.indexOf('{');
+        while (open >= 0) {
+            int close = source.indexOf('}', open + 1);
+            if (close < 0) {
+                break;
+            }
+            literals.add(source.substring(literalStart, open));
+            variables.add(source.substring(open + 1, close));
+            literalStart = close + 1;
+            open = source.indexOf('{', literalStart);
+        }
+        literals.add(source.substring(literalStart));
+        return new PathTemplate(source, literals.toArray(new String[literals.size()]),
+                variables.isEmpty() ? NO_VARIABLES : variables.toArray(new String[variables.size()]));
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public boolean hasVariables() {
+        return variables.length > 0;
+    }
+
+    public int getNumVariables() {
+        return variables.length;
+    }
+
+    /**
+     * @return the name of the i-th variable in the template (in order of appearance, including repetitions).
+     */
+    public String getVariable(int i) {
+        return variables[i];
+    }
+
+    /**
+     * @return the name of the first variable in the template, or null if there are none.
+     */
+    public String getFirstVariable() {
+        return variables.length > 0 ? variables[0] : null;
+    }
+
+    /**
+     * @return the text that precedes the first variable (the whole source if there are no variables).
+     */
+    public String getPrefix() {
+        return literals[0];
+    }
+
+    /**
+     * @return the text that follows the first variable, as written (including further variables),
+     * or an empty string if there are no variables.
+     */
+    public String getSuffix() {
+        if (variables.length == 0) {
+            return "";
+        }
+        return source.substring(literals[0].length() + variables[0].length() + 2);
+    }
+
+    /**
+     * Replaces all the variables by the corresponding parts of the context.
+     */
+    public String render(Context context) {
+        if (variables.length == 0) {
+            return source;
+        }
+        String[] values = new String[variables.length];
+        int length = literalsLength;
+        for (int i = 0; i < variables.length; i++) {
+            values[i] = getValue(variables[i], context);
+            length += values[i] == null ? variables[i].length() + 2 : values[i].length();
+        }
+        return render(values, length);
+    }
+
+    /**
+     * Replaces only the occurrences of the given variable by the value, leaving all other variables as they are.
+     */
+    public String render(String variable, String value) {
+        if (variables.length == 0 || value == null) {
+            return source;
+        }
+        String[] values = new String[variables.length];
+        int length = literalsLength;
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(variable)) {
+                values[i] = value;
+                length += value.length();
+            } else {
+                length += variables[i].length() + 2;
+            }
+        }
+        return render(values, length);
+    }
+
+    private String render(String[] values, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < variables.length; i++) {
+            sb.append(literals[i]);
+            if (values[i] == null) {
+                sb.append('{').append(variables[i]).append('}');
+            } else {
+                sb.append(values[i]);
+            }
+        }
+        return sb.append(literals[variables.length]).toString();
+    }
+
+    private static String getValue(String variable, Context context) {
+        if (context == null) {
+            return null;
+        }
+        switch (variable) {
+            case STUDY: return context.getStudy();
+            case SUBJECT: return context.getSubject();
+            case RUN: return context.getRun();
+            default: return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -1,24 +1,83 @@
 package ubongo.common.datatypes;
 
+import ubongo.common.constants.MachineConstants;
+
 import java.io.*;
+import java.util.Collections;
+import java.util.List;
 
 public class RabbitData implements Serializable {
     private Task task;
+    private List<Task> tasks; // the tasks of a batch (null if the message is about a single task)
     private String message;
+    private int machineId; // the machine whose running tasks are asked for or reported (see RUNNING_TASKS_REQUEST)
+    private String serverId; // the server that asked for the running tasks of the machine (null if it is the only one)
+    private MachineTelemetry telemetry; // of a TELEMETRY_REPORT
 
     public RabbitData(Task task, String message) {
         this.task = task;
         this.message = message;
     }
 
+    /**
+     * @param tasks of a batch, which are executed (or reported) together.
+     */
+    public RabbitData(List<Task> tasks, String message) {
+        this(tasks.get(0), message);
+        this.tasks = tasks;
+    }
+
+    /**
+     * A message about the tasks that a machine is running: a RUNNING_TASKS_REQUEST of a server or the
+     * RUNNING_TASKS_REPORT of the machine.
+     * @param tasks the machine is running (may be empty, and is empty in a request).
+     */
+    public RabbitData(String message, int machineId, String serverId, List<Task> tasks) {
+        this(tasks.isEmpty() ? null : tasks.get(0), message);
+        this.tasks = tasks;
+        this.machineId = machineId;
+        this.serverId = serverId;
+    }
+
+    /**
+     * The TELEMETRY_REPORT of a machine.
+     */
+    public RabbitData(MachineTelemetry telemetry) {
+        this((Task) null, MachineConstants.TELEMETRY_REPORT);
+        this.telemetry = telemetry;
+        this.machineId = telemetry.getMachineId();
+    }
+
+    /**
+     * @return the task of the message (the first task if it is the message of a batch).
+     */
     public Task getTask() {
         return task;
     }
 
+    /**
+     * @return the tasks of the batch, or only the task of the message if it is not the message of a batch.
+     */
+    public List<Task> getTasks() {
+        return tasks == null ? Collections.singletonList(task) : tasks;
+    }
+
     public String getMessage() {
         return message;
     }
 
+    public int getMachineId() {
+        return machineId;
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
+    public MachineTelemetry getTelemetry() {
+        return telemetry;
+    }
+
     public byte[] getBytes() throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ObjectOutputStream oos = new ObjectOutputStream(baos);
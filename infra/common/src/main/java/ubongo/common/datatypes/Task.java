@@ -5,14 +5,17 @@ import ubongo.common.datatypes.unit.UnitParameter;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 public class Task implements Serializable, Cloneable {
 
@@ -34,7 +37,23 @@ public class Task implements Serializable, Cloneable {
     private TaskStatus status;
     private Context context;
 
-    private static final Pattern VAR_PATTERN = Pattern.compile("\\{(.*?)\\}");
+    /**
+     * The directory to upload the output files to instead of the output directory of the unit (e.g., for a
+     * speculative copy of the task, which must not mix its files with those of the original attempt), or null.
+     */
+    private String outputPath;
+
+    /**
+     * Why the task has failed, reported along with the status 'Failed' (null if unknown or if it has not failed).
+     */
+    private FailureCause failureCause;
+
+    /**
+     * The id of the execution server that has dispatched the task, to which the machine reports its status (null if
+     * there is a single server - see {@link ubongo.common.transport.Transport#sendStatus(Task)}).
+     */
+    private String serverId;
+
     private static final String WILDCARD = ".*";
 
     public Task(int serialNumber, Unit unit, Context context) {
@@ -55,11 +74,25 @@ public class Task implements Serializable, Cloneable {
     public Task() {}
 
     public String getInputPath() {
-        return unit == null ? null : ContextLevel.replaceAll(unit.getInputPaths(), context);
+        return unit == null ? null : render(unit.inputPathsTemplate(), context);
     }
 
     public String getOutputPath() {
-        return unit == null ? null : ContextLevel.replaceAll(unit.getOutputDir(), context);
+        if (outputPath != null) {
+            return outputPath;
+        }
+        return unit == null ? null : render(unit.outputDirTemplate(), context);
+    }
+
+    /**
+     * @param outputPath to upload the output files to, or null for the output directory of the unit.
+     */
+    public void setOutputPath(String outputPath) {
+        this.outputPath = outputPath;
+    }
+
+    private static String render(PathTemplate template, Context context) {
+        return template == null ? null : template.render(context);
     }
 
     public int getId() {
@@ -94,6 +127,22 @@ public class Task implements Serializable, Cloneable {
         this.status = status;
     }
 
+    public FailureCause getFailureCause() {
+        return failureCause;
+    }
+
+    public void setFailureCause(FailureCause failureCause) {
+        this.failureCause = failureCause;
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
+    public void setServerId(String serverId) {
+        this.serverId = serverId;
+    }
+
     public int getFlowId() {
         return flowId;
     }
@@ -118,40 +167,155 @@ public class Task implements Serializable, Cloneable {
         this.context = context;
     }
 
+    /**
+     * @return the serial numbers of the tasks in the flow that must all be completed before this task can be
+     * executed - the predecessors of its unit, or the serial number right before its own if the unit does not
+     * declare any (so a flow whose units declare no predecessors is a chain).
+     */
+    public List<Integer> predecessorSerials() {
+        List<Integer> predecessors = unit == null ? null : unit.getPredecessors();
+        if (predecessors != null) {
+            return predecessors;
+        }
+        return serialNumber > 0 ? Collections.singletonList(serialNumber - 1) : Collections.emptyList();
+    }
+
+    /**
+     * Verifies that every task of the flow depends only on smaller serial numbers, so the flow is a directed acyclic
+     * graph (see {@link Unit#checkPredecessors(List)}).
+     * @throws IllegalArgumentException if some task depends on its own serial number or on a greater one.
+     */
+    public static void checkPredecessors(List<Task> flowTasks) {
+        for (Task task : flowTasks) {
+            for (Integer predecessor : task.predecessorSerials()) {
+                if (predecessor == null || predecessor < 0 || predecessor >= task.getSerialNumber()) {
+                    throw new IllegalArgumentException("Task " + task.getSerialNumber() + " of the flow depends on "
+                            + "task " + predecessor + ", which does not come before it");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true iff a context variable in the input path of the task's unit has a wildcard value in the task's
+     * context (or is not a valid variable name), so the task must be expanded by {@link #createTasks} before it can
+     * be executed. This check does not access the file system.
+     */
+    public boolean hasContextWildcards() {
+        PathTemplate template = unit == null ? null : unit.inputPathsTemplate();
+        if (template == null) {
+            return false;
+        }
+        for (int i = 0; i < template.getNumVariables(); i++) {
+            String contextPart;
+            try {
+                contextPart = ContextLevel.valueOf(template.getVariable(i).toLowerCase())
+                        .getStringFromContext(context);
+            } catch (IllegalArgumentException e) {
+                return true; // let createTasks report it
+            }
+            if (contextPart == null || contextPart.equals(WILDCARD)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static List<Task> createTasks(Unit unit, Context context, int serialNumber) throws Exception {
-        List<Task> tasks = new ArrayList<>();
+        return createTasks(unit, context, serialNumber, Task::listSubDirectories, null);
+    }
+
+    /**
+     * Creates the tasks corresponding to all the context combinations that match the given context, where a context
+     * part may be a wildcard (".*") that matches every sub-directory in the corresponding level of the input path.
+     * @param lister used to list the sub-directories of every directory level with a wildcard.
+     * @param pool to expand the sub-directories of every level in parallel (fork-join), or null to expand them
+     *             sequentially in the calling thread.
+     * @return the tasks, in the order of the sub-directories returned by the lister.
+     * @throws Exception in case a directory could not be listed or the unit's paths are inconsistent.
+     */
+    public static List<Task> createTasks(Unit unit, Context context, int serialNumber,
+                                         DirectoryLister lister, ForkJoinPool pool) throws Exception {
+        ContextExpansion expansion = new ContextExpansion(unit, context, serialNumber, lister);
         try {
-            createTasks(tasks, unit, context, serialNumber);
+            return pool == null ? expansion.compute() : pool.invoke(expansion);
         } catch (IllegalArgumentException e) {
             throw new Exception(e); // so it will not be a Runtime exception and will have to be handled
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return tasks;
-    }
-
-    private static void createTasks(List<Task> tasks, Unit originalUnit, Context originalContext, int serialNumber)
-            throws IllegalArgumentException, IOException, CloneNotSupportedException {
-
-        String inputPattern = originalUnit.getInputPaths();
-        String outputPattern = originalUnit.getOutputDir();
-        Matcher inputMatcher = VAR_PATTERN.matcher(inputPattern);
-        String inputVar = inputMatcher.find() ? inputMatcher.group(1) : null;
-        if (inputVar == null) { // stop condition
-            // inputPattern is a context-less path
-            Matcher outputMatcher = VAR_PATTERN.matcher(outputPattern);
-            if (outputMatcher.find()) {
-                throw new IllegalArgumentException(
-                        "Some variable in the output directory of unit " + originalUnit.getId() +
-                        " is redundant and inconsistent with the amount of variables in the input paths");
+    }
+
+    public static List<Path> listSubDirectories(Path dir) throws IOException {
+        List<Path> subDirs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                if (Files.isDirectory(entry)) {
+                    subDirs.add(entry);
+                }
+            }
+        }
+        return subDirs;
+    }
+
+    /**
+     * Lists the sub-directories of a directory, so that callers may cache the listings.
+     */
+    @FunctionalInterface
+    public interface DirectoryLister {
+        List<Path> listSubDirectories(Path dir) throws IOException;
+    }
+
+    /**
+     * Expands one variable of the input path of a unit (the first one), and recursively the variables that follow it.
+     * When the variable has a wildcard value, each of the sub-directories is expanded by a sub-task of its own, which
+     * runs in parallel if the expansion was started in a fork-join pool.
+     */
+    private static final class ContextExpansion extends RecursiveTask<List<Task>> {
+
+        private final Unit originalUnit;
+        private final Context originalContext;
+        private final int serialNumber;
+        private final DirectoryLister lister;
+
+        ContextExpansion(Unit originalUnit, Context originalContext, int serialNumber, DirectoryLister lister) {
+            this.originalUnit = originalUnit;
+            this.originalContext = originalContext;
+            this.serialNumber = serialNumber;
+            this.lister = lister;
+        }
+
+        @Override
+        protected List<Task> compute() {
+            try {
+                return expand();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e); // not possible
+            }
+        }
+
+        private List<Task> expand() throws IOException, CloneNotSupportedException {
+            List<Task> tasks = new ArrayList<>();
+            PathTemplate inputTemplate = originalUnit.inputPathsTemplate();
+            PathTemplate outputTemplate = originalUnit.outputDirTemplate();
+            String inputVar = inputTemplate.getFirstVariable();
+            if (inputVar == null) { // stop condition
+                // inputPattern is a context-less path
+                if (outputTemplate != null && outputTemplate.hasVariables()) {
+                    throw new IllegalArgumentException(
+                            "Some variable in the output directory of unit " + originalUnit.getId() +
+                            " is redundant and inconsistent with the amount of variables in the input paths");
+                }
+                Task task = new Task(serialNumber, (Unit) originalUnit.clone(), originalContext);
+                tasks.add(task);
+                return tasks;
             }
-            Task task = new Task(serialNumber, (Unit) originalUnit.clone(), originalContext);
-            tasks.add(task);
-        } else {
             // next line may throw IllegalArgumentException
             ContextLevel contextLevel = ContextLevel.valueOf(inputVar.toLowerCase());
-            String inputVarEnclosed = "\\{" + inputVar + "\\}";
-            String[] inputPathParts = inputPattern.split(inputVarEnclosed);
-            String inputPrefix = inputPathParts[0];
-            String inputSuffix = inputPathParts.length > 1 ? inputPathParts[1] : "";
+            String inputPrefix = inputTemplate.getPrefix();
+            String inputSuffix = inputTemplate.getSuffix();
             String contextPart = contextLevel.getStringFromContext(originalContext);
 
             if (contextPart == null) {
@@ -160,49 +324,55 @@ public class Task implements Serializable, Cloneable {
             if (!contextPart.equals(WILDCARD)) {
                 Unit unit = (Unit) originalUnit.clone();
                 unit.setInputPaths(inputPrefix + contextPart + inputSuffix);
-                unit.setOutputDir(outputPattern.replaceAll(inputVarEnclosed, contextPart));
+                unit.setOutputDir(render(outputTemplate, inputVar, contextPart));
                 Context context = updateParamsAndContext(originalContext, unit, contextLevel,
-                        inputVarEnclosed, contextPart);
-                createTasks(tasks, unit, context, serialNumber);
-            } else {
-                Path dir = Paths.get(inputPrefix);
-                List<Path> subDirs = new ArrayList<>();
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
-                    for (Path entry : stream) {
-                        if (Files.isDirectory(entry)) {
-                            subDirs.add(entry);
-                        }
-                    }
+                        inputVar, contextPart);
+                return new ContextExpansion(unit, context, serialNumber, lister).compute();
+            }
+            List<ContextExpansion> subExpansions = new ArrayList<>();
+            for (Path subDir : lister.listSubDirectories(Paths.get(inputPrefix))) {
+                Unit unit = (Unit) originalUnit.clone();
+                unit.setInputPaths(subDir.toString().replace('\\', '/') + inputSuffix);
+                String value = subDir.getFileName().toString();
+                unit.setOutputDir(render(outputTemplate, inputVar, value));
+                Context context = updateParamsAndContext(originalContext, unit, contextLevel,
+                        inputVar, value);
+                subExpansions.add(new ContextExpansion(unit, context, serialNumber, lister));
+            }
+            if (inForkJoinPool()) {
+                ForkJoinTask.invokeAll(subExpansions);
+                for (ContextExpansion subExpansion : subExpansions) {
+                    tasks.addAll(subExpansion.join());
                 }
-                for (Path subDir : subDirs) {
-                    Unit unit = (Unit) originalUnit.clone();
-                    unit.setInputPaths(subDir.toString().replaceAll("\\\\", "/") + inputSuffix);
-                    String value = subDir.getFileName().toString();
-                    unit.setOutputDir(outputPattern.replaceAll(inputVarEnclosed, value));
-                    Context context = updateParamsAndContext(originalContext, unit, contextLevel,
-                            inputVarEnclosed, value);
-                    List<Task> furtherTasks = new ArrayList<>();
-                    createTasks(furtherTasks, unit, context, serialNumber);
-                    tasks.addAll(furtherTasks);
+            } else {
+                for (ContextExpansion subExpansion : subExpansions) {
+                    tasks.addAll(subExpansion.compute());
                 }
             }
+            return tasks;
         }
     }
 
+    private static String render(PathTemplate template, String variable, String value) {
+        return template == null ? null : template.render(variable, value);
+    }
+
     private static Context updateParamsAndContext(Context originalContext, Unit unit,
-                                                  ContextLevel contextLevel, String inputVarEnclosed,
+                                                  ContextLevel contextLevel, String inputVar,
                                                   String contextPart) throws CloneNotSupportedException {
-        updateUnitParameters(unit, inputVarEnclosed, contextPart);
+        updateUnitParameters(unit, inputVar, contextPart);
         Context context = (Context) originalContext.clone();
         contextLevel.updateContext(context, contextPart);
         return context;
     }
 
-    private static void updateUnitParameters(Unit unit, String inputVarEnclosed, String value) {
+    private static void updateUnitParameters(Unit unit, String inputVar, String value) {
         List<UnitParameter> unitParameters = unit.getParameters();
         for (UnitParameter unitParameter : unitParameters) {
-            unitParameter.setValue(unitParameter.getValue()
-                    .replaceAll(inputVarEnclosed, value));
+            PathTemplate template = unitParameter.valueTemplate();
+            if (template != null && template.hasVariables()) {
+                unitParameter.setValue(template.render(inputVar, value));
+            }
         }
     }
 
@@ -237,20 +407,6 @@ public class Task implements Serializable, Cloneable {
                 case run: context.setRun(value);
             }
         }
-
-        private String replaceAll(String source, String value) {
-            return source.replaceAll("\\{" + name + "\\}", value);
-        }
-
-        public static String replaceAll(String source, Context context) {
-            String dest = source;
-            if (dest != null) {
-                for (ContextLevel level : ContextLevel.values()) {
-                    dest = level.replaceAll(dest, level.getStringFromContext(context));
-                }
-            }
-            return dest;
-        }
     }
 
     @Override
@@ -0,0 +1,95 @@
+package ubongo.common.datatypes;
+
+import java.io.Serializable;
+
+/**
+ * A TaskEvent is an entry in the timeline of a task: the moment at which the task has reached a stage on its way
+ * from creation to a final status. The server records the stages it handles (New, Pending, Dispatched and the status
+ * the task ended with, or Held if it was put on hold) and the machine records the stages of the execution itself (downloading the input files,
+ * running the unit and uploading the output files).
+ * TaskEvent objects are immutable.
+ */
+public class TaskEvent implements Serializable {
+
+    private final int taskId;
+    private final Type type;
+    private final TaskStatus status;
+    private final long time;
+    private final Integer machineId;
+
+    /**
+     * @param taskId of the task that has reached the stage.
+     * @param type of the stage.
+     * @param status the task ended with (only for events of type {@link Type#ENDED}, null otherwise).
+     * @param time of the event in milliseconds since the epoch.
+     * @param machineId of the machine that handles the task (may be null).
+     */
+    public TaskEvent(int taskId, Type type, TaskStatus status, long time, Integer machineId) {
+        this.taskId = taskId;
+        this.type = type;
+        this.status = status;
+        this.time = time;
+        this.machineId = machineId;
+    }
+
+    public TaskEvent(int taskId, Type type, long time, Integer machineId) {
+        this(taskId, type, null, time, machineId);
+    }
+
+    public int getTaskId() {
+        return taskId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public TaskStatus getStatus() {
+        return status;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public Integer getMachineId() {
+        return machineId;
+    }
+
+    public enum Type {
+
+        CREATED ("Created"),
+        NEW ("New"),
+        PENDING ("Pending"),
+        DISPATCHED ("Dispatched"),
+        DOWNLOAD_STARTED ("Download_Started"),
+        DOWNLOAD_ENDED ("Download_Ended"),
+        PROCESS_STARTED ("Process_Started"),
+        PROCESS_ENDED ("Process_Ended"),
+        UPLOAD_ENDED ("Upload_Ended"),
+        ENDED ("Ended"),
+        HELD ("Held"); // put on hold - the task has not ended, and is sent again when it is resumed
+
+        private final String name;
+
+        Type(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        public static Type fromString(String name) {
+            if (name != null) {
+                for (Type type : Type.values()) {
+                    if (name.equalsIgnoreCase(type.name)) {
+                        return type;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -25,8 +25,40 @@ public enum TaskStatus {
         return finalStatuses;
     }
 
+    public boolean isFinal() {
+        for (TaskStatus status : finalStatuses) {
+            if (this == status) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Resolves the status a task will have after requesting to change it from this status to the requested one.
+     * A task in a final status never changes, and a task may not change from Processing to Pending
+     * (this situation may be caused by threads synchronization issues and is not desired).
+     * @param requested is the status requested for the task.
+     * @return the status the task will actually have.
+     */
+    public TaskStatus resolveUpdate(TaskStatus requested) {
+        if (isFinal() || (this == PROCESSING && requested == PENDING)) {
+            return this;
+        }
+        return requested;
+    }
+
     @Override
     public String toString() {
         return this.name;
     }
+
+    public static TaskStatus fromString(String name) {
+        if (name != null) {
+            for (TaskStatus status : TaskStatus.values()) {
+                if (name.equalsIgnoreCase(status.name)) {
+                    return status;
+                }
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,208 @@
+package ubongo.common.datatypes;
+
+import java.util.*;
+
+/**
+ * A UnitTimeline summarizes where the time of the tasks of a unit went: for every phase of the execution (e.g.,
+ * waiting in the queue, downloading the input files or running the unit) it holds the number of tasks that went
+ * through the phase and statistics of its duration.
+ * Only the last attempt of every task is taken into account (an attempt starts whenever the task becomes 'New'), and
+ * only tasks that have ended, so durations are not skewed by tasks that are still running.
+ * UnitTimeline objects are created by an {@link Aggregator}.
+ */
+public class UnitTimeline {
+
+    private final int unitId;
+    private final int numTasks;
+    private final List<PhaseSummary> phases;
+
+    private UnitTimeline(int unitId, int numTasks, List<PhaseSummary> phases) {
+        this.unitId = unitId;
+        this.numTasks = numTasks;
+        this.phases = phases;
+    }
+
+    public int getUnitId() {
+        return unitId;
+    }
+
+    public int getNumTasks() {
+        return numTasks;
+    }
+
+    public List<PhaseSummary> getPhases() {
+        return phases;
+    }
+
+    /**
+     * The phases of the execution of a task, each between two events of its timeline.
+     */
+    public enum Phase {
+
+        SCHEDULING (TaskEvent.Type.NEW, TaskEvent.Type.PENDING),
+        QUEUEING (TaskEvent.Type.PENDING, TaskEvent.Type.DISPATCHED),
+        DELIVERY (TaskEvent.Type.DISPATCHED, TaskEvent.Type.DOWNLOAD_STARTED),
+        DOWNLOAD (TaskEvent.Type.DOWNLOAD_STARTED, TaskEvent.Type.DOWNLOAD_ENDED),
+        EXECUTION (TaskEvent.Type.PROCESS_STARTED, TaskEvent.Type.PROCESS_ENDED),
+        UPLOAD (TaskEvent.Type.PROCESS_ENDED, TaskEvent.Type.UPLOAD_ENDED),
+        REPORTING (TaskEvent.Type.UPLOAD_ENDED, TaskEvent.Type.ENDED),
+        TOTAL (TaskEvent.Type.NEW, TaskEvent.Type.ENDED);
+
+        private final TaskEvent.Type from;
+        private final TaskEvent.Type to;
+
+        Phase(TaskEvent.Type from, TaskEvent.Type to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public TaskEvent.Type getFrom() {
+            return from;
+        }
+
+        public TaskEvent.Type getTo() {
+            return to;
+        }
+    }
+
+    /**
+     * Statistics of the duration of a phase, in seconds.
+     */
+    public static class PhaseSummary {
+
+        private final Phase phase;
+        private final int count;
+        private final double mean;
+        private final double median;
+        private final double percentile90;
+        private final double max;
+
+        private PhaseSummary(Phase phase, long[] millis) {
+            Arrays.sort(millis);
+            long sum = 0;
+            for (long duration : millis) {
+                sum += duration;
+            }
+            this.phase = phase;
+            this.count = millis.length;
+            this.mean = sum / 1000.0 / millis.length;
+            this.median = percentile(millis, 0.5);
+            this.percentile90 = percentile(millis, 0.9);
+            this.max = millis[millis.length - 1] / 1000.0;
+        }
+
+        private static double percentile(long[] sortedMillis, double p) {
+            int index = (int) Math.ceil(p * sortedMillis.length) - 1;
+            return sortedMillis[Math.max(0, index)] / 1000.0;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getMedian() {
+            return median;
+        }
+
+        public double getPercentile90() {
+            return percentile90;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+
+    /**
+     * Builds the UnitTimeline objects from the events of many tasks. The events of every task must be added one after
+     * the other, in the order of the timeline of the task (the events of different tasks must not be interleaved).
+     */
+    public static class Aggregator {
+
+        private static final Phase[] PHASES = Phase.values();
+
+        /* durations in milliseconds by unit, each with a list per phase */
+        private final Map<Integer, List<List<Long>>> durations = new TreeMap<>();
+        private final Map<Integer, Integer> numTasks = new HashMap<>();
+
+        private final long[] times = new long[TaskEvent.Type.values().length];
+        private int taskId;
+        private int unitId;
+        private boolean inTask = false;
+
+        /**
+         * @param unitId of the task the event belongs to.
+         * @param event to add.
+         */
+        public void add(int unitId, TaskEvent event) {
+            if (!inTask || event.getTaskId() != taskId) {
+                endTask();
+                inTask = true;
+                taskId = event.getTaskId();
+                this.unitId = unitId;
+                Arrays.fill(times, -1);
+            }
+            if (event.getType() == TaskEvent.Type.NEW) {
+                Arrays.fill(times, -1); // a new attempt
+            }
+            times[event.getType().ordinal()] = event.getTime();
+        }
+
+        /**
+         * @return the timelines of the units whose tasks were added, ordered by unit id.
+         */
+        public List<UnitTimeline> getTimelines() {
+            endTask();
+            List<UnitTimeline> timelines = new ArrayList<>(durations.size());
+            for (Map.Entry<Integer, List<List<Long>>> entry : durations.entrySet()) {
+                List<PhaseSummary> phases = new ArrayList<>(PHASES.length);
+                for (int i = 0; i < PHASES.length; i++) {
+                    List<Long> phaseDurations = entry.getValue().get(i);
+                    if (!phaseDurations.isEmpty()) {
+                        long[] millis = new long[phaseDurations.size()];
+                        for (int j = 0; j < millis.length; j++) {
+                            millis[j] = phaseDurations.get(j);
+                        }
+                        phases.add(new PhaseSummary(PHASES[i], millis));
+                    }
+                }
+                timelines.add(new UnitTimeline(entry.getKey(), numTasks.get(entry.getKey()), phases));
+            }
+            return timelines;
+        }
+
+        private void endTask() {
+            if (!inTask) {
+                return;
+            }
+            inTask = false;
+            if (times[TaskEvent.Type.ENDED.ordinal()] < 0) {
+                return; // still running
+            }
+            List<List<Long>> unitDurations = durations.computeIfAbsent(unitId, id -> {
+                List<List<Long>> lists = new ArrayList<>(PHASES.length);
+                for (int i = 0; i < PHASES.length; i++) {
+                    lists.add(new ArrayList<>());
+                }
+                return lists;
+            });
+            numTasks.merge(unitId, 1, Integer::sum);
+            for (int i = 0; i < PHASES.length; i++) {
+                long from = times[PHASES[i].from.ordinal()];
+                long to = times[PHASES[i].to.ordinal()];
+                // events are recorded by different machines, so a slightly negative duration is a clock skew
+                if (from >= 0 && to >= 0) {
+                    unitDurations.get(i).add(Math.max(0, to - from));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ubongo.common.datatypes.unit;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.Serializable;
+
+/**
+ * How the tasks of a unit are retried after a transient failure (see
+ * {@link ubongo.common.datatypes.FailureCause#isTransient()}): a task runs at most maxAttempts times, and the n-th
+ * retry waits initialBackoffSeconds * multiplier^(n-1) seconds, but no more than maxBackoffSeconds.
+ * Every element is optional, and maxAttempts of 1 disables the retries of the unit.
+ */
+@XmlRootElement(name = "retry")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class RetryPolicy implements Serializable {
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy();
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final int DEFAULT_INITIAL_BACKOFF_SECONDS = 30;
+    private static final double DEFAULT_MULTIPLIER = 2;
+    private static final int DEFAULT_MAX_BACKOFF_SECONDS = 600;
+
+    @XmlElement private Integer maxAttempts;
+    @XmlElement private Integer initialBackoffSeconds;
+    @XmlElement private Double multiplier;
+    @XmlElement private Integer maxBackoffSeconds;
+
+    public int getMaxAttempts() {
+        return maxAttempts == null ? DEFAULT_MAX_ATTEMPTS : Math.max(1, maxAttempts);
+    }
+
+    public int getInitialBackoffSeconds() {
+        return initialBackoffSeconds == null ? DEFAULT_INITIAL_BACKOFF_SECONDS : initialBackoffSeconds;
+    }
+
+    public double getMultiplier() {
+        return multiplier == null ? DEFAULT_MULTIPLIER : multiplier;
+    }
+
+    public int getMaxBackoffSeconds() {
+        return maxBackoffSeconds == null ? DEFAULT_MAX_BACKOFF_SECONDS : maxBackoffSeconds;
+    }
+
+    /**
+     * @param retry is the number of the retry (1 for the first retry).
+     * @return the time to wait before the retry in milliseconds.
+     */
+    public long backoffMillis(int retry) {
+        double seconds = getInitialBackoffSeconds() * Math.pow(getMultiplier(), Math.max(0, retry - 1));
+        return (long) (Math.min(seconds, getMaxBackoffSeconds()) * 1000);
+    }
+}
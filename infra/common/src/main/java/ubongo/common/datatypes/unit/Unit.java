@@ -5,6 +5,7 @@ import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.PathTemplate;
 
 import javax.xml.bind.annotation.*;
 import java.io.Serializable;
@@ -42,6 +43,17 @@ public class Unit implements Serializable, Cloneable {
     @XmlElements({@XmlElement (name = "parameter", type = UnitParameter.class)})
     private List<UnitParameter> parameters = new ArrayList<>();
 
+    @XmlElement (name = "retry")
+    private RetryPolicy retryPolicy;
+
+    /* the positions in the analysis of the units this unit depends on (part of the analysis, not of the unit file) */
+    @XmlTransient
+    private List<Integer> predecessors;
+
+    /* compiled forms of inputPaths and outputDir - recompiled when the fields are set to other strings */
+    private transient PathTemplate inputPathsTemplate;
+    private transient PathTemplate outputDirTemplate;
+
     public Unit(int id) {
         this.id = id;
     }
@@ -78,6 +90,7 @@ public class Unit implements Serializable, Cloneable {
 
     public void setOutputDir(String outputDir) {
         this.outputDir = outputDir;
+        this.outputDirTemplate = null;
     }
 
     public List<UnitParameter> getParameters() {
@@ -90,6 +103,7 @@ public class Unit implements Serializable, Cloneable {
 
     public void setInputPaths(String inputPaths) {
         this.inputPaths = inputPaths;
+        this.inputPathsTemplate = null;
     }
 
     public void setParameters(List<UnitParameter> parameters) {
@@ -112,6 +126,71 @@ public class Unit implements Serializable, Cloneable {
         }
     }
 
+    /**
+     * @return the positions in the analysis (i.e., the serial numbers in the flow) of the units whose tasks must all
+     * be completed before the tasks of this unit can be executed, or null if the unit depends on the unit right
+     * before it (a linear analysis).
+     */
+    public List<Integer> getPredecessors() {
+        return predecessors;
+    }
+
+    public void setPredecessors(List<Integer> predecessors) {
+        this.predecessors = predecessors;
+    }
+
+    /**
+     * Verifies that the predecessors of every unit of the analysis come before it, so the analysis is a directed
+     * acyclic graph whose topological order is the order of the units.
+     * @throws IllegalArgumentException if some unit depends on itself or on a unit that does not come before it.
+     */
+    public static void checkPredecessors(List<Unit> analysisUnits) {
+        for (int serial = 0; serial < analysisUnits.size(); serial++) {
+            List<Integer> predecessors = analysisUnits.get(serial).getPredecessors();
+            if (predecessors == null) {
+                continue;
+            }
+            for (Integer predecessor : predecessors) {
+                if (predecessor == null || predecessor < 0 || predecessor >= serial) {
+                    throw new IllegalArgumentException("Unit " + serial + " of the analysis depends on unit "
+                            + predecessor + ", which does not come before it");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how the tasks of the unit are retried after a transient failure (the default policy unless the unit
+     * defines one).
+     */
+    public RetryPolicy retryPolicy() {
+        return retryPolicy == null ? RetryPolicy.DEFAULT : retryPolicy;
+    }
+
+    /**
+     * @return the compiled form of the input paths, or null if there are no input paths.
+     */
+    public PathTemplate inputPathsTemplate() {
+        PathTemplate template = inputPathsTemplate;
+        if (template == null || template.getSource() != inputPaths) { // the field may be set directly by JAXB
+            template = PathTemplate.compile(inputPaths);
+            inputPathsTemplate = template;
+        }
+        return template;
+    }
+
+    /**
+     * @return the compiled form of the output directory, or null if there is no output directory.
+     */
+    public PathTemplate outputDirTemplate() {
+        PathTemplate template = outputDirTemplate;
+        if (template == null || template.getSource() != outputDir) { // the field may be set directly by JAXB
+            template = PathTemplate.compile(outputDir);
+            outputDirTemplate = template;
+        }
+        return template;
+    }
+
     @Override
     public Object clone() throws CloneNotSupportedException {
         Unit unit = (Unit) super.clone();
@@ -120,6 +199,9 @@ public class Unit implements Serializable, Cloneable {
             newParams.add((UnitParameter) param.clone());
         }
         unit.parameters = newParams;
+        if (predecessors != null) {
+            unit.predecessors = new ArrayList<>(predecessors);
+        }
         return unit;
     }
 
@@ -1,5 +1,7 @@
 package ubongo.common.datatypes.unit;
 
+import ubongo.common.datatypes.PathTemplate;
+
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
@@ -22,6 +24,9 @@ public class UnitParameter implements Cloneable, Serializable {
     @XmlElement(name = "default")
     protected String value;
 
+    /* compiled form of the value - recompiled when the value is set to another string */
+    private transient PathTemplate valueTemplate;
+
     public String getName() {
         return name;
     }
@@ -36,6 +41,7 @@ public class UnitParameter implements Cloneable, Serializable {
 
     public void setValue(String value) {
         this.value = value;
+        this.valueTemplate = null;
     }
 
     public void setName(String name) {
@@ -46,6 +52,18 @@ public class UnitParameter implements Cloneable, Serializable {
         this.display = display;
     }
 
+    /**
+     * @return the compiled form of the value (which may contain context variables), or null if there is no value.
+     */
+    public PathTemplate valueTemplate() {
+        PathTemplate template = valueTemplate;
+        if (template == null || template.getSource() != value) { // the field may be set directly by JAXB
+            template = PathTemplate.compile(value);
+            valueTemplate = template;
+        }
+        return template;
+    }
+
     @Override
     public Object clone() throws CloneNotSupportedException {
         return super.clone();
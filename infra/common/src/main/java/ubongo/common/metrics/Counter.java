@@ -0,0 +1,27 @@
+package ubongo.common.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up (e.g., the number of tasks that were dispatched). Counting is cheap even when many threads
+ * count at once.
+ */
+public final class Counter implements CounterMXBean {
+
+    private final LongAdder count = new LongAdder();
+
+    Counter() {}
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long n) {
+        count.add(n);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,9 @@
+package ubongo.common.metrics;
+
+/**
+ * The JMX view of a {@link Counter}.
+ */
+public interface CounterMXBean {
+
+    long getCount();
+}
@@ -0,0 +1,42 @@
+package ubongo.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A value that goes up and down (e.g., the number of tasks a machine runs). The value is either set by the code that
+ * changes it, or read from a supplier when the metrics are reported (e.g., the size of a queue).
+ */
+public final class Gauge implements GaugeMXBean {
+
+    private final AtomicLong value = new AtomicLong();
+    private volatile LongSupplier supplier;
+
+    Gauge() {}
+
+    public void set(long value) {
+        this.value.set(value);
+    }
+
+    public void increment() {
+        value.incrementAndGet();
+    }
+
+    public void decrement() {
+        value.decrementAndGet();
+    }
+
+    /**
+     * Reads the value from the supplier from now on (the supplier of an object that was replaced, e.g. after a
+     * restart, is simply replaced as well).
+     */
+    public void setSupplier(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public long getValue() {
+        LongSupplier currentSupplier = supplier;
+        return currentSupplier == null ? value.get() : currentSupplier.getAsLong();
+    }
+}
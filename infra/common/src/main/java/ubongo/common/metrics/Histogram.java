@@ -0,0 +1,135 @@
+package ubongo.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The distribution of durations (e.g., the latency of a DB query), from which percentiles are computed.
+ * The durations are counted in buckets of microseconds, like HdrHistogram: durations below 128 microseconds have a
+ * bucket each, and every further power of two is split into 64 buckets, so a percentile is within 1/64 of the real
+ * duration. Recording a duration takes a few atomic increments and no allocation, whatever the number of durations
+ * recorded so far. The durations are kept since the process started (they are not decayed).
+ */
+public final class Histogram implements HistogramMXBean {
+
+    private static final int SUB_BUCKETS = 128;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int MAX_SHIFT = 30; // durations above ~38 hours are counted as ~38 hours
+    private static final long MAX_MICROS = ((long) SUB_BUCKETS << MAX_SHIFT) - 1;
+    private static final int NUM_BUCKETS = SUB_BUCKETS + MAX_SHIFT * HALF_SUB_BUCKETS;
+    private static final double MICROS_PER_SECOND = 1e6;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    Histogram() {}
+
+    public void record(long nanos) {
+        long micros = Math.min(MAX_MICROS, Math.max(0, nanos / 1000));
+        buckets.incrementAndGet(getBucket(micros));
+        count.increment();
+        sumMicros.add(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros));
+    }
+
+    /**
+     * Records the time that has passed since the given time (of {@link System#nanoTime()}).
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of all the durations, in seconds.
+     */
+    public double getSum() {
+        return sumMicros.sum() / MICROS_PER_SECOND;
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sumMicros.sum() / MICROS_PER_SECOND / n;
+    }
+
+    @Override
+    public double getMax() {
+        return maxMicros.get() / MICROS_PER_SECOND;
+    }
+
+    @Override
+    public double getMedian() {
+        return getPercentile(50);
+    }
+
+    @Override
+    public double get90thPercentile() {
+        return getPercentile(90);
+    }
+
+    @Override
+    public double get99thPercentile() {
+        return getPercentile(99);
+    }
+
+    @Override
+    public double get999thPercentile() {
+        return getPercentile(99.9);
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the duration (in seconds) that the given percentage of the recorded durations do not exceed, or 0 if
+     * none were recorded.
+     */
+    public double getPercentile(double percentile) {
+        long total = 0;
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(getBucketValue(i), maxMicros.get()) / MICROS_PER_SECOND;
+            }
+        }
+        return getMax();
+    }
+
+    private static int getBucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = 57 - Long.numberOfLeadingZeros(micros); // the 7 highest bits select the sub-bucket
+        int subBucket = (int) (micros >>> shift);
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + subBucket - HALF_SUB_BUCKETS;
+    }
+
+    /**
+     * @return the middle of the range of durations that are counted in the bucket.
+     */
+    private static long getBucketValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long subBucket = (bucket - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return (subBucket << shift) + (1L << (shift - 1));
+    }
+}
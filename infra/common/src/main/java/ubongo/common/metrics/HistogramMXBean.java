@@ -0,0 +1,21 @@
+package ubongo.common.metrics;
+
+/**
+ * The JMX view of a {@link Histogram}. All durations are in seconds.
+ */
+public interface HistogramMXBean {
+
+    long getCount();
+
+    double getMean();
+
+    double getMedian();
+
+    double get90thPercentile();
+
+    double get99thPercentile();
+
+    double get999thPercentile();
+
+    double getMax();
+}
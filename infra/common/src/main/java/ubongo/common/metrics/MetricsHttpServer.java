@@ -0,0 +1,124 @@
+package ubongo.common.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+/**
+ * Serves the metrics of the process in the Prometheus text format (GET /metrics), for processes that do not run in a
+ * web container (i.e., the execution server). The web service fetches them ({@link #fetch(String, int)}) and serves
+ * them together with its own metrics in /api/metrics. Other state of the process that the web service serves is
+ * added as JSON (see {@link #serve(String, Function)}), e.g. the recent telemetry of a machine in
+ * GET /telemetry/{machineId}.
+ */
+public class MetricsHttpServer {
+
+    public static final String PATH = "/metrics";
+    public static final String TELEMETRY_PATH = "/telemetry";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+
+    private static Logger logger = LogManager.getLogger(MetricsHttpServer.class);
+    private final HttpServer server;
+
+    /**
+     * @param process to label the metrics with (see {@link MetricsRegistry#writePrometheus(Appendable, String)}).
+     */
+    public MetricsHttpServer(int port, String process) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, exchange -> {
+            try {
+                StringBuilder sb = new StringBuilder();
+                MetricsRegistry.getInstance().writePrometheus(sb, process);
+                byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", PrometheusFormat.CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } catch (Exception e) {
+                logger.warn("Failed to serve the metrics: " + e.getMessage());
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    /**
+     * Serves the JSON that the handler returns for GET requests of the path and of the paths under it.
+     * @param handler receives the rest of the request path (e.g., "/3" for path/3), and returns null if there is no
+     *                such resource.
+     */
+    public void serve(String path, Function<String, String> handler) {
+        server.createContext(path, exchange -> {
+            try {
+                String body = handler.apply(exchange.getRequestURI().getPath().substring(path.length()));
+                if (body == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            } catch (Exception e) {
+                logger.warn("Failed to serve " + exchange.getRequestURI() + ": " + e.getMessage());
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Serving metrics on port " + server.getAddress().getPort() + PATH);
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * @return the metrics that are served by the MetricsHttpServer on the given host and port.
+     * @throws IOException if they could not be fetched.
+     */
+    public static String fetch(String host, int port) throws IOException {
+        return fetch(host, port, PATH);
+    }
+
+    /**
+     * @return what is served on the path by the MetricsHttpServer on the given host and port.
+     * @throws IOException if it could not be fetched (e.g., there is no such resource).
+     */
+    public static String fetch(String host, int port, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", host, port, path).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Received HTTP " + connection.getResponseCode() + " from " + connection.getURL());
+            }
+            StringBuilder sb = new StringBuilder();
+            try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+                char[] buffer = new char[8192];
+                int n;
+                while ((n = reader.read(buffer)) >= 0) {
+                    sb.append(buffer, 0, n);
+                }
+            }
+            return sb.toString();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
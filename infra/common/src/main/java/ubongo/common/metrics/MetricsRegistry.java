@@ -0,0 +1,169 @@
+package ubongo.common.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.*;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * The metrics of the process (counters, gauges and histograms of durations), by name. A metric may have one label
+ * (e.g., the name of the query for the latency of DB queries), in which case there is a metric for every value of the
+ * label. The metrics are created on first use, and are registered in the platform MBean server
+ * (ubongo:type=[Counter|Gauge|Histogram],name=[name][,label=value]) so they can be watched with any JMX console.
+ * They are also written in the Prometheus text format ({@link #writePrometheus(Appendable, String)}), which the web
+ * service serves in /api/metrics.
+ * Names follow the Prometheus conventions: 'ubongo_' prefix, '_total' suffix for counters and '_seconds' suffix for
+ * histograms of durations.
+ */
+public final class MetricsRegistry {
+
+    private static final String JMX_DOMAIN = "ubongo";
+    private static final String NO_LABEL = "";
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private static Logger logger = LogManager.getLogger(MetricsRegistry.class);
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    private MetricsRegistry() {}
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    public Counter counter(String name, String help) {
+        return get(Type.COUNTER, name, help, null, NO_LABEL, Counter::new);
+    }
+
+    public Counter counter(String name, String help, String labelName, String labelValue) {
+        return get(Type.COUNTER, name, help, labelName, labelValue, Counter::new);
+    }
+
+    public Gauge gauge(String name, String help) {
+        return get(Type.GAUGE, name, help, null, NO_LABEL, Gauge::new);
+    }
+
+    public Gauge gauge(String name, String help, String labelName, String labelValue) {
+        return get(Type.GAUGE, name, help, labelName, labelValue, Gauge::new);
+    }
+
+    public Histogram histogram(String name, String help) {
+        return get(Type.HISTOGRAM, name, help, null, NO_LABEL, Histogram::new);
+    }
+
+    public Histogram histogram(String name, String help, String labelName, String labelValue) {
+        return get(Type.HISTOGRAM, name, help, labelName, labelValue, Histogram::new);
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text format (version 0.0.4), sorted by name. Histograms are written
+     * as summaries with the 50th, 90th, 99th and 99.9th percentiles and the maximum (quantile 1).
+     * @param process is added as a 'process' label to every sample (may be null), so that the metrics of the server
+     *                and of the web service can be told apart when they are merged ({@link PrometheusFormat#merge}).
+     */
+    public void writePrometheus(Appendable out, String process) throws IOException {
+        for (Family family : new TreeMap<>(families).values()) {
+            family.write(out, process);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(Type type, String name, String help, String labelName, String labelValue,
+                      Supplier<T> factory) {
+        Family family = families.computeIfAbsent(name, n -> new Family(type, name, help, labelName));
+        if (family.type != type || (labelName == null ? family.labelName != null
+                : !labelName.equals(family.labelName))) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type
+                    + (family.labelName == null ? "" : " with label " + family.labelName));
+        }
+        String key = labelValue == null ? NO_LABEL : labelValue;
+        Object metric = family.metrics.get(key); // fast path, without locking
+        if (metric == null) {
+            metric = family.metrics.computeIfAbsent(key, k -> {
+                T newMetric = factory.get();
+                registerMBean(family, k, newMetric);
+                return newMetric;
+            });
+        }
+        return (T) metric;
+    }
+
+    private static void registerMBean(Family family, String labelValue, Object metric) {
+        try {
+            String objectName = JMX_DOMAIN + ":type=" + family.type.mBeanType + ",name=" + family.name
+                    + (family.labelName == null ? "" : "," + family.labelName + "=" + ObjectName.quote(labelValue));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) { // left by a previous deployment (e.g., of the web service)
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metric, name);
+        } catch (JMException e) {
+            logger.warn("Failed to register metric " + family.name + " in JMX: " + e.getMessage());
+        }
+    }
+
+    private enum Type {
+
+        COUNTER("counter", "Counter"), GAUGE("gauge", "Gauge"), HISTOGRAM("summary", "Histogram");
+
+        private final String prometheusType;
+        private final String mBeanType;
+
+        Type(String prometheusType, String mBeanType) {
+            this.prometheusType = prometheusType;
+            this.mBeanType = mBeanType;
+        }
+    }
+
+    private static final class Family {
+
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        private final Type type;
+        private final String name;
+        private final String help;
+        private final String labelName;
+        private final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+        Family(Type type, String name, String help, String labelName) {
+            this.type = type;
+            this.name = name;
+            this.help = help;
+            this.labelName = labelName;
+        }
+
+        void write(Appendable out, String process) throws IOException {
+            out.append("# HELP ").append(name).append(' ').append(PrometheusFormat.escapeHelp(help)).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type.prometheusType).append('\n');
+            for (Map.Entry<String, Object> entry : new TreeMap<>(metrics).entrySet()) {
+                String labels = labelName == null ? PrometheusFormat.labels(process, null, null)
+                        : PrometheusFormat.labels(process, labelName, entry.getKey());
+                switch (type) {
+                    case COUNTER:
+                        PrometheusFormat.sample(out, name, labels, ((Counter) entry.getValue()).getCount());
+                        break;
+                    case GAUGE:
+                        PrometheusFormat.sample(out, name, labels, ((Gauge) entry.getValue()).getValue());
+                        break;
+                    case HISTOGRAM:
+                        Histogram histogram = (Histogram) entry.getValue();
+                        for (double quantile : QUANTILES) {
+                            PrometheusFormat.sample(out, name, PrometheusFormat.withQuantile(labels, quantile),
+                                    histogram.getPercentile(100 * quantile));
+                        }
+                        PrometheusFormat.sample(out, name, PrometheusFormat.withQuantile(labels, 1),
+                                histogram.getMax());
+                        PrometheusFormat.sample(out, name + "_sum", labels, histogram.getSum());
+                        PrometheusFormat.sample(out, name + "_count", labels, histogram.getCount());
+                        break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ubongo.common.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers for the Prometheus text format (version 0.0.4) that the {@link MetricsRegistry} is written in.
+ */
+public final class PrometheusFormat {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private PrometheusFormat() {}
+
+    /**
+     * Merges the metrics of several processes (each written by {@link MetricsRegistry#writePrometheus}) into one
+     * text: the samples of a metric that more than one process has are grouped under a single HELP and TYPE, as the
+     * format requires.
+     */
+    public static String merge(List<String> texts) {
+        Map<String, List<String>> families = new LinkedHashMap<>();
+        for (String text : texts) {
+            List<String> family = null;
+            for (String line : text.split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.startsWith("# HELP ") || line.startsWith("# TYPE ")) {
+                    String name = line.substring(7).split(" ", 2)[0];
+                    boolean isNew = !families.containsKey(name);
+                    family = families.computeIfAbsent(name, k -> new ArrayList<>());
+                    if (isNew || line.startsWith("# TYPE ") && !family.contains(line)) {
+                        family.add(line);
+                    }
+                } else if (family != null) {
+                    family.add(line);
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (List<String> family : families.values()) {
+            for (String line : family) {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    static String labels(String process, String labelName, String labelValue) {
+        StringBuilder sb = new StringBuilder();
+        if (process != null) {
+            sb.append("process=\"").append(escapeLabelValue(process)).append('"');
+        }
+        if (labelName != null) {
+            sb.append(sb.length() == 0 ? "" : ",").append(labelName).append("=\"")
+                    .append(escapeLabelValue(labelValue)).append('"');
+        }
+        return sb.toString();
+    }
+
+    static String withQuantile(String labels, double quantile) {
+        return labels + (labels.isEmpty() ? "" : ",") + "quantile=\"" + quantile + "\"";
+    }
+
+    static void sample(Appendable out, String name, String labels, long value) throws IOException {
+        appendName(out, name, labels).append(Long.toString(value)).append('\n');
+    }
+
+    static void sample(Appendable out, String name, String labels, double value) throws IOException {
+        appendName(out, name, labels).append(Double.toString(value)).append('\n');
+    }
+
+    static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static Appendable appendName(Appendable out, String name, String labels) throws IOException {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        return out.append(' ');
+    }
+
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -1,6 +1,7 @@
 package ubongo.common.network;
 
 import org.apache.commons.vfs2.*;
+import org.apache.commons.vfs2.impl.StandardFileSystemManager;
 import org.apache.commons.vfs2.provider.sftp.SftpFileSystemConfigBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -24,10 +25,21 @@ public class SftpManager {
     private String password;
     private String sftpUri;
     private FileSystemManager fsManager = null;
+    private final FileSystemManager session; // the manager that keeps the SFTP sessions (null - the shared one of VFS)
     private String taskStudy;
     private int unitId = 0;
 
     public SftpManager(SSHConnectionProperties sshProperties, String machine, String remoteDir, String localDir, Task task) {
+        this(sshProperties, machine, remoteDir, localDir, task, null);
+    }
+
+    /**
+     * @param session that was opened by {@link #openSession()} for the transfers of several tasks, or null to use the
+     *                shared manager of VFS.
+     */
+    public SftpManager(SSHConnectionProperties sshProperties, String machine, String remoteDir, String localDir, Task task,
+                       FileSystemManager session) {
+        this.session = session;
         this.machine = machine;
         this.remoteDir = remoteDir;
         this.localDir = localDir;
@@ -39,6 +51,25 @@ public class SftpManager {
         logger.info("[Study = " + taskStudy + "] [Unit = " + unitId + "] SftpManager was initiated. [Machine=" + this.machine + "] [remoteDir = " + this.remoteDir + "] [localDir = " + this.localDir + "]");
     }
 
+    /**
+     * Opens a file system manager of its own, which keeps the SFTP sessions it opens until it is closed, so the
+     * transfers of several tasks (e.g., of a batch) share a session to the server rather than open one each.
+     * The caller is responsible to close it.
+     */
+    public static StandardFileSystemManager openSession() throws NetworkException {
+        StandardFileSystemManager manager = new StandardFileSystemManager();
+        try {
+            manager.init();
+        } catch (FileSystemException e) {
+            throw new NetworkException("Failed to initialize a file system manager for an SFTP session", e);
+        }
+        return manager;
+    }
+
+    private FileSystemManager getManager() throws FileSystemException {
+        return session == null ? VFS.getManager() : session;
+    }
+
     /**
      * Receives files using SFTP.
      * Used for receiving files from the main files server to the machines.
@@ -90,7 +121,7 @@ public class SftpManager {
         String dirParts[] = mainDir.split(File.separator+"\\(.*?\\)"+File.separator);
         String prefixString = dirParts[0];
         if ((dirParts.length == 1) && (!endWithReg)){
-            fsManager = VFS.getManager();
+            fsManager = getManager();
             FileSystemOptions opts = new FileSystemOptions();
             String dirToAddSftpUri = "sftp://" + user + ":" + password + "@" + machine + prefixString + File.separator;
             FileObject currDirObject = fsManager.resolveFile(dirToAddSftpUri, opts);
@@ -125,7 +156,7 @@ public class SftpManager {
         logger.info("[Study = " + taskStudy + "] [Unit = " + unitId + "] Current regex: " + currRegex);
         String suffixString = mainDir.substring(mainDir.lastIndexOf(dirPathRelativeToMainDir));
         String currSftpUri = "sftp://" + user + ":" + password +  "@" + machine + prefixString + File.separator;
-        fsManager = VFS.getManager();
+        fsManager = getManager();
         handleStopInterrupt();
         FileSystemOptions opts = new FileSystemOptions();
         FileObject localFileObject=fsManager.resolveFile(currSftpUri,opts);
@@ -161,7 +192,7 @@ public class SftpManager {
         try {
             FileSystemOptions opts = new FileSystemOptions();
             SftpFileSystemConfigBuilder.getInstance().setUserDirIsRoot(opts, false);
-            fsManager = VFS.getManager();
+            fsManager = getManager();
 
             // List all the files in that directory.
 
@@ -213,7 +244,7 @@ public class SftpManager {
             handleStopInterrupt();
             FileSystemOptions opts = new FileSystemOptions();
             SftpFileSystemConfigBuilder.getInstance().setUserDirIsRoot(opts, false);
-            fsManager = VFS.getManager();
+            fsManager = getManager();
 
             File folder = new File(localDir);
             recursiveUploadDirectory(opts, folder);
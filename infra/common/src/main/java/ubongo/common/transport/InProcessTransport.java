@@ -0,0 +1,142 @@
+package ubongo.common.transport;
+
+import ubongo.common.constants.MachineConstants;
+import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.MachineTelemetry;
+import ubongo.common.datatypes.RabbitData;
+import ubongo.common.datatypes.Task;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Passes the messages between a server and machines that run in the same process, without serializing them: the
+ * listener receives the very Task object that was sent (so the sender must not change it afterwards). The listener
+ * is called by the sending thread, so it should hand long work over to another thread (as the machine does anyway).
+ * Machines are identified by the id of the machine that is set in the task, and servers by the server id that is set
+ * in it.
+ */
+public class InProcessTransport implements Transport {
+
+    private static final InProcessTransport sharedInstance = new InProcessTransport();
+    private static final String SINGLE_SERVER = ""; // the key of the listener of a server without an id
+
+    private final Map<Integer, Consumer<RabbitData>> machineListeners = new ConcurrentHashMap<>();
+    private final Map<String, Consumer<RabbitData>> statusListeners = new ConcurrentHashMap<>();
+    private final List<Consumer<MachineTelemetry>> telemetryListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return the transport shared by all the users in this process that do not create a transport of their own.
+     */
+    public static InProcessTransport getInstance() {
+        return sharedInstance;
+    }
+
+    @Override
+    public void dispatch(Task task) throws IOException {
+        getMachineListener(task).accept(new RabbitData(task, MachineConstants.BASE_UNIT_REQUEST));
+    }
+
+    @Override
+    public void dispatchBatch(List<Task> tasks) throws IOException {
+        getMachineListener(tasks.get(0)).accept(new RabbitData(tasks, MachineConstants.BATCH_UNIT_REQUEST));
+    }
+
+    @Override
+    public void kill(Task task) throws IOException {
+        getMachineListener(task).accept(new RabbitData(task, MachineConstants.KILL_TASK_REQUEST));
+    }
+
+    @Override
+    public void sendStatus(Task task) throws IOException {
+        getStatusListener(task).accept(new RabbitData(task, MachineConstants.UPDATE_TASK_REQUEST));
+    }
+
+    @Override
+    public void sendStatuses(List<Task> tasks) throws IOException {
+        getStatusListener(tasks.get(0)).accept(new RabbitData(tasks, MachineConstants.BATCH_UPDATE_REQUEST));
+    }
+
+    @Override
+    public void queryRunningTasks(Machine machine, String serverId) throws IOException {
+        Consumer<RabbitData> listener = machineListeners.get(machine.getId());
+        if (listener == null) {
+            throw new IOException("No machine with id=" + machine.getId() + " listens in this process");
+        }
+        listener.accept(new RabbitData(MachineConstants.RUNNING_TASKS_REQUEST, machine.getId(), serverId,
+                Collections.emptyList()));
+    }
+
+    @Override
+    public void reportRunningTasks(RabbitData request, List<Task> tasks) throws IOException {
+        getStatusListener(request.getServerId()).accept(new RabbitData(MachineConstants.RUNNING_TASKS_REPORT,
+                request.getMachineId(), request.getServerId(), tasks));
+    }
+
+    @Override
+    public void sendTelemetry(MachineTelemetry telemetry) {
+        telemetryListeners.forEach(listener -> listener.accept(telemetry));
+    }
+
+    @Override
+    public void listenForTelemetry(Consumer<MachineTelemetry> listener) {
+        telemetryListeners.add(listener);
+    }
+
+    private Consumer<RabbitData> getStatusListener(Task task) throws IOException {
+        return getStatusListener(task.getServerId());
+    }
+
+    private Consumer<RabbitData> getStatusListener(String serverId) throws IOException {
+        Consumer<RabbitData> listener = statusListeners.get(serverId == null ? SINGLE_SERVER : serverId);
+        if (listener == null) {
+            throw new IOException("The server" + (serverId == null ? "" : " " + serverId)
+                    + " does not listen for status reports in this process");
+        }
+        return listener;
+    }
+
+    @Override
+    public void listenForRequests(int machineId, Consumer<RabbitData> listener) {
+        machineListeners.put(machineId, listener);
+    }
+
+    @Override
+    public void listenForStatus(Consumer<RabbitData> listener) {
+        listenForStatus(null, listener);
+    }
+
+    @Override
+    public void listenForStatus(String serverId, Consumer<RabbitData> listener) {
+        statusListeners.put(serverId == null ? SINGLE_SERVER : serverId, listener);
+    }
+
+    /**
+     * Stops passing requests to the given machine (e.g., when a simulated machine goes down).
+     */
+    public void stopListening(int machineId) {
+        machineListeners.remove(machineId);
+    }
+
+    @Override
+    public void close() {
+        machineListeners.clear();
+        statusListeners.clear();
+        telemetryListeners.clear();
+    }
+
+    private Consumer<RabbitData> getMachineListener(Task task) throws IOException {
+        Consumer<RabbitData> listener = task.getMachine() == null ? null
+                : machineListeners.get(task.getMachine().getId());
+        if (listener == null) {
+            throw new IOException("No machine with id="
+                    + (task.getMachine() == null ? null : task.getMachine().getId()) + " listens in this process");
+        }
+        return listener;
+    }
+}
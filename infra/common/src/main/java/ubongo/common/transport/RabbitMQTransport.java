@@ -0,0 +1,246 @@
+package ubongo.common.transport;
+
+import com.rabbitmq.client.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.constants.MachineConstants;
+import ubongo.common.constants.SystemConstants;
+import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.MachineTelemetry;
+import ubongo.common.datatypes.RabbitData;
+import ubongo.common.datatypes.Task;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Sends the messages through RabbitMQ, serialized. Tasks and kill requests are published to the queues of the
+ * machine's host (the requests for the running tasks of a machine go with the kill requests) and status reports (and
+ * the reports of the running tasks) to the queue of the server's host. Listeners consume the queues of the local
+ * host. Every server of a cluster has a status queue of its own (named after its id) on the same host, so the
+ * servers of a cluster share the RabbitMQ of that host. The telemetry of the machines is published to a fanout
+ * exchange on the server's host, to which every listening server binds a queue of its own, so all of them receive it.
+ * The connection to the RabbitMQ of a host is opened with the first message that is sent to it and is reused by the
+ * next messages (and opened again if it was lost), whereas every message is sent on a channel of its own, since the
+ * channels of a connection are not to be shared by threads.
+ */
+public class RabbitMQTransport implements Transport {
+
+    private static Logger logger = LogManager.getLogger(RabbitMQTransport.class);
+
+    private final String serverHost;
+    private final List<Connection> listenerConnections = new CopyOnWriteArrayList<>();
+
+    /* the connections that the messages are sent on, by host - every connection is opened and replaced under the lock
+       of its host, so an unreachable host does not hold the messages to the other hosts */
+    private final Map<String, Connection> publishConnections = new ConcurrentHashMap<>();
+    private final Map<String, Object> publishLocks = new ConcurrentHashMap<>();
+
+    /**
+     * @param serverHost is the host of the server's RabbitMQ (only needed to send status reports).
+     */
+    public RabbitMQTransport(String serverHost) {
+        this.serverHost = serverHost;
+    }
+
+    @Override
+    public void dispatch(Task task) throws IOException {
+        publish(task.getMachine().getDescription(), SystemConstants.UBONGO_RABBIT_TASKS_QUEUE,
+                new RabbitData(task, MachineConstants.BASE_UNIT_REQUEST));
+    }
+
+    @Override
+    public void dispatchBatch(List<Task> tasks) throws IOException {
+        publish(tasks.get(0).getMachine().getDescription(), SystemConstants.UBONGO_RABBIT_TASKS_QUEUE,
+                new RabbitData(tasks, MachineConstants.BATCH_UNIT_REQUEST));
+    }
+
+    @Override
+    public void kill(Task task) throws IOException {
+        publish(task.getMachine().getDescription(), SystemConstants.UBONGO_RABBIT_KILL_TASKS_QUEUE,
+                new RabbitData(task, MachineConstants.KILL_TASK_REQUEST));
+    }
+
+    @Override
+    public void sendStatus(Task task) throws IOException {
+        publish(serverHost, statusQueue(task.getServerId()),
+                new RabbitData(task, MachineConstants.UPDATE_TASK_REQUEST));
+    }
+
+    @Override
+    public void sendStatuses(List<Task> tasks) throws IOException {
+        publish(serverHost, statusQueue(tasks.get(0).getServerId()),
+                new RabbitData(tasks, MachineConstants.BATCH_UPDATE_REQUEST));
+    }
+
+    @Override
+    public void queryRunningTasks(Machine machine, String serverId) throws IOException {
+        publish(machine.getDescription(), SystemConstants.UBONGO_RABBIT_KILL_TASKS_QUEUE,
+                new RabbitData(MachineConstants.RUNNING_TASKS_REQUEST, machine.getId(), serverId,
+                        Collections.emptyList()));
+    }
+
+    @Override
+    public void reportRunningTasks(RabbitData request, List<Task> tasks) throws IOException {
+        publish(serverHost, statusQueue(request.getServerId()), new RabbitData(MachineConstants.RUNNING_TASKS_REPORT,
+                request.getMachineId(), request.getServerId(), tasks));
+    }
+
+    @Override
+    public void sendTelemetry(MachineTelemetry telemetry) throws IOException {
+        Channel channel = getPublishConnection(serverHost).createChannel();
+        try {
+            channel.exchangeDeclare(SystemConstants.UBONGO_RABBIT_TELEMETRY_EXCHANGE, "fanout");
+            channel.basicPublish(SystemConstants.UBONGO_RABBIT_TELEMETRY_EXCHANGE, "", null,
+                    new RabbitData(telemetry).getBytes());
+        } finally {
+            closeChannel(channel);
+        }
+    }
+
+    @Override
+    public void listenForTelemetry(Consumer<MachineTelemetry> listener) throws IOException {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost("localhost");
+        Connection connection;
+        try {
+            connection = factory.newConnection();
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out while connecting to RabbitMQ on the local host", e);
+        }
+        listenerConnections.add(connection);
+        Channel channel = connection.createChannel();
+        channel.exchangeDeclare(SystemConstants.UBONGO_RABBIT_TELEMETRY_EXCHANGE, "fanout");
+        // a queue of this listener only, which is deleted with the connection (the telemetry is of no use later)
+        String queue = channel.queueDeclare().getQueue();
+        channel.queueBind(queue, SystemConstants.UBONGO_RABBIT_TELEMETRY_EXCHANGE, "");
+        channel.basicConsume(queue, true, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                                       byte[] body) throws IOException {
+                try {
+                    listener.accept(RabbitData.fromBytes(body).getTelemetry());
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void listenForRequests(int machineId, Consumer<RabbitData> listener) throws IOException {
+        listen(SystemConstants.UBONGO_RABBIT_TASKS_QUEUE, listener);
+        listen(SystemConstants.UBONGO_RABBIT_KILL_TASKS_QUEUE, listener);
+    }
+
+    @Override
+    public void listenForStatus(String serverId, Consumer<RabbitData> listener) throws IOException {
+        listen(statusQueue(serverId), listener);
+    }
+
+    private static String statusQueue(String serverId) {
+        return serverId == null ? SystemConstants.UBONGO_SERVER_TASKS_STATUS_QUEUE
+                : SystemConstants.UBONGO_SERVER_TASKS_STATUS_QUEUE + "." + serverId;
+    }
+
+    @Override
+    public void close() {
+        for (Connection connection : listenerConnections) {
+            closeConnection(connection);
+        }
+        listenerConnections.clear();
+        for (String host : publishConnections.keySet()) {
+            synchronized (getPublishLock(host)) {
+                Connection connection = publishConnections.remove(host);
+                if (connection != null) {
+                    closeConnection(connection);
+                }
+            }
+        }
+    }
+
+    private static void closeConnection(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException | ShutdownSignalException e) {
+            // ignore - the connection is closed anyway
+        }
+    }
+
+    private void publish(String host, String queue, RabbitData message) throws IOException {
+        Channel channel = getPublishConnection(host).createChannel();
+        try {
+            channel.queueDeclare(queue, false, false, false, null);
+            channel.basicPublish("", queue, null, message.getBytes());
+            if (logger.isDebugEnabled()) {
+                logger.debug("Sent '" + message.getMessage() + "' to queue " + queue + " on " + host);
+            }
+        } finally {
+            closeChannel(channel);
+        }
+    }
+
+    /**
+     * @return the open connection to the RabbitMQ of the host, which is opened if there is none (or it was lost).
+     */
+    private Connection getPublishConnection(String host) throws IOException {
+        synchronized (getPublishLock(host)) {
+            Connection connection = publishConnections.get(host);
+            if (connection == null || !connection.isOpen()) {
+                ConnectionFactory factory = new ConnectionFactory();
+                factory.setHost(host);
+                try {
+                    connection = factory.newConnection();
+                } catch (TimeoutException e) {
+                    throw new IOException("Timed out while connecting to RabbitMQ on " + host, e);
+                }
+                publishConnections.put(host, connection);
+            }
+            return connection;
+        }
+    }
+
+    private Object getPublishLock(String host) {
+        return publishLocks.computeIfAbsent(host, h -> new Object());
+    }
+
+    private static void closeChannel(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException | TimeoutException | ShutdownSignalException e) {
+            // ignore - the channel is closed with its connection, if it was lost
+        }
+    }
+
+    private void listen(String queue, Consumer<RabbitData> listener) throws IOException {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost("localhost");
+        Connection connection;
+        try {
+            connection = factory.newConnection();
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out while connecting to RabbitMQ on the local host", e);
+        }
+        listenerConnections.add(connection);
+        Channel channel = connection.createChannel();
+        channel.queueDeclare(queue, false, false, false, null);
+        com.rabbitmq.client.Consumer consumer = new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                                       byte[] body) throws IOException {
+                try {
+                    listener.accept(RabbitData.fromBytes(body));
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        channel.basicConsume(queue, true, consumer);
+    }
+}
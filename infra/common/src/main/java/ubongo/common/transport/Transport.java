@@ -0,0 +1,108 @@
+package ubongo.common.transport;
+
+import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.MachineTelemetry;
+import ubongo.common.datatypes.RabbitData;
+import ubongo.common.datatypes.Task;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The messaging between the server and the machines. The server dispatches tasks to machines and asks them to kill
+ * tasks, and the machines report the status of their tasks back to the server. Every message is a {@link RabbitData}
+ * whose message is one of the requests in {@link ubongo.common.constants.MachineConstants}.
+ * The machine of a task is the one that is set in it (see {@link Task#getMachine()}), and the server of a task is the
+ * one whose id is set in it (see {@link Task#getServerId()}), or the only server if none is set.
+ */
+public interface Transport {
+
+    /**
+     * Sends the task to its machine for execution (a BASE_UNIT_REQUEST).
+     * @throws IOException if the task could not be delivered to the machine.
+     */
+    void dispatch(Task task) throws IOException;
+
+    /**
+     * Sends the tasks to their machine (the machine of all of them is the same) to be executed one after the other,
+     * in a single message (a BATCH_UNIT_REQUEST).
+     * @throws IOException if the tasks could not be delivered to the machine.
+     */
+    void dispatchBatch(List<Task> tasks) throws IOException;
+
+    /**
+     * Asks the machine of the task to stop executing it (a KILL_TASK_REQUEST).
+     * @throws IOException if the request could not be delivered to the machine.
+     */
+    void kill(Task task) throws IOException;
+
+    /**
+     * Reports the status of the task to its server (an UPDATE_TASK_REQUEST).
+     * @throws IOException if the status could not be delivered to the server.
+     */
+    void sendStatus(Task task) throws IOException;
+
+    /**
+     * Reports the statuses of the tasks of a batch to their server (the server of all of them is the same) in a
+     * single message (a BATCH_UPDATE_REQUEST).
+     * @throws IOException if the statuses could not be delivered to the server.
+     */
+    void sendStatuses(List<Task> tasks) throws IOException;
+
+    /**
+     * Asks the machine which tasks it is running (a RUNNING_TASKS_REQUEST). The machine answers with a
+     * RUNNING_TASKS_REPORT, which is passed to the status listener of the server (see
+     * {@link #reportRunningTasks(RabbitData, List)}).
+     * @param serverId of the asking server, or null if it is the only one.
+     * @throws IOException if the request could not be delivered to the machine.
+     */
+    void queryRunningTasks(Machine machine, String serverId) throws IOException;
+
+    /**
+     * Answers the RUNNING_TASKS_REQUEST of a server with the tasks the machine is running (a RUNNING_TASKS_REPORT).
+     * Called by the machine.
+     * @param tasks the machine is running, including the tasks of its batches that have not started yet.
+     * @throws IOException if the report could not be delivered to the server.
+     */
+    void reportRunningTasks(RabbitData request, List<Task> tasks) throws IOException;
+
+    /**
+     * Sends a sample of the resources of the machine to all the servers (a TELEMETRY_REPORT). Called by the machine,
+     * more often than it sends its heartbeats to the DB.
+     * @throws IOException if the sample could not be sent.
+     */
+    void sendTelemetry(MachineTelemetry telemetry) throws IOException;
+
+    /**
+     * Starts passing the telemetry of the machines to the listener. Called by the server - every server of a cluster
+     * receives the telemetry of all the machines.
+     */
+    void listenForTelemetry(Consumer<MachineTelemetry> listener) throws IOException;
+
+    /**
+     * Starts passing the requests that are sent to the given machine (tasks to execute and kill requests) to the
+     * listener. Called by the machine.
+     * @param machineId of the listening machine. It is only used by transports that serve several machines in the
+     *                  same process - a transport over the network serves the machine on the local host.
+     */
+    void listenForRequests(int machineId, Consumer<RabbitData> listener) throws IOException;
+
+    /**
+     * Starts passing the status reports of the machines to the listener. Called by the server, if it is the only one.
+     */
+    default void listenForStatus(Consumer<RabbitData> listener) throws IOException {
+        listenForStatus(null, listener);
+    }
+
+    /**
+     * Starts passing the status reports of the tasks of the given server to the listener. Called by the server.
+     * @param serverId of the listening server, or null if it is the only one.
+     */
+    void listenForStatus(String serverId, Consumer<RabbitData> listener) throws IOException;
+
+    /**
+     * Stops listening and releases the resources of the transport.
+     */
+    void close();
+}
@@ -0,0 +1,28 @@
+package ubongo.common.transport;
+
+/**
+ * Creates the Transport that is selected by the transport element of the configuration.
+ */
+public final class TransportFactory {
+
+    public static final String RABBITMQ = "rabbitmq";
+    public static final String IN_PROCESS = "in-process";
+
+    private TransportFactory() {}
+
+    /**
+     * @param type of the transport - {@value #RABBITMQ} (the default, if type is null) or {@value #IN_PROCESS}.
+     * @param serverHost is the host of the server (used by transports over the network to send status reports).
+     * @return the transport; all in-process transports in the same process are the same object.
+     */
+    public static Transport create(String type, String serverHost) {
+        if (type == null || RABBITMQ.equalsIgnoreCase(type)) {
+            return new RabbitMQTransport(serverHost);
+        }
+        if (IN_PROCESS.equalsIgnoreCase(type)) {
+            return InProcessTransport.getInstance();
+        }
+        throw new IllegalArgumentException("Unknown transport type: " + type
+                + " (expected " + RABBITMQ + " or " + IN_PROCESS + ")");
+    }
+}
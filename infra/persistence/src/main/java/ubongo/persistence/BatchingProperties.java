@@ -0,0 +1,44 @@
+package ubongo.persistence;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Gang dispatch of short tasks: the tasks of a unit whose tasks are expected to run less than maxTaskSeconds are sent
+ * to a machine in batches, which the machine runs one after the other and reports together, so the fixed overhead
+ * of a task (messaging, threads, status reports) is paid once per batch. A batch is sized so that it is expected to
+ * run about targetSeconds, and holds no more than maxTasks tasks. The sizes follow the runtimes of the completed
+ * tasks, so a unit is only batched after some of its tasks have completed. Disabled unless enabled is true (all
+ * the machines must support batches).
+ */
+@XmlRootElement(name = "batching")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class BatchingProperties {
+
+    private static final int DEFAULT_MAX_TASK_SECONDS = 10;
+    private static final int DEFAULT_TARGET_SECONDS = 60;
+    private static final int DEFAULT_MAX_TASKS = 16;
+
+    @XmlElement private Boolean enabled;
+    @XmlElement private Integer maxTaskSeconds;
+    @XmlElement private Integer targetSeconds;
+    @XmlElement private Integer maxTasks;
+
+    public boolean isEnabled() {
+        return enabled != null && enabled;
+    }
+
+    public int getMaxTaskSeconds() {
+        return maxTaskSeconds == null ? DEFAULT_MAX_TASK_SECONDS : maxTaskSeconds;
+    }
+
+    public int getTargetSeconds() {
+        return targetSeconds == null ? DEFAULT_TARGET_SECONDS : targetSeconds;
+    }
+
+    public int getMaxTasks() {
+        return maxTasks == null ? DEFAULT_MAX_TASKS : Math.max(1, maxTasks);
+    }
+}
@@ -0,0 +1,45 @@
+package ubongo.persistence;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Active-active execution servers: several servers run against the same DB, and every flow is scheduled by the one
+ * server that holds its lease. A server renews its leases every heartbeatSeconds, and the leases of a server that
+ * did not renew them for leaseSeconds are taken over by the other servers, along with the flows. The machines are
+ * shared through capacity tokens - leases on the slots of every machine, of which a machine has slotsPerMachine - so
+ * a machine runs no more tasks at once than it has slots, whichever servers dispatch them.
+ * Disabled unless enabled is true (a single server, which assumes it is alone).
+ */
+@XmlRootElement(name = "cluster")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ClusterProperties {
+
+    private static final int DEFAULT_LEASE_SECONDS = 30;
+    private static final int DEFAULT_HEARTBEAT_SECONDS = 10;
+    private static final int DEFAULT_SLOTS_PER_MACHINE = 4;
+
+    @XmlElement private Boolean enabled;
+    @XmlElement private Integer leaseSeconds;
+    @XmlElement private Integer heartbeatSeconds;
+    @XmlElement private Integer slotsPerMachine;
+
+    public boolean isEnabled() {
+        return enabled != null && enabled;
+    }
+
+    public int getLeaseSeconds() {
+        return leaseSeconds == null ? DEFAULT_LEASE_SECONDS : leaseSeconds;
+    }
+
+    public int getHeartbeatSeconds() {
+        int heartbeat = heartbeatSeconds == null ? DEFAULT_HEARTBEAT_SECONDS : heartbeatSeconds;
+        return Math.max(1, Math.min(heartbeat, getLeaseSeconds() / 2)); // a lease survives a missed heartbeat
+    }
+
+    public int getSlotsPerMachine() {
+        return slotsPerMachine == null ? DEFAULT_SLOTS_PER_MACHINE : Math.max(1, slotsPerMachine);
+    }
+}
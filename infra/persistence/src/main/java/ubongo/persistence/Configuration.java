@@ -16,6 +16,7 @@ import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
 @XmlRootElement(name = "configuration")
@@ -39,6 +40,27 @@ public class Configuration {
     @XmlElement(name = "units")
     private UnitsMainProperties unitsMainProperties;
 
+    @XmlElement(name = "persistence")
+    private PersistenceProperties persistenceProperties;
+
+    @XmlElement(name = "transport")
+    private String transport;
+
+    @XmlElement(name = "metrics")
+    private MetricsProperties metricsProperties;
+
+    @XmlElement(name = "speculation")
+    private SpeculationProperties speculationProperties;
+
+    @XmlElement(name = "locality")
+    private LocalityProperties localityProperties;
+
+    @XmlElement(name = "batching")
+    private BatchingProperties batchingProperties;
+
+    @XmlElement(name = "cluster")
+    private ClusterProperties clusterProperties;
+
     public UnitsMainProperties getUnitsMainProperties() {
         return unitsMainProperties;
     }
@@ -56,7 +78,45 @@ public class Configuration {
         return sshConnectionProperties;
     }
 
+    public PersistenceProperties getPersistenceProperties() {
+        return persistenceProperties;
+    }
+
+    public MetricsProperties getMetricsProperties() {
+        return metricsProperties;
+    }
+
+    public SpeculationProperties getSpeculationProperties() {
+        return speculationProperties;
+    }
+
+    public LocalityProperties getLocalityProperties() {
+        return localityProperties;
+    }
+
+    public BatchingProperties getBatchingProperties() {
+        return batchingProperties;
+    }
+
+    public ClusterProperties getClusterProperties() {
+        return clusterProperties;
+    }
+
+    /**
+     * @return the type of the messaging between the server and the machines (see
+     * {@link ubongo.common.transport.TransportFactory}), or null for the default.
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the machines of the configuration (may be empty - the machines may register themselves instead).
+     */
     public List<Machine> getMachines() {
+        if (machinesList == null || machinesList.getMachines() == null) {
+            return new ArrayList<>();
+        }
         return machinesList.getMachines();
     }
 
@@ -70,6 +130,24 @@ public class Configuration {
             if (configuration.debug == null) {
                 configuration.debug = false;
             }
+            if (configuration.persistenceProperties == null) {
+                configuration.persistenceProperties = new PersistenceProperties();
+            }
+            if (configuration.metricsProperties == null) {
+                configuration.metricsProperties = new MetricsProperties();
+            }
+            if (configuration.speculationProperties == null) {
+                configuration.speculationProperties = new SpeculationProperties();
+            }
+            if (configuration.localityProperties == null) {
+                configuration.localityProperties = new LocalityProperties();
+            }
+            if (configuration.batchingProperties == null) {
+                configuration.batchingProperties = new BatchingProperties();
+            }
+            if (configuration.clusterProperties == null) {
+                configuration.clusterProperties = new ClusterProperties();
+            }
         } catch (JAXBException e) {
             logger.error("Failed to parse configuration file (file path: "
                     + file.getAbsolutePath() + ").", e);
@@ -7,13 +7,13 @@ import ubongo.persistence.exceptions.PersistenceException;
 
 import java.sql.Timestamp;
 import java.util.Date;
-import java.util.List;
 
 public class HeartbeatSender implements Runnable {
 
     private static Logger logger = LogManager.getLogger(HeartbeatSender.class);
     private Persistence persistence;
     private Machine machine;
+    private boolean register = false;
 
     public HeartbeatSender(Persistence persistence, int machineId) {
         this.persistence = persistence;
@@ -22,14 +22,19 @@ public class HeartbeatSender implements Runnable {
         machine.setConnected(true);
     }
 
-    public HeartbeatSender(Persistence persistence, String host) throws PersistenceException {
-        if (host == null) {
+    /**
+     * A heartbeat sender of a machine that registers itself (see {@link Persistence#registerMachine(Machine)}) with
+     * every heartbeat, so it comes back after it has aged out (e.g., when it was cut off from the DB for long).
+     * @param registration is the host, description, cores, memory and slots of the machine - its id is set by the
+     *                     registration.
+     */
+    public HeartbeatSender(Persistence persistence, Machine registration) throws PersistenceException {
+        if (registration.getHost() == null) {
             throw new PersistenceException("Machine host address for heartbeat cannot be null");
         }
         this.persistence = persistence;
-        this.machine = new Machine();
-        machine.setHost(host);
-        machine.setId(-1);
+        this.machine = registration;
+        this.register = true;
         machine.setConnected(true);
     }
 
@@ -37,11 +42,14 @@ public class HeartbeatSender implements Runnable {
     public void run() {
         machine.setLastHeartbeat(new Timestamp(new Date().getTime()));
         try {
-            boolean idSet = true;
-            if (machine.getId() < 0) {
-                idSet = resolveHost();
-            }
-            if (idSet) {
+            if (register) {
+                int previousId = machine.getId();
+                persistence.registerMachine(machine); // updates the heartbeat in the DB as well
+                if (previousId > 0 && previousId != machine.getId()) {
+                    logger.warn("Machine " + machine.getHost() + " had aged out and was registered again with ID = "
+                            + machine.getId() + " (was " + previousId + ")");
+                }
+            } else {
                 persistence.updateMachine(machine); // updates the heartbeat in the DB
             }
         } catch (PersistenceException e) {
@@ -49,21 +57,4 @@ public class HeartbeatSender implements Runnable {
                     + machine.getHost() + " (ID = " + machine.getId() + ")", e);
         }
     }
-
-    private boolean resolveHost() throws PersistenceException {
-        boolean idSet = false;
-        List<Machine> machines = persistence.getAllMachines(false);
-        for (Machine m : machines) {
-            if (machine.getHost().equals(m.getHost())) {
-                machine.setId(m.getId());
-                idSet = true;
-                break;
-            }
-        }
-        if (!idSet) {
-            logger.warn("Machine host address [" + machine.getHost()
-                    + "] cannot be resolved to any known machine");
-        }
-        return idSet;
-    }
 }
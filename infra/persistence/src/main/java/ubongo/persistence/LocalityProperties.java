@@ -0,0 +1,38 @@
+package ubongo.persistence;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Locality-aware machine selection: a task is preferably sent to the machine that has lately completed a task of the
+ * same context (study, subject and run), since the units of a context read each other's outputs. The preferred
+ * machine is busy while it runs more than maxExtraTasks tasks beyond the least loaded machine, and the task is deferred
+ * up to waitMillis for it to become free before it is sent to any other machine (delay scheduling) - the other tasks
+ * in the queue are sent meanwhile.
+ * Disabled unless enabled is true.
+ */
+@XmlRootElement(name = "locality")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class LocalityProperties {
+
+    private static final int DEFAULT_WAIT_MILLIS = 3000;
+    private static final int DEFAULT_MAX_EXTRA_TASKS = 2;
+
+    @XmlElement private Boolean enabled;
+    @XmlElement private Integer waitMillis;
+    @XmlElement private Integer maxExtraTasks;
+
+    public boolean isEnabled() {
+        return enabled != null && enabled;
+    }
+
+    public int getWaitMillis() {
+        return waitMillis == null ? DEFAULT_WAIT_MILLIS : Math.max(0, waitMillis);
+    }
+
+    public int getMaxExtraTasks() {
+        return maxExtraTasks == null ? DEFAULT_MAX_EXTRA_TASKS : Math.max(0, maxExtraTasks);
+    }
+}
@@ -0,0 +1,33 @@
+package ubongo.persistence;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Where the execution server serves its metrics (see {@link ubongo.common.metrics.MetricsHttpServer}): the server
+ * listens on port, and the web service fetches them from serverHost (default localhost) to serve them in
+ * /api/metrics. If no port is configured, the metrics of the server are only available over JMX.
+ */
+@XmlRootElement(name = "metrics")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class MetricsProperties {
+
+    private static final String DEFAULT_SERVER_HOST = "localhost";
+
+    @XmlElement private Integer port;
+    @XmlElement private String serverHost;
+
+    public boolean isServerExported() {
+        return port != null && port > 0;
+    }
+
+    public int getPort() {
+        return port == null ? 0 : port;
+    }
+
+    public String getServerHost() {
+        return serverHost == null ? DEFAULT_SERVER_HOST : serverHost;
+    }
+}
@@ -8,6 +8,8 @@ import java.sql.Timestamp;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * The Persistence module encapsulates the DB, Unit persistence and any other sub-module whose aim is to
@@ -66,6 +68,21 @@ public interface Persistence {
      */
     int createFlow(Context context, List<Task> tasks) throws PersistenceException;
 
+    /**
+     * Creates a new flow for each of the given contexts, all composed of the same tasks. Either all flows are
+     * created or none of them.
+     * @param contexts of the flows (one flow per context). A context may contain wildcards, in which case its flow
+     *                 is expanded when it is executed, just like a flow that was created by {@link #createFlow}.
+     * @param tasks to execute in each of the flows. Only the serial number and the unit (with its parameter values)
+     *              of each task are used.
+     * @param start true iff the flows should be ready for execution right away (as if {@link #startFlow(int)} had
+     *              been called for each of them).
+     * @return the ids of the flows in the DB, in the order of the contexts.
+     * @throws PersistenceException if creation failed, usually due to DB connection error or a
+     * data problem with tasks.
+     */
+    List<Integer> createFlows(List<Context> contexts, List<Task> tasks, boolean start) throws PersistenceException;
+
     /**
      * Updates the status of the tasks of the given flow to allow the Execution module {@link ubongo.server}
      * to retrieve the flow's tasks and execute them when possible.
@@ -169,6 +186,26 @@ public interface Persistence {
      */
     List<Task> getAllTasks(int limit) throws PersistenceException;
 
+    /**
+     * Same as {@link #getTasks(int)}, but passes each task to the consumer as soon as it is read from the DB instead
+     * of returning a list, so the tasks of a large flow need not be held in memory at once.
+     * @param flowId to identify the flow.
+     * @param consumer to receive the tasks, in the order of the tasks in the flow. Runtime exceptions thrown by the
+     *                 consumer stop the query and are thrown to the caller as is.
+     * @throws PersistenceException in case the query failed.
+     */
+    void streamTasks(int flowId, Consumer<Task> consumer) throws PersistenceException;
+
+    /**
+     * Same as {@link #getAllTasks(int)}, but passes each task to the consumer as soon as it is read from the DB
+     * instead of returning a list.
+     * @param limit for query results (corresponds to the SQL word 'LIMIT')
+     * @param consumer to receive the tasks (most recent tasks first). Runtime exceptions thrown by the consumer stop
+     *                 the query and are thrown to the caller as is.
+     * @throws PersistenceException if the query has failed.
+     */
+    void streamAllTasks(int limit, Consumer<Task> consumer) throws PersistenceException;
+
     /**
      * Retrieves all flows from the DB upto the given limit (most recent flows first).
      * @param limit for query results (corresponds to the SQL word 'LIMIT')
@@ -208,6 +245,18 @@ public interface Persistence {
      */
     List<ExecutionRequest> getNewRequests() throws PersistenceException;
 
+    /**
+     * Retrieves the execution requests in status 'New' whose id is greater than the given one. Since request ids
+     * are increasing, a caller that remembers the id of the last request it has seen can poll with this method
+     * frequently and cheaply (the query is a range scan on the primary key). The ids are allocated before the
+     * requests are committed, though, so a request may appear after requests with greater ids - the caller should
+     * poll a trailing window of ids below the last one it has seen as well.
+     * @param lastRequestId is the id of the last request seen by the caller.
+     * @return list of new requests created after the request with lastRequestId, in order of creation.
+     * @throws PersistenceException if the retrieval from the DB has failed
+     */
+    List<ExecutionRequest> getNewRequests(int lastRequestId) throws PersistenceException;
+
     /**
      * Updates the status of the request corresponding to {@code request.getId()} to {@code request.getStatus()}.
      * @param request to update.
@@ -223,12 +272,32 @@ public interface Persistence {
     void saveRequest(ExecutionRequest request) throws PersistenceException;
 
     /**
-     * Saves the given machines to the DB - replacing all data in the machines table!
+     * Saves the given machines to the DB: a machine that is not there is added, and a machine that is (by id) has its
+     * host and description updated - its activity and drain states are kept. The other machines (e.g., those that
+     * have registered themselves) are kept as well.
      * @param machines to save.
      * @throws PersistenceException if the update to the DB has failed.
      */
     void saveMachines(List<Machine> machines) throws PersistenceException;
 
+    /**
+     * Registers the machine by its host: a machine that is not in the DB is added with a new id (and is active), and a
+     * machine that is has its cores, memory and slots updated (its description only if it has none, since the
+     * description of a configured machine is the name it is known by). Either way it is set connected, with a
+     * heartbeat, so a machine that registers itself with every heartbeat comes back even after it has aged out.
+     * @param machine to register - its id is set to the id it is registered with.
+     * @return the id the machine is registered with.
+     * @throws PersistenceException if the update to the DB has failed.
+     */
+    int registerMachine(Machine machine) throws PersistenceException;
+
+    /**
+     * Removes the machine from the DB (the server is never removed).
+     * @param machineId to remove.
+     * @throws PersistenceException if the update to the DB has failed.
+     */
+    void removeMachine(int machineId) throws PersistenceException;
+
     /**
      * Returns all the machines from the DB.
      * @param includeServer is a flag that tells the DB whether to fetch the server record or not.
@@ -252,6 +321,17 @@ public interface Persistence {
      */
     void changeMachineActivityStatus(int machineId, boolean activate) throws PersistenceException;
 
+    /**
+     * Changes the drain state of the machine: a draining machine gets no new tasks, while the tasks it runs end, and a
+     * drained machine has no tasks left - it is set inactive as well, so it stays out of use until it is activated.
+     * Activating or deactivating the machine ends its drain (see {@link #changeMachineActivityStatus(int, boolean)}).
+     * @param machineId to drain.
+     * @param draining flag - true iff the machine is draining.
+     * @param drained flag - true iff the machine has been drained.
+     * @throws PersistenceException if the update to the DB has failed.
+     */
+    void changeMachineDrainState(int machineId, boolean draining, boolean drained) throws PersistenceException;
+
     /**
      * Some tasks are saved to the DB with context variables in their path and wildcard context values (i.e., ".*").
      * In these cases this method will delete the original task from the DB and replace it with the new ones -
@@ -263,7 +343,75 @@ public interface Persistence {
     void insertContextToTask(Task originalTask, List<Task> replacements) throws PersistenceException;
 
     /**
-     * Performs a cleanup routine to the database, which deletes old requests
+     * Same as {@link #insertContextToTask(Task, List)} for many tasks at once, in a single transaction.
+     * @param replacements maps every original task (to be used for flowId and removed) to the new tasks
+     *                     to be inserted to the DB instead of it.
+     * @throws PersistenceException in case the insertion or deletion from the DB has failed. In this case none of
+     * the original tasks was replaced.
+     */
+    void insertContextToTasks(Map<Task, List<Task>> replacements) throws PersistenceException;
+
+    /**
+     * Saves events to the timelines of their tasks, in one go.
+     * @param events to save (of any number of tasks).
+     * @throws PersistenceException if the update to the DB has failed. In this case none of the events was saved.
+     */
+    void saveTaskEvents(List<TaskEvent> events) throws PersistenceException;
+
+    /**
+     * Retrieves the timeline of a task: the moment it was created, followed by all the events that were saved for it,
+     * in chronological order. A task that was executed more than once (e.g., resumed after it had failed) has the
+     * events of all its attempts.
+     * @param taskId to identify the task.
+     * @return the events of the task (empty if there is no such task).
+     * @throws PersistenceException if the query has failed.
+     */
+    List<TaskEvent> getTaskTimeline(int taskId) throws PersistenceException;
+
+    /**
+     * Aggregates the timelines of the tasks that have ended after the given time by their unit
+     * (see {@link UnitTimeline}).
+     * @param since is the time limit (only tasks that have ended later are taken into account).
+     * @param limit is the maximal number of tasks that are taken into account (those that have ended last).
+     * @return the timeline of every unit that has such tasks, ordered by unit id.
+     * @throws PersistenceException if the query has failed.
+     */
+    List<UnitTimeline> getUnitTimelines(Timestamp since, int limit) throws PersistenceException;
+
+    /**
+     * Takes the lease with the given name for the owner, if it is free, has expired or is already held by the owner,
+     * and extends it by the given time (see {@link Lease}). Of the owners that race for a lease, only one takes it.
+     * @param name of the lease (e.g., "flow/12").
+     * @param owner is the id of the server that takes the lease.
+     * @param millis is the time the lease is held for, unless it is renewed.
+     * @return true iff the owner holds the lease now.
+     * @throws PersistenceException if the update to the DB has failed.
+     */
+    boolean acquireLease(String name, String owner, long millis) throws PersistenceException;
+
+    /**
+     * Extends all the leases of the owner by the given time (0 lets them expire at once).
+     * @return the names of the leases the owner holds - a lease that has expired and was taken by another owner is
+     * not renewed and not returned.
+     * @throws PersistenceException if the update to the DB has failed.
+     */
+    Set<String> renewLeases(String owner, long millis) throws PersistenceException;
+
+    /**
+     * Releases the lease with the given name, if it is held by the owner.
+     * @throws PersistenceException if the update to the DB has failed.
+     */
+    void releaseLease(String name, String owner) throws PersistenceException;
+
+    /**
+     * @param prefix of the names of the leases to retrieve (e.g., "flow/").
+     * @return the leases (held or expired) whose names start with the prefix, ordered by name.
+     * @throws PersistenceException if the query has failed.
+     */
+    List<Lease> getLeases(String prefix) throws PersistenceException;
+
+    /**
+     * Performs a cleanup routine to the database, which deletes old requests and task events
      * and changes the status of 'Pending' tasks to 'New'
      */
     void performCleanup() throws PersistenceException;
@@ -0,0 +1,38 @@
+package ubongo.persistence;
+
+import ubongo.common.datatypes.Machine;
+
+import java.util.List;
+
+/**
+ * Creates the Persistence implementation that is selected by the persistence element of the configuration
+ * (see {@link PersistenceProperties}) for the server, the web service and the machine server. They run in separate
+ * processes and share their state through the DB, so the in-memory persistence is refused: every process would have
+ * a state of its own. It is only used by the tools that run all the components in one JVM (the simulator and the
+ * benchmarks), which create it themselves.
+ */
+public final class PersistenceFactory {
+
+    private PersistenceFactory() {}
+
+    /**
+     * @param configuration of the system.
+     * @param unitSettingsDirPath path to the units directory.
+     * @param machines to use for tasks that were assigned to a machine (may be null).
+     * @param queriesPath path to the queries.properties file (not used by the in-memory persistence).
+     * @param debug true iff the debug tables should be used (not used by the in-memory persistence).
+     * @return a new, not yet started, Persistence object.
+     * @throws IllegalArgumentException if the configuration selects the in-memory persistence.
+     */
+    public static Persistence create(Configuration configuration, String unitSettingsDirPath,
+                                     List<Machine> machines, String queriesPath, boolean debug) {
+        PersistenceProperties properties = configuration.getPersistenceProperties();
+        if (properties.isInMemory()) {
+            throw new IllegalArgumentException("The " + PersistenceProperties.TYPE_MEMORY + " persistence is not "
+                    + "shared between the server, the web service and the machines, which run in separate processes - "
+                    + "use " + PersistenceProperties.TYPE_DB);
+        }
+        return new PersistenceImpl(unitSettingsDirPath, configuration.getDbConnectionProperties(),
+                configuration.getSshConnectionProperties(), machines, queriesPath, debug);
+    }
+}
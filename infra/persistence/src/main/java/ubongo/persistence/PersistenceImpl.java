@@ -14,7 +14,9 @@ import java.sql.Timestamp;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.function.Consumer;
 
 /**
  * This class implements the Persistence API. All methods in this implementations utilize a mechanism to try and handle
@@ -113,6 +115,21 @@ public class PersistenceImpl implements Persistence {
         throw new PersistenceException("Unknown reason"); // not possible
     }
 
+    @Override
+    public List<Integer> createFlows(List<Context> contexts, List<Task> tasks, boolean start)
+            throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                return dbProxy.createFlows(contexts, tasks, start);
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
     @Override
     public void startFlow(int flowId) throws PersistenceException {
         int numRetries = 0;
@@ -243,6 +260,36 @@ public class PersistenceImpl implements Persistence {
         throw new PersistenceException("Unknown reason"); // not possible
     }
 
+    @Override
+    public void streamTasks(int flowId, Consumer<Task> consumer) throws PersistenceException {
+        StreamedTasksCounter counter = new StreamedTasksCounter(consumer);
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                dbProxy.streamTasks(flowId, counter);
+                return;
+            } catch (DBProxyException e) {
+                if (counter.count > 0 || handleDbProxyException(e, numRetries) != null) throw e;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
+    @Override
+    public void streamAllTasks(int limit, Consumer<Task> consumer) throws PersistenceException {
+        StreamedTasksCounter counter = new StreamedTasksCounter(consumer);
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                dbProxy.streamAllTasks(limit, counter);
+                return;
+            } catch (DBProxyException e) {
+                if (counter.count > 0 || handleDbProxyException(e, numRetries) != null) throw e;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
     @Override
     public List<FlowData> getAllFlows(int limit) throws PersistenceException {
         int numRetries = 0;
@@ -305,6 +352,20 @@ public class PersistenceImpl implements Persistence {
         return new DBMethodInvoker<>(sqlExceptionHandler, dbProxy::getNewRequests).invoke();
     }
 
+    @Override
+    public List<ExecutionRequest> getNewRequests(int lastRequestId) throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                return dbProxy.getNewRequests(lastRequestId);
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
     @Override
     public void updateRequestStatus(ExecutionRequest request) throws PersistenceException {
         int numRetries = 0;
@@ -394,6 +455,66 @@ public class PersistenceImpl implements Persistence {
         throw new PersistenceException("Unknown reason"); // not possible
     }
 
+    @Override
+    public int registerMachine(Machine machine) throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                return dbProxy.registerMachine(machine);
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
+    @Override
+    public void removeMachine(int machineId) throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                dbProxy.removeMachine(machineId);
+                return;
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
+    @Override
+    public void changeMachineDrainState(int machineId, boolean draining, boolean drained)
+            throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                dbProxy.changeMachineDrainState(machineId, draining, drained);
+                return;
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
+    @Override
+    public void insertContextToTasks(Map<Task, List<Task>> replacements) throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                dbProxy.insertContextToTasks(replacements);
+                return;
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
     @Override
     public void insertContextToTask(Task originalTask, List<Task> replacements) throws PersistenceException {
         int numRetries = 0;
@@ -409,6 +530,106 @@ public class PersistenceImpl implements Persistence {
         throw new PersistenceException("Unknown reason"); // not possible
     }
 
+    @Override
+    public void saveTaskEvents(List<TaskEvent> events) throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                dbProxy.saveTaskEvents(events);
+                return;
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
+    @Override
+    public List<TaskEvent> getTaskTimeline(int taskId) throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                return dbProxy.getTaskTimeline(taskId);
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
+    @Override
+    public boolean acquireLease(String name, String owner, long millis) throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                return dbProxy.acquireLease(name, owner, millis);
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
+    @Override
+    public Set<String> renewLeases(String owner, long millis) throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                return dbProxy.renewLeases(owner, millis);
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
+    @Override
+    public void releaseLease(String name, String owner) throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                dbProxy.releaseLease(name, owner);
+                return;
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
+    @Override
+    public List<Lease> getLeases(String prefix) throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                return dbProxy.getLeases(prefix);
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
+    @Override
+    public List<UnitTimeline> getUnitTimelines(Timestamp since, int limit) throws PersistenceException {
+        int numRetries = 0;
+        while (numRetries++ < MAX_NUM_RETRIES) {
+            try {
+                return dbProxy.getUnitTimelines(since, limit);
+            } catch (DBProxyException e) {
+                DBProxyException ret;
+                if ((ret = handleDbProxyException(e, numRetries)) != null) throw ret;
+            }
+        }
+        throw new PersistenceException("Unknown reason"); // not possible
+    }
+
     @Override
     public void performCleanup() throws PersistenceException {
         new DBMethodInvoker<>(sqlExceptionHandler, dbProxy::performCleanup).invoke();
@@ -432,6 +653,26 @@ public class PersistenceImpl implements Persistence {
         return null;
     }
 
+    /**
+     * Counts the tasks passed to the consumer of a streaming query. Once a task was passed to the consumer,
+     * a failed query cannot be retried since the consumer would receive the same tasks twice.
+     */
+    private static class StreamedTasksCounter implements Consumer<Task> {
+
+        private final Consumer<Task> consumer;
+        private int count = 0;
+
+        StreamedTasksCounter(Consumer<Task> consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void accept(Task task) {
+            count++;
+            consumer.accept(task);
+        }
+    }
+
     /**
      * This class is used to manage execution and error handling of different persistence methods. It enables invoking
      * function calls with an exception handler that catches the exception thrown by the function, checks if it is
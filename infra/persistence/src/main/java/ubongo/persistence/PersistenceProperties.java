@@ -0,0 +1,29 @@
+package ubongo.persistence;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Selects the Persistence implementation. The 'db' type (default) stores the system state in the MySQL DB that is
+ * configured by the db-connection element. The 'memory' type, which keeps the state in the memory of a process, is
+ * refused by the {@link PersistenceFactory}, since the components of the system run in separate processes.
+ */
+@XmlRootElement(name = "persistence")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class PersistenceProperties {
+
+    public static final String TYPE_DB = "db";
+    public static final String TYPE_MEMORY = "memory";
+
+    @XmlElement private String type = TYPE_DB;
+
+    public String getType() {
+        return type;
+    }
+
+    public boolean isInMemory() {
+        return TYPE_MEMORY.equalsIgnoreCase(type);
+    }
+}
@@ -0,0 +1,48 @@
+package ubongo.persistence;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Speculative execution of stragglers: a task that has been running for longer than the given percentile of the
+ * runtimes of the completed tasks of its unit (and at least minRuntimeSeconds) is run again on another machine, and
+ * the attempt that completes first wins. The percentile is only trusted once the unit has at least minSamples
+ * completed tasks, and no more than maxCopies speculative copies run at once. Disabled unless enabled is true.
+ */
+@XmlRootElement(name = "speculation")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class SpeculationProperties {
+
+    private static final double DEFAULT_PERCENTILE = 0.95;
+    private static final int DEFAULT_MIN_SAMPLES = 10;
+    private static final int DEFAULT_MIN_RUNTIME_SECONDS = 60;
+    private static final int DEFAULT_MAX_COPIES = 2;
+
+    @XmlElement private Boolean enabled;
+    @XmlElement private Double percentile;
+    @XmlElement private Integer minSamples;
+    @XmlElement private Integer minRuntimeSeconds;
+    @XmlElement private Integer maxCopies;
+
+    public boolean isEnabled() {
+        return enabled != null && enabled;
+    }
+
+    public double getPercentile() {
+        return percentile == null ? DEFAULT_PERCENTILE : percentile;
+    }
+
+    public int getMinSamples() {
+        return minSamples == null ? DEFAULT_MIN_SAMPLES : minSamples;
+    }
+
+    public int getMinRuntimeSeconds() {
+        return minRuntimeSeconds == null ? DEFAULT_MIN_RUNTIME_SECONDS : minRuntimeSeconds;
+    }
+
+    public int getMaxCopies() {
+        return maxCopies == null ? DEFAULT_MAX_COPIES : maxCopies;
+    }
+}
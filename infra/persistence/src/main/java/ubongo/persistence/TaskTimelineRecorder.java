@@ -0,0 +1,129 @@
+package ubongo.persistence;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.TaskEvent;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.persistence.exceptions.PersistenceException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the events of the timelines of tasks (see {@link TaskEvent}). Recording an event never blocks on the DB:
+ * events are buffered in memory and saved in batches by a background thread, so the timeline costs the scheduler
+ * and the machines nothing but an allocation per event. If the DB is unavailable for long enough to fill the buffer,
+ * new events are dropped - the timeline is a diagnostic tool and must never hold back the execution of tasks.
+ */
+public class TaskTimelineRecorder {
+
+    private static Logger logger = LogManager.getLogger(TaskTimelineRecorder.class);
+
+    private static final int DEFAULT_CAPACITY = 1 << 14;
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final Persistence persistence;
+    private final int capacity;
+    private final long flushIntervalMillis;
+    private final Object flushLock = new Object();
+    private List<TaskEvent> buffer = new ArrayList<>();
+    private long numDropped = 0;
+    private ScheduledExecutorService flusher;
+
+    public TaskTimelineRecorder(Persistence persistence) {
+        this(persistence, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public TaskTimelineRecorder(Persistence persistence, int capacity, long flushIntervalMillis) {
+        this.persistence = persistence;
+        this.capacity = capacity;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    public void start() {
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ubongo-timeline-recorder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background thread and saves the events that are still buffered.
+     */
+    public void stop() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // continue to stop
+            }
+            flusher = null;
+        }
+        flush();
+    }
+
+    public void record(int taskId, TaskEvent.Type type, Integer machineId) {
+        record(new TaskEvent(taskId, type, System.currentTimeMillis(), machineId));
+    }
+
+    public void recordEnded(int taskId, TaskStatus status, Integer machineId) {
+        record(new TaskEvent(taskId, TaskEvent.Type.ENDED, status, System.currentTimeMillis(), machineId));
+    }
+
+    public void record(TaskEvent event) {
+        synchronized (this) {
+            if (buffer.size() < capacity) {
+                buffer.add(event);
+                return;
+            }
+            if (numDropped++ % capacity == 0) {
+                logger.warn("The task timeline buffer is full - dropping task events (" + numDropped
+                        + " dropped so far)");
+            }
+        }
+    }
+
+    private void flush() {
+        synchronized (flushLock) { // the final flush of stop() must not run along with a scheduled one
+            List<TaskEvent> events;
+            synchronized (this) {
+                if (buffer.isEmpty()) {
+                    return;
+                }
+                events = buffer;
+                buffer = new ArrayList<>();
+            }
+            for (int from = 0; from < events.size(); from += MAX_BATCH_SIZE) {
+                List<TaskEvent> batch = events.subList(from, Math.min(events.size(), from + MAX_BATCH_SIZE));
+                try {
+                    persistence.saveTaskEvents(batch);
+                } catch (PersistenceException e) {
+                    requeue(events.subList(from, events.size()), e);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void requeue(List<TaskEvent> events, PersistenceException e) {
+        synchronized (this) {
+            if (buffer.size() + events.size() <= capacity) {
+                List<TaskEvent> requeued = new ArrayList<>(events);
+                requeued.addAll(buffer);
+                buffer = requeued;
+                logger.warn("Failed to save " + events.size() + " task events. Will retry in "
+                        + flushIntervalMillis + " ms", e);
+            } else {
+                numDropped += events.size();
+                logger.error("Failed to save " + events.size() + " task events - dropping them", e);
+            }
+        }
+    }
+}
@@ -13,15 +13,20 @@ public class DBConstants {
     public final static String QUERY_GET_ANALYSIS_NAMES = "get_analysis_names";
     public final static String QUERY_GET_UNITS = "get_units";
     public final static String QUERY_UPDATE_TASK_STATUS = "update_task_status";
+    public final static String QUERY_UPDATE_TASKS_STATUS = "update_tasks_status";
     public final static String QUERY_CREATE_ANALYSIS = "create_analysis";
     public final static String QUERY_CREATE_FLOW = "create_flow";
     public final static String QUERY_START_FLOW = "start_flow";
+    public final static String QUERY_CREATE_FLOWS = "create_flows";
+    public final static String QUERY_CREATE_FLOWS_TASKS = "create_flows_tasks";
+    public final static String QUERY_DELETE_TASK = "delete_task";
     public final static String QUERY_GET_ALL_FLOWS = "get_all_flows";
     public final static String QUERY_UPDATE_FLOW_STATUS = "update_flow_status";
     public final static String QUERY_CLEAR_TABLES = "clear_tables";
     public final static String QUERY_RESUME_TASK = "resume_task";
     public final static String QUERY_CREATE_REQUEST = "create_request";
     public final static String QUERY_GET_NEW_REQUESTS = "get_new_requests";
+    public final static String QUERY_GET_REQUESTS_AFTER = "get_requests_after";
     public final static String QUERY_GET_ALL_REQUESTS = "get_all_requests";
     public final static String QUERY_COUNT_REQUESTS = "count_requests";
     public final static String QUERY_UPDATE_REQUEST_STATUS = "update_request_status";
@@ -29,8 +34,22 @@ public class DBConstants {
     public final static String QUERY_GET_MACHINES = "get_machines";
     public final static String QUERY_UPDATE_MACHINES = "update_machine";
     public final static String QUERY_CHANGE_MACHINE_ACTIVITY = "change_machine_activity";
+    public final static String QUERY_CHANGE_MACHINE_DRAIN_STATE = "change_machine_drain_state";
+    public final static String QUERY_GET_MACHINE_BY_HOST = "get_machine_by_host";
+    public final static String QUERY_REGISTER_EXISTING_MACHINE = "register_existing_machine";
+    public final static String QUERY_REGISTER_NEW_MACHINE = "register_new_machine";
+    public final static String QUERY_REMOVE_MACHINE = "remove_machine";
     public final static String QUERY_INSERT_CONTEXT_TO_TASKS = "insert_context_to_tasks";
     public final static String QUERY_CLEANUP = "cleanup";
+    public final static String QUERY_SAVE_TASK_EVENTS = "save_task_events";
+    public final static String QUERY_GET_TASK_TIMELINE = "get_task_timeline";
+    public final static String QUERY_GET_ENDED_TASKS_EVENTS = "get_ended_tasks_events";
+    public final static String QUERY_ACQUIRE_LEASE = "acquire_lease";
+    public final static String QUERY_GET_LEASE_OWNER = "get_lease_owner";
+    public final static String QUERY_RENEW_LEASES = "renew_leases";
+    public final static String QUERY_GET_OWNED_LEASES = "get_owned_leases";
+    public final static String QUERY_RELEASE_LEASE = "release_lease";
+    public final static String QUERY_GET_LEASES = "get_leases";
 
     public final static String TASKS_TABLE_NAME = "tasks";
     public final static String TASKS_TASK_ID = "task_id";
@@ -43,6 +62,7 @@ public class DBConstants {
     public final static String TASKS_SUBJECT = "subject";
     public final static String TASKS_RUN = "run";
     public final static String TASKS_MACHINE_ID = "machine_id";
+    public final static String TASKS_PREDECESSORS = "predecessors";
 
     public final static String FLOWS_TABLE_NAME = "flows";
     public final static String FLOWS_FLOW_ID = "flow_id";
@@ -55,6 +75,7 @@ public class DBConstants {
     public final static String UNITS_TABLE_NAME = "units";
     public final static String UNITS_ANALYSIS_NAME = "analysis_name";
     public final static String UNITS_UNIT_ID = "external_unit_id";
+    public final static String UNITS_PREDECESSORS = "predecessors";
 
     public final static String REQUESTS_TABLE_NAME = "requests";
     public final static String REQUESTS_ID = "id";
@@ -72,5 +93,23 @@ public class DBConstants {
     public final static String MACHINES_ACTIVE = "active";
     public final static String MACHINES_CONNECTED = "connected";
     public final static String MACHINES_LAST_HEARTBEAT = "last_heartbeat";
+    public final static String MACHINES_DRAINING = "draining";
+    public final static String MACHINES_DRAINED = "drained";
+    public final static String MACHINES_CORES = "cores";
+    public final static String MACHINES_MEMORY_MB = "memory_mb";
+    public final static String MACHINES_SLOTS = "slots";
+
+    public final static String TASK_EVENTS_TABLE_NAME = "task_events";
+    public final static String TASK_EVENTS_TASK_ID = "task_id";
+    public final static String TASK_EVENTS_EVENT = "event";
+    public final static String TASK_EVENTS_STATUS = "status";
+    public final static String TASK_EVENTS_TIME = "event_time";
+    public final static String TASK_EVENTS_MACHINE_ID = "machine_id";
+    public final static String TASK_EVENTS_UNIT_ID = "unit_id";
+
+    public final static String LEASES_TABLE_NAME = "leases";
+    public final static String LEASES_NAME = "name";
+    public final static String LEASES_OWNER = "owner";
+    public final static String LEASES_EXPIRED = "expired";
 
 }
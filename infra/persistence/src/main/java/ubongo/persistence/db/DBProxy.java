@@ -10,6 +10,7 @@ import ubongo.common.Utils;
 import ubongo.common.datatypes.*;
 import ubongo.common.datatypes.unit.Unit;
 import ubongo.common.datatypes.unit.UnitParameter;
+import ubongo.common.metrics.MetricsRegistry;
 import ubongo.common.network.SSHConnection;
 import ubongo.common.network.SSHConnectionProperties;
 import ubongo.persistence.UnitFetcher;
@@ -21,17 +22,26 @@ import java.net.ServerSocket;
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class DBProxy {
 
+    private static final String METRIC_QUERY_SECONDS = "ubongo_db_query_seconds";
+    private static final String METRIC_QUERY_ERRORS = "ubongo_db_query_errors_total";
+    private static final String METRIC_QUERY_LABEL = "query";
+
+    private static final int MAX_REGISTRATION_ATTEMPTS = 5;
+
     private static Logger logger = LogManager.getLogger(DBProxy.class);
+    private static final MetricsRegistry metrics = MetricsRegistry.getInstance();
 
     private Session sshSession;
     private SSHConnectionProperties sshProperties;
     private boolean useSSH;
-    private Map<Integer, Machine> machines;
+    private Map<Integer, Machine> machines; // the machines of the configuration, and those that were read since
     private Connection connection;
     private DBConnectionProperties dbProperties;
     private int localPort;
@@ -45,8 +55,10 @@ public class DBProxy {
         this.queriesProvider = new QueriesProvider(queriesPath);
         this.dbProperties = dbConnectionProperties;
         this.unitFetcher = unitFetcher;
-        this.machines = machines == null ? new HashMap<>() : machines.stream()
-                .collect(Collectors.toMap(Machine::getId, Function.identity()));
+        this.machines = new ConcurrentHashMap<>();
+        if (machines != null) {
+            machines.forEach(m -> this.machines.put(m.getId(), m));
+        }
         this.useSSH = false;
         this.debug = debug;
     }
@@ -132,12 +144,14 @@ public class DBProxy {
         connect();
         String tasksTableName = getTableName(DBConstants.TASKS_TABLE_NAME);
         String requestsTableName = getTableName(DBConstants.REQUESTS_TABLE_NAME);
+        String taskEventsTableName = getTableName(DBConstants.TASK_EVENTS_TABLE_NAME);
         try {
             String sql = queriesProvider.getQuery(DBConstants.QUERY_CLEANUP)
                     .replace("$tasksTable", tasksTableName)
-                    .replace("$requestsTable", requestsTableName);
+                    .replace("$requestsTable", requestsTableName)
+                    .replace("$taskEventsTable", taskEventsTableName);
             PreparedStatement statement = connection.prepareStatement(sql);
-            executeUpdate(statement, false);
+            executeUpdate(DBConstants.QUERY_CLEANUP, statement, false);
         } catch (SQLException e) {
             throw new DBProxyException("Failed to cleanup the DB", e);
         }
@@ -166,24 +180,8 @@ public class DBProxy {
             String sql = queriesProvider.getQuery(DBConstants.QUERY_UPDATE_TASK_STATUS)
                     .replace("$tasksTable", tableName);
             PreparedStatement statement = connection.prepareStatement(sql);
-            String status = getStatusString(task.getStatus());
-            // if the current status is Processing, don't update to Pending -
-            // this situation may be caused by threads synchronization issues and is not desired
-            // status to set if the current status is Processing
-            if (task.getStatus() == TaskStatus.PENDING) {
-                statement.setString(1, getStatusString(TaskStatus.PROCESSING));
-            } else {
-                statement.setString(1, status);
-            }
-            statement.setString(2, status); // status to set if the current status is not Processing
-            // update execution time and machine if relevant
-            if (task.getStatus() == TaskStatus.PROCESSING && task.getMachine() != null) {
-                statement.setInt(3, task.getMachine().getId());
-            } else {
-                statement.setNull(3, Types.INTEGER);
-            }
-            statement.setInt(4, task.getId()); // id of task to update
-            executeUpdate(statement, false);
+            setStatusUpdateParameters(statement, task);
+            executeUpdate(DBConstants.QUERY_UPDATE_TASK_STATUS, statement, false);
             if (logger.isInfoEnabled()) {
                 logger.info("Updated status in DB to " + task.getStatus() + " for task with id=" +
                         task.getId());
@@ -196,10 +194,64 @@ public class DBProxy {
         updateFlowStatus(task.getId());
     }
 
+    /**
+     * Updates the status of all the given tasks in a single batch and then updates the status of every flow
+     * that these tasks belong to. The same rules as in {@link #updateStatus(Task)} apply, but they are evaluated
+     * by the DB so no task needs to be fetched before the update (tasks in a final status are silently skipped).
+     * @param tasks to update in DB. Tasks whose ID cannot be found in the DB are ignored.
+     */
     public void updateStatus(Collection<Task> tasks) throws DBProxyException {
-        for (Task task : tasks) {
-            updateStatus(task);
+        if (tasks.isEmpty()) {
+            return;
         }
+        connect();
+        String tableName = getTableName(DBConstants.TASKS_TABLE_NAME);
+        Set<Integer> flowIds = new HashSet<>();
+        try {
+            String sql = queriesProvider.getQuery(DBConstants.QUERY_UPDATE_TASKS_STATUS)
+                    .replace("$tasksTable", tableName);
+            PreparedStatement statement = connection.prepareStatement(sql);
+            for (Task task : tasks) {
+                setStatusUpdateParameters(statement, task);
+                statement.addBatch();
+                flowIds.add(task.getFlowId());
+            }
+            // the connection is shared by several threads, so the batch is not wrapped in a transaction;
+            // with rewriteBatchedStatements it is still sent to the DB in a single round trip
+            executeBatch(DBConstants.QUERY_UPDATE_TASKS_STATUS, statement);
+            if (logger.isInfoEnabled()) {
+                logger.info("Updated status in DB for " + tasks.size() + " tasks from "
+                        + flowIds.size() + " flows");
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to update the status of " + tasks.size() + " tasks in DB", e);
+        }
+        for (int flowId : flowIds) {
+            List<Task> flowTasks = getTasks(flowId);
+            if (!flowTasks.isEmpty()) {
+                updateFlowStatus(flowId, computeFlowStatus(flowTasks));
+            }
+        }
+    }
+
+    private void setStatusUpdateParameters(PreparedStatement statement, Task task) throws SQLException {
+        String status = getStatusString(task.getStatus());
+        // if the current status is Processing, don't update to Pending -
+        // this situation may be caused by threads synchronization issues and is not desired
+        // status to set if the current status is Processing
+        if (task.getStatus() == TaskStatus.PENDING) {
+            statement.setString(1, getStatusString(TaskStatus.PROCESSING));
+        } else {
+            statement.setString(1, status);
+        }
+        statement.setString(2, status); // status to set if the current status is not Processing
+        // update execution time and machine if relevant
+        if (task.getStatus() == TaskStatus.PROCESSING && task.getMachine() != null) {
+            statement.setInt(3, task.getMachine().getId());
+        } else {
+            statement.setNull(3, Types.INTEGER);
+        }
+        statement.setInt(4, task.getId()); // id of task to update
     }
 
     public void createAnalysis(String analysisName, List<Unit> units) throws DBProxyException {
@@ -216,7 +268,7 @@ public class DBProxy {
                     .replace("$unitsTable", unitsTableName)
                     .replace("$values", values);
             PreparedStatement statement = connection.prepareStatement(sql);
-            executeUpdate(statement, false);
+            executeUpdate(DBConstants.QUERY_CREATE_ANALYSIS, statement, false);
             if (logger.isInfoEnabled()) {
                 logger.info("Saved analysis " + analysisName + " with " + units.size() + " units");
             }
@@ -235,10 +287,12 @@ public class DBProxy {
                     .replace("$unitsTable", tableName);
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setString(1, analysisName);
-            ResultSet resultSet = executeQuery(statement);
+            ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_UNITS, statement);
             while (resultSet.next()) {
                 int unitId = resultSet.getInt(DBConstants.UNITS_UNIT_ID);
-                units.add(unitFetcher.getUnit(unitId));
+                Unit unit = unitFetcher.getUnit(unitId);
+                unit.setPredecessors(parsePredecessors(resultSet.getString(DBConstants.UNITS_PREDECESSORS)));
+                units.add(unit);
             }
         } catch (SQLException e) {
             throw new DBProxyException(errorMsg, e);
@@ -256,7 +310,7 @@ public class DBProxy {
                     .replace("$unitsTable", tableName);
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setInt(1, limit);
-            ResultSet resultSet = executeQuery(statement);
+            ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_ANALYSIS_NAMES, statement);
             while (resultSet.next()) {
                 analysisNames.add(resultSet.getString(DBConstants.UNITS_ANALYSIS_NAME));
             }
@@ -275,13 +329,14 @@ public class DBProxy {
             String sql = queriesProvider.getQuery(DBConstants.QUERY_GET_MACHINES)
                     .replace("$machinesTable", tableName);
             PreparedStatement statement = connection.prepareStatement(sql);
-            ResultSet resultSet = executeQuery(statement);
+            ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_MACHINES, statement);
             while (resultSet.next()) {
                 machines.add(machineFromResultSet(resultSet));
             }
         } catch (SQLException e) {
             throw new DBProxyException(errorMsg, e);
         }
+        machines.forEach(m -> this.machines.put(m.getId(), m)); // for the tasks of the machines that registered themselves
         if (!includeServer) {
             machines = machines.stream()
                     .filter(m -> m.getId() != DBConstants.SERVER_ID)
@@ -299,7 +354,7 @@ public class DBProxy {
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setBoolean(1, machine.isConnected());
             statement.setInt(2, machine.getId());
-            executeUpdate(statement, false);
+            executeUpdate(DBConstants.QUERY_UPDATE_MACHINES, statement, false);
         } catch (SQLException e) {
             throw new DBProxyException("Failed to update machine in DB.", e);
         }
@@ -317,7 +372,7 @@ public class DBProxy {
                     .replace("$machinesTable", machinesTableName)
                     .replace("$values", values);
             PreparedStatement statement = connection.prepareStatement(sql);
-            executeUpdate(statement, false);
+            executeUpdate(DBConstants.QUERY_SAVE_MACHINES, statement, false);
             if (logger.isDebugEnabled()) {
                 logger.debug("Saved machines in the database");
             }
@@ -326,6 +381,88 @@ public class DBProxy {
         }
     }
 
+    public int registerMachine(Machine machine) throws DBProxyException {
+        connect();
+        String machinesTableName = getTableName(DBConstants.MACHINES_TABLE_NAME);
+        try {
+            // a new machine is given the next id of the table, which is never given again (so the tasks of a machine that
+            // was removed are not taken for the tasks of another) - if the same host registers itself at the same time,
+            // the insert fails on its host and the machine is read again
+            for (int attempt = 1; ; attempt++) {
+                String sql = queriesProvider.getQuery(DBConstants.QUERY_GET_MACHINE_BY_HOST)
+                        .replace("$machinesTable", machinesTableName);
+                PreparedStatement statement = connection.prepareStatement(sql);
+                statement.setString(1, machine.getHost());
+                Integer existingId = null;
+                try (ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_MACHINE_BY_HOST, statement)) {
+                    if (resultSet.next()) {
+                        existingId = resultSet.getInt(DBConstants.MACHINES_ID);
+                    }
+                }
+                if (existingId != null) {
+                    machine.setId(existingId);
+                    sql = queriesProvider.getQuery(DBConstants.QUERY_REGISTER_EXISTING_MACHINE)
+                            .replace("$machinesTable", machinesTableName);
+                    statement = connection.prepareStatement(sql);
+                    statement.setString(1, machine.getDescription());
+                    statement.setInt(2, machine.getCores());
+                    statement.setInt(3, machine.getMemoryMb());
+                    statement.setInt(4, machine.getSlots());
+                    statement.setInt(5, machine.getId());
+                    executeUpdate(DBConstants.QUERY_REGISTER_EXISTING_MACHINE, statement, false);
+                    return machine.getId();
+                }
+                sql = queriesProvider.getQuery(DBConstants.QUERY_REGISTER_NEW_MACHINE)
+                        .replace("$machinesTable", machinesTableName);
+                statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+                statement.setString(1, machine.getHost());
+                statement.setString(2, machine.getDescription());
+                statement.setInt(3, machine.getCores());
+                statement.setInt(4, machine.getMemoryMb());
+                statement.setInt(5, machine.getSlots());
+                try {
+                    executeUpdate(DBConstants.QUERY_REGISTER_NEW_MACHINE, statement, false);
+                } catch (SQLIntegrityConstraintViolationException e) {
+                    if (attempt >= MAX_REGISTRATION_ATTEMPTS) {
+                        throw e;
+                    }
+                    continue;
+                }
+                try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                    if (generatedKeys.next()) {
+                        machine.setId(generatedKeys.getInt(1));
+                        if (logger.isInfoEnabled()) {
+                            logger.info("Machine " + machine.getHost() + " has registered itself (ID="
+                                    + machine.getId() + ")");
+                        }
+                        return machine.getId();
+                    }
+                }
+                // the next attempt reads the id the machine was given
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to register machine " + machine.getHost(), e);
+        }
+    }
+
+    public void removeMachine(int machineId) throws DBProxyException {
+        connect();
+        String machinesTableName = getTableName(DBConstants.MACHINES_TABLE_NAME);
+        try {
+            String sql = queriesProvider.getQuery(DBConstants.QUERY_REMOVE_MACHINE)
+                    .replace("$machinesTable", machinesTableName);
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setInt(1, machineId);
+            executeUpdate(DBConstants.QUERY_REMOVE_MACHINE, statement, false);
+            machines.remove(machineId);
+            if (logger.isInfoEnabled()) {
+                logger.info("Machine with id=" + machineId + " was removed");
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to remove machine with ID = " + machineId, e);
+        }
+    }
+
     public void changeMachineActivityStatus(int machineId, boolean activate) throws DBProxyException {
         connect();
         String machinesTableName = getTableName(DBConstants.MACHINES_TABLE_NAME);
@@ -335,7 +472,7 @@ public class DBProxy {
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setBoolean(1, activate);
             statement.setInt(2, machineId);
-            executeUpdate(statement, false);
+            executeUpdate(DBConstants.QUERY_CHANGE_MACHINE_ACTIVITY, statement, false);
             if (logger.isInfoEnabled()) {
                 logger.info("Machine with id=" + machineId + " was set to " + (activate ? "" : "in") + "active");
             }
@@ -345,6 +482,27 @@ public class DBProxy {
         }
     }
 
+    public void changeMachineDrainState(int machineId, boolean draining, boolean drained) throws DBProxyException {
+        connect();
+        String machinesTableName = getTableName(DBConstants.MACHINES_TABLE_NAME);
+        try {
+            String sql = queriesProvider.getQuery(DBConstants.QUERY_CHANGE_MACHINE_DRAIN_STATE)
+                    .replace("$machinesTable", machinesTableName);
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setBoolean(1, draining);
+            statement.setBoolean(2, drained);
+            statement.setBoolean(3, drained);
+            statement.setInt(4, machineId);
+            executeUpdate(DBConstants.QUERY_CHANGE_MACHINE_DRAIN_STATE, statement, false);
+            if (logger.isInfoEnabled()) {
+                logger.info("Machine with id=" + machineId + " was set to "
+                        + (drained ? "drained" : draining ? "draining" : "not draining"));
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to change the drain state of machine with ID = " + machineId, e);
+        }
+    }
+
     public int countRequests(Timestamp t) throws DBProxyException {
         connect();
         String requestsTableName = getTableName(DBConstants.REQUESTS_TABLE_NAME);
@@ -353,7 +511,7 @@ public class DBProxy {
                     .replace("$requestsTable", requestsTableName);
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setTimestamp(1, t);
-            ResultSet resultSet = executeQuery(statement);
+            ResultSet resultSet = executeQuery(DBConstants.QUERY_COUNT_REQUESTS, statement);
             if (resultSet.next()) {
                 return resultSet.getInt(DBConstants.REQUESTS_COUNT);
             } else {
@@ -373,7 +531,7 @@ public class DBProxy {
                     .replace("$requestsTable", requestsTableName);
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setInt(1, limit);
-            ResultSet resultSet = executeQuery(statement);
+            ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_ALL_REQUESTS, statement);
             while (resultSet.next()) {
                 requests.add(requestFromResultSet(resultSet));
             }
@@ -391,7 +549,26 @@ public class DBProxy {
             String sql = queriesProvider.getQuery(DBConstants.QUERY_GET_NEW_REQUESTS)
                     .replace("$requestsTable", requestsTableName);
             PreparedStatement statement = connection.prepareStatement(sql);
-            ResultSet resultSet = executeQuery(statement);
+            ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_NEW_REQUESTS, statement);
+            while (resultSet.next()) {
+                requests.add(requestFromResultSet(resultSet));
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to retrieve requests from DB.", e);
+        }
+        return requests;
+    }
+
+    public List<ExecutionRequest> getNewRequests(int lastRequestId) throws DBProxyException {
+        connect();
+        List<ExecutionRequest> requests = new ArrayList<>();
+        String requestsTableName = getTableName(DBConstants.REQUESTS_TABLE_NAME);
+        try {
+            String sql = queriesProvider.getQuery(DBConstants.QUERY_GET_REQUESTS_AFTER)
+                    .replace("$requestsTable", requestsTableName);
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setInt(1, lastRequestId);
+            ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_REQUESTS_AFTER, statement);
             while (resultSet.next()) {
                 requests.add(requestFromResultSet(resultSet));
             }
@@ -410,7 +587,7 @@ public class DBProxy {
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setString(1, request.getStatus().toString());
             statement.setInt(2, request.getId());
-            executeUpdate(statement, false);
+            executeUpdate(DBConstants.QUERY_UPDATE_REQUEST_STATUS, statement, false);
             if (logger.isDebugEnabled()) {
                 logger.debug("Updated the status of request to " + request.getAction() + " for entityId="
                         + request.getEntityId() + " to status=" + request.getStatus());
@@ -431,7 +608,7 @@ public class DBProxy {
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setInt(1, request.getEntityId());
             statement.setString(2, request.getAction().toString());
-            executeUpdate(statement, false);
+            executeUpdate(DBConstants.QUERY_CREATE_REQUEST, statement, false);
             if (logger.isDebugEnabled()) {
                 logger.debug("Request to " + request.getAction() + " for entityId="
                         + request.getEntityId() + " was stored to the DB");
@@ -462,7 +639,7 @@ public class DBProxy {
             statement.setString(1, context.getStudy());
             statement.setString(2, context.getSubject());
             statement.setString(3, context.getRun());
-            executeUpdate(statement, false);
+            executeUpdate(DBConstants.QUERY_CREATE_FLOW, statement, false);
             ResultSet results = statement.getGeneratedKeys();
             results.next();
             int flowId = results.getInt(1);
@@ -473,6 +650,134 @@ public class DBProxy {
         }
     }
 
+    /**
+     * Creates a flow for every context, all with the same tasks, using one batched insert for the flows and another
+     * one for their tasks. The flows are created in a single transaction (see {@link #openBulkConnection()}).
+     */
+    public List<Integer> createFlows(List<Context> contexts, List<Task> tasks, boolean start) throws DBProxyException {
+        if (contexts.isEmpty() || tasks.isEmpty()) {
+            throw new DBProxyException("System tried to add an empty list of flows or tasks to the database.");
+        }
+        String tasksTableName = getTableName(DBConstants.TASKS_TABLE_NAME);
+        String flowsTableName = getTableName(DBConstants.FLOWS_TABLE_NAME);
+        String status = getStatusString(start ? TaskStatus.NEW : TaskStatus.CREATED);
+        try (Connection bulkConnection = openBulkConnection()) {
+            try {
+                List<Integer> flowIds = new ArrayList<>(contexts.size());
+                String sql = queriesProvider.getQuery(DBConstants.QUERY_CREATE_FLOWS)
+                        .replace("$flowsTable", flowsTableName);
+                try (PreparedStatement statement =
+                             bulkConnection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    for (Context context : contexts) {
+                        statement.setString(1, context.getStudy());
+                        statement.setString(2, context.getSubject());
+                        statement.setString(3, context.getRun());
+                        statement.addBatch();
+                    }
+                    executeBatch(DBConstants.QUERY_CREATE_FLOWS, statement);
+                    try (ResultSet results = statement.getGeneratedKeys()) {
+                        while (results.next()) {
+                            flowIds.add(results.getInt(1));
+                        }
+                    }
+                }
+                if (flowIds.size() != contexts.size()) {
+                    throw new SQLException("Expected " + contexts.size() + " flow ids to be generated but received "
+                            + flowIds.size());
+                }
+                sql = queriesProvider.getQuery(DBConstants.QUERY_CREATE_FLOWS_TASKS)
+                        .replace("$tasksTable", tasksTableName);
+                try (PreparedStatement statement = bulkConnection.prepareStatement(sql)) {
+                    for (int i = 0; i < contexts.size(); i++) {
+                        Context context = contexts.get(i);
+                        for (Task task : tasks) {
+                            statement.setString(1, status);
+                            statement.setInt(2, flowIds.get(i));
+                            statement.setInt(3, task.getSerialNumber());
+                            statement.setInt(4, task.getUnit().getId());
+                            statement.setString(5, getParametersJsonString(task.getUnit()));
+                            statement.setString(6, context.getSubject());
+                            statement.setString(7, context.getRun());
+                            statement.setNull(8, Types.INTEGER);
+                            statement.setString(9, getPredecessorsString(task.getUnit()));
+                            statement.addBatch();
+                        }
+                    }
+                    executeBatch(DBConstants.QUERY_CREATE_FLOWS_TASKS, statement);
+                }
+                bulkConnection.commit();
+                logger.info("Created " + flowIds.size() + " flows (ids " + flowIds.get(0) + "-"
+                        + flowIds.get(flowIds.size() - 1) + ")" + (start ? " and started them" : ""));
+                return flowIds;
+            } catch (SQLException e) {
+                bulkConnection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to add flows to DB.", e);
+        }
+    }
+
+    /**
+     * Same as {@link #insertContextToTask(Task, List)} for many tasks at once: all the original tasks are deleted
+     * and all the replacements are inserted using batched statements, in a single transaction.
+     */
+    public void insertContextToTasks(Map<Task, List<Task>> replacements) throws DBProxyException {
+        if (replacements.isEmpty()) {
+            return;
+        }
+        String tasksTableName = getTableName(DBConstants.TASKS_TABLE_NAME);
+        try (Connection bulkConnection = openBulkConnection()) {
+            try {
+                String sql = queriesProvider.getQuery(DBConstants.QUERY_DELETE_TASK)
+                        .replace("$tasksTable", tasksTableName);
+                try (PreparedStatement statement = bulkConnection.prepareStatement(sql)) {
+                    for (Task originalTask : replacements.keySet()) {
+                        statement.setInt(1, originalTask.getId());
+                        statement.addBatch();
+                    }
+                    executeBatch(DBConstants.QUERY_DELETE_TASK, statement);
+                }
+                sql = queriesProvider.getQuery(DBConstants.QUERY_CREATE_FLOWS_TASKS)
+                        .replace("$tasksTable", tasksTableName);
+                int numReplacements = 0;
+                try (PreparedStatement statement = bulkConnection.prepareStatement(sql)) {
+                    for (Map.Entry<Task, List<Task>> entry : replacements.entrySet()) {
+                        for (Task task : entry.getValue()) {
+                            task.setStatus(TaskStatus.NEW);
+                            task.setFlowId(entry.getKey().getFlowId());
+                            Context context = task.getContext();
+                            statement.setString(1, getStatusString(task.getStatus()));
+                            statement.setInt(2, task.getFlowId());
+                            statement.setInt(3, task.getSerialNumber());
+                            statement.setInt(4, task.getUnit().getId());
+                            statement.setString(5, getParametersJsonString(task.getUnit()));
+                            statement.setString(6, context == null ? null : context.getSubject());
+                            statement.setString(7, context == null ? null : context.getRun());
+                            statement.setNull(8, Types.INTEGER);
+                            statement.setString(9, getPredecessorsString(task.getUnit()));
+                            statement.addBatch();
+                            numReplacements++;
+                        }
+                    }
+                    if (numReplacements > 0) {
+                        executeBatch(DBConstants.QUERY_CREATE_FLOWS_TASKS, statement);
+                    }
+                }
+                bulkConnection.commit();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Replaced " + replacements.size() + " tasks with context wildcards by "
+                            + numReplacements + " tasks");
+                }
+            } catch (SQLException e) {
+                bulkConnection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to add tasks to DB.", e);
+        }
+    }
+
     public void startFlow(int flowId) throws DBProxyException {
         connect();
         String tasksTableName = getTableName(DBConstants.TASKS_TABLE_NAME);
@@ -482,7 +787,7 @@ public class DBProxy {
             PreparedStatement statement =
                     connection.prepareStatement(sql);
             statement.setInt(1, flowId);
-            int affectedRows = executeUpdate(statement, false);
+            int affectedRows = executeUpdate(DBConstants.QUERY_START_FLOW, statement, false);
             if (affectedRows <= 0) {
                 throw new DBProxyException("Failed to start flow: there were no tasks in status 'CREATED' in flow=" + flowId);
             }
@@ -557,7 +862,7 @@ public class DBProxy {
             PreparedStatement statement =
                     connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
             statement.setInt(1, originalTask.getId());
-            executeUpdate(statement, false);
+            executeUpdate(DBConstants.QUERY_INSERT_CONTEXT_TO_TASKS, statement, false);
         } catch (SQLException e) {
             throw new DBProxyException("Failed to add tasks to DB.", e);
         }
@@ -587,6 +892,14 @@ public class DBProxy {
         return getTasks(DBConstants.QUERY_GET_ALL_TASKS, limit);
     }
 
+    public void streamTasks(int flowId, Consumer<Task> consumer) throws DBProxyException {
+        streamTasks(DBConstants.QUERY_GET_FLOW_TASKS, flowId, consumer, true);
+    }
+
+    public void streamAllTasks(int limit, Consumer<Task> consumer) throws DBProxyException {
+        streamTasks(DBConstants.QUERY_GET_ALL_TASKS, limit, consumer, true);
+    }
+
     public List<FlowData> getAllFlows(int limit) throws DBProxyException {
         connect();
         List<FlowData> flows = new ArrayList<>();
@@ -596,7 +909,7 @@ public class DBProxy {
                     .replace("$flowsTable", flowsTableName);
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setInt(1, limit);
-            ResultSet resultSet = executeQuery(statement);
+            ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_ALL_FLOWS, statement);
             while (resultSet.next()) {
                 flows.add(flowFromResultSet(resultSet));
             }
@@ -617,26 +930,218 @@ public class DBProxy {
                     .replace("$tasksTable", tableName);
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setInt(1, taskId);
-            executeUpdate(statement, false);
+            executeUpdate(DBConstants.QUERY_RESUME_TASK, statement, false);
         } catch (SQLException e) {
             throw new DBProxyException("Failed to resume task (taskId=" + taskId + ").", e);
         }
         updateFlowStatus(taskId);
     }
 
+    /**
+     * Saves the events using a batched insert on the shared connection. With rewriteBatchedStatements the batch is
+     * sent to the DB as a single insert statement, so either all the events are saved or none of them.
+     */
+    public void saveTaskEvents(List<TaskEvent> events) throws DBProxyException {
+        if (events.isEmpty()) {
+            return;
+        }
+        connect();
+        String tableName = getTableName(DBConstants.TASK_EVENTS_TABLE_NAME);
+        try {
+            String sql = queriesProvider.getQuery(DBConstants.QUERY_SAVE_TASK_EVENTS)
+                    .replace("$taskEventsTable", tableName);
+            PreparedStatement statement = connection.prepareStatement(sql);
+            for (TaskEvent event : events) {
+                statement.setInt(1, event.getTaskId());
+                statement.setString(2, event.getType().toString());
+                if (event.getStatus() == null) {
+                    statement.setNull(3, Types.VARCHAR);
+                } else {
+                    statement.setString(3, getStatusString(event.getStatus()));
+                }
+                statement.setTimestamp(4, new Timestamp(event.getTime()));
+                if (event.getMachineId() == null) {
+                    statement.setNull(5, Types.INTEGER);
+                } else {
+                    statement.setInt(5, event.getMachineId());
+                }
+                statement.addBatch();
+            }
+            executeBatch(DBConstants.QUERY_SAVE_TASK_EVENTS, statement);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Saved " + events.size() + " task events in DB");
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to save " + events.size() + " task events in DB", e);
+        }
+    }
+
+    public List<TaskEvent> getTaskTimeline(int taskId) throws DBProxyException {
+        connect();
+        List<TaskEvent> events = new ArrayList<>();
+        String tasksTableName = getTableName(DBConstants.TASKS_TABLE_NAME);
+        String taskEventsTableName = getTableName(DBConstants.TASK_EVENTS_TABLE_NAME);
+        try {
+            String sql = queriesProvider.getQuery(DBConstants.QUERY_GET_TASK_TIMELINE)
+                    .replace("$tasksTable", tasksTableName)
+                    .replace("$taskEventsTable", taskEventsTableName);
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setInt(1, taskId);
+            statement.setInt(2, taskId);
+            try (ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_TASK_TIMELINE, statement)) {
+                while (resultSet.next()) {
+                    events.add(taskEventFromResultSet(resultSet));
+                }
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to retrieve the timeline of task (taskId=" + taskId + ") from DB.", e);
+        }
+        return events;
+    }
+
+    /**
+     * Reads the events of the tasks that have ended since the given time (up to the limit, the tasks that ended last),
+     * ordered by task, and aggregates them while they are read (see {@link UnitTimeline.Aggregator}).
+     */
+    public List<UnitTimeline> getUnitTimelines(Timestamp since, int limit) throws DBProxyException {
+        connect();
+        UnitTimeline.Aggregator aggregator = new UnitTimeline.Aggregator();
+        String tasksTableName = getTableName(DBConstants.TASKS_TABLE_NAME);
+        String taskEventsTableName = getTableName(DBConstants.TASK_EVENTS_TABLE_NAME);
+        try {
+            String sql = queriesProvider.getQuery(DBConstants.QUERY_GET_ENDED_TASKS_EVENTS)
+                    .replace("$tasksTable", tasksTableName)
+                    .replace("$taskEventsTable", taskEventsTableName);
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setTimestamp(1, since);
+            statement.setInt(2, limit);
+            try (ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_ENDED_TASKS_EVENTS, statement)) {
+                while (resultSet.next()) {
+                    aggregator.add(resultSet.getInt(DBConstants.TASK_EVENTS_UNIT_ID), taskEventFromResultSet(resultSet));
+                }
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to retrieve task events from DB.", e);
+        }
+        return aggregator.getTimelines();
+    }
+
+    /**
+     * Takes the lease if it is free, has expired or is already held by the owner, and extends it. The update is a
+     * single statement, so of the servers that race for a lease only one takes it.
+     * @return true iff the owner holds the lease now.
+     */
+    public boolean acquireLease(String name, String owner, long millis) throws DBProxyException {
+        connect();
+        String leasesTableName = getTableName(DBConstants.LEASES_TABLE_NAME);
+        try {
+            String sql = queriesProvider.getQuery(DBConstants.QUERY_ACQUIRE_LEASE)
+                    .replace("$leasesTable", leasesTableName);
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setString(1, name);
+            statement.setString(2, owner);
+            statement.setLong(3, millis * 1000);
+            executeUpdate(DBConstants.QUERY_ACQUIRE_LEASE, statement, false);
+            sql = queriesProvider.getQuery(DBConstants.QUERY_GET_LEASE_OWNER)
+                    .replace("$leasesTable", leasesTableName);
+            statement = connection.prepareStatement(sql);
+            statement.setString(1, name);
+            try (ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_LEASE_OWNER, statement)) {
+                return resultSet.next() && owner.equals(resultSet.getString(DBConstants.LEASES_OWNER));
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to acquire lease " + name + " for " + owner, e);
+        }
+    }
+
+    /**
+     * Extends all the leases of the owner.
+     * @return the names of the leases the owner holds (those it has lost to other servers are not included).
+     */
+    public Set<String> renewLeases(String owner, long millis) throws DBProxyException {
+        connect();
+        String leasesTableName = getTableName(DBConstants.LEASES_TABLE_NAME);
+        Set<String> names = new HashSet<>();
+        try {
+            String sql = queriesProvider.getQuery(DBConstants.QUERY_RENEW_LEASES)
+                    .replace("$leasesTable", leasesTableName);
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setLong(1, millis * 1000);
+            statement.setString(2, owner);
+            executeUpdate(DBConstants.QUERY_RENEW_LEASES, statement, false);
+            sql = queriesProvider.getQuery(DBConstants.QUERY_GET_OWNED_LEASES)
+                    .replace("$leasesTable", leasesTableName);
+            statement = connection.prepareStatement(sql);
+            statement.setString(1, owner);
+            try (ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_OWNED_LEASES, statement)) {
+                while (resultSet.next()) {
+                    names.add(resultSet.getString(DBConstants.LEASES_NAME));
+                }
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to renew the leases of " + owner, e);
+        }
+        return names;
+    }
+
+    /**
+     * Releases the lease if it is held by the owner.
+     */
+    public void releaseLease(String name, String owner) throws DBProxyException {
+        connect();
+        String leasesTableName = getTableName(DBConstants.LEASES_TABLE_NAME);
+        try {
+            String sql = queriesProvider.getQuery(DBConstants.QUERY_RELEASE_LEASE)
+                    .replace("$leasesTable", leasesTableName);
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setString(1, name);
+            statement.setString(2, owner);
+            executeUpdate(DBConstants.QUERY_RELEASE_LEASE, statement, false);
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to release lease " + name + " of " + owner, e);
+        }
+    }
+
+    /**
+     * @return the leases whose names start with the given prefix, ordered by name.
+     */
+    public List<Lease> getLeases(String prefix) throws DBProxyException {
+        connect();
+        List<Lease> leases = new ArrayList<>();
+        String leasesTableName = getTableName(DBConstants.LEASES_TABLE_NAME);
+        try {
+            String sql = queriesProvider.getQuery(DBConstants.QUERY_GET_LEASES)
+                    .replace("$leasesTable", leasesTableName);
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setString(1, prefix);
+            try (ResultSet resultSet = executeQuery(DBConstants.QUERY_GET_LEASES, statement)) {
+                while (resultSet.next()) {
+                    leases.add(new Lease(resultSet.getString(DBConstants.LEASES_NAME),
+                            resultSet.getString(DBConstants.LEASES_OWNER),
+                            resultSet.getBoolean(DBConstants.LEASES_EXPIRED)));
+                }
+            }
+        } catch (SQLException e) {
+            throw new DBProxyException("Failed to retrieve the leases from DB.", e);
+        }
+        return leases;
+    }
+
     public Void clearAllDebugTables() throws DBProxyException {
         connect();
         String tasksTableName = getTableName(DBConstants.TASKS_TABLE_NAME, true);
         String flowsTableName = getTableName(DBConstants.FLOWS_TABLE_NAME, true);
         String unitsTableName = getTableName(DBConstants.UNITS_TABLE_NAME, true);
+        String taskEventsTableName = getTableName(DBConstants.TASK_EVENTS_TABLE_NAME, true);
         try {
             String sql = queriesProvider.getQuery(DBConstants.QUERY_CLEAR_TABLES)
+                    .replace("$taskEventsTable", taskEventsTableName)
                     .replace("$tasksTable", tasksTableName)
                     .replace("$flowsTable", flowsTableName)
                     .replace("$unitsTable", unitsTableName);
             PreparedStatement statement =
                     connection.prepareStatement(sql);
-            executeUpdate(statement, true);
+            executeUpdate(DBConstants.QUERY_CLEAR_TABLES, statement, true);
         } catch (SQLException e) {
             throw new DBProxyException("Failed to clear debug tables.", e);
         }
@@ -648,29 +1153,70 @@ public class DBProxy {
     }
 
     private List<Task> getTasks(String queryName, int arg) throws DBProxyException {
-        connect();
         List<Task> tasks = new ArrayList<>();
+        streamTasks(queryName, arg, tasks::add, false);
+        return tasks;
+    }
+
+    /**
+     * Passes the tasks to the consumer one by one as the rows of the result set are read. The unit of each task is
+     * read once per query and cloned for every task.
+     * @param streaming true iff the rows should be streamed from the DB as they are read (on a connection of their
+     *                  own), so neither the driver nor the caller holds all of them in memory. Otherwise the driver
+     *                  reads the whole result set on the shared connection before the first task is passed.
+     */
+    private void streamTasks(String queryName, int arg, Consumer<Task> consumer, boolean streaming)
+            throws DBProxyException {
+        connect();
+        Map<Integer, Unit> units = new HashMap<>();
+        AtomicBoolean machinesReread = new AtomicBoolean();
         String tasksTableName = getTableName(DBConstants.TASKS_TABLE_NAME);
         String flowsTableName = getTableName(DBConstants.FLOWS_TABLE_NAME);
         try {
             String sql = queriesProvider.getQuery(queryName)
                     .replace("$flowsTable", flowsTableName)
                     .replace("$tasksTable", tasksTableName);
-            PreparedStatement statement = connection.prepareStatement(sql);
-            if (queryName.equals(DBConstants.QUERY_GET_FLOW_TASKS) ||
-                    queryName.equals(DBConstants.QUERY_GET_TASK_BY_ID)) {
-                statement.setInt(1, arg);
-            } else if (queryName.equals(DBConstants.QUERY_GET_ALL_TASKS)) {
-                statement.setInt(1, arg);
-            }
-            ResultSet resultSet = executeQuery(statement);
-            while (resultSet.next()) {
-                tasks.add(taskFromResultSet(resultSet));
+            try (Connection streamingConnection = streaming ? openStreamingConnection() : null;
+                 PreparedStatement statement = streaming ? streamingConnection.prepareStatement(sql,
+                         ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY) : connection.prepareStatement(sql)) {
+                if (streaming) {
+                    statement.setFetchSize(Integer.MIN_VALUE); // tells the MySQL driver to stream the rows one by one
+                }
+                if (queryName.equals(DBConstants.QUERY_GET_FLOW_TASKS) ||
+                        queryName.equals(DBConstants.QUERY_GET_TASK_BY_ID)) {
+                    statement.setInt(1, arg);
+                } else if (queryName.equals(DBConstants.QUERY_GET_ALL_TASKS)) {
+                    statement.setInt(1, arg);
+                }
+                try (ResultSet resultSet = executeQuery(queryName, statement)) {
+                    while (resultSet.next()) {
+                        consumer.accept(taskFromResultSet(resultSet, units, machinesReread));
+                    }
+                }
             }
-        } catch (SQLException | JsonParseException | UnitFetcherException e) {
+        } catch (SQLException | JsonParseException | UnitFetcherException | CloneNotSupportedException e) {
             throw new DBProxyException("Failed to retrieve tasks from DB.", e);
         }
-        return tasks;
+    }
+
+    /**
+     * @param machinesReread tells whether the machines were read again during the current query - they are read again
+     *                       at most once per query, so the tasks of a machine that was removed do not read them for
+     *                       every row.
+     * @return the machine (a machine that has registered itself since the machines were last read is read now), or
+     * null if there is no machine with this id.
+     */
+    private Machine getMachine(int machineId, AtomicBoolean machinesReread) throws SQLException {
+        Machine machine = machines.get(machineId);
+        if (machine == null && machinesReread.compareAndSet(false, true)) {
+            try {
+                getAllMachines(true);
+            } catch (DBProxyException e) {
+                throw new SQLException(e.getMessage(), e);
+            }
+            machine = machines.get(machineId);
+        }
+        return machine;
     }
 
     private Machine machineFromResultSet(ResultSet resultSet) throws SQLException {
@@ -680,10 +1226,26 @@ public class DBProxy {
         machine.setDescription(resultSet.getString(DBConstants.MACHINES_DESCRIPTION));
         machine.setActive(resultSet.getBoolean(DBConstants.MACHINES_ACTIVE));
         machine.setConnected(resultSet.getBoolean(DBConstants.MACHINES_CONNECTED));
+        machine.setDraining(resultSet.getBoolean(DBConstants.MACHINES_DRAINING));
+        machine.setDrained(resultSet.getBoolean(DBConstants.MACHINES_DRAINED));
         machine.setLastHeartbeat(resultSet.getTimestamp(DBConstants.MACHINES_LAST_HEARTBEAT));
+        machine.setCores(resultSet.getInt(DBConstants.MACHINES_CORES));
+        machine.setMemoryMb(resultSet.getInt(DBConstants.MACHINES_MEMORY_MB));
+        machine.setSlots(resultSet.getInt(DBConstants.MACHINES_SLOTS));
         return machine;
     }
 
+    private TaskEvent taskEventFromResultSet(ResultSet resultSet) throws SQLException {
+        int machineId = resultSet.getInt(DBConstants.TASK_EVENTS_MACHINE_ID);
+        return new TaskEvent(
+                resultSet.getInt(DBConstants.TASK_EVENTS_TASK_ID),
+                TaskEvent.Type.fromString(resultSet.getString(DBConstants.TASK_EVENTS_EVENT)),
+                TaskStatus.fromString(resultSet.getString(DBConstants.TASK_EVENTS_STATUS)),
+                resultSet.getTimestamp(DBConstants.TASK_EVENTS_TIME).getTime(),
+                machineId == 0 ? null : machineId
+        );
+    }
+
     private ExecutionRequest requestFromResultSet(ResultSet resultSet) throws SQLException {
         ExecutionRequest request = new ExecutionRequest();
         request.setId(resultSet.getInt(DBConstants.REQUESTS_ID));
@@ -697,9 +1259,17 @@ public class DBProxy {
         return request;
     }
 
-    private Task taskFromResultSet(ResultSet resultSet) throws SQLException, UnitFetcherException {
-        Unit unit = unitFetcher.getUnit(resultSet.getInt(DBConstants.TASKS_UNIT_ID));
+    private Task taskFromResultSet(ResultSet resultSet, Map<Integer, Unit> units, AtomicBoolean machinesReread)
+            throws SQLException, UnitFetcherException, CloneNotSupportedException {
+        int unitId = resultSet.getInt(DBConstants.TASKS_UNIT_ID);
+        Unit unit = units.get(unitId);
+        if (unit == null) {
+            unit = unitFetcher.getUnit(unitId);
+            units.put(unitId, unit);
+        }
+        unit = (Unit) unit.clone();
         unit.setParameterValues(resultSet.getString(DBConstants.TASKS_UNIT_PARAMS));
+        unit.setPredecessors(parsePredecessors(resultSet.getString(DBConstants.TASKS_PREDECESSORS)));
         int machineId = resultSet.getInt(DBConstants.TASKS_MACHINE_ID);
         Context context = new Context(
                 resultSet.getString(DBConstants.TASKS_STUDY),
@@ -712,21 +1282,23 @@ public class DBProxy {
                 resultSet.getInt(DBConstants.TASKS_FLOW_ID),
                 resultSet.getInt(DBConstants.TASKS_SERIAL_NUM),
                 unit,
-                machineId == 0 ? null : machines.get(machineId),
+                machineId == 0 ? null : getMachine(machineId, machinesReread),
                 context,
                 TaskStatus.valueOf(resultSet.getString(DBConstants.TASKS_TASK_STATUS).toUpperCase())
         );
     }
 
     private String getUnitsAsValueList(String analysisName, List<Unit> units) {
-        // (analysis_name, serial, external_unit_id)
+        // (analysis_name, serial, external_unit_id, predecessors)
         List<String> valuesList = new ArrayList<>();
         int serial = 0;
         for (Unit unit : units) {
+            String predecessors = getPredecessorsString(unit);
             valuesList.add(Utils.concatStrings(
                     "('", analysisName, "', ",
                     Integer.toString(serial++), ", ",
-                    Integer.toString(unit.getId()) , ")"
+                    Integer.toString(unit.getId()) , ", ",
+                    (predecessors == null ? "NULL" : "'" + predecessors + "'"), ")"
             ));
         }
         return StringUtils.join(valuesList, ',');
@@ -759,7 +1331,7 @@ public class DBProxy {
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setString(1, status.toString());
             statement.setInt(2, flowId);
-            executeUpdate(statement, false);
+            executeUpdate(DBConstants.QUERY_UPDATE_FLOW_STATUS, statement, false);
         } catch (SQLException e) {
             String errorMsg = "Failed to update flow's status in DB (flowId="
                     + flowId + ", newStatus=" + status + ")";
@@ -772,7 +1344,7 @@ public class DBProxy {
      * @param flowTasks composing flow for which we compute the status.
      * @return FlowStatus for this flow.
      */
-    private FlowStatus computeFlowStatus(List<Task> flowTasks) {
+    public static FlowStatus computeFlowStatus(List<Task> flowTasks) {
         FlowStatus flowStatus = FlowStatus.NEW;
         int completedCount = 0;
         boolean cancelled = false;
@@ -857,11 +1429,12 @@ public class DBProxy {
     }
 
     private String getTasksAsValueList(List<Task> tasks, boolean useTaskSFlowId) {
-        // (status, flow_id, serial_in_flow, unit_id, unit_params, subject, run, machine_id)
+        // (status, flow_id, serial_in_flow, unit_id, unit_params, subject, run, machine_id, predecessors)
         List<String> valuesList = new ArrayList<>();
         for (Task task : tasks) {
             Unit unit = task.getUnit();
             Machine machine = task.getMachine();
+            String predecessors = unit == null ? null : getPredecessorsString(unit);
 
             // context
             String subject = "NULL";
@@ -880,12 +1453,33 @@ public class DBProxy {
                     ((unit == null)?"NULL":Integer.toString(unit.getId())), ", ",
                     ((unit == null)?"NULL": "'" + getParametersJsonString(unit) + "'"), ", ",
                     subject, ", ", run, ", ",
-                    ((machine == null)?"NULL": "'" + machine.getId() + "'"), ")"
+                    ((machine == null)?"NULL": "'" + machine.getId() + "'"), ", ",
+                    ((predecessors == null)?"NULL": "'" + predecessors + "'"), ")"
             ));
         }
         return StringUtils.join(valuesList, ',');
     }
 
+    /**
+     * @return the predecessors of the unit as stored in the DB - comma-separated serial numbers (an empty string if
+     * the unit depends on no other unit), or null if the unit depends on the unit right before it.
+     */
+    private static String getPredecessorsString(Unit unit) {
+        List<Integer> predecessors = unit.getPredecessors();
+        return predecessors == null ? null : StringUtils.join(predecessors, ',');
+    }
+
+    private static List<Integer> parsePredecessors(String predecessors) {
+        if (predecessors == null) {
+            return null;
+        }
+        List<Integer> serials = new ArrayList<>();
+        for (String serial : StringUtils.split(predecessors, ',')) {
+            serials.add(Integer.parseInt(serial.trim()));
+        }
+        return serials;
+    }
+
     private String getStatusString(TaskStatus status) {
         return status.toString(); // StringUtils.capitalize(status.toString().toLowerCase());
     }
@@ -915,7 +1509,7 @@ public class DBProxy {
         } else {
             url = "jdbc:mysql://" + dbProperties.getHost() + ":" + dbProperties.getPort() + "/" + dbProperties.getSchema();
         }
-        url += "?allowMultiQueries=true";
+        url += "?allowMultiQueries=true&rewriteBatchedStatements=true";
         return url;
     }
 
@@ -939,16 +1533,75 @@ public class DBProxy {
         return portNumber;
     }
 
-    private ResultSet executeQuery(PreparedStatement statement) throws SQLException {
-        return statement.executeQuery();
+    /**
+     * Opens a connection of its own (in a transaction) for bulk updates, since the shared connection is used
+     * concurrently by other threads and must remain in auto-commit mode. The caller is responsible to close it.
+     */
+    private Connection openBulkConnection() throws DBProxyException, SQLException {
+        connect(); // establishes the SSH tunnel if needed
+        Connection bulkConnection = DriverManager.getConnection(getActualUrl(), getUser(), dbProperties.getPassword());
+        bulkConnection.setAutoCommit(false);
+        return bulkConnection;
+    }
+
+    /**
+     * Opens a connection of its own for a query whose rows are streamed, since a connection cannot run other
+     * statements (e.g., reading the machines again) until all the rows of a streaming result set are read. The caller
+     * is responsible to close it.
+     */
+    private Connection openStreamingConnection() throws DBProxyException, SQLException {
+        connect(); // establishes the SSH tunnel if needed
+        return DriverManager.getConnection(getActualUrl(), getUser(), dbProperties.getPassword());
+    }
+
+    private ResultSet executeQuery(String queryName, PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeQuery();
+        } catch (SQLException e) {
+            countError(queryName);
+            throw e;
+        } finally {
+            recordLatency(queryName, start);
+        }
     }
 
-    private int executeUpdate(PreparedStatement statement, boolean logIt) throws SQLException {
+    private int executeUpdate(String queryName, PreparedStatement statement, boolean logIt) throws SQLException {
         if (logIt && logger.isDebugEnabled()) {
             int startIndex = statement.toString().indexOf(':') + 2;
             logger.debug("Executing update: " + statement.toString().substring(startIndex));
         }
-        return statement.executeUpdate();
+        long start = System.nanoTime();
+        try {
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            countError(queryName);
+            throw e;
+        } finally {
+            recordLatency(queryName, start);
+        }
+    }
+
+    private int[] executeBatch(String queryName, PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeBatch();
+        } catch (SQLException e) {
+            countError(queryName);
+            throw e;
+        } finally {
+            recordLatency(queryName, start);
+        }
+    }
+
+    private static void recordLatency(String queryName, long startNanos) {
+        metrics.histogram(METRIC_QUERY_SECONDS, "Latency of the DB queries, by query name", METRIC_QUERY_LABEL,
+                queryName).recordSince(startNanos);
+    }
+
+    private static void countError(String queryName) {
+        metrics.counter(METRIC_QUERY_ERRORS, "DB queries that failed, by query name", METRIC_QUERY_LABEL,
+                queryName).increment();
     }
 
     private String getUser() {
@@ -0,0 +1,540 @@
+package ubongo.persistence.journal;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.*;
+import ubongo.common.datatypes.unit.Unit;
+import ubongo.persistence.Persistence;
+import ubongo.persistence.exceptions.PersistenceException;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * JournaledPersistence wraps another Persistence object and takes the DB out of the hot path of task dispatching.
+ * Updates to the transient statuses 'Pending' and 'Processing' are appended to a local {@link StatusJournal} and
+ * return immediately, while a background flusher writes them to the wrapped persistence in batches.
+ * Until a status is flushed, it is applied to the tasks returned by the read methods, so callers see the same
+ * state they would have seen had the update been synchronous. Any other update to tasks first drains the journal,
+ * so the order of updates to a task is always preserved. On start, records that were not flushed before the
+ * server went down are replayed to the wrapped persistence.
+ */
+public class JournaledPersistence implements Persistence {
+
+    private static Logger logger = LogManager.getLogger(JournaledPersistence.class);
+
+    private static final int DEFAULT_CAPACITY = 1 << 16; // records
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+
+    private final Persistence persistence;
+    private final String journalPath;
+    private final int capacity;
+    private final long flushIntervalMillis;
+
+    private final Object journalLock = new Object();
+    private final Object flushLock = new Object();
+    private StatusJournal journal;
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Statuses which were journaled but not flushed yet, by taskId. Only the last update of each task is kept,
+     * together with its sequence number so the flusher knows whether it was flushed or updated again meanwhile.
+     */
+    private final Map<Integer, JournaledStatus> unflushed = new HashMap<>();
+    private long sequence = 0;
+
+    /*
+     * The statuses of the latest flush, by taskId, and the number of writes to the tasks so far - the flushes and the
+     * updates that drain the journal first. A read that started before the latest flush wrote its statuses to the DB
+     * may have missed them, while the flush has already removed them from the unflushed statuses - so they are
+     * applied to it too, unless the tasks were written again since.
+     */
+    private Map<Integer, Task> lastFlushed = Collections.emptyMap();
+    private long writes = 0;
+    private long lastFlushWrite = -1;
+
+    public JournaledPersistence(Persistence persistence, String journalPath) {
+        this(persistence, journalPath, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public JournaledPersistence(Persistence persistence, String journalPath, int capacity, long flushIntervalMillis) {
+        this.persistence = persistence;
+        this.journalPath = journalPath;
+        this.capacity = capacity;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    @Override
+    public void start() throws PersistenceException {
+        persistence.start();
+        try {
+            journal = new StatusJournal(journalPath, capacity);
+        } catch (IOException e) {
+            throw new PersistenceException("Failed to open the status journal at " + journalPath, e);
+        }
+        replay();
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (PersistenceException e) {
+                logger.error("Failed to flush the status journal to the DB. Will retry in "
+                        + flushIntervalMillis + " ms", e);
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("Status journal started (" + journalPath + ")");
+    }
+
+    @Override
+    public void stop() throws PersistenceException {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // continue to stop
+            }
+        }
+        try {
+            if (journal != null) {
+                drain();
+            }
+        } finally {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close the status journal", e);
+                }
+                journal = null;
+            }
+            persistence.stop();
+        }
+    }
+
+    @Override
+    public void updateTaskStatus(Task task) throws PersistenceException {
+        if (isTransient(task.getStatus())) {
+            append(Collections.singletonList(task));
+        } else {
+            drain();
+            persistence.updateTaskStatus(task);
+        }
+    }
+
+    @Override
+    public void updateTasksStatus(Collection<Task> waitingTasks) throws PersistenceException {
+        if (waitingTasks.stream().allMatch(t -> isTransient(t.getStatus()))) {
+            append(waitingTasks);
+        } else {
+            drain();
+            persistence.updateTasksStatus(waitingTasks);
+        }
+    }
+
+    @Override
+    public List<Task> getNewTasks() throws PersistenceException {
+        return readThroughJournal(persistence::getNewTasks).stream()
+                .filter(t -> t.getStatus() == TaskStatus.NEW)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Task getTask(int taskId) throws PersistenceException {
+        List<Task> tasks = readThroughJournal(() -> {
+            Task task = persistence.getTask(taskId);
+            return task == null ? Collections.emptyList() : Collections.singletonList(task);
+        });
+        return tasks.isEmpty() ? null : tasks.get(0);
+    }
+
+    @Override
+    public List<Task> getTasks(int flowId) throws PersistenceException {
+        return readThroughJournal(() -> persistence.getTasks(flowId));
+    }
+
+    @Override
+    public List<Task> getAllTasks(int limit) throws PersistenceException {
+        return readThroughJournal(() -> persistence.getAllTasks(limit));
+    }
+
+    @Override
+    public void streamTasks(int flowId, Consumer<Task> consumer) throws PersistenceException {
+        persistence.streamTasks(flowId, task -> consumer.accept(applyJournal(task)));
+    }
+
+    @Override
+    public void streamAllTasks(int limit, Consumer<Task> consumer) throws PersistenceException {
+        persistence.streamAllTasks(limit, task -> consumer.accept(applyJournal(task)));
+    }
+
+    @Override
+    public List<Task> getProcessingTasks() throws PersistenceException {
+        drain();
+        return persistence.getProcessingTasks();
+    }
+
+    @Override
+    public List<Task> cancelFlow(int flowId) throws PersistenceException {
+        drain();
+        return persistence.cancelFlow(flowId);
+    }
+
+    @Override
+    public boolean cancelTask(Task task) throws PersistenceException {
+        drain();
+        return persistence.cancelTask(task);
+    }
+
+    @Override
+    public void resumeTask(int taskId) throws PersistenceException {
+        drain();
+        persistence.resumeTask(taskId);
+    }
+
+    @Override
+    public void insertContextToTask(Task originalTask, List<Task> replacements) throws PersistenceException {
+        drain();
+        persistence.insertContextToTask(originalTask, replacements);
+    }
+
+    @Override
+    public void insertContextToTasks(Map<Task, List<Task>> replacements) throws PersistenceException {
+        drain();
+        persistence.insertContextToTasks(replacements);
+    }
+
+    @Override
+    public void performCleanup() throws PersistenceException {
+        drain();
+        persistence.performCleanup();
+    }
+
+    @Override
+    public void createAnalysis(String analysisName, List<Unit> units) throws PersistenceException {
+        persistence.createAnalysis(analysisName, units);
+    }
+
+    @Override
+    public List<String> getAnalysisNames(int limit) throws PersistenceException {
+        return persistence.getAnalysisNames(limit);
+    }
+
+    @Override
+    public List<Unit> getAnalysis(String analysisName) throws PersistenceException {
+        return persistence.getAnalysis(analysisName);
+    }
+
+    @Override
+    public int createFlow(Context context, List<Task> tasks) throws PersistenceException {
+        return persistence.createFlow(context, tasks);
+    }
+
+    @Override
+    public List<Integer> createFlows(List<Context> contexts, List<Task> tasks, boolean start)
+            throws PersistenceException {
+        return persistence.createFlows(contexts, tasks, start);
+    }
+
+    @Override
+    public void startFlow(int flowId) throws PersistenceException {
+        persistence.startFlow(flowId);
+    }
+
+    @Override
+    public Unit getUnit(int unitId) throws PersistenceException {
+        return persistence.getUnit(unitId);
+    }
+
+    @Override
+    public Map<Integer, Unit> getAllUnits() throws PersistenceException {
+        return persistence.getAllUnits();
+    }
+
+    @Override
+    public List<FlowData> getAllFlows(int limit) throws PersistenceException {
+        return persistence.getAllFlows(limit);
+    }
+
+    @Override
+    public List<ExecutionRequest> getAllRequests(int limit) throws PersistenceException {
+        return persistence.getAllRequests(limit);
+    }
+
+    @Override
+    public int countRequests(Timestamp t) throws PersistenceException {
+        return persistence.countRequests(t);
+    }
+
+    @Override
+    public List<ExecutionRequest> getNewRequests() throws PersistenceException {
+        return persistence.getNewRequests();
+    }
+
+    @Override
+    public List<ExecutionRequest> getNewRequests(int lastRequestId) throws PersistenceException {
+        return persistence.getNewRequests(lastRequestId);
+    }
+
+    @Override
+    public void updateRequestStatus(ExecutionRequest request) throws PersistenceException {
+        persistence.updateRequestStatus(request);
+    }
+
+    @Override
+    public void saveRequest(ExecutionRequest request) throws PersistenceException {
+        persistence.saveRequest(request);
+    }
+
+    @Override
+    public void saveMachines(List<Machine> machines) throws PersistenceException {
+        persistence.saveMachines(machines);
+    }
+
+    @Override
+    public List<Machine> getAllMachines(boolean includeServer) throws PersistenceException {
+        return persistence.getAllMachines(includeServer);
+    }
+
+    @Override
+    public void updateMachine(Machine machine) throws PersistenceException {
+        persistence.updateMachine(machine);
+    }
+
+    @Override
+    public void changeMachineActivityStatus(int machineId, boolean activate) throws PersistenceException {
+        persistence.changeMachineActivityStatus(machineId, activate);
+    }
+
+    @Override
+    public int registerMachine(Machine machine) throws PersistenceException {
+        return persistence.registerMachine(machine);
+    }
+
+    @Override
+    public void removeMachine(int machineId) throws PersistenceException {
+        persistence.removeMachine(machineId);
+    }
+
+    @Override
+    public void changeMachineDrainState(int machineId, boolean draining, boolean drained)
+            throws PersistenceException {
+        persistence.changeMachineDrainState(machineId, draining, drained);
+    }
+
+    @Override
+    public boolean acquireLease(String name, String owner, long millis) throws PersistenceException {
+        return persistence.acquireLease(name, owner, millis);
+    }
+
+    @Override
+    public Set<String> renewLeases(String owner, long millis) throws PersistenceException {
+        return persistence.renewLeases(owner, millis);
+    }
+
+    @Override
+    public void releaseLease(String name, String owner) throws PersistenceException {
+        persistence.releaseLease(name, owner);
+    }
+
+    @Override
+    public List<Lease> getLeases(String prefix) throws PersistenceException {
+        return persistence.getLeases(prefix);
+    }
+
+    @Override
+    public void saveTaskEvents(List<TaskEvent> events) throws PersistenceException {
+        persistence.saveTaskEvents(events);
+    }
+
+    @Override
+    public List<TaskEvent> getTaskTimeline(int taskId) throws PersistenceException {
+        return persistence.getTaskTimeline(taskId);
+    }
+
+    @Override
+    public List<UnitTimeline> getUnitTimelines(Timestamp since, int limit) throws PersistenceException {
+        return persistence.getUnitTimelines(since, limit);
+    }
+
+    /**
+     * Writes all journaled statuses to the wrapped persistence and blocks until they are written. The statuses of the
+     * latest flush are no longer applied to the reads that are running, since the caller may write the tasks next.
+     * @throws PersistenceException if the statuses could not be written.
+     */
+    public void drain() throws PersistenceException {
+        while (flush());
+        synchronized (journalLock) {
+            writes++;
+        }
+    }
+
+    private static boolean isTransient(TaskStatus status) {
+        return status == TaskStatus.PENDING || status == TaskStatus.PROCESSING;
+    }
+
+    private void append(Collection<Task> tasks) throws PersistenceException {
+        for (Task task : tasks) {
+            // copy the fields we need, since the caller may keep changing the task object
+            Task copy = new Task(task.getId(), task.getFlowId(), task.getSerialNumber(), task.getUnit(),
+                    task.getMachine(), task.getContext(), task.getStatus());
+            while (true) {
+                synchronized (journalLock) {
+                    if (journal == null) {
+                        throw new PersistenceException("Status journal is not open");
+                    }
+                    if (journal.append(copy)) {
+                        JournaledStatus previous = unflushed.get(copy.getId());
+                        if (previous != null) {
+                            copy.setStatus(previous.task.getStatus().resolveUpdate(copy.getStatus()));
+                        }
+                        unflushed.put(copy.getId(), new JournaledStatus(copy, ++sequence));
+                        break;
+                    }
+                }
+                logger.warn("Status journal is full - waiting for it to be flushed to the DB");
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Writes the statuses that were journaled so far to the wrapped persistence in one batch.
+     * @return true iff there were statuses to write.
+     * @throws PersistenceException if the batch update failed. In this case the statuses remain in the journal.
+     */
+    private boolean flush() throws PersistenceException {
+        synchronized (flushLock) {
+            int mark;
+            long lastSequence;
+            List<Task> batch;
+            synchronized (journalLock) {
+                if (journal == null || !journal.hasUnflushed()) {
+                    return false;
+                }
+                journal.force();
+                mark = journal.getWriteOffset();
+                lastSequence = sequence;
+                batch = unflushed.values().stream().map(s -> s.task).collect(Collectors.toList());
+            }
+            persistence.updateTasksStatus(batch);
+            synchronized (journalLock) {
+                journal.markFlushed(mark);
+                unflushed.values().removeIf(s -> s.sequence <= lastSequence);
+                lastFlushed = batch.stream().collect(Collectors.toMap(Task::getId, t -> t));
+                lastFlushWrite = ++writes;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Flushed " + batch.size() + " task statuses from the status journal to the DB");
+            }
+            return true;
+        }
+    }
+
+    private void replay() throws PersistenceException {
+        List<Task> records = journal.readUnflushed();
+        if (records.isEmpty()) {
+            return;
+        }
+        Map<Integer, Task> lastStatuses = new LinkedHashMap<>();
+        for (Task record : records) {
+            Task previous = lastStatuses.get(record.getId());
+            if (previous != null) {
+                record.setStatus(previous.getStatus().resolveUpdate(record.getStatus()));
+            }
+            lastStatuses.put(record.getId(), record);
+        }
+        logger.info("Replaying " + lastStatuses.size() + " task statuses from the status journal");
+        persistence.updateTasksStatus(lastStatuses.values());
+        journal.markFlushed(journal.getWriteOffset());
+    }
+
+    /**
+     * Reads tasks from the wrapped persistence and applies the journaled statuses to them, without waiting for a
+     * flush that writes to the DB meanwhile. A read that spans more than the latest flush (e.g., it took longer than
+     * a flush interval, or the journal was drained meanwhile) may have missed statuses that are no longer journaled,
+     * so it is read again, holding the flushLock this time.
+     */
+    private List<Task> readThroughJournal(Read read) throws PersistenceException {
+        long writesBefore;
+        synchronized (journalLock) {
+            writesBefore = writes;
+        }
+        List<Task> tasks = read.read();
+        synchronized (journalLock) {
+            if (writes == writesBefore) {
+                return applyJournal(tasks, false);
+            }
+            if (writes == writesBefore + 1 && lastFlushWrite == writes) {
+                return applyJournal(tasks, true);
+            }
+        }
+        synchronized (flushLock) {
+            return applyJournal(read.read(), false);
+        }
+    }
+
+    private List<Task> applyJournal(List<Task> tasks, boolean flushedSinceRead) {
+        synchronized (journalLock) {
+            if (unflushed.isEmpty() && !flushedSinceRead) {
+                return tasks;
+            }
+            for (Task task : tasks) {
+                if (flushedSinceRead) {
+                    applyStatus(task, lastFlushed.get(task.getId()));
+                }
+                applyJournal(task);
+            }
+        }
+        return tasks;
+    }
+
+    /*
+     * The streaming reads apply the journaled statuses to every task as it is read, without the lastFlushed ones, so
+     * a task that is read just before a flush writes its status and applied just after may miss that status.
+     */
+    private Task applyJournal(Task task) {
+        synchronized (journalLock) {
+            JournaledStatus journaled = unflushed.get(task.getId());
+            if (journaled != null) {
+                applyStatus(task, journaled.task);
+            }
+        }
+        return task;
+    }
+
+    private static void applyStatus(Task task, Task journaled) {
+        if (journaled == null) {
+            return;
+        }
+        TaskStatus status = task.getStatus().resolveUpdate(journaled.getStatus());
+        if (status != task.getStatus()) {
+            task.setStatus(status);
+            if (journaled.getMachine() != null) {
+                task.setMachine(journaled.getMachine());
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Read {
+        List<Task> read() throws PersistenceException;
+    }
+
+    private static final class JournaledStatus {
+
+        private final Task task;
+        private final long sequence;
+
+        JournaledStatus(Task task, long sequence) {
+            this.task = task;
+            this.sequence = sequence;
+        }
+    }
+}
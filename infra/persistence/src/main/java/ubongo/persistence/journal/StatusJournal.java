@@ -0,0 +1,197 @@
+package ubongo.persistence.journal;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StatusJournal is a local append-only log of task status transitions, backed by a memory-mapped file.
+ * Appending a record is a few memory writes, so it costs microseconds, and since the pages belong to the file
+ * the record survives a crash of the process. Records are kept until they are marked as flushed
+ * {@link #markFlushed(int)}, namely until they were written to the DB; whatever was not flushed when the process
+ * went down is returned by {@link #readUnflushed()} when the journal is opened again.
+ * Each record is written before its commit byte, so a record that was only partially written is never replayed.
+ * The status of a record is stored by a code of its own (see {@link #STATUS_CODES}), rather than by its position in
+ * {@link TaskStatus}, so a journal that was written by an older build replays the same statuses.
+ * This class is not thread-safe - the caller is expected to synchronize access to it.
+ */
+public class StatusJournal implements Closeable {
+
+    private static final int MAGIC = 0x55424a31;
+    private static final int HEADER_SIZE = 16; // magic (4 bytes), record size (4 bytes), flushed offset (8 bytes)
+    private static final int FLUSHED_OFFSET_POSITION = 8;
+    private static final int RECORD_SIZE = 24;
+    private static final byte COMMITTED = 1;
+    private static final byte EMPTY = 0;
+
+    private static Logger logger = LogManager.getLogger(StatusJournal.class);
+
+    /* the codes of the statuses in the records - never change a code, only add new ones */
+    private static final Map<TaskStatus, Byte> STATUS_CODES = new EnumMap<>(TaskStatus.class);
+    static {
+        STATUS_CODES.put(TaskStatus.CREATED, (byte) 0);
+        STATUS_CODES.put(TaskStatus.NEW, (byte) 1);
+        STATUS_CODES.put(TaskStatus.PENDING, (byte) 2);
+        STATUS_CODES.put(TaskStatus.PROCESSING, (byte) 3);
+        STATUS_CODES.put(TaskStatus.COMPLETED, (byte) 4);
+        STATUS_CODES.put(TaskStatus.FAILED, (byte) 5);
+        STATUS_CODES.put(TaskStatus.CANCELED, (byte) 6);
+        STATUS_CODES.put(TaskStatus.STOPPED, (byte) 7);
+        STATUS_CODES.put(TaskStatus.STOPPED_FAILURE, (byte) 8);
+        STATUS_CODES.put(TaskStatus.ON_HOLD, (byte) 9);
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private int writeOffset;
+    private int flushedOffset;
+
+    /**
+     * Opens the journal file, or creates it if it does not exist.
+     * @param path of the journal file.
+     * @param capacity is the number of records the journal can hold before it must be flushed. If the file already
+     *                 exists and is larger, its size is kept.
+     * @throws IOException if the file could not be opened or mapped to memory.
+     */
+    public StatusJournal(String path, int capacity) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        size = (int) Math.max(file.length(), HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != RECORD_SIZE) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, RECORD_SIZE);
+            flushedOffset = HEADER_SIZE;
+            writeOffset = HEADER_SIZE;
+            clearRecords(HEADER_SIZE, size);
+            buffer.putLong(FLUSHED_OFFSET_POSITION, flushedOffset);
+        } else {
+            flushedOffset = (int) buffer.getLong(FLUSHED_OFFSET_POSITION);
+            writeOffset = flushedOffset;
+            while (writeOffset + RECORD_SIZE <= size && buffer.get(writeOffset) == COMMITTED) {
+                writeOffset += RECORD_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Appends the current status of the task (and its machine) to the journal.
+     * @param task whose status is recorded.
+     * @return false iff there is no room left in the journal - in this case, the caller should flush the
+     * journal and then try again.
+     * @throws IllegalArgumentException if the status of the task has no code in the journal.
+     */
+    public boolean append(Task task) {
+        Byte statusCode = STATUS_CODES.get(task.getStatus());
+        if (statusCode == null) {
+            throw new IllegalArgumentException("Status " + task.getStatus() + " has no code in the status journal");
+        }
+        if (writeOffset + RECORD_SIZE > size) {
+            return false;
+        }
+        Machine machine = task.getMachine();
+        buffer.put(writeOffset + 1, statusCode);
+        buffer.putInt(writeOffset + 4, task.getId());
+        buffer.putInt(writeOffset + 8, task.getFlowId());
+        buffer.putInt(writeOffset + 12, machine == null ? -1 : machine.getId());
+        buffer.putLong(writeOffset + 16, System.currentTimeMillis());
+        buffer.put(writeOffset, COMMITTED);
+        writeOffset += RECORD_SIZE;
+        return true;
+    }
+
+    /**
+     * @return all the records that were not flushed yet, in order of appearance. Each record is represented by a
+     * task object holding only the task id, flow id, status and machine id. The records whose status code is
+     * unknown (i.e., corrupt records) are skipped.
+     */
+    public List<Task> readUnflushed() {
+        Map<Byte, TaskStatus> statuses = new HashMap<>();
+        STATUS_CODES.forEach((status, code) -> statuses.put(code, status));
+        List<Task> tasks = new ArrayList<>();
+        for (int offset = flushedOffset; offset < writeOffset; offset += RECORD_SIZE) {
+            TaskStatus status = statuses.get(buffer.get(offset + 1));
+            if (status == null) {
+                logger.warn("Skipping a record with an unknown status code (" + buffer.get(offset + 1)
+                        + ") at offset " + offset + " of the status journal");
+                continue;
+            }
+            Task task = new Task();
+            task.setStatus(status);
+            task.setId(buffer.getInt(offset + 4));
+            task.setFlowId(buffer.getInt(offset + 8));
+            int machineId = buffer.getInt(offset + 12);
+            if (machineId >= 0) {
+                Machine machine = new Machine();
+                machine.setId(machineId);
+                task.setMachine(machine);
+            }
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    /**
+     * @return the offset right after the last record in the journal, to be used as a mark for
+     * {@link #markFlushed(int)}.
+     */
+    public int getWriteOffset() {
+        return writeOffset;
+    }
+
+    /**
+     * Marks all records up to the given offset as flushed. If no unflushed records remain, the journal is reset
+     * so its space can be reused.
+     * @param offset that was returned by {@link #getWriteOffset()} before the records were flushed.
+     */
+    public void markFlushed(int offset) {
+        if (offset >= writeOffset) {
+            // clear the commit bytes before moving the flushed offset back, so a crash cannot cause old replays
+            clearRecords(HEADER_SIZE, writeOffset);
+            flushedOffset = HEADER_SIZE;
+            writeOffset = HEADER_SIZE;
+        } else {
+            flushedOffset = offset;
+        }
+        buffer.putLong(FLUSHED_OFFSET_POSITION, flushedOffset);
+    }
+
+    public boolean hasUnflushed() {
+        return writeOffset > flushedOffset;
+    }
+
+    /**
+     * Forces the journal to the storage device, so the records also survive a crash of the operating system.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+        file.close();
+    }
+
+    private void clearRecords(int from, int to) {
+        for (int offset = from; offset + RECORD_SIZE <= to; offset += RECORD_SIZE) {
+            buffer.put(offset, EMPTY);
+        }
+    }
+}
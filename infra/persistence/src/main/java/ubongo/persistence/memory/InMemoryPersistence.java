@@ -0,0 +1,1249 @@
+package ubongo.persistence.memory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.*;
+import ubongo.common.datatypes.unit.Unit;
+import ubongo.common.datatypes.unit.UnitParameter;
+import ubongo.persistence.Persistence;
+import ubongo.persistence.UnitFetcher;
+import ubongo.persistence.db.DBConstants;
+import ubongo.persistence.db.DBProxy;
+import ubongo.persistence.exceptions.PersistenceException;
+
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * This class implements the Persistence API without a DB: flows, tasks, analyses, requests and machines are kept in
+ * the memory of the process. It is meant for the tools that run all the components in one JVM - the simulator and the
+ * load tests of the server (the {@link ubongo.persistence.PersistenceFactory} refuses it for the components that run
+ * in processes of their own).
+ * The status transitions follow the same rules as {@link DBProxy}: a task in a final status is never updated, a task
+ * may not change from Processing to Pending, and the status of a flow is recomputed (using
+ * {@link DBProxy#computeFlowStatus(List)}) whenever the status of one of its tasks is updated.
+ * Tasks are stored as rows (unit id, parameter values, context and status), just like in the DB, so the returned
+ * tasks are always new objects and changing them does not change the stored state.
+ * Reads are executed concurrently and every write is atomic (e.g., a flow is created with all its tasks or not at
+ * all). Note that the state is not shared between processes, and neither are the leases - several servers of a
+ * cluster (see {@link #acquireLease(String, String, long)}) only share them if they run in the same JVM.
+ */
+public class InMemoryPersistence implements Persistence {
+
+    private static Logger logger = LogManager.getLogger(InMemoryPersistence.class);
+
+    private static final long REQUESTS_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(21);
+    private static final long TASK_EVENTS_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(21);
+
+    private final UnitFetcher unitFetcher;
+    private final Map<Integer, Machine> configuredMachines = new HashMap<>();
+
+    /* units by id - the definition of the unit of every task is read once and cloned for every task */
+    private final Map<Integer, Unit> units = new ConcurrentHashMap<>();
+
+    private static final Comparator<TaskEvent> EVENTS_ORDER = Comparator.comparingLong(TaskEvent::getTime);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final State state = new State();
+
+    /* the leases of the servers by name (guarded by itself) */
+    private final Map<String, LeaseRecord> leases = new TreeMap<>();
+
+    /**
+     * @param unitSettingsDirPath path to the units directory.
+     * @param machines to use for tasks that were assigned to a machine (may be null, in which case the saved machines
+     *                 are used).
+     */
+    public InMemoryPersistence(String unitSettingsDirPath, List<Machine> machines) {
+        unitFetcher = new UnitFetcher(unitSettingsDirPath);
+        if (machines != null) {
+            for (Machine machine : machines) {
+                configuredMachines.put(machine.getId(), machine);
+            }
+        }
+    }
+
+    @Override
+    public void start() throws PersistenceException {
+        // nothing to connect to
+    }
+
+    @Override
+    public void stop() throws PersistenceException {
+        // nothing to disconnect from - the state is gone with the process
+    }
+
+    @Override
+    public void createAnalysis(String analysisName, List<Unit> analysisUnits) throws PersistenceException {
+        if (analysisUnits == null || analysisUnits.isEmpty()) {
+            String errMsg = "System tried to add an empty list of units to the analysis " + analysisName;
+            logger.error(errMsg);
+            throw new PersistenceException(errMsg);
+        }
+        List<Integer> unitIds = new ArrayList<>(analysisUnits.size());
+        List<List<Integer>> predecessors = new ArrayList<>(analysisUnits.size());
+        for (Unit unit : analysisUnits) {
+            unitIds.add(unit.getId());
+            predecessors.add(copy(unit.getPredecessors()));
+        }
+        lock.writeLock().lock();
+        try {
+            if (state.analyses.containsKey(analysisName)) {
+                throw new PersistenceException("Failed to add analysis: an analysis named "
+                        + analysisName + " already exists");
+            }
+            state.analyses.put(analysisName, unitIds);
+            state.analysisPredecessors.put(analysisName, predecessors);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Saved analysis " + analysisName + " with " + analysisUnits.size() + " units");
+        }
+    }
+
+    @Override
+    public List<String> getAnalysisNames(int limit) throws PersistenceException {
+        lock.readLock().lock();
+        try {
+            List<String> analysisNames = new ArrayList<>(Math.min(limit, state.analyses.size()));
+            for (String analysisName : state.analyses.keySet()) {
+                if (analysisNames.size() >= limit) break;
+                analysisNames.add(analysisName);
+            }
+            return analysisNames;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Unit> getAnalysis(String analysisName) throws PersistenceException {
+        List<Integer> unitIds;
+        List<List<Integer>> predecessors;
+        lock.readLock().lock();
+        try {
+            unitIds = state.analyses.getOrDefault(analysisName, Collections.emptyList());
+            predecessors = state.analysisPredecessors.get(analysisName);
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Unit> analysisUnits = new ArrayList<>(unitIds.size());
+        for (int i = 0; i < unitIds.size(); i++) {
+            Unit unit = unitFetcher.getUnit(unitIds.get(i));
+            unit.setPredecessors(predecessors == null ? null : copy(predecessors.get(i)));
+            analysisUnits.add(unit);
+        }
+        return analysisUnits;
+    }
+
+    @Override
+    public int createFlow(Context context, List<Task> tasks) throws PersistenceException {
+        if (tasks.isEmpty()) {
+            throw new PersistenceException("System tried to add an empty list of tasks to the persistence.");
+        }
+        for (Task task : tasks) {
+            task.setStatus(TaskStatus.CREATED);
+            registerUnit(task.getUnit());
+        }
+        int flowId;
+        lock.writeLock().lock();
+        try {
+            flowId = addFlow(context);
+            for (Task task : tasks) {
+                Context taskContext = task.getContext();
+                addTask(new TaskRecord(TaskStatus.CREATED, flowId, task.getSerialNumber(), task.getUnit(),
+                        taskContext == null ? null : taskContext.getSubject(),
+                        taskContext == null ? null : taskContext.getRun(),
+                        task.getMachine() == null ? null : task.getMachine().getId()));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Created flow with id=" + flowId + " for study " + context.getStudy());
+        return flowId;
+    }
+
+    @Override
+    public List<Integer> createFlows(List<Context> contexts, List<Task> tasks, boolean start)
+            throws PersistenceException {
+        if (contexts.isEmpty() || tasks.isEmpty()) {
+            throw new PersistenceException("System tried to add an empty list of flows or tasks to the persistence.");
+        }
+        for (Task task : tasks) {
+            registerUnit(task.getUnit());
+        }
+        TaskStatus status = start ? TaskStatus.NEW : TaskStatus.CREATED;
+        List<Integer> flowIds = new ArrayList<>(contexts.size());
+        lock.writeLock().lock();
+        try {
+            for (Context context : contexts) {
+                int flowId = addFlow(context);
+                for (Task task : tasks) {
+                    addTask(new TaskRecord(status, flowId, task.getSerialNumber(), task.getUnit(),
+                            context.getSubject(), context.getRun(), null));
+                }
+                flowIds.add(flowId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Created " + flowIds.size() + " flows (ids " + flowIds.get(0) + "-"
+                + flowIds.get(flowIds.size() - 1) + ")" + (start ? " and started them" : ""));
+        return flowIds;
+    }
+
+    @Override
+    public void startFlow(int flowId) throws PersistenceException {
+        lock.writeLock().lock();
+        try {
+            int numStarted = 0;
+            for (TaskRecord task : state.getFlowTasks(flowId)) {
+                if (task.status == TaskStatus.CREATED) {
+                    state.setStatus(task, TaskStatus.NEW);
+                    numStarted++;
+                }
+            }
+            if (numStarted == 0) {
+                throw new PersistenceException(
+                        "Failed to start flow: there were no tasks in status 'CREATED' in flow=" + flowId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Started flow with id=" + flowId);
+    }
+
+    @Override
+    public List<Task> cancelFlow(int flowId) throws PersistenceException {
+        List<TaskRecord> processing = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            List<TaskRecord> flowTasks = state.getFlowTasks(flowId);
+            if (flowTasks.isEmpty()) {
+                throw new PersistenceException("Could not find tasks with flowId=" + flowId +
+                        ": no such flow in persistence.");
+            }
+            int numCanceled = 0;
+            for (TaskRecord task : flowTasks) {
+                if (task.status == TaskStatus.PROCESSING) {
+                    processing.add(state.read(task));
+                } else if (!task.status.isFinal()) {
+                    state.setStatus(task, TaskStatus.CANCELED);
+                    numCanceled++;
+                }
+            }
+            if (numCanceled > 0) {
+                updateFlowStatus(flowId);
+            }
+            if (logger.isInfoEnabled()) {
+                logger.info("Canceled flow with id=" + flowId + " with " + numCanceled +
+                        " tasks canceled (out of " + flowTasks.size() + " total)");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (logger.isInfoEnabled() && processing.size() > 0) {
+            logger.info(processing.size() + " tasks in flow with id=" + flowId +
+                    " remain to be stopped to complete flow cancellation");
+        }
+        return toTasks(processing);
+    }
+
+    @Override
+    public List<Task> getNewTasks() throws PersistenceException {
+        List<TaskRecord> records;
+        lock.readLock().lock();
+        try {
+            records = new ArrayList<>(state.newTaskIds.size());
+            for (int taskId : state.newTaskIds) {
+                records.add(state.read(state.tasks.get(taskId)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return toTasks(records);
+    }
+
+    @Override
+    public void updateTaskStatus(Task task) throws PersistenceException {
+        lock.writeLock().lock();
+        try {
+            TaskRecord taskRecord = state.getTask(task.getId());
+            if (taskRecord.status.isFinal()) {
+                logger.warn("Received request to update status of task (taskId=" + task.getId() + ") from "
+                        + taskRecord.status + " to " + task.getStatus()
+                        + ". Request denied because the task is already in a final status.");
+                return;
+            }
+            applyStatusUpdate(taskRecord, task);
+            updateFlowStatus(taskRecord.flowId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Updated status to " + task.getStatus() + " for task with id=" + task.getId());
+        }
+    }
+
+    @Override
+    public void updateTasksStatus(Collection<Task> waitingTasks) throws PersistenceException {
+        if (waitingTasks.isEmpty()) {
+            return;
+        }
+        Set<Integer> flowIds = new HashSet<>();
+        lock.writeLock().lock();
+        try {
+            for (Task task : waitingTasks) {
+                TaskRecord taskRecord = state.tasks.get(task.getId());
+                if (taskRecord != null && !taskRecord.status.isFinal()) {
+                    applyStatusUpdate(taskRecord, task);
+                    flowIds.add(taskRecord.flowId);
+                }
+            }
+            for (int flowId : flowIds) {
+                updateFlowStatus(flowId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Updated status for " + waitingTasks.size() + " tasks from " + flowIds.size() + " flows");
+        }
+    }
+
+    @Override
+    public Task getTask(int taskId) throws PersistenceException {
+        TaskRecord record;
+        lock.readLock().lock();
+        try {
+            record = state.read(state.getTask(taskId));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return toTask(record);
+    }
+
+    @Override
+    public List<Task> getTasks(int flowId) throws PersistenceException {
+        List<Task> tasks = new ArrayList<>();
+        streamTasks(flowId, tasks::add);
+        return tasks;
+    }
+
+    @Override
+    public boolean cancelTask(Task task) throws PersistenceException {
+        lock.writeLock().lock();
+        try {
+            TaskRecord taskRecord = state.getTask(task.getId());
+            if (taskRecord.status == TaskStatus.PROCESSING) {
+                logger.warn("Tried to cancel task (taskId=" + task.getId() + ") but the task is already executing.");
+                return false;
+            }
+            if (taskRecord.status.isFinal()) {
+                return true;
+            }
+            task.setStatus(TaskStatus.CANCELED);
+            state.setStatus(taskRecord, TaskStatus.CANCELED);
+            updateFlowStatus(taskRecord.flowId);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Unit getUnit(int unitId) throws PersistenceException {
+        return unitFetcher.getUnit(unitId);
+    }
+
+    @Override
+    public Map<Integer, Unit> getAllUnits() throws PersistenceException {
+        return unitFetcher.getAllUnits();
+    }
+
+    @Override
+    public List<Task> getAllTasks(int limit) throws PersistenceException {
+        List<Task> tasks = new ArrayList<>();
+        streamAllTasks(limit, tasks::add);
+        return tasks;
+    }
+
+    @Override
+    public void streamTasks(int flowId, Consumer<Task> consumer) throws PersistenceException {
+        List<TaskRecord> records = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (TaskRecord task : state.getFlowTasks(flowId)) {
+                records.add(state.read(task));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        records.sort(Comparator.comparingInt(task -> task.serial));
+        streamTasks(records, consumer);
+    }
+
+    @Override
+    public void streamAllTasks(int limit, Consumer<Task> consumer) throws PersistenceException {
+        List<TaskRecord> records = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (TaskRecord task : state.tasks.descendingMap().values()) {
+                if (records.size() >= limit) break;
+                records.add(state.read(task));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        streamTasks(records, consumer);
+    }
+
+    @Override
+    public List<FlowData> getAllFlows(int limit) throws PersistenceException {
+        lock.readLock().lock();
+        try {
+            List<FlowData> flows = new ArrayList<>(Math.min(limit, state.flows.size()));
+            for (FlowRecord flow : state.flows.descendingMap().values()) {
+                if (flows.size() >= limit) break;
+                flows.add(new FlowData(flow.id, new Context(flow.study, flow.subject, flow.run),
+                        new Date(flow.insertionTime), flow.status));
+            }
+            return flows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void resumeTask(int taskId) throws PersistenceException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Updating status to " + TaskStatus.NEW + " for taskId=" + taskId);
+        }
+        lock.writeLock().lock();
+        try {
+            TaskRecord taskRecord = state.getTask(taskId);
+            switch (taskRecord.status) {
+                case ON_HOLD:
+                case FAILED:
+                case STOPPED:
+                case CANCELED:
+                    state.setStatus(taskRecord, TaskStatus.NEW);
+                    break;
+                default:
+                    break;
+            }
+            updateFlowStatus(taskRecord.flowId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ExecutionRequest> getAllRequests(int limit) throws PersistenceException {
+        List<RequestRecord> records;
+        lock.readLock().lock();
+        try {
+            records = new ArrayList<>(state.requests.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+        // the same order as 'ORDER BY last_updated DESC' (requests that were never updated come last)
+        records.sort((r1, r2) -> {
+            long t1 = r1.lastUpdated == null ? Long.MIN_VALUE : r1.lastUpdated;
+            long t2 = r2.lastUpdated == null ? Long.MIN_VALUE : r2.lastUpdated;
+            return t1 != t2 ? Long.compare(t2, t1) : Integer.compare(r2.id, r1.id);
+        });
+        List<ExecutionRequest> requests = new ArrayList<>(Math.min(limit, records.size()));
+        for (RequestRecord record : records) {
+            if (requests.size() >= limit) break;
+            requests.add(record.toRequest());
+        }
+        return requests;
+    }
+
+    @Override
+    public int countRequests(Timestamp t) throws PersistenceException {
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            for (RequestRecord request : state.requests.values()) {
+                if (request.insertionTime > t.getTime()) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ExecutionRequest> getNewRequests() throws PersistenceException {
+        lock.readLock().lock();
+        try {
+            int maxHandledId = 0;
+            for (RequestRecord request : state.requests.values()) {
+                if (request.status != ExecutionRequest.Status.NEW) {
+                    maxHandledId = Math.max(maxHandledId, request.id);
+                }
+            }
+            return getNewRequestsAfter(maxHandledId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ExecutionRequest> getNewRequests(int lastRequestId) throws PersistenceException {
+        lock.readLock().lock();
+        try {
+            return getNewRequestsAfter(lastRequestId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateRequestStatus(ExecutionRequest request) throws PersistenceException {
+        lock.writeLock().lock();
+        try {
+            RequestRecord record = state.requests.get(request.getId());
+            if (record != null) {
+                record.status = request.getStatus();
+                record.lastUpdated = System.currentTimeMillis();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void saveRequest(ExecutionRequest request) throws PersistenceException {
+        lock.writeLock().lock();
+        try {
+            RequestRecord record = new RequestRecord(++state.lastRequestId, request.getEntityId(),
+                    request.getAction(), System.currentTimeMillis());
+            state.requests.put(record.id, record);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Request to " + request.getAction() + " for entityId="
+                    + request.getEntityId() + " was stored");
+        }
+    }
+
+    @Override
+    public void saveMachines(List<Machine> machines) throws PersistenceException {
+        if (machines.isEmpty()) {
+            throw new PersistenceException("System tried to add an empty list of machines to the persistence.");
+        }
+        lock.writeLock().lock();
+        try {
+            for (Machine machine : machines) {
+                Machine saved = state.machines.get(machine.getId());
+                if (saved == null) {
+                    saved = copy(machine);
+                    saved.setLastHeartbeat(null);
+                    state.machines.put(saved.getId(), saved);
+                } else {
+                    saved.setHost(machine.getHost());
+                    saved.setDescription(machine.getDescription());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Saved machines in the persistence");
+        }
+    }
+
+    @Override
+    public List<Machine> getAllMachines(boolean includeServer) throws PersistenceException {
+        lock.readLock().lock();
+        try {
+            List<Machine> machines = new ArrayList<>(state.machines.size());
+            for (Machine machine : state.machines.values()) {
+                if (includeServer || machine.getId() != DBConstants.SERVER_ID) {
+                    machines.add(copy(machine));
+                }
+            }
+            return machines;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateMachine(Machine machine) throws PersistenceException {
+        lock.writeLock().lock();
+        try {
+            Machine saved = state.machines.get(machine.getId());
+            if (saved != null) {
+                saved.setConnected(machine.isConnected());
+                if (machine.isConnected()) {
+                    saved.setLastHeartbeat(new Timestamp(System.currentTimeMillis()));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int registerMachine(Machine machine) throws PersistenceException {
+        boolean added = false;
+        lock.writeLock().lock();
+        try {
+            Machine saved = state.machines.values().stream()
+                    .filter(m -> m.getHost().equals(machine.getHost()))
+                    .findFirst().orElse(null);
+            if (saved == null) {
+                saved = copy(machine);
+                saved.setId(state.machines.keySet().stream().mapToInt(Integer::intValue).max().orElse(0) + 1);
+                saved.setActive(true);
+                state.machines.put(saved.getId(), saved);
+                added = true;
+            } else {
+                if (saved.getDescription() == null || saved.getDescription().isEmpty()) {
+                    saved.setDescription(machine.getDescription());
+                }
+                saved.setCores(machine.getCores());
+                saved.setMemoryMb(machine.getMemoryMb());
+                saved.setSlots(machine.getSlots());
+            }
+            saved.setConnected(true);
+            saved.setLastHeartbeat(new Timestamp(System.currentTimeMillis()));
+            machine.setId(saved.getId());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (added && logger.isInfoEnabled()) {
+            logger.info("Machine " + machine.getHost() + " has registered itself");
+        }
+        return machine.getId();
+    }
+
+    @Override
+    public void removeMachine(int machineId) throws PersistenceException {
+        if (machineId == DBConstants.SERVER_ID) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (state.machines.remove(machineId) != null) {
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Machine with id=" + machineId + " was removed");
+        }
+    }
+
+    @Override
+    public void changeMachineActivityStatus(int machineId, boolean activate) throws PersistenceException {
+        lock.writeLock().lock();
+        try {
+            Machine saved = state.machines.get(machineId);
+            if (saved != null) {
+                saved.setActive(activate);
+                saved.setDraining(false);
+                saved.setDrained(false);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Machine with id=" + machineId + " was set to " + (activate ? "" : "in") + "active");
+        }
+    }
+
+    @Override
+    public void changeMachineDrainState(int machineId, boolean draining, boolean drained)
+            throws PersistenceException {
+        lock.writeLock().lock();
+        try {
+            Machine saved = state.machines.get(machineId);
+            if (saved != null) {
+                saved.setDraining(draining);
+                saved.setDrained(drained);
+                if (drained) {
+                    saved.setActive(false);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Machine with id=" + machineId + " was set to "
+                    + (drained ? "drained" : draining ? "draining" : "not draining"));
+        }
+    }
+
+    @Override
+    public void insertContextToTask(Task originalTask, List<Task> replacements) throws PersistenceException {
+        insertContextToTasks(Collections.singletonMap(originalTask, replacements));
+    }
+
+    @Override
+    public void insertContextToTasks(Map<Task, List<Task>> replacements) throws PersistenceException {
+        if (replacements.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Task, List<Task>> entry : replacements.entrySet()) {
+            for (Task task : entry.getValue()) {
+                task.setStatus(TaskStatus.NEW);
+                task.setFlowId(entry.getKey().getFlowId());
+                registerUnit(task.getUnit());
+            }
+        }
+        int numReplacements = 0;
+        lock.writeLock().lock();
+        try {
+            for (Task originalTask : replacements.keySet()) {
+                state.removeTask(originalTask.getId());
+            }
+            for (List<Task> tasks : replacements.values()) {
+                for (Task task : tasks) {
+                    Context context = task.getContext();
+                    addTask(new TaskRecord(TaskStatus.NEW, task.getFlowId(), task.getSerialNumber(), task.getUnit(),
+                            context == null ? null : context.getSubject(),
+                            context == null ? null : context.getRun(), null));
+                    numReplacements++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Replaced " + replacements.size() + " tasks with context wildcards by "
+                    + numReplacements + " tasks");
+        }
+    }
+
+    @Override
+    public void saveTaskEvents(List<TaskEvent> events) throws PersistenceException {
+        if (events.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (TaskEvent event : events) {
+                state.taskEvents.computeIfAbsent(event.getTaskId(), taskId -> new ArrayList<>()).add(event);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Saved " + events.size() + " task events");
+        }
+    }
+
+    @Override
+    public List<TaskEvent> getTaskTimeline(int taskId) throws PersistenceException {
+        List<TaskEvent> events = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            TaskRecord task = state.tasks.get(taskId);
+            if (task != null && task.insertionTime > 0) {
+                events.add(new TaskEvent(taskId, TaskEvent.Type.CREATED, task.insertionTime, null));
+            }
+            events.addAll(state.taskEvents.getOrDefault(taskId, Collections.emptyList()));
+        } finally {
+            lock.readLock().unlock();
+        }
+        events.sort(EVENTS_ORDER);
+        return events;
+    }
+
+    /**
+     * Same as get_ended_tasks_events in queries.properties: all the events of the tasks that have an 'Ended' event
+     * after the given time (up to the limit, those that ended last) are aggregated, ordered by task.
+     */
+    @Override
+    public List<UnitTimeline> getUnitTimelines(Timestamp since, int limit) throws PersistenceException {
+        UnitTimeline.Aggregator aggregator = new UnitTimeline.Aggregator();
+        lock.readLock().lock();
+        try {
+            Map<Integer, Long> endTimes = new HashMap<>();
+            for (Map.Entry<Integer, List<TaskEvent>> entry : state.taskEvents.entrySet()) {
+                entry.getValue().stream()
+                        .filter(event -> event.getType() == TaskEvent.Type.ENDED && event.getTime() > since.getTime())
+                        .mapToLong(TaskEvent::getTime).max()
+                        .ifPresent(time -> endTimes.put(entry.getKey(), time));
+            }
+            List<Integer> taskIds = endTimes.keySet().stream()
+                    .sorted(Comparator.comparing(endTimes::get, Comparator.reverseOrder()))
+                    .limit(limit)
+                    .sorted()
+                    .collect(Collectors.toList());
+            for (Integer taskId : taskIds) {
+                TaskRecord task = state.tasks.get(taskId);
+                if (task == null) {
+                    continue;
+                }
+                List<TaskEvent> events = new ArrayList<>(state.taskEvents.get(taskId));
+                events.sort(EVENTS_ORDER);
+                for (TaskEvent event : events) {
+                    aggregator.add(task.unitId, event);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return aggregator.getTimelines();
+    }
+
+    @Override
+    public boolean acquireLease(String name, String owner, long millis) throws PersistenceException {
+        long now = System.currentTimeMillis();
+        synchronized (leases) {
+            LeaseRecord lease = leases.get(name);
+            if (lease != null && !lease.owner.equals(owner) && lease.expiresMillis >= now) {
+                return false;
+            }
+            leases.put(name, new LeaseRecord(owner, now + millis));
+            return true;
+        }
+    }
+
+    @Override
+    public Set<String> renewLeases(String owner, long millis) throws PersistenceException {
+        long expiresMillis = System.currentTimeMillis() + millis;
+        Set<String> names = new HashSet<>();
+        synchronized (leases) {
+            for (Map.Entry<String, LeaseRecord> entry : leases.entrySet()) {
+                if (entry.getValue().owner.equals(owner)) {
+                    entry.setValue(new LeaseRecord(owner, expiresMillis));
+                    names.add(entry.getKey());
+                }
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public void releaseLease(String name, String owner) throws PersistenceException {
+        synchronized (leases) {
+            LeaseRecord lease = leases.get(name);
+            if (lease != null && lease.owner.equals(owner)) {
+                leases.remove(name);
+            }
+        }
+    }
+
+    @Override
+    public List<Lease> getLeases(String prefix) throws PersistenceException {
+        long now = System.currentTimeMillis();
+        List<Lease> result = new ArrayList<>();
+        synchronized (leases) {
+            for (Map.Entry<String, LeaseRecord> entry : leases.entrySet()) {
+                if (entry.getKey().startsWith(prefix)) {
+                    LeaseRecord lease = entry.getValue();
+                    result.add(new Lease(entry.getKey(), lease.owner, lease.expiresMillis < now));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void performCleanup() throws PersistenceException {
+        long oldestRequestTime = System.currentTimeMillis() - REQUESTS_RETENTION_MILLIS;
+        long oldestTaskEventTime = System.currentTimeMillis() - TASK_EVENTS_RETENTION_MILLIS;
+        lock.writeLock().lock();
+        try {
+            state.requests.values().removeIf(request -> request.insertionTime < oldestRequestTime);
+            for (List<TaskEvent> events : state.taskEvents.values()) {
+                events.removeIf(event -> event.getTime() < oldestTaskEventTime);
+            }
+            state.taskEvents.values().removeIf(List::isEmpty);
+            for (TaskRecord task : state.tasks.values()) {
+                if (task.status == TaskStatus.PENDING) {
+                    state.setStatus(task, TaskStatus.NEW);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Task> getProcessingTasks() throws PersistenceException {
+        List<TaskRecord> records = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (TaskRecord task : state.tasks.values()) {
+                if (task.status == TaskStatus.PROCESSING) {
+                    records.add(state.read(task));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return toTasks(records);
+    }
+
+    /**
+     * Removes all the flows, tasks and analyses (the in-memory counterpart of clearing the debug tables).
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            state.tasks.clear();
+            state.flowTasks.clear();
+            state.newTaskIds.clear();
+            state.flows.clear();
+            state.analyses.clear();
+            state.analysisPredecessors.clear();
+            state.taskEvents.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* must be called while holding the write lock */
+    private int addFlow(Context context) {
+        FlowRecord flow = new FlowRecord(++state.lastFlowId, context.getStudy(), context.getSubject(),
+                context.getRun(), System.currentTimeMillis());
+        state.flows.put(flow.id, flow);
+        return flow.id;
+    }
+
+    /* must be called while holding the write lock */
+    private void addTask(TaskRecord task) {
+        task.id = ++state.lastTaskId;
+        task.insertionTime = System.currentTimeMillis();
+        state.tasks.put(task.id, task);
+        state.flowTasks.computeIfAbsent(task.flowId, flowId -> new ArrayList<>()).add(task);
+        if (task.status == TaskStatus.NEW) {
+            state.newTaskIds.add(task.id);
+        }
+    }
+
+    /* must be called while holding the write lock - the same as update_task_status in queries.properties */
+    private void applyStatusUpdate(TaskRecord taskRecord, Task task) {
+        state.setStatus(taskRecord, taskRecord.status.resolveUpdate(task.getStatus()));
+        if (task.getStatus() == TaskStatus.PROCESSING && task.getMachine() != null) {
+            taskRecord.machineId = task.getMachine().getId();
+        }
+    }
+
+    /* must be called while holding the write lock */
+    private void updateFlowStatus(int flowId) throws PersistenceException {
+        FlowRecord flow = state.flows.get(flowId);
+        List<TaskRecord> flowTasks = state.getFlowTasks(flowId);
+        if (flow == null || flowTasks.isEmpty()) {
+            throw new PersistenceException("Failed to update flow with flowId=" + flowId);
+        }
+        List<Task> tasks = new ArrayList<>(flowTasks.size());
+        for (TaskRecord taskRecord : flowTasks) {
+            Task task = new Task();
+            task.setStatus(taskRecord.status);
+            tasks.add(task);
+        }
+        flow.status = DBProxy.computeFlowStatus(tasks);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Updated flow status to " + flow.status + " for flowId=" + flowId);
+        }
+    }
+
+    /* must be called while holding the (read or write) lock */
+    private List<ExecutionRequest> getNewRequestsAfter(int requestId) {
+        List<ExecutionRequest> requests = new ArrayList<>();
+        for (RequestRecord request : state.requests.tailMap(requestId, false).values()) {
+            if (request.status == ExecutionRequest.Status.NEW) {
+                requests.add(request.toRequest());
+            }
+        }
+        return requests;
+    }
+
+    private void streamTasks(List<TaskRecord> records, Consumer<Task> consumer) throws PersistenceException {
+        for (TaskRecord record : records) {
+            consumer.accept(toTask(record));
+        }
+    }
+
+    private List<Task> toTasks(List<TaskRecord> records) throws PersistenceException {
+        List<Task> tasks = new ArrayList<>(records.size());
+        streamTasks(records, tasks::add);
+        return tasks;
+    }
+
+    /**
+     * Creates the task of the given record. The study of the task is the study of its flow, like in the DB.
+     * The record must be a copy that is not changed while the task is created.
+     */
+    private Task toTask(TaskRecord record) throws PersistenceException {
+        Unit unit;
+        try {
+            unit = (Unit) getUnitDefinition(record.unitId).clone();
+        } catch (CloneNotSupportedException e) {
+            throw new PersistenceException("Failed to retrieve tasks from persistence.", e);
+        }
+        for (UnitParameter parameter : unit.getParameters()) {
+            String value = record.parameterValues.get(parameter.getName());
+            if (value != null) {
+                parameter.setValue(value);
+            }
+        }
+        unit.setPredecessors(copy(record.predecessors));
+        Machine machine = null;
+        if (record.machineId != null) {
+            machine = configuredMachines.get(record.machineId);
+            if (machine == null) {
+                lock.readLock().lock();
+                try {
+                    machine = state.machines.get(record.machineId);
+                    machine = machine == null ? null : copy(machine);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        }
+        return new Task(record.id, record.flowId, record.serial, unit, machine,
+                new Context(record.study, record.subject, record.run), record.status);
+    }
+
+    private Unit getUnitDefinition(int unitId) throws PersistenceException {
+        Unit unit = units.get(unitId);
+        if (unit == null) {
+            unit = unitFetcher.getUnit(unitId);
+            units.putIfAbsent(unitId, unit);
+        }
+        return unit;
+    }
+
+    /**
+     * Keeps the definition of the unit of a new task, so that the tasks can be created later on without reading the
+     * unit's settings file (as long as the persistence is not restarted).
+     */
+    private void registerUnit(Unit unit) throws PersistenceException {
+        if (unit == null) {
+            throw new PersistenceException("System tried to add a task without a unit to the persistence.");
+        }
+        if (!units.containsKey(unit.getId())) {
+            try {
+                units.putIfAbsent(unit.getId(), (Unit) unit.clone());
+            } catch (CloneNotSupportedException e) {
+                throw new PersistenceException("Failed to add tasks to persistence.", e);
+            }
+        }
+    }
+
+    private static List<Integer> copy(List<Integer> predecessors) {
+        return predecessors == null ? null : new ArrayList<>(predecessors);
+    }
+
+    private static Machine copy(Machine machine) {
+        Machine copy = new Machine();
+        copy.setId(machine.getId());
+        copy.setHost(machine.getHost());
+        copy.setDescription(machine.getDescription());
+        copy.setActive(machine.isActive());
+        copy.setConnected(machine.isConnected());
+        copy.setDraining(machine.isDraining());
+        copy.setDrained(machine.isDrained());
+        copy.setLastHeartbeat(machine.getLastHeartbeat());
+        copy.setCores(machine.getCores());
+        copy.setMemoryMb(machine.getMemoryMb());
+        copy.setSlots(machine.getSlots());
+        return copy;
+    }
+
+    /**
+     * The whole state of the persistence. It is only accessed while holding the lock of the persistence.
+     */
+    private static class State {
+
+        private int lastFlowId = 0;
+        private int lastTaskId = 0;
+        private int lastRequestId = 0;
+        private final TreeMap<Integer, FlowRecord> flows = new TreeMap<>();
+        private final TreeMap<Integer, TaskRecord> tasks = new TreeMap<>();
+        private final Map<Integer, List<TaskRecord>> flowTasks = new HashMap<>();
+        private final TreeSet<Integer> newTaskIds = new TreeSet<>();
+        private final TreeMap<String, List<Integer>> analyses = new TreeMap<>();
+        /* the predecessors of every unit of every analysis, in the order of analyses (a null list - the unit depends
+           on the unit right before it) */
+        private final TreeMap<String, List<List<Integer>>> analysisPredecessors = new TreeMap<>();
+        private final TreeMap<Integer, RequestRecord> requests = new TreeMap<>();
+        private final TreeMap<Integer, Machine> machines = new TreeMap<>();
+        /* the events of every task by taskId, in order of arrival (the events of a task are saved by different
+           processes, so they are sorted when they are read) */
+        private final TreeMap<Integer, List<TaskEvent>> taskEvents = new TreeMap<>();
+
+        private TaskRecord getTask(int taskId) throws PersistenceException {
+            TaskRecord task = tasks.get(taskId);
+            if (task == null) {
+                throw new PersistenceException("No task in the persistence matches the given id (" + taskId + ").");
+            }
+            return task;
+        }
+
+        /**
+         * @return a copy of the task to return, with the study of its flow.
+         */
+        private TaskRecord read(TaskRecord task) {
+            TaskRecord copy = new TaskRecord(task);
+            FlowRecord flow = flows.get(task.flowId);
+            copy.study = flow == null ? null : flow.study;
+            return copy;
+        }
+
+        private List<TaskRecord> getFlowTasks(int flowId) {
+            return flowTasks.getOrDefault(flowId, Collections.emptyList());
+        }
+
+        private void setStatus(TaskRecord task, TaskStatus status) {
+            if (task.status == status) {
+                return;
+            }
+            if (status == TaskStatus.NEW) {
+                newTaskIds.add(task.id);
+            } else if (task.status == TaskStatus.NEW) {
+                newTaskIds.remove(task.id);
+            }
+            task.status = status;
+        }
+
+        private void removeTask(int taskId) {
+            TaskRecord task = tasks.remove(taskId);
+            if (task != null) {
+                newTaskIds.remove(taskId);
+                List<TaskRecord> siblings = flowTasks.get(task.flowId);
+                siblings.remove(task);
+                if (siblings.isEmpty()) {
+                    flowTasks.remove(task.flowId);
+                }
+            }
+        }
+    }
+
+    /**
+     * A row of the flows table.
+     */
+    private static class FlowRecord {
+
+        private final int id;
+        private final String study;
+        private final String subject;
+        private final String run;
+        private final long insertionTime;
+        private FlowStatus status = FlowStatus.NEW;
+
+        private FlowRecord(int id, String study, String subject, String run, long insertionTime) {
+            this.id = id;
+            this.study = study;
+            this.subject = subject;
+            this.run = run;
+            this.insertionTime = insertionTime;
+        }
+    }
+
+    /**
+     * A row of the tasks table (joined with the study of its flow once it is copied to be returned).
+     */
+    private static class TaskRecord {
+
+        private int id;
+        private final int flowId;
+        private final int serial;
+        private final int unitId;
+        private final Map<String, String> parameterValues;
+        private final List<Integer> predecessors; // null if the task depends on the serial number right before it
+        private final String subject;
+        private final String run;
+        private Integer machineId;
+        private TaskStatus status;
+        private long insertionTime;
+        private transient String study;
+
+        private TaskRecord(TaskStatus status, int flowId, int serial, Unit unit,
+                           String subject, String run, Integer machineId) {
+            this.status = status;
+            this.flowId = flowId;
+            this.serial = serial;
+            this.unitId = unit.getId();
+            this.parameterValues = new HashMap<>();
+            for (UnitParameter parameter : unit.getParameters()) {
+                if (parameter.getValue() != null) {
+                    parameterValues.put(parameter.getName(), parameter.getValue());
+                }
+            }
+            this.predecessors = copy(unit.getPredecessors());
+            this.subject = subject;
+            this.run = run;
+            this.machineId = machineId;
+        }
+
+        private TaskRecord(TaskRecord other) {
+            this.id = other.id;
+            this.flowId = other.flowId;
+            this.serial = other.serial;
+            this.unitId = other.unitId;
+            this.parameterValues = other.parameterValues; // never changed once the record is created
+            this.predecessors = other.predecessors; // same
+            this.subject = other.subject;
+            this.run = other.run;
+            this.machineId = other.machineId;
+            this.status = other.status;
+            this.insertionTime = other.insertionTime;
+        }
+    }
+
+    /**
+     * A row of the leases table.
+     */
+    private static final class LeaseRecord {
+
+        private final String owner;
+        private final long expiresMillis;
+
+        private LeaseRecord(String owner, long expiresMillis) {
+            this.owner = owner;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+
+    /**
+     * A row of the requests table.
+     */
+    private static class RequestRecord {
+
+        private final int id;
+        private final int entityId;
+        private final ExecutionRequest.Action action;
+        private final long insertionTime;
+        private ExecutionRequest.Status status = ExecutionRequest.Status.NEW;
+        private Long lastUpdated = null;
+
+        private RequestRecord(int id, int entityId, ExecutionRequest.Action action, long insertionTime) {
+            this.id = id;
+            this.entityId = entityId;
+            this.action = action;
+            this.insertionTime = insertionTime;
+        }
+
+        private ExecutionRequest toRequest() {
+            ExecutionRequest request = new ExecutionRequest();
+            request.setId(id);
+            request.setEntityId(entityId);
+            request.setAction(action);
+            request.setStatus(status);
+            request.setCreationTime(new Timestamp(insertionTime));
+            request.setLastUpdated(lastUpdated == null ? null : new Timestamp(lastUpdated));
+            return request;
+        }
+    }
+}
@@ -1,11 +1,13 @@
 # noinspection SqlNoDataSourceInspectionForFile
 
 # drop
+DROP TABLE IF EXISTS task_events;
 DROP TABLE IF EXISTS tasks;
 DROP TABLE IF EXISTS flows;
 DROP TABLE IF EXISTS units;
 DROP TABLE IF EXISTS requests;
 DROP TABLE IF EXISTS machines;
+DROP TABLE IF EXISTS leases;
 
 # units table
 CREATE TABLE units (
@@ -13,6 +15,7 @@ CREATE TABLE units (
   analysis_name VARCHAR(100) NOT NULL,
   serial INT UNSIGNED NOT NULL,
   external_unit_id INT UNSIGNED NOT NULL, # unitId from XML configuration file
+  predecessors VARCHAR(255) NULL, # comma-separated serials of the units it depends on (NULL - the previous one)
   insertion_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
   PRIMARY KEY (analysis_unit_id),
   UNIQUE INDEX unit_serial_UNIQUE (analysis_name ASC, serial ASC),
@@ -39,6 +42,7 @@ CREATE TABLE tasks (
   serial_in_flow INT UNSIGNED NOT NULL,
   unit_id INT UNSIGNED NOT NULL,
   unit_params BLOB NULL,
+  predecessors VARCHAR(255) NULL, # comma-separated serials of the tasks it depends on (NULL - the previous one)
   subject VARCHAR(100) NULL,
   run VARCHAR(100) NULL,
   machine_id INT UNSIGNED NULL,
@@ -70,11 +74,16 @@ CREATE TABLE requests (
 
 # machines table
 CREATE TABLE machines (
-  id INT UNSIGNED NOT NULL,
+  id INT UNSIGNED NOT NULL AUTO_INCREMENT, # the machines of the configuration (and the server, 0) have their own ids
   host VARCHAR(100) NOT NULL,
   description VARCHAR(100) NULL,
   connected BIT(1) NULL DEFAULT 0,
   active BIT(1) NULL DEFAULT 0,
+  draining BIT(1) NULL DEFAULT 0, # no new tasks are sent to the machine, while the tasks it runs end
+  drained BIT(1) NULL DEFAULT 0, # the machine was drained and may be taken down
+  cores INT UNSIGNED NULL, # as the machine has registered itself (NULL for the machines of the configuration)
+  memory_mb INT UNSIGNED NULL,
+  slots INT UNSIGNED NULL, # the number of tasks the machine runs at once
   last_updated TIMESTAMP NULL DEFAULT CURRENT_TIMESTAMP,
   last_heartbeat TIMESTAMP NULL,
   PRIMARY KEY (id),
@@ -82,6 +91,28 @@ CREATE TABLE machines (
   UNIQUE INDEX host_UNIQUE (host ASC))
   ENGINE = InnoDB;
 
+# task events table (the timeline of every task - written in batches by the server and the machines)
+CREATE TABLE task_events (
+  id BIGINT UNSIGNED NOT NULL AUTO_INCREMENT,
+  task_id INT UNSIGNED NOT NULL,
+  event VARCHAR(20) NOT NULL,
+  status VARCHAR(20) NULL,
+  event_time TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+  machine_id INT UNSIGNED NULL,
+  PRIMARY KEY (id),
+  INDEX task_events_task_idx (task_id ASC, event_time ASC),
+  INDEX task_events_event_idx (event ASC, event_time ASC))
+  ENGINE = InnoDB;
+
+# leases table (the claims of the execution servers on flows and on slots of the machines - see ClusterProperties)
+CREATE TABLE leases (
+  name VARCHAR(100) NOT NULL,
+  owner VARCHAR(100) NOT NULL,
+  expires_at TIMESTAMP(3) NOT NULL,
+  PRIMARY KEY (name),
+  INDEX leases_owner_idx (owner ASC))
+  ENGINE = InnoDB;
+
 # triggers on tasks table
 DELIMITER $$
 CREATE TRIGGER before_update_tasks BEFORE UPDATE ON tasks
@@ -115,11 +146,13 @@ $$ DELIMITER ;
 ######################################### DEBUG TABLES #####################################
 
 # drop
+DROP TABLE IF EXISTS zz_debug_task_events;
 DROP TABLE IF EXISTS zz_debug_tasks;
 DROP TABLE IF EXISTS zz_debug_flows;
 DROP TABLE IF EXISTS zz_debug_units;
 DROP TABLE IF EXISTS zz_debug_requests;
 DROP TABLE IF EXISTS zz_debug_machines;
+DROP TABLE IF EXISTS zz_debug_leases;
 
 # units table
 CREATE TABLE zz_debug_units (
@@ -127,6 +160,7 @@ CREATE TABLE zz_debug_units (
   analysis_name VARCHAR(100) NOT NULL,
   serial INT UNSIGNED NOT NULL,
   external_unit_id INT UNSIGNED NOT NULL, # unitId from XML configuration file
+  predecessors VARCHAR(255) NULL, # comma-separated serials of the units it depends on (NULL - the previous one)
   insertion_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
   PRIMARY KEY (analysis_unit_id),
   UNIQUE INDEX zz_debug_unit_serial_UNIQUE (analysis_name ASC, serial ASC),
@@ -153,6 +187,7 @@ CREATE TABLE zz_debug_tasks (
   serial_in_flow INT UNSIGNED NOT NULL,
   unit_id INT UNSIGNED NOT NULL,
   unit_params BLOB NULL,
+  predecessors VARCHAR(255) NULL, # comma-separated serials of the tasks it depends on (NULL - the previous one)
   subject VARCHAR(100) NULL,
   run VARCHAR(100) NULL,
   machine_id INT UNSIGNED NULL,
@@ -184,11 +219,16 @@ CREATE TABLE zz_debug_requests (
 
 # machines table
 CREATE TABLE zz_debug_machines (
-  id INT UNSIGNED NOT NULL,
+  id INT UNSIGNED NOT NULL AUTO_INCREMENT, # the machines of the configuration (and the server, 0) have their own ids
   host VARCHAR(100) NOT NULL,
   description VARCHAR(100) NULL,
   connected BIT(1) NULL DEFAULT 0,
   active BIT(1) NULL DEFAULT 0,
+  draining BIT(1) NULL DEFAULT 0, # no new tasks are sent to the machine, while the tasks it runs end
+  drained BIT(1) NULL DEFAULT 0, # the machine was drained and may be taken down
+  cores INT UNSIGNED NULL, # as the machine has registered itself (NULL for the machines of the configuration)
+  memory_mb INT UNSIGNED NULL,
+  slots INT UNSIGNED NULL, # the number of tasks the machine runs at once
   last_updated TIMESTAMP NULL DEFAULT CURRENT_TIMESTAMP,
   last_heartbeat TIMESTAMP NULL,
   PRIMARY KEY (id),
@@ -196,6 +236,28 @@ CREATE TABLE zz_debug_machines (
   UNIQUE INDEX host_UNIQUE (host ASC))
   ENGINE = InnoDB;
 
+# task events table (the timeline of every task - written in batches by the server and the machines)
+CREATE TABLE zz_debug_task_events (
+  id BIGINT UNSIGNED NOT NULL AUTO_INCREMENT,
+  task_id INT UNSIGNED NOT NULL,
+  event VARCHAR(20) NOT NULL,
+  status VARCHAR(20) NULL,
+  event_time TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+  machine_id INT UNSIGNED NULL,
+  PRIMARY KEY (id),
+  INDEX zz_debug_task_events_task_idx (task_id ASC, event_time ASC),
+  INDEX zz_debug_task_events_event_idx (event ASC, event_time ASC))
+  ENGINE = InnoDB;
+
+# leases table (the claims of the execution servers on flows and on slots of the machines - see ClusterProperties)
+CREATE TABLE zz_debug_leases (
+  name VARCHAR(100) NOT NULL,
+  owner VARCHAR(100) NOT NULL,
+  expires_at TIMESTAMP(3) NOT NULL,
+  PRIMARY KEY (name),
+  INDEX zz_debug_leases_owner_idx (owner ASC))
+  ENGINE = InnoDB;
+
 # triggers on tasks table
 DELIMITER $$
 CREATE TRIGGER zz_debug_before_update_tasks BEFORE UPDATE ON zz_debug_tasks
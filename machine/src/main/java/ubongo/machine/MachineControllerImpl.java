@@ -37,6 +37,7 @@ public class MachineControllerImpl implements MachineController {
                     "\nWait for log updates when execution completed.");
 
             p = runtime.exec(command, null, new File(unitsDir.toString()));
+            ResourceMonitor.processStarted(task.getId(), p);
             while (!done) {
                 handleStopInterrupt(task);
                 try {
@@ -56,6 +57,8 @@ public class MachineControllerImpl implements MachineController {
             else
                 logger.error("[Study = " + taskStudy + "]  [Unit = "+ unitId +"] Failed running unit: " + e.getMessage(), e);
             return false;
+        } finally {
+            ResourceMonitor.processEnded(task.getId());
         }
         handleStopInterrupt(task);
         File outputDirectoryFile = new File(outputDirectory.toString());
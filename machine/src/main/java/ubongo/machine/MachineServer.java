@@ -1,25 +1,30 @@
 package ubongo.machine;
 
-import com.rabbitmq.client.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import ubongo.common.constants.MachineConstants;
-import ubongo.common.constants.SystemConstants;
+import ubongo.common.datatypes.Machine;
 import ubongo.common.datatypes.RabbitData;
 import ubongo.common.datatypes.Task;
+import ubongo.common.transport.Transport;
+import ubongo.common.transport.TransportFactory;
 import ubongo.persistence.*;
 import ubongo.persistence.exceptions.PersistenceException;
 
 import javax.xml.bind.UnmarshalException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 /**
  * MachineServer run on each machine all the time, and listens to socket requests.
@@ -35,18 +40,23 @@ public class MachineServer {
     private static String unitsDir;
     private static String workspace;
     private static String queriesPath;
+    private static TaskTimelineRecorder timeline; // null if the persistence module has failed to start
+    private static Machine registration; // null if the machine has failed to register itself
     private static ScheduledExecutorService heartbeatScheduler = Executors.newScheduledThreadPool(1);
+    private static final int DEFAULT_TELEMETRY_SECONDS = 10;
 
     public MachineServer() {
-        unitThreads = new HashMap<>();
+        unitThreads = new ConcurrentHashMap<>();
         serverAddress = MachineConstants.SERVER_FALLBACK;
     }
 
     public void start() throws PersistenceException {
-        Persistence persistence = new PersistenceImpl(unitsDir, configuration.getDbConnectionProperties(),
-                configuration.getSshConnectionProperties(), null, queriesPath, configuration.getDebug());
+        Persistence persistence = PersistenceFactory.create(configuration, unitsDir, null, queriesPath,
+                configuration.getDebug());
         persistence.start();
         initHeartbeat(persistence);
+        timeline = new TaskTimelineRecorder(persistence);
+        timeline.start();
     }
 
     public static void main(String[] args) {
@@ -59,14 +69,11 @@ public class MachineServer {
         } catch (PersistenceException e) {
             logger.error("Failed to start persistence module in the machine", e);
         }
-        final String TASKS_QUEUE_NAME = SystemConstants.UBONGO_RABBIT_TASKS_QUEUE;
-        final String KILL_TASKS_QUEUE_NAME = SystemConstants.UBONGO_RABBIT_KILL_TASKS_QUEUE;
         try {
             logger.info("[!] Waiting for new tasks.");
-            tasksListener(TASKS_QUEUE_NAME, '+');
-            tasksListener(KILL_TASKS_QUEUE_NAME, 'x');
+            tasksListener();
         } catch (Exception e){
-            logger.error("Failed receiving message via rabbit mq error: " + e.getMessage(), e);
+            logger.error("Failed receiving messages from the server. error: " + e.getMessage(), e);
         }
     }
 
@@ -103,37 +110,94 @@ public class MachineServer {
         return true;
     }
 
-    private static void tasksListener(String queue, char actionSign) throws IOException, TimeoutException {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost("localhost");
-        Connection connection = factory.newConnection();
-        Channel channel = connection.createChannel();
-        channel.queueDeclare(queue, false, false, false, null);
-        Consumer consumer = new DefaultConsumer(channel) {
-            @Override
-            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
-                    throws IOException {
-                try {
-                    RabbitData message = RabbitData.fromBytes(body);
-                    logger.info(" ["+actionSign+"] Received '" + message.getMessage() + "'");
-                    String unitsDir = System.getProperty(MachineConstants.ARG_UNITS);
-                    serverAddress = System.getProperty(MachineConstants.ARG_SERVER);
-                    logger.info("Server address: [" + serverAddress + "] , units directory path: [" + unitsDir + "]");
-                    String threadName = getThreadName(message.getTask());
-                    RequestHandler requestHandler =
-                            new RequestHandler(threadName, message, serverAddress, unitsDir, configuration, workspace);
-                    if ((message.getMessage()).equals(MachineConstants.BASE_UNIT_REQUEST)) {
-                        unitThreads.put(threadName, requestHandler);
+    private static void tasksListener() throws IOException {
+        serverAddress = System.getProperty(MachineConstants.ARG_SERVER, serverAddress);
+        Transport transport = TransportFactory.create(configuration.getTransport(), serverAddress);
+        startTelemetry(transport);
+        transport.listenForRequests(getMachineId(), message -> {
+            if (message.getMessage().equals(MachineConstants.RUNNING_TASKS_REQUEST)) {
+                reportRunningTasks(transport, message);
+                return;
+            }
+            char actionSign = message.getMessage().equals(MachineConstants.KILL_TASK_REQUEST) ? 'x' : '+';
+            logger.info(" ["+actionSign+"] Received '" + message.getMessage() + "'");
+            String unitsDir = System.getProperty(MachineConstants.ARG_UNITS);
+            logger.info("Server address: [" + serverAddress + "] , units directory path: [" + unitsDir + "]");
+            String threadName = getThreadName(message.getTask());
+            RequestHandler requestHandler = new RequestHandler(threadName, message, transport, serverAddress,
+                    unitsDir, configuration, workspace, timeline);
+            if ((message.getMessage()).equals(MachineConstants.BASE_UNIT_REQUEST)
+                    || (message.getMessage()).equals(MachineConstants.BATCH_UNIT_REQUEST)) {
+                for (Task task : message.getTasks()) {
+                    unitThreads.put(getThreadName(task), requestHandler);
+                }
+            }
+            logger.info("Starting RequestHandler thread");
+            requestHandler.start();
+        });
+    }
+
+    /**
+     * Sends a sample of the resources of the machine to the servers every few seconds (-Dtelemetry_seconds, default
+     * 10), which is much more often than the heartbeats are written to the DB.
+     */
+    private static void startTelemetry(Transport transport) {
+        int seconds = Math.max(1, Integer.getInteger(MachineConstants.ARG_TELEMETRY_SECONDS, DEFAULT_TELEMETRY_SECONDS));
+        ResourceMonitor monitor = new ResourceMonitor(workspace);
+        heartbeatScheduler.scheduleAtFixedRate(() -> {
+            try {
+                String host = registration != null ? registration.getHost()
+                        : InetAddress.getLocalHost().getHostAddress();
+                transport.sendTelemetry(monitor.sample(getMachineId(), host, unitThreads.size()));
+            } catch (Exception e) {
+                logger.warn("Failed sending telemetry to the server. error: " + e.getMessage());
+            }
+        }, 0, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Answers a server that has just started with the tasks this machine is running, so it takes them over instead of
+     * killing them.
+     */
+    private static void reportRunningTasks(Transport transport, RabbitData request) {
+        List<Task> running = new ArrayList<>();
+        for (Thread thread : new HashSet<>(unitThreads.values())) {
+            if (thread instanceof RequestHandler) {
+                for (Task task : ((RequestHandler) thread).getTasks()) {
+                    if (unitThreads.containsKey(getThreadName(task))) { // the tasks of a batch that did not end
+                        running.add(task);
                     }
-                    logger.info("Starting RequestHandler thread");
-                    requestHandler.start();
-                } catch (Exception e){
-                    logger.error("Failed receiving rabbitMq message. ", e);
-                    throw new IOException(e);
                 }
             }
-        };
-        channel.basicConsume(queue, true, consumer);
+        }
+        logger.info(" [?] Reporting " + running.size() + " running tasks to the server");
+        try {
+            transport.reportRunningTasks(request, running);
+        } catch (IOException e) {
+            logger.error("Failed reporting the running tasks to the server. error: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the id this machine has registered itself with, or its id in the configuration (by the address of the
+     * local host) if it has failed to register, or 0 if it is not there either. Only transports that serve several
+     * machines in the same process need it.
+     */
+    private static int getMachineId() {
+        if (registration != null) {
+            return registration.getId();
+        }
+        try {
+            String host = InetAddress.getLocalHost().getHostAddress();
+            for (Machine machine : configuration.getMachines()) {
+                if (host.equals(machine.getHost())) {
+                    return machine.getId();
+                }
+            }
+        } catch (UnknownHostException e) {
+            logger.warn("Failed to get machine's IP address", e);
+        }
+        return 0;
     }
 
     public static String getThreadName(Task task) {
@@ -147,10 +211,39 @@ public class MachineServer {
         } catch (UnknownHostException e) {
             throw new PersistenceException("Failed to get machine's IP address", e);
         }
-        String host = ip.getHostAddress();
-        logger.info("Starting to send heartbeat for host: " + host);
-        final Runnable heartbeatSender = new HeartbeatSender(persistence, host);
-        heartbeatScheduler.scheduleAtFixedRate(heartbeatSender, 0, 60, TimeUnit.SECONDS);
+        Machine machine = new Machine();
+        machine.setHost(ip.getHostAddress());
+        machine.setDescription(ip.getHostName());
+        machine.setCores(Runtime.getRuntime().availableProcessors());
+        machine.setMemoryMb(getPhysicalMemoryMb());
+        machine.setSlots(Integer.getInteger(MachineConstants.ARG_SLOTS, machine.getCores()));
+        long firstHeartbeatDelay = 60;
+        try {
+            persistence.registerMachine(machine);
+            registration = machine;
+            if (logger.isInfoEnabled()) {
+                logger.info("Registered as machine with id=" + machine.getId() + " (" + machine.getCores()
+                        + " cores, " + machine.getMemoryMb() + "MB of memory, " + machine.getSlots() + " slots)");
+            }
+        } catch (PersistenceException e) {
+            logger.error("Failed to register the machine - it registers itself with its heartbeats", e);
+            firstHeartbeatDelay = 0;
+        }
+        logger.info("Starting to send heartbeat for host: " + machine.getHost());
+        final Runnable heartbeatSender = new HeartbeatSender(persistence, machine);
+        heartbeatScheduler.scheduleAtFixedRate(heartbeatSender, firstHeartbeatDelay, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the physical memory of the machine, or the memory this JVM may use if the JVM does not tell.
+     */
+    private static int getPhysicalMemoryMb() {
+        long bytes = Runtime.getRuntime().maxMemory();
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            bytes = ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+        }
+        return (int) (bytes / (1024 * 1024));
     }
 
 }
\ No newline at end of file
@@ -1,27 +1,35 @@
 package ubongo.machine;
 
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
+import org.apache.commons.vfs2.impl.StandardFileSystemManager;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.codehaus.plexus.util.FileUtils;
 import ubongo.common.constants.MachineConstants;
-import ubongo.common.constants.SystemConstants;
+import ubongo.common.datatypes.FailureCause;
 import ubongo.common.datatypes.RabbitData;
 import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskEvent;
 import ubongo.common.datatypes.TaskStatus;
 import ubongo.common.exceptions.NetworkException;
 import ubongo.common.network.SftpManager;
+import ubongo.common.transport.Transport;
 import ubongo.persistence.Configuration;
+import ubongo.persistence.TaskTimelineRecorder;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * RequestHandler is called by the MachineServer when a new request arrives.
  * When a request arrive - the RequestHandler create the required objects and call the MachineControllerImpl.
+ * The tasks of a batch request are handled one after the other by the same RequestHandler, and their statuses are
+ * reported together when the last of them ends. They also share one SFTP session to the server for their input and
+ * output files.
  */
 
 public class RequestHandler extends Thread {
@@ -33,6 +41,8 @@ public class RequestHandler extends Thread {
     private String workspaceDir; // The directory where tmp run files should be stored
     private String serverAddress; // Address of the program server
     private RabbitData rabbitMessage;
+    private Transport transport; // to report the status of the task to the server
+    private TaskTimelineRecorder timeline; // to record the stages of the execution in the timeline of the task (may be null)
 
     private String tmpInputFilesDir = "";
     private String tmpOutputFilesDir = "";
@@ -41,9 +51,15 @@ public class RequestHandler extends Thread {
     private String taskStudy;
     private int unitId = 0;
 
-    public RequestHandler(String threadName, RabbitData rabbitMessage, String serverAddress,
-                          String unitsDir, Configuration config, String workspaceDir) {
+    private List<Task> batchStatuses; // the tasks of a batch request that have ended (null if not a batch)
+    private StandardFileSystemManager filesSession; // the SFTP session of the tasks of a batch (null if not a batch)
+    private final Set<Integer> stoppedTaskIds = new HashSet<>(); // tasks of the batch to stop before they start
+
+    public RequestHandler(String threadName, RabbitData rabbitMessage, Transport transport, String serverAddress,
+                          String unitsDir, Configuration config, String workspaceDir, TaskTimelineRecorder timeline) {
         super(threadName);
+        this.transport = transport;
+        this.timeline = timeline;
         this.unitsDir = unitsDir;
         this.workspaceDir = workspaceDir;
         this.serverAddress = serverAddress;
@@ -56,15 +72,13 @@ public class RequestHandler extends Thread {
     @Override
     public void run() {
         try {
-            this.task = rabbitMessage.getTask();
-            this.taskStudy = task.getContext().getStudy();
-            this.unitId = task.getUnit().getId();
+            setTask(rabbitMessage.getTask());
             logger.info("[Study = " + taskStudy + "] [Unit = " + unitId + "] Parsed request = [" + rabbitMessage.getMessage() + " " + task.getId() + "]");
             if (rabbitMessage.getMessage().equals(MachineConstants.BASE_UNIT_REQUEST)) {
-                this.tmpOutputFilesDir = Paths.get(workspaceDir, task.getId() + MachineConstants.OUTPUT_DIR_SUFFIX).toString();
-                this.tmpInputFilesDir = Paths.get(workspaceDir, task.getId() + MachineConstants.INPUT_DIR_SUFFIX).toString();
                 handleBaseUnitRequest(workspaceDir);
                 removeThreadFromCollection();
+            } else if (rabbitMessage.getMessage().equals(MachineConstants.BATCH_UNIT_REQUEST)) {
+                handleBatchRequest();
             } else if (rabbitMessage.getMessage().equals(MachineConstants.KILL_TASK_REQUEST)) {
                 handleKillRequest();
             }
@@ -94,6 +108,100 @@ public class RequestHandler extends Thread {
         }
     }
 
+    private synchronized void setTask(Task task) {
+        this.task = task;
+        this.taskStudy = task.getContext().getStudy();
+        this.unitId = task.getUnit().getId();
+        this.tmpOutputFilesDir = Paths.get(workspaceDir, task.getId() + MachineConstants.OUTPUT_DIR_SUFFIX).toString();
+        this.tmpInputFilesDir = Paths.get(workspaceDir, task.getId() + MachineConstants.INPUT_DIR_SUFFIX).toString();
+    }
+
+    /**
+     * Handles the tasks of the batch one after the other, and reports their statuses in a single message.
+     * A task that fails or is stopped does not stop the tasks that follow it.
+     */
+    private void handleBatchRequest() {
+        List<Task> tasks = rabbitMessage.getTasks();
+        logger.info("[Unit = " + unitId + "] Handling a batch of " + tasks.size() + " tasks");
+        batchStatuses = new ArrayList<>(tasks.size());
+        try {
+            filesSession = SftpManager.openSession();
+        } catch (NetworkException e) {
+            logger.warn("[Unit = " + unitId + "] Failed to open an SFTP session for the batch - every task opens its "
+                    + "own. error: " + e.getMessage(), e);
+        }
+        try {
+            handleBatchTasks(tasks);
+        } finally {
+            if (filesSession != null) {
+                filesSession.close();
+                filesSession = null;
+            }
+        }
+        synchronized (this) {
+            Thread.interrupted(); // the statuses must be sent anyway
+        }
+        logger.info("[Unit = " + unitId + "] Sending the statuses of a batch of " + batchStatuses.size()
+                + " tasks to server");
+        try {
+            transport.sendStatuses(batchStatuses);
+        } catch (Exception e) {
+            logger.error("[Unit = " + unitId + "] Failed sending the statuses of a batch to server. error: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    private void handleBatchTasks(List<Task> tasks) {
+        for (Task batchTask : tasks) {
+            boolean stopped;
+            synchronized (this) {
+                Thread.interrupted(); // a request to stop the previous task that arrived after it had ended
+                setTask(batchTask);
+                stopped = stoppedTaskIds.remove(batchTask.getId());
+            }
+            try {
+                if (stopped) {
+                    updateTaskStopped();
+                } else {
+                    handleBaseUnitRequest(workspaceDir);
+                }
+            } catch (InterruptedException e) {
+                try {
+                    handleStopInterrupt(true);
+                } catch (HandledInterruptedException hie) {
+                    // do nothing :)
+                }
+            } catch (HandledInterruptedException hie) {
+                // the task was stopped - continue with the next task
+            } catch (Throwable throwable) {
+                logger.error("[Study = " + taskStudy + "] [Unit = " + unitId + "] Failed handling task " + task.getId()
+                        + " of a batch: " + throwable.getMessage(), throwable);
+                cleanLocalTempDirectories();
+                updateTaskFailure(null);
+            }
+            removeThreadFromCollection();
+        }
+    }
+
+    /**
+     * Stops the task if this RequestHandler is handling it, or when it is reached if it is a later task of the batch.
+     */
+    synchronized void stopTask(int taskId) {
+        boolean batch = rabbitMessage.getMessage().equals(MachineConstants.BATCH_UNIT_REQUEST);
+        if (!batch || (task != null && task.getId() == taskId)) {
+            interrupt();
+        } else {
+            stoppedTaskIds.add(taskId);
+        }
+    }
+
+    /**
+     * @return the tasks of the request (the task to kill if it is a kill request).
+     */
+    List<Task> getTasks() {
+        return rabbitMessage.getTasks();
+    }
+
     private void removeThreadFromCollection() {
         String threadName = MachineServer.getThreadName(task);
         if (MachineServer.unitThreads.containsKey(threadName))
@@ -105,7 +213,11 @@ public class RequestHandler extends Thread {
         String threadName = MachineServer.getThreadName(task);
         if (MachineServer.unitThreads.containsKey(threadName)){
             Thread currTaskThread = MachineServer.unitThreads.get(threadName);
-            currTaskThread.interrupt();
+            if (currTaskThread instanceof RequestHandler) {
+                ((RequestHandler) currTaskThread).stopTask(task.getId());
+            } else {
+                currTaskThread.interrupt();
+            }
             logger.info("[Study = " + taskStudy + "] [Unit = " + unitId + "] Thread [" + currTaskThread.getName() + "] " +
                     " with id = [" +currTaskThread.getId() + "] was interrupted.");
         } else {
@@ -114,8 +226,10 @@ public class RequestHandler extends Thread {
         }
     }
 
-    private boolean handleReceiveFiles(String filesSourceDir) throws Throwable {
-        boolean success = true;
+    /**
+     * @return why the input files could not be received, or null if they were.
+     */
+    private FailureCause handleReceiveFiles(String filesSourceDir) throws Throwable {
         handleStopInterrupt();
         logger.info("[Study = " + taskStudy + "] [Unit = " + unitId + "] Start downloading input files. filesSourceDir= [" + filesSourceDir +
                 "] from server = [" + serverAddress + "] tmpInputFilesDir = [" + tmpInputFilesDir + "]");
@@ -131,22 +245,24 @@ public class RequestHandler extends Thread {
                 result = true;
             } catch (SecurityException se) {
                 logger.error("[Study = " + taskStudy + "] [Unit = " + unitId + "] Failed to create task tmp input Dir " + tmpInputFilesDir);
-                return false;
+                return FailureCause.WORKSPACE;
             }
             if (!result) {
                 logger.error("[Study = " + taskStudy + "] [Unit = " + unitId + "] Failed to create task tmp input Dir " + tmpInputFilesDir);
-                return false;
+                return FailureCause.WORKSPACE;
             }
         }
         handleStopInterrupt();
         SftpManager filesClient = null;
         try {
             filesClient = new SftpManager(configuration.getSshConnectionProperties(), serverAddress,
-                    filesSourceDir, tmpInputFilesDir, task);
+                    filesSourceDir, tmpInputFilesDir, task, filesSession);
+            recordEvent(TaskEvent.Type.DOWNLOAD_STARTED);
             filesClient.getFilesFromServer();
+            recordEvent(TaskEvent.Type.DOWNLOAD_ENDED);
         } catch (NetworkException e) {
             logger.error("[Study = " + taskStudy + "] [Unit = " + unitId + "] Failed receiving files from server " + e.getMessage(), e);
-            return false;
+            return FailureCause.NETWORK;
         }
 
         File tmpInputDirectoryFile = new File(tmpInputFilesDir);
@@ -155,17 +271,18 @@ public class RequestHandler extends Thread {
             handleStopInterrupt();
             logger.error("[Study = " + taskStudy + "] [Unit = "+ unitId + "] No input files were find for unit. Please verify the input path " +
                     "in the unit configurations, including the regex.");
-            return false;
+            return FailureCause.NO_INPUT;
         }
-        return success;
+        return null;
     }
 
     private void handleBaseUnitRequest(String machineWorkspaceDir) throws Throwable {
         logger.info("[Study = " + taskStudy + "] [Unit = "+ unitId + "] Start handling unit. task ID = [" + task.getId() +"]" );
         handleStopInterrupt();
-        if (!handleReceiveFiles(task.getInputPath())){
+        FailureCause receiveFailure = handleReceiveFiles(task.getInputPath());
+        if (receiveFailure != null){
             handleStopInterrupt();
-            updateTaskFailure();
+            updateTaskFailure(receiveFailure);
             return;
         }
         File outputDir = new File(tmpOutputFilesDir);
@@ -180,32 +297,35 @@ public class RequestHandler extends Thread {
             } catch (SecurityException se) {
                 handleStopInterrupt();
                 logger.error("[Study = " + taskStudy + "] [Unit = "+ unitId + "] Failed to create task tmp output Dir " + tmpOutputFilesDir);
-                updateTaskFailure();
+                updateTaskFailure(FailureCause.WORKSPACE);
                 return;
             }
             if (!result) {
                 handleStopInterrupt();
                 logger.error("[Study = " + taskStudy + "] [Unit = "+ unitId + "] Failed to create task tmp output Dir " + tmpOutputFilesDir);
-                updateTaskFailure();
+                updateTaskFailure(FailureCause.WORKSPACE);
                 return;
             }
         }
         handleStopInterrupt();
         MachineController machineController = new MachineControllerImpl();
+        recordEvent(TaskEvent.Type.PROCESS_STARTED);
         boolean success = machineController.run(task, Paths.get(unitsDir), machineWorkspaceDir);
+        recordEvent(TaskEvent.Type.PROCESS_ENDED);
         if (success){
             handleStopInterrupt();
             // need to send the output files to the server.
             if (sendOutputFilesToServer()) {
+                recordEvent(TaskEvent.Type.UPLOAD_ENDED);
                 handleStopInterrupt();
                 updateTaskCompleted();
             } else {
                 handleStopInterrupt();
-                updateTaskFailure();
+                updateTaskFailure(FailureCause.NETWORK);
             }
         } else {
             handleStopInterrupt();
-            updateTaskFailure();
+            updateTaskFailure(FailureCause.UNIT);
         }
         // delete local input & output dirs
         cleanLocalTempDirectories();
@@ -255,7 +375,7 @@ public class RequestHandler extends Thread {
         try {
             handleStopInterrupt();
             filesUploader = new SftpManager(configuration.getSshConnectionProperties(), serverAddress,
-                    task.getOutputPath(), tmpOutputFilesDir, task);
+                    task.getOutputPath(), tmpOutputFilesDir, task, filesSession);
             handleStopInterrupt();
             filesUploader.uploadFilesToServer();
         } catch (NetworkException e) {
@@ -265,7 +385,14 @@ public class RequestHandler extends Thread {
         return success;
     }
 
-    private void updateTaskFailure() {
+    private void recordEvent(TaskEvent.Type type) {
+        if (timeline != null) {
+            timeline.record(task.getId(), type, task.getMachine() == null ? null : task.getMachine().getId());
+        }
+    }
+
+    private void updateTaskFailure(FailureCause cause) {
+        task.setFailureCause(cause);
         updateTaskStatus(TaskStatus.FAILED);
     }
 
@@ -279,21 +406,16 @@ public class RequestHandler extends Thread {
 
     private void updateTaskStatus(TaskStatus status) {
         logger.info("[Study = " + taskStudy + "] [Unit = "+ unitId + "] Sending task update to server. Task id = [" + task.getId() + "] status = ["+status.toString()+"]");
-        final String QUEUE_NAME =  SystemConstants.UBONGO_SERVER_TASKS_STATUS_QUEUE;
         try {
-            ConnectionFactory factory = new ConnectionFactory();
-            factory.setHost(serverAddress);
-            Connection connection = factory.newConnection();
-            Channel channel = connection.createChannel();
-            channel.queueDeclare(QUEUE_NAME, false, false, false, null);
             task.setStatus(status);
-            RabbitData message = new RabbitData(task, MachineConstants.UPDATE_TASK_REQUEST);
-            channel.basicPublish("", QUEUE_NAME, null, message.getBytes());
+            if (batchStatuses != null) {
+                batchStatuses.add(task); // sent along with the statuses of the other tasks of the batch
+                return;
+            }
+            transport.sendStatus(task);
             if (logger.isDebugEnabled()) {
-                logger.debug(" [!] Sent '" + message.getMessage() + "'");
+                logger.debug(" [!] Sent '" + MachineConstants.UPDATE_TASK_REQUEST + "'");
             }
-            channel.close();
-            connection.close();
         } catch (Exception e){
             logger.error("[Study = " + taskStudy + "] [Unit = "+ unitId + "] Failed sending task status to server. Task id = [" + task.getId() + "] Status = [" +
                     status.toString() + "] error: " + e.getMessage(), e);
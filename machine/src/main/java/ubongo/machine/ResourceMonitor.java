@@ -0,0 +1,199 @@
+package ubongo.machine;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.MachineTelemetry;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Samples the resources of the machine for its telemetry: the load average, the free memory, the free disk space in
+ * the workspace, and the memory (RSS) and CPU that the processes of every running task use. The processes of a task
+ * are the process of its unit (see {@link #processStarted(int, Process)}) and all the processes it has started (e.g.,
+ * Matlab), which are found in /proc - so the usage of the tasks is only measured on Linux, and the tasks are reported
+ * without it elsewhere.
+ */
+class ResourceMonitor {
+
+    private static final long CLOCK_TICKS_PER_SECOND = 100; // USER_HZ, which is 100 on all the common platforms
+    private static final long PAGE_SIZE_BYTES = 4096;
+    private static final long BYTES_IN_MB = 1024 * 1024;
+    private static final Path PROC = Paths.get("/proc");
+
+    private static Logger logger = LogManager.getLogger(ResourceMonitor.class);
+
+    /* the processes of the units that run, by task id */
+    private static final Map<Integer, Process> processes = new ConcurrentHashMap<>();
+
+    private final String workspace;
+    private final Map<Integer, Long> previousCpuTicks = new HashMap<>(); // by task id, as of the previous sample
+    private long previousSampleNanos;
+
+    ResourceMonitor(String workspace) {
+        this.workspace = workspace;
+    }
+
+    static void processStarted(int taskId, Process process) {
+        processes.put(taskId, process);
+    }
+
+    static void processEnded(int taskId) {
+        processes.remove(taskId);
+    }
+
+    /**
+     * @param runningTasks is the number of tasks the machine has taken (including those that have not started yet).
+     */
+    synchronized MachineTelemetry sample(int machineId, String host, int runningTasks) {
+        MachineTelemetry telemetry = new MachineTelemetry();
+        telemetry.setMachineId(machineId);
+        telemetry.setHost(host);
+        telemetry.setTime(System.currentTimeMillis());
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        telemetry.setLoadAverage(os.getSystemLoadAverage());
+        telemetry.setCores(os.getAvailableProcessors());
+        telemetry.setFreeMemoryMb(getFreeMemoryMb(os));
+        telemetry.setFreeDiskMb(workspace == null ? -1 : new File(workspace).getUsableSpace() / BYTES_IN_MB);
+        telemetry.setRunningTasks(runningTasks);
+        telemetry.setTaskUsages(sampleTasks());
+        return telemetry;
+    }
+
+    private List<MachineTelemetry.TaskUsage> sampleTasks() {
+        long now = System.nanoTime();
+        double elapsedSeconds = (now - previousSampleNanos) / 1e9;
+        previousSampleNanos = now;
+        Map<Long, ProcStat> stats = Files.isDirectory(PROC) ? readProcStats() : Collections.emptyMap();
+        if (stats.isEmpty()) {
+            previousCpuTicks.clear();
+            return new ArrayList<>();
+        }
+        Map<Long, List<Long>> children = new HashMap<>();
+        stats.values().forEach(stat -> children.computeIfAbsent(stat.ppid, ppid -> new ArrayList<>()).add(stat.pid));
+        List<MachineTelemetry.TaskUsage> usages = new ArrayList<>();
+        Map<Integer, Long> cpuTicks = new HashMap<>();
+        for (Map.Entry<Integer, Process> entry : processes.entrySet()) {
+            Long pid = getPid(entry.getValue());
+            if (pid == null || !stats.containsKey(pid)) {
+                continue;
+            }
+            long ticks = 0;
+            long rssPages = 0;
+            Deque<Long> tree = new ArrayDeque<>(Collections.singleton(pid));
+            while (!tree.isEmpty()) {
+                ProcStat stat = stats.get(tree.poll());
+                if (stat != null) {
+                    ticks += stat.cpuTicks;
+                    rssPages += stat.rssPages;
+                    tree.addAll(children.getOrDefault(stat.pid, Collections.emptyList()));
+                }
+            }
+            cpuTicks.put(entry.getKey(), ticks);
+            Long previous = previousCpuTicks.get(entry.getKey());
+            // the CPU of the processes that have ended since the previous sample is lost, so the delta may be negative
+            double cpuPercent = previous == null || elapsedSeconds <= 0 ? -1
+                    : Math.max(0, ticks - previous) * 100.0 / CLOCK_TICKS_PER_SECOND / elapsedSeconds;
+            usages.add(new MachineTelemetry.TaskUsage(entry.getKey(), rssPages * PAGE_SIZE_BYTES / BYTES_IN_MB,
+                    cpuPercent));
+        }
+        previousCpuTicks.clear();
+        previousCpuTicks.putAll(cpuTicks);
+        return usages;
+    }
+
+    private static Map<Long, ProcStat> readProcStats() {
+        Map<Long, ProcStat> stats = new HashMap<>();
+        try (Stream<Path> entries = Files.list(PROC)) {
+            entries.filter(path -> path.getFileName().toString().chars().allMatch(Character::isDigit))
+                    .forEach(path -> {
+                        ProcStat stat = ProcStat.read(path.resolve("stat"));
+                        if (stat != null) {
+                            stats.put(stat.pid, stat);
+                        }
+                    });
+        } catch (IOException e) {
+            logger.debug("Failed to list the processes in /proc", e);
+        }
+        return stats;
+    }
+
+    /**
+     * @return the memory that is available for new processes without swapping (MemAvailable, which counts the caches
+     * that can be dropped), or the free physical memory if it is unknown.
+     */
+    private static long getFreeMemoryMb(OperatingSystemMXBean os) {
+        Path meminfo = PROC.resolve("meminfo");
+        if (Files.isReadable(meminfo)) {
+            try (Stream<String> lines = Files.lines(meminfo)) {
+                Optional<String> available = lines.filter(line -> line.startsWith("MemAvailable:")).findFirst();
+                if (available.isPresent()) {
+                    return Long.parseLong(available.get().replaceAll("[^0-9]", "")) / 1024; // in kB
+                }
+            } catch (IOException | NumberFormatException e) {
+                logger.debug("Failed to read the available memory from /proc/meminfo", e);
+            }
+        }
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getFreePhysicalMemorySize() / BYTES_IN_MB;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the pid of the process, or null if the JVM does not tell (it is only exposed since Java 9, and by the
+     * process implementation of Java 8 on Unix).
+     */
+    private static Long getPid(Process process) {
+        try {
+            return (Long) Process.class.getMethod("pid").invoke(process);
+        } catch (ReflectiveOperationException e) {
+            // before Java 9
+        }
+        try {
+            java.lang.reflect.Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return (long) field.getInt(process);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static final class ProcStat {
+
+        private final long pid;
+        private final long ppid;
+        private final long cpuTicks; // user and system
+        private final long rssPages;
+
+        private ProcStat(long pid, long ppid, long cpuTicks, long rssPages) {
+            this.pid = pid;
+            this.ppid = ppid;
+            this.cpuTicks = cpuTicks;
+            this.rssPages = rssPages;
+        }
+
+        /**
+         * @return the stat of the process, or null if it could not be read (e.g., the process has just ended).
+         */
+        static ProcStat read(Path statFile) {
+            try {
+                String stat = new String(Files.readAllBytes(statFile));
+                // the name of the process is in parentheses and may contain spaces - the fields after it are split
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return new ProcStat(Long.parseLong(stat.substring(0, stat.indexOf(' '))), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[11]) + Long.parseLong(fields[12]), Long.parseLong(fields[21]));
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+}
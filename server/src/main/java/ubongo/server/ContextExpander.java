@@ -0,0 +1,134 @@
+package ubongo.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.persistence.Persistence;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The ContextExpander is the stage of the queue in which tasks with context wildcards (i.e., ".*") are replaced by
+ * the tasks corresponding to the different context combinations. It takes the expansion off the producer thread, so a
+ * study with thousands of subjects does not hold up the dispatching of other flows:
+ * the directory levels of every task are expanded in parallel on a fork-join pool, the directory listings are cached
+ * for a short time ({@link DirectoryListingCache}), and the replacements of all the tasks expanded meanwhile are
+ * persisted together in one batch. Once the replacements are in the DB (in status 'New'), the producer is notified.
+ */
+class ContextExpander {
+
+    private static final int EXPANSION_PARALLELISM = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private static final int MAX_CONCURRENT_EXPANSIONS = 2;
+    private static final long LISTING_TTL_MILLIS = 60 * 1000;
+    private static final long PERSIST_INTERVAL_MILLIS = 200;
+
+    private static Logger logger = LogManager.getLogger(ContextExpander.class);
+
+    private final Persistence persistence;
+    private final Runnable onNewTasks;
+    private final DirectoryListingCache directoryListingCache =
+            new DirectoryListingCache(Task::listSubDirectories, LISTING_TTL_MILLIS);
+    private final Set<Integer> taskIdsInExpansion = ConcurrentHashMap.newKeySet();
+    private final Map<Task, List<Task>> expanded = new LinkedHashMap<>();
+    private ForkJoinPool pool;
+    private ExecutorService expansions;
+    private ScheduledExecutorService persister;
+
+    /**
+     * @param onNewTasks is called after replacements were inserted to the DB.
+     */
+    ContextExpander(Persistence persistence, Runnable onNewTasks) {
+        this.persistence = persistence;
+        this.onNewTasks = onNewTasks;
+    }
+
+    void start() {
+        pool = new ForkJoinPool(EXPANSION_PARALLELISM);
+        expansions = Executors.newFixedThreadPool(MAX_CONCURRENT_EXPANSIONS);
+        persister = Executors.newSingleThreadScheduledExecutor();
+        persister.scheduleWithFixedDelay(this::persistExpanded,
+                PERSIST_INTERVAL_MILLIS, PERSIST_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (expansions != null) expansions.shutdownNow();
+        if (pool != null) pool.shutdownNow();
+        if (persister != null) persister.shutdownNow();
+        synchronized (expanded) {
+            expanded.clear();
+        }
+        taskIdsInExpansion.clear();
+        directoryListingCache.clear();
+    }
+
+    /**
+     * @return true iff no task is being expanded or waits for its replacements to be persisted.
+     */
+    boolean isIdle() {
+        return taskIdsInExpansion.isEmpty();
+    }
+
+    /**
+     * Expands the task in the background, unless it is already being expanded (the original task remains in status
+     * 'New' until its replacements are persisted, so the producer may come across it again meanwhile).
+     */
+    void expand(Task task) {
+        if (!taskIdsInExpansion.add(task.getId())) {
+            return;
+        }
+        expansions.execute(() -> {
+            try {
+                List<Task> tasks = Task.createTasks(task.getUnit(), task.getContext(), task.getSerialNumber(),
+                        directoryListingCache, pool);
+                synchronized (expanded) {
+                    expanded.put(task, tasks);
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Task with id=" + task.getId() + " was found to include context wildcards and was "
+                            + "expanded to " + tasks.size() + " different tasks within flow with id=" + task.getFlowId());
+                }
+            } catch (Exception e) {
+                logger.error("Failed to insert context to task with id=" + task.getId() + " (flow id="
+                        + task.getFlowId() + "). The task is marked as failed.", e);
+                failTask(task);
+            }
+        });
+    }
+
+    private void persistExpanded() {
+        Map<Task, List<Task>> batch;
+        synchronized (expanded) {
+            if (expanded.isEmpty()) {
+                return;
+            }
+            batch = new LinkedHashMap<>(expanded);
+            expanded.clear();
+        }
+        try {
+            persistence.insertContextToTasks(batch);
+        } catch (Exception e) {
+            logger.error("Failed to replace " + batch.size() + " tasks with context wildcards in the DB. "
+                    + "The tasks will be expanded again.", e);
+        } finally {
+            // on failure the original tasks are still 'New', so the producer will hand them over again
+            for (Task task : batch.keySet()) {
+                taskIdsInExpansion.remove(task.getId());
+            }
+        }
+        onNewTasks.run();
+    }
+
+    private void failTask(Task task) {
+        try {
+            task.setStatus(TaskStatus.FAILED);
+            persistence.updateTaskStatus(task);
+        } catch (Exception e) {
+            logger.error("Failed to update the status of task with id=" + task.getId() + " to "
+                    + TaskStatus.FAILED, e);
+        } finally {
+            taskIdsInExpansion.remove(task.getId());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ubongo.server;
+
+import ubongo.common.datatypes.Task;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the sub-directories of the directories that were listed during context expansion for a limited time, so
+ * expanding many tasks of the same study (e.g., all the units of a flow with wildcard subjects) walks the file system
+ * once rather than once per task. New sub-directories become visible after the time-to-live has elapsed.
+ */
+class DirectoryListingCache implements Task.DirectoryLister {
+
+    private static final int MAX_ENTRIES = 10000;
+
+    private final Task.DirectoryLister lister;
+    private final long ttlMillis;
+    private final Map<Path, Listing> listings = new ConcurrentHashMap<>();
+
+    DirectoryListingCache(Task.DirectoryLister lister, long ttlMillis) {
+        this.lister = lister;
+        this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public List<Path> listSubDirectories(Path dir) throws IOException {
+        long now = System.currentTimeMillis();
+        Listing listing = listings.get(dir);
+        if (listing == null || listing.expiry <= now) {
+            if (listings.size() >= MAX_ENTRIES) {
+                listings.values().removeIf(l -> l.expiry <= now);
+            }
+            listing = new Listing(Collections.unmodifiableList(lister.listSubDirectories(dir)), now + ttlMillis);
+            listings.put(dir, listing);
+        }
+        return listing.subDirs;
+    }
+
+    void clear() {
+        listings.clear();
+    }
+
+    private static final class Listing {
+
+        private final List<Path> subDirs;
+        private final long expiry;
+
+        Listing(List<Path> subDirs, long expiry) {
+            this.subDirs = subDirs;
+            this.expiry = expiry;
+        }
+    }
+}
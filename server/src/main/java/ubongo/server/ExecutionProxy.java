@@ -1,60 +1,101 @@
 package ubongo.server;
 
-import com.rabbitmq.client.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import ubongo.common.constants.MachineConstants;
-import ubongo.common.constants.SystemConstants;
 import ubongo.common.datatypes.*;
+import ubongo.common.metrics.MetricsRegistry;
+import ubongo.common.transport.Transport;
 
-public enum ExecutionProxy {
+import java.util.List;
+import java.util.stream.Collectors;
 
-    INSTANCE; // This is a singleton
+/**
+ * The ExecutionProxy is the TaskDispatcher of the server. It sends the tasks to their machines (and asks the machines
+ * to kill tasks) through the configured {@link Transport}.
+ */
+public class ExecutionProxy implements TaskDispatcher {
 
-    public static ExecutionProxy getInstance() {
-        return INSTANCE;
-    }
+    private static final String METRIC_PUBLISH_SECONDS = "ubongo_transport_publish_seconds";
+    private static final String METRIC_PUBLISH_FAILURES = "ubongo_transport_publish_failures_total";
+    private static final String METRIC_MESSAGE_LABEL = "message";
 
     private static Logger logger = LogManager.getLogger(ExecutionProxy.class);
-    private QueueManager queueManager;
+    private static final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final Transport transport;
+
+    public ExecutionProxy(Transport transport) {
+        this.transport = transport;
+    }
 
     /**
      * @param task to execute
      * @param queueManager to send the task back after execution
      */
+    @Override
     public void execute(Task task, QueueManager queueManager) {
-        this.queueManager = queueManager;
-        sendRequestToMachine(task, SystemConstants.UBONGO_RABBIT_TASKS_QUEUE,
-                MachineConstants.BASE_UNIT_REQUEST );
+        logger.info("Sending task to the machine. TaskId=[" + task.getId() + "] Machine=["
+                + task.getMachine().getHost() + "]");
+        long start = System.nanoTime();
+        try {
+            transport.dispatch(task);
+            recordPublish("task", start);
+        } catch (Exception e) {
+            countPublishFailure("task");
+            logger.error("Failed sending task to machine. TaskId=[" + task.getId() +"] Machine=["
+                    + task.getMachine().getHost() + "] error: " + e.getMessage());
+            task.setStatus(TaskStatus.FAILED);
+            task.setFailureCause(FailureCause.DISPATCH);
+            queueManager.updateTaskAfterExecution(task);
+        }
     }
 
-    public void killTask(Task task) {
-        sendRequestToMachine(task, SystemConstants.UBONGO_RABBIT_KILL_TASKS_QUEUE,
-                MachineConstants.KILL_TASK_REQUEST );
+    /**
+     * @param tasks to execute (their machine is already set, and is the same for all of them)
+     * @param queueManager to send the tasks back after execution
+     */
+    @Override
+    public void executeBatch(List<Task> tasks, QueueManager queueManager) {
+        logger.info("Sending a batch of " + tasks.size() + " tasks to the machine. TaskIds=[" + tasks.stream()
+                .map(t -> Integer.toString(t.getId())).collect(Collectors.joining(",")) + "] Machine=["
+                + tasks.get(0).getMachine().getHost() + "]");
+        long start = System.nanoTime();
+        try {
+            transport.dispatchBatch(tasks);
+            recordPublish("batch", start);
+        } catch (Exception e) {
+            countPublishFailure("batch");
+            logger.error("Failed sending a batch of tasks to machine. Machine=["
+                    + tasks.get(0).getMachine().getHost() + "] error: " + e.getMessage());
+            for (Task task : tasks) {
+                task.setStatus(TaskStatus.FAILED);
+                task.setFailureCause(FailureCause.DISPATCH);
+                queueManager.updateTaskAfterExecution(task);
+            }
+        }
     }
 
-    private void sendRequestToMachine(Task task, String queue, String request) {
-        logger.info("Sending request to the machine. Queue=[" + queue + "] RequestTask=["
-                + request + "] taskId=[" + task.getId() + "]");
+    @Override
+    public void killTask(Task task) {
+        logger.info("Sending kill request to the machine. TaskId=[" + task.getId() + "] Machine=["
+                + task.getMachine().getHost() + "]");
+        long start = System.nanoTime();
         try {
-            ConnectionFactory factory = new ConnectionFactory();
-            factory.setHost(task.getMachine().getDescription());
-            Connection connection = factory.newConnection();
-            Channel channel = connection.createChannel();
-            channel.queueDeclare(queue, false, false, false, null);
-            RabbitData message = new RabbitData(task, request);
-            channel.basicPublish("", queue, null, message.getBytes());
-            if (logger.isDebugEnabled()) {
-                logger.debug("Sent '" + message.getMessage() + "'");
-            }
-            channel.close();
-            connection.close();
-        } catch (Exception e){
-            logger.error("Failed sending task to machine. TaskId=[" + task.getId() +"] Machine=["
+            transport.kill(task);
+            recordPublish("kill", start);
+        } catch (Exception e) {
+            countPublishFailure("kill");
+            logger.error("Failed sending kill request to machine. TaskId=[" + task.getId() +"] Machine=["
                     + task.getMachine().getHost() + "] error: " + e.getMessage());
-            task.setStatus(TaskStatus.FAILED);
-            queueManager.updateTaskAfterExecution(task);
         }
     }
 
-}
\ No newline at end of file
+    private static void recordPublish(String message, long startNanos) {
+        metrics.histogram(METRIC_PUBLISH_SECONDS, "Time to send a message to a machine, by message type",
+                METRIC_MESSAGE_LABEL, message).recordSince(startNanos);
+    }
+
+    private static void countPublishFailure(String message) {
+        metrics.counter(METRIC_PUBLISH_FAILURES, "Messages that could not be sent to a machine, by message type",
+                METRIC_MESSAGE_LABEL, message).increment();
+    }
+}
@@ -1,29 +1,40 @@
 package ubongo.server;
 
-import com.rabbitmq.client.*;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import ubongo.common.constants.SystemConstants;
+import ubongo.common.constants.MachineConstants;
 import ubongo.common.datatypes.*;
 import ubongo.common.datatypes.unit.Unit;
+import ubongo.common.metrics.MetricsHttpServer;
+import ubongo.common.transport.Transport;
+import ubongo.common.transport.TransportFactory;
+import ubongo.persistence.ClusterProperties;
 import ubongo.persistence.Configuration;
+import ubongo.persistence.MetricsProperties;
 import ubongo.persistence.Persistence;
+import ubongo.persistence.PersistenceFactory;
+import ubongo.persistence.TaskTimelineRecorder;
 import ubongo.persistence.UnitAdder;
 import ubongo.persistence.exceptions.PersistenceException;
-import ubongo.persistence.PersistenceImpl;
+import ubongo.persistence.journal.JournaledPersistence;
 import ubongo.server.exceptions.MachinesManagementException;
 
 import javax.xml.bind.UnmarshalException;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 /**
  * This class expects the following JVM options (i.e., variables passed as "java -Dvar_name=value -jar jar_name"):
@@ -31,27 +42,77 @@ import java.util.concurrent.TimeoutException;
  *  -Dunits_path - path to the units directory (e.g., /some/path/units)
  *  -Dqueries - path to the queries.properties file (e.g., /some/path/db/queries.properties)
  *  -Dlog_directory - path to log directory (e.g., /some/path/to/log/dir) - used by log4j configuration
+ *  -Dstatus_journal - (optional) path to the task status journal file (default: ubongo-status.journal in the
+ *                     working directory, or ubongo-status-[server id].journal in a cluster)
+ *  -Dserver_id - (optional) the id of the server in a cluster of servers (see {@link ClusterProperties}), unique
+ *                among the servers (default: pid@host)
  */
 public class ExecutionServer {
 
     private static final String CONFIG_PATH = "config";
     private static final String UNITS_DIR_PATH = "units_path";
     private static final String QUERIES_PATH = "queries";
+    private static final String STATUS_JOURNAL_PATH = "status_journal";
+    private static final String DEFAULT_STATUS_JOURNAL_PATH = "ubongo-status.journal";
+    private static final String SERVER_ID = "server_id";
 
     private static volatile boolean keepRunning = true;
-    private static final int SECONDS_INTERVAL_FOR_REQUESTS_HANDLER = 20;
+    private static volatile boolean restartRequested = false; // by notifyFatal
+    private static volatile boolean shutdownRequested = false; // by the shutdown hook
+    private static final int MILLIS_BEFORE_RESTART = 5000;
+    private static final int MILLIS_INTERVAL_FOR_REQUESTS_HANDLER = 500;
+    private static final int REQUESTS_RESCAN_WINDOW = 100; // ids below the newest request that are polled again
 
     private static final Logger logger = LogManager.getLogger(ExecutionServer.class);
     private static ScheduledExecutorService requestsHandler;
+    private static RequestsDispatcher requestsDispatcher;
+
+    /* id of the last execution request that was retrieved from the DB - only newer requests are polled, and those of
+       the trailing window below it: request ids are allocated before their transactions commit, so a request may
+       become visible after a request with a greater id */
+    private static volatile int lastRequestId = 0;
+
+    /* ids of the requests in the trailing window that were dispatched (only used by the requests handler thread) */
+    private static final TreeSet<Integer> dispatchedRequestIds = new TreeSet<>();
+
+    /* ids of the requests that were left to the other servers of the cluster - they are polled again until they are
+       handled, in case the server they were left to is gone (only used by the requests handler thread) */
+    private static final TreeSet<Integer> deferredRequestIds = new TreeSet<>();
+    private static ServerCluster cluster; // null if this is the only server
+    private static TaskReconciler reconciler; // null in a cluster
     private static MachinesManager machinesManager;
     private static QueueManager queueManager;
+    private static Transport transport;
     private static ExecutionProxy executionProxy;
+    private static MetricsHttpServer metricsServer;
+    private static final ObjectMapper telemetryMapper = new ObjectMapper();
     private static Persistence persistence;
+    private static TaskTimelineRecorder timeline;
     private static String unitsDirPath;
 
     public static void main(String[] args) {
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                shutdownRequested = true;
+                keepRunning = false;
+                try {
+                    mainThread.join();
+                } catch (InterruptedException e) {
+                    // do nothing
+                }
+            }
+        });
         try {
             executionServerMain();
+            while (restartRequested && !shutdownRequested) {
+                Thread.sleep(MILLIS_BEFORE_RESTART);
+                if (shutdownRequested) {
+                    break; // while waiting to restart
+                }
+                restartRequested = false;
+                executionServerMain();
+            }
         } catch (Exception e) {
             logger.fatal("Server shutting down due to an unexpected exception", e);
             stop();
@@ -59,6 +120,9 @@ public class ExecutionServer {
     }
 
     private static void executionServerMain() {
+        if (shutdownRequested) {
+            return;
+        }
         logger.info("Starting the execution server...");
         keepRunning = true;
         String configPath = System.getProperty(CONFIG_PATH);
@@ -94,29 +158,70 @@ public class ExecutionServer {
     private static void initServer(String configPath, String unitsDirPath, String queriesPath) throws UnmarshalException {
         Configuration configuration = Configuration.loadConfiguration(configPath);
         List<Machine> machines = configuration.getMachines();
-        persistence = new PersistenceImpl(unitsDirPath, configuration.getDbConnectionProperties(),
-                configuration.getSshConnectionProperties(), machines, queriesPath, configuration.getDebug());
-        executionProxy = ExecutionProxy.getInstance();
-        machinesManager = new MachinesManager(machines, persistence);
-        queueManager = new QueueManager(persistence, machinesManager);
+        ClusterProperties clusterProperties = configuration.getClusterProperties();
+        String serverId = clusterProperties.isEnabled()
+                ? System.getProperty(SERVER_ID, ManagementFactory.getRuntimeMXBean().getName()) : null;
+        persistence = PersistenceFactory.create(configuration, unitsDirPath, machines, queriesPath,
+                configuration.getDebug());
+        persistence = new JournaledPersistence(persistence, System.getProperty(STATUS_JOURNAL_PATH,
+                serverId == null ? DEFAULT_STATUS_JOURNAL_PATH : "ubongo-status-" + serverId + ".journal"));
+        cluster = serverId == null ? null : new ServerCluster(clusterProperties, persistence, serverId);
+        transport = TransportFactory.create(configuration.getTransport(), "localhost");
+        executionProxy = new ExecutionProxy(transport);
+        machinesManager = new MachinesManager(machines, persistence, configuration.getLocalityProperties());
+        timeline = new TaskTimelineRecorder(persistence);
+        queueManager = new QueueManager(persistence, machinesManager, executionProxy, timeline,
+                configuration.getSpeculationProperties(), configuration.getBatchingProperties(), cluster);
+        reconciler = cluster == null ? new TaskReconciler(persistence, transport, executionProxy, queueManager) : null;
         requestsHandler = Executors.newScheduledThreadPool(1);
+        requestsDispatcher = new RequestsDispatcher(ExecutionServer::handleRequest, ExecutionServer::getFlowIdOfTask);
+        lastRequestId = 0;
+        dispatchedRequestIds.clear();
+        deferredRequestIds.clear();
+        initMetricsServer(configuration.getMetricsProperties());
+    }
+
+    private static void initMetricsServer(MetricsProperties metricsProperties) {
+        metricsServer = null;
+        if (!metricsProperties.isServerExported()) {
+            return;
+        }
+        try {
+            metricsServer = new MetricsHttpServer(metricsProperties.getPort(), "server");
+            metricsServer.serve(MetricsHttpServer.TELEMETRY_PATH, ExecutionServer::getTelemetryJson);
+            metricsServer.start();
+        } catch (IOException e) {
+            // the server can do without
+            logger.error("Failed to serve the metrics on port " + metricsProperties.getPort(), e);
+        }
+    }
+
+    /**
+     * @param path is "/{machineId}".
+     * @return the recent telemetry of the machine as a JSON array, the oldest sample first, or null if the path is not
+     * of a machine.
+     */
+    private static String getTelemetryJson(String path) {
+        int machineId;
+        try {
+            machineId = Integer.parseInt(path.startsWith("/") ? path.substring(1) : path);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        MachinesManager currentMachinesManager = machinesManager;
+        List<MachineTelemetry> history = currentMachinesManager == null ? new ArrayList<>()
+                : currentMachinesManager.getTelemetry().getHistory(machineId);
+        try {
+            return telemetryMapper.writeValueAsString(history);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize the telemetry of machine with id=" + machineId, e);
+        }
     }
 
     @SuppressWarnings("StatementWithEmptyBody")
     private static void runServer() {
-        final Thread mainThread = Thread.currentThread();
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            public void run() {
-                keepRunning = false;
-                try {
-                    mainThread.join();
-                } catch (InterruptedException e) {
-                    // do nothing
-                }
-            }
-        });
         start();
-        while(keepRunning);
+        while(keepRunning && !shutdownRequested); // keepRunning is set when the server is started again
         stop();
     }
 
@@ -130,6 +235,7 @@ public class ExecutionServer {
             keepRunning = false;
             return;
         }
+        timeline.start();
         try {
             machinesManager.start();
         } catch (PersistenceException e) {
@@ -139,7 +245,16 @@ public class ExecutionServer {
             return;
         }
         try {
-            cleanup(); // also starts the queue manager!
+            if (cluster == null) {
+                cleanup();
+            } else {
+                // the other servers still run, so only the flows of the servers that are gone are cleaned up
+                cluster.start(queueManager);
+            }
+            if (reconciler != null) {
+                reconciler.snapshot(); // before the QueueManager dispatches new tasks
+            }
+            queueManager.start();
         } catch (PersistenceException e) {
             logger.fatal("Server has failed to perform cleanup on the database.", e);
             keepRunning = false;
@@ -149,34 +264,121 @@ public class ExecutionServer {
             tasksStatusListener();
         } catch (Exception e) {
             queueManager = null;
-            logger.fatal("Server has failed to start the task status listener (RabbitMQ listener).", e);
+            logger.fatal("Server has failed to start the task status listener.", e);
             keepRunning = false;
             return;
         }
-
-        requestsHandler.scheduleAtFixedRate(() -> {
-            List<ExecutionRequest> requests;
+        try {
+            transport.listenForTelemetry(machinesManager::telemetryReceived);
+        } catch (IOException e) {
+            // the machines are selected without their telemetry
+            logger.error("Server has failed to start the telemetry listener.", e);
+        }
+        if (reconciler != null) {
             try {
-                requests = persistence.getNewRequests();
+                // the machines answer through the status listener
+                reconciler.reconcile(machinesManager.getMachines(), ExecutionServer::killTask);
             } catch (PersistenceException e) {
-                notifyFatal(e);
+                logger.fatal("Server has failed to reconcile the processing tasks with the machines.", e);
+                keepRunning = false;
                 return;
             }
-            requests.stream().forEach(ExecutionServer::handleRequest);
-        }, 0, SECONDS_INTERVAL_FOR_REQUESTS_HANDLER, TimeUnit.SECONDS);
-    }
+        }
 
-    private static void stop() {
-        logger.info("Server is shutting down...");
-        if (queueManager != null) queueManager.stop();
-        if (machinesManager != null) machinesManager.stop();
-        if (persistence != null) {
+        requestsHandler.scheduleWithFixedDelay(() -> {
+            // an exception that escapes would stop the scheduling of the poller for good
             try {
-                persistence.stop();
-            } catch (PersistenceException e) {
-                logger.warn("Server has failed to stop the persistence module.", e);
+                List<ExecutionRequest> requests;
+                int windowStart = Math.max(0, lastRequestId - REQUESTS_RESCAN_WINDOW);
+                try {
+                    requests = persistence.getNewRequests(deferredRequestIds.isEmpty() ? windowStart
+                            : Math.min(windowStart, deferredRequestIds.first() - 1));
+                } catch (PersistenceException e) {
+                    notifyFatal(e);
+                    return;
+                }
+                // the deferred requests that are no longer new were handled by other servers
+                deferredRequestIds.retainAll(requests.stream().map(ExecutionRequest::getId)
+                        .collect(Collectors.toSet()));
+                dispatchedRequestIds.headSet(windowStart, true).clear();
+                for (ExecutionRequest request : requests) {
+                    if (dispatchedRequestIds.contains(request.getId())
+                            || request.getId() <= windowStart && !deferredRequestIds.contains(request.getId())) {
+                        continue; // already dispatched
+                    }
+                    lastRequestId = Math.max(lastRequestId, request.getId());
+                    if (cluster == null || claimRequest(request)) {
+                        deferredRequestIds.remove(request.getId());
+                        dispatchedRequestIds.add(request.getId());
+                        requestsDispatcher.dispatch(request);
+                    } else {
+                        deferredRequestIds.add(request.getId());
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.error("Failed to handle the new requests", e);
+            }
+        }, 0, MILLIS_INTERVAL_FOR_REQUESTS_HANDLER, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the id of the flow of the task, or null if the task could not be read.
+     */
+    private static Integer getFlowIdOfTask(int taskId) {
+        try {
+            Task task = persistence.getTask(taskId);
+            return task == null ? null : task.getFlowId();
+        } catch (PersistenceException e) {
+            return null; // e.g., there is no such task - the handler reports the failure
+        }
+    }
+
+    /**
+     * Decides whether this server handles the request, in a cluster: the requests of a flow or of its tasks are
+     * handled by the server that schedules the flow (a flow that no server schedules is claimed by this server), a
+     * request to run the new flows is handled by every server (each reads the flows it schedules) and any other
+     * request is handled by the first server that claims it.
+     * @return true iff this server handles the request (otherwise it is left to the other servers).
+     */
+    private static boolean claimRequest(ExecutionRequest request) {
+        boolean claimed;
+        try {
+            switch (request.getAction()) {
+                case RUN_FLOWS:
+                    return true;
+                case RUN_FLOW:
+                case CANCEL_FLOW:
+                    claimed = cluster.claimFlow(request.getEntityId());
+                    break;
+                case CANCEL_TASK:
+                case KILL_TASK:
+                case RESUME_TASK:
+                    Task task = persistence.getTask(request.getEntityId());
+                    // there is no such task - the handler of the first server that claims it reports the failure
+                    claimed = task == null ? cluster.claimRequest(request.getId())
+                            : cluster.claimFlow(task.getFlowId());
+                    break;
+                default:
+                    claimed = cluster.claimRequest(request.getId());
+            }
+            if (claimed) {
+                // it may have been handled by another server since it was read
+                List<ExecutionRequest> requests = persistence.getNewRequests(request.getId() - 1);
+                if (requests.isEmpty() || requests.get(0).getId() != request.getId()) {
+                    cluster.releaseRequest(request.getId());
+                    return false;
+                }
             }
+        } catch (PersistenceException e) {
+            // e.g., there is no such task - the handler reports the failure
+            return cluster.claimRequest(request.getId());
         }
+        return claimed;
+    }
+
+    private static void stop() {
+        logger.info("Server is shutting down...");
+        // stop handling requests first, since the handlers use all other modules
         if (requestsHandler != null && !requestsHandler.isTerminated()) {
             requestsHandler.shutdown();
             boolean terminated;
@@ -190,6 +392,22 @@ public class ExecutionServer {
                 logger.warn("Server has failed to stop the requests handler.");
             }
         }
+        if (requestsDispatcher != null) {
+            requestsDispatcher.stop(30, TimeUnit.SECONDS);
+        }
+        if (queueManager != null) queueManager.stop();
+        if (cluster != null) cluster.stop();
+        if (transport != null) transport.close();
+        if (machinesManager != null) machinesManager.stop();
+        if (metricsServer != null) metricsServer.stop();
+        if (timeline != null) timeline.stop();
+        if (persistence != null) {
+            try {
+                persistence.stop();
+            } catch (PersistenceException e) {
+                logger.warn("Server has failed to stop the persistence module.", e);
+            }
+        }
     }
 
     private static void handleRequest(ExecutionRequest request) {
@@ -209,6 +427,10 @@ public class ExecutionServer {
                 case RUN_FLOW:
                     queueManager.startFlow(entityId);
                     break;
+                case RUN_FLOWS:
+                    // the flows were already started when they were created - only the producer needs to know
+                    queueManager.notifyNewTasks();
+                    break;
                 case CANCEL_FLOW:
                     cancelFlow(entityId);
                     break;
@@ -218,6 +440,13 @@ public class ExecutionServer {
                 case DEACTIVATE_MACHINE:
                     changeMachineActivityStatus(entityId, false);
                     break;
+                case DRAIN_MACHINE:
+                    machinesManager.drainMachine(entityId);
+                    break;
+                case DRAIN_MACHINES:
+                    // the entity of a rolling drain is the number of machines to drain at a time
+                    machinesManager.startRollingDrain(entityId);
+                    break;
                 case GENERATE_BASH:
                     generateBashFileForUnit(entityId);
                     break;
@@ -237,6 +466,9 @@ public class ExecutionServer {
                         + request.getAction() + ") to status="
                         + request.getStatus(), e);
             }
+            if (cluster != null) {
+                cluster.releaseRequest(request.getId());
+            }
         }
     }
 
@@ -250,6 +482,7 @@ public class ExecutionServer {
             logger.warn("Tried to stop task with null machine");
         } else {
             executionProxy.killTask(task);
+            queueManager.killSpeculativeCopy(task);
             boolean setFailed;
             try {
                 setFailed = !machinesManager.isAvailable(task.getMachine().getId());
@@ -296,15 +529,19 @@ public class ExecutionServer {
 
     /**
      * A call to this function notifies the Server that a fatal error has occurred and then it tries to take some
-     * actions to repair the bad situation that might have been caused.
+     * actions to repair the bad situation that might have been caused: the main thread stops the server and starts it
+     * again (the calling thread is usually one of the threads that are stopped, so it only asks for the restart).
+     * The tasks that run on the machines are taken over again when the server starts (see {@link TaskReconciler}).
      * @param e throwable that caused the fatal error.
      */
     protected static void notifyFatal(Throwable e) {
         /* currently we do not care what Throwable resulted in this fatal because
            we always just perform a cleanup routine */
-        logger.info("Fatal error occurred. Restarting server...");
-        stop();
-        executionServerMain();
+        if (!restartRequested) {
+            logger.info("Fatal error occurred. Restarting server...");
+        }
+        restartRequested = true;
+        keepRunning = false;
     }
 
     private static void generateBashFileForUnit(int unitId) throws PersistenceException {
@@ -331,33 +568,25 @@ public class ExecutionServer {
     private static void cleanup() throws PersistenceException {
         logger.info("Performing database cleanup");
         persistence.performCleanup();
-        List<Task> processing = persistence.getProcessingTasks();
-        queueManager.start();
-        processing.forEach(ExecutionServer::killTask);
     }
 
-    private static void tasksStatusListener() throws IOException, TimeoutException {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost("localhost");
-        Connection connection = factory.newConnection();
-        Channel channel = connection.createChannel();
-        String queue = SystemConstants.UBONGO_SERVER_TASKS_STATUS_QUEUE;
-        channel.queueDeclare(queue, false, false, false, null);
-        Consumer consumer = new DefaultConsumer(channel) {
-            @Override
-            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
-                    throws IOException {
-                try {
-                    RabbitData message = RabbitData.fromBytes(body);
-                    logger.info("Received message '" + message.getMessage() + "' from RabbitMQ");
-                    Task task = message.getTask();
-                    queueManager.updateTaskAfterExecution(task);
-                } catch (Exception e){
-                    throw new IOException(e);
+    private static void tasksStatusListener() throws IOException {
+        transport.listenForStatus(cluster == null ? null : cluster.getServerId(), message -> {
+            if (message.getMessage().equals(MachineConstants.RUNNING_TASKS_REPORT)) {
+                if (reconciler != null) {
+                    reconciler.answerReceived(message);
                 }
+                return;
             }
-        };
-        channel.basicConsume(queue, true, consumer);
+            for (Task task : message.getTasks()) {
+                logger.info("Received message '" + message.getMessage() + "' for task with id=" + task.getId());
+                if (reconciler != null && reconciler.isKilledOrphan(task)) {
+                    logger.info("Ignoring status " + task.getStatus() + " of orphan task with id=" + task.getId());
+                    continue;
+                }
+                queueManager.updateTaskAfterExecution(task);
+            }
+        });
     }
 
     private static void notifyQueueBeforeCancel(Task task) {
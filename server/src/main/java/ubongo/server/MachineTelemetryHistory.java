@@ -0,0 +1,128 @@
+package ubongo.server;
+
+import ubongo.common.datatypes.MachineTelemetry;
+import ubongo.common.metrics.MetricsRegistry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The recent telemetry of the machines (see {@link ubongo.common.transport.Transport#sendTelemetry}), kept in memory
+ * only - it is of no use after a while, and every server of a cluster receives it. A machine is overloaded by its
+ * latest sample, if it is recent: when its load average is well above its cores, or it is short of memory or of disk
+ * space in its workspace. The MachinesManager leaves the overloaded machines out when it selects machines for new
+ * tasks, unless all of them are.
+ * The latest samples are exported as gauges by machine (and the load of all the machines together), so the
+ * utilization of the cluster can be graphed from the metrics, and the history of every machine, with the usage of its
+ * tasks, is served with the metrics (see {@link #getHistory(int)}) for the web service to graph.
+ */
+class MachineTelemetryHistory {
+
+    private static final int MAX_SAMPLES_PER_MACHINE = 60; // ten minutes at the default telemetry interval
+    private static final long MAX_SAMPLE_AGE_MILLIS = TimeUnit.MINUTES.toMillis(1); // older samples are stale
+
+    /* the latest sample of an overloaded machine shows any of these */
+    private static final double MAX_LOAD_PER_CORE = 1.5;
+    private static final long MIN_FREE_MEMORY_MB = 512;
+    private static final long MIN_FREE_DISK_MB = 1024;
+
+    private static final MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+    /* the samples of every machine, the latest last - every deque is guarded by itself */
+    private final Map<Integer, Deque<MachineTelemetry>> samples = new ConcurrentHashMap<>();
+
+    MachineTelemetryHistory() {
+        metrics.gauge("ubongo_cluster_load_percent", "The load average of all the machines that have sent telemetry "
+                + "recently, in percents of their cores").setSupplier(this::getClusterLoadPercent);
+    }
+
+    void received(MachineTelemetry telemetry) {
+        Deque<MachineTelemetry> history = samples.computeIfAbsent(telemetry.getMachineId(), id -> new ArrayDeque<>());
+        synchronized (history) {
+            history.addLast(telemetry);
+            while (history.size() > MAX_SAMPLES_PER_MACHINE) {
+                history.removeFirst();
+            }
+        }
+        String host = telemetry.getHost();
+        if (telemetry.getLoadAverage() >= 0 && telemetry.getCores() > 0) {
+            metrics.gauge("ubongo_machine_load_percent", "The load average of the machine in percents of its cores, "
+                    + "by machine", "machine", host).set(Math.round(loadPerCore(telemetry) * 100));
+        }
+        metrics.gauge("ubongo_machine_free_memory_mb", "The memory available on the machine, by machine",
+                "machine", host).set(telemetry.getFreeMemoryMb());
+        metrics.gauge("ubongo_machine_free_disk_mb", "The free disk space in the workspace of the machine, by machine",
+                "machine", host).set(telemetry.getFreeDiskMb());
+        metrics.gauge("ubongo_machine_running_tasks", "The tasks the machine has taken, as it reports them, by machine",
+                "machine", host).set(telemetry.getRunningTasks());
+    }
+
+    /**
+     * @return the samples of the machine, the latest last (empty if it has sent none).
+     */
+    List<MachineTelemetry> getHistory(int machineId) {
+        Deque<MachineTelemetry> history = samples.get(machineId);
+        if (history == null) {
+            return new ArrayList<>();
+        }
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    /**
+     * @return the latest sample of the machine, or null if it has sent none recently.
+     */
+    MachineTelemetry getLatest(int machineId, long now) {
+        Deque<MachineTelemetry> history = samples.get(machineId);
+        if (history == null) {
+            return null;
+        }
+        MachineTelemetry latest;
+        synchronized (history) {
+            latest = history.peekLast();
+        }
+        return latest == null || now - latest.getTime() > MAX_SAMPLE_AGE_MILLIS ? null : latest;
+    }
+
+    /**
+     * @return true iff the latest sample of the machine is recent and shows that it is overloaded (a machine that
+     * sends no telemetry is never overloaded).
+     */
+    boolean isOverloaded(int machineId, long now) {
+        MachineTelemetry latest = getLatest(machineId, now);
+        if (latest == null) {
+            return false;
+        }
+        return latest.getLoadAverage() >= 0 && latest.getCores() > 0 && loadPerCore(latest) > MAX_LOAD_PER_CORE
+                || latest.getFreeMemoryMb() >= 0 && latest.getFreeMemoryMb() < MIN_FREE_MEMORY_MB
+                || latest.getFreeDiskMb() >= 0 && latest.getFreeDiskMb() < MIN_FREE_DISK_MB;
+    }
+
+    void forget(int machineId) {
+        samples.remove(machineId);
+    }
+
+    private long getClusterLoadPercent() {
+        long now = System.currentTimeMillis();
+        double load = 0;
+        int cores = 0;
+        for (Integer machineId : samples.keySet()) {
+            MachineTelemetry latest = getLatest(machineId, now);
+            if (latest != null && latest.getLoadAverage() >= 0 && latest.getCores() > 0) {
+                load += latest.getLoadAverage();
+                cores += latest.getCores();
+            }
+        }
+        return cores == 0 ? 0 : Math.round(load / cores * 100);
+    }
+
+    private static double loadPerCore(MachineTelemetry telemetry) {
+        return telemetry.getLoadAverage() / telemetry.getCores();
+    }
+}
@@ -3,16 +3,32 @@ package ubongo.server;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import ubongo.common.Utils;
+import ubongo.common.datatypes.Context;
 import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.MachineTelemetry;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.metrics.Gauge;
+import ubongo.common.metrics.MetricsRegistry;
 import ubongo.persistence.HeartbeatSender;
+import ubongo.persistence.LocalityProperties;
 import ubongo.persistence.Persistence;
 import ubongo.persistence.exceptions.PersistenceException;
 import ubongo.persistence.db.DBConstants;
 import ubongo.server.exceptions.MachinesManagementException;
 
 import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -21,30 +37,117 @@ import java.util.stream.Collectors;
 public class MachinesManager {
 
     private static final int SECONDS_BETWEEN_HEARTBEAT_CYCLES = 60;
+    private static final long SLOT_WAIT_MILLIS = 1000;
+
+    /* a machine on which this many tasks in a row have failed for transient reasons is quarantined - it is not
+       selected for tasks for a while, which doubles with every quarantine in a row (up to the max) */
+    private static final int FAILURES_TO_QUARANTINE = 3;
+    private static final long MIN_QUARANTINE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_QUARANTINE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /* the machine that completed a task of a context is preferred for the context for this long */
+    private static final long LOCALITY_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int LOCALITY_MAX_CONTEXTS = 10000;
+
+    /* the draining machines are checked for the tasks they still run this often, and a machine is drained once it is
+       seen without tasks twice in a row (a task whose machine was selected just before the drain began is persisted as
+       processing on it within moments) */
+    private static final long SECONDS_BETWEEN_DRAIN_CHECKS = 5;
+
+    /* a machine that has registered itself and has sent no heartbeat for this long (while no task runs on it) ages out:
+       it is removed, until it registers itself again */
+    private static final long MACHINE_AGE_OUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final long SECONDS_BETWEEN_AGE_OUT_CHECKS = 60;
 
     private static Logger logger = LogManager.getLogger(MachinesManager.class);
+    private static final MetricsRegistry metrics = MetricsRegistry.getInstance();
     private final ScheduledExecutorService serverHeartbeatScheduler = Executors.newScheduledThreadPool(1);
     private List<Machine> machines;
+    private final Set<Integer> configuredMachineIds; // the machines of the configuration never age out
     private Persistence persistence;
 
     private int counter = 0;
 
+    /* the machines of the tasks that were dispatched and did not end yet, by task id */
+    private final Map<Integer, Machine> inFlightTasks = new ConcurrentHashMap<>();
+
+    /* the machines of the speculative copies of tasks that did not end yet, by task id */
+    private final Map<Integer, Machine> inFlightCopies = new ConcurrentHashMap<>();
+
+    /* the first task of the batch of every in-flight task that was dispatched with others in a batch, by task id - the
+       tasks of a batch run one after the other, so they take one slot of their machine together */
+    private final Map<Integer, Integer> batchLeaders = new ConcurrentHashMap<>();
+
+    /* notified when a slot may have freed - guards reservedSlots */
+    private final Object slotMonitor = new Object();
+    private int reservedSlots = 0; // by the consumers that take a task from the queue to dispatch it
+    private volatile long machinesReadMillis = 0;
+
+    /* the health of the machines on which tasks have ended, by machine id */
+    private final Map<Integer, MachineHealth> health = new ConcurrentHashMap<>();
+
+    private final MachineTelemetryHistory telemetry = new MachineTelemetryHistory();
+
+    private final LocalityProperties locality; // null if disabled
+
+    /* the machine that has last completed a task of every context (and of every subject) - guarded by itself */
+    private final Map<String, RecentMachine> recentMachines =
+            new LinkedHashMap<String, RecentMachine>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, RecentMachine> eldest) {
+                    return size() > LOCALITY_MAX_CONTEXTS;
+                }
+            };
+
+    /* the time until which every task that waits for its preferred machine may wait, by task id - guarded by itself */
+    private final Map<Integer, Long> localityDeadlines = new LinkedHashMap<Integer, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+            return size() > LOCALITY_MAX_CONTEXTS; // of tasks that were canceled while they waited
+        }
+    };
+
+    /* the draining machines that were seen without tasks at the last drain check - guarded by this */
+    private final Set<Integer> idleDrainingMachines = new HashSet<>();
+
+    /* the machines that the rolling drain has yet to drain, in order (empty if there is no rolling drain), and those it
+       has drained and that were not returned to use yet - guarded by this */
+    private final Deque<Integer> rollingDrainQueue = new ArrayDeque<>();
+    private final Set<Integer> rollingDrainOut = new HashSet<>();
+    private int rollingDrainWidth = 0;
+
     MachinesManager(List<Machine> machines, Persistence persistence) {
+        this(machines, persistence, null);
+    }
+
+    /**
+     * @param locality to prefer the machines that have run tasks of the same context (may be null if disabled).
+     */
+    MachinesManager(List<Machine> machines, Persistence persistence, LocalityProperties locality) {
         this.persistence = persistence;
         this.machines = machines;
+        this.configuredMachineIds = machines.stream().map(Machine::getId).collect(Collectors.toSet());
+        this.locality = locality == null || !locality.isEnabled() ? null : locality;
     }
 
     public void setMachines(List<Machine> machines) {
         this.machines = machines;
     }
 
+    /**
+     * @return the machines as of the last time they were read (including those that are not available).
+     */
+    List<Machine> getMachines() {
+        return machines;
+    }
+
     public void start() throws PersistenceException {
         Machine server = createServerMachine();
         List<Machine> machinesCopy = machines.stream().collect(Collectors.toList());
         machinesCopy.add(0, server);
         if (logger.isInfoEnabled()) {
             StringBuilder sb = new StringBuilder();
-            sb.append("Removing machines from database and saving machines:\n");
+            sb.append("Saving the machines of the configuration (the machines that registered themselves are kept):\n");
             machinesCopy.forEach(m -> sb.append(Utils.concatStrings("\tID=[",
                         m.getId(),"] Host=[",
                         m.getHost(), "], Description=[",
@@ -52,9 +155,170 @@ public class MachinesManager {
             logger.info(sb.toString());
         }
         persistence.saveMachines(machinesCopy);
+        setMachines(persistence.getAllMachines(false));
         logger.debug("Starting the heartbeat sender for the main server");
         final Runnable heartbeatSender = new HeartbeatSender(persistence, DBConstants.SERVER_ID);
         serverHeartbeatScheduler.scheduleAtFixedRate(heartbeatSender, 0, 60, TimeUnit.SECONDS);
+        serverHeartbeatScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                checkDrains();
+            } catch (Exception e) {
+                logger.error("Failed to check the draining machines", e);
+            }
+        }, SECONDS_BETWEEN_DRAIN_CHECKS, SECONDS_BETWEEN_DRAIN_CHECKS, TimeUnit.SECONDS);
+        serverHeartbeatScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                ageOutMachines();
+            } catch (Exception e) {
+                logger.error("Failed to age out the machines", e);
+            }
+        }, SECONDS_BETWEEN_AGE_OUT_CHECKS, SECONDS_BETWEEN_AGE_OUT_CHECKS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Removes the machines that have registered themselves and have sent no heartbeat for long, unless tasks still run
+     * on them (their tasks are handled as the tasks of any disconnected machine). A machine that has aged out is back
+     * once it registers itself again.
+     */
+    void ageOutMachines() throws PersistenceException {
+        Timestamp oldTime = new Timestamp(System.currentTimeMillis() - MACHINE_AGE_OUT_MILLIS);
+        List<Machine> aged = persistence.getAllMachines(false).stream()
+                .filter(m -> !configuredMachineIds.contains(m.getId()))
+                .filter(m -> m.getLastHeartbeat() != null && m.getLastHeartbeat().before(oldTime))
+                .collect(Collectors.toList());
+        if (aged.isEmpty()) {
+            return;
+        }
+        Set<Integer> busyMachineIds = getBusyMachineIds();
+        for (Machine machine : aged) {
+            if (busyMachineIds.contains(machine.getId())) {
+                continue;
+            }
+            persistence.removeMachine(machine.getId());
+            health.remove(machine.getId());
+            telemetry.forget(machine.getId());
+            metrics.counter("ubongo_machines_aged_out_total", "Machines that were removed since they have sent no "
+                    + "heartbeat for long").increment();
+            logger.warn("Machine with id=" + machine.getId() + " (" + machine.getHost() + ") has sent no heartbeat "
+                    + "since " + machine.getLastHeartbeat() + " and was removed");
+        }
+        setMachines(persistence.getAllMachines(false));
+    }
+
+    /**
+     * Drains the machine: no new tasks are sent to it, and once the tasks it runs have ended (and their outputs were
+     * uploaded), it is set as drained - and inactive, so it may be taken down for maintenance and stays out of use
+     * until it is activated again.
+     * @throws PersistenceException if the drain state of the machine could not be updated.
+     */
+    synchronized void drainMachine(int machineId) throws PersistenceException {
+        persistence.changeMachineDrainState(machineId, true, false);
+        idleDrainingMachines.remove(machineId);
+        setMachines(persistence.getAllMachines(false));
+        metrics.counter("ubongo_machine_drains_total", "Machines that were set to drain").increment();
+    }
+
+    /**
+     * Drains all the active machines, a few at a time: the next machine is drained once one of the machines that were
+     * drained is returned to use (activated or deactivated), so at most the given number of machines are out of use
+     * at any time. Replaces the rolling drain that is in progress, if any.
+     * @param machinesAtOnce is the number of machines that may be out of use at the same time (at least 1).
+     * @throws PersistenceException if the machines could not be read.
+     */
+    synchronized void startRollingDrain(int machinesAtOnce) throws PersistenceException {
+        rollingDrainQueue.clear();
+        rollingDrainOut.clear();
+        rollingDrainWidth = Math.max(1, machinesAtOnce);
+        for (Machine machine : persistence.getAllMachines(false)) {
+            if (machine.isActive() && !machine.isDraining()) {
+                rollingDrainQueue.add(machine.getId());
+            }
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Starting a rolling drain of " + rollingDrainQueue.size() + " machines, "
+                    + rollingDrainWidth + " at a time");
+        }
+        advanceRollingDrain(persistence.getAllMachines(false));
+    }
+
+    /**
+     * Sets the draining machines that have no tasks left as drained, and drains the next machines of the rolling drain.
+     */
+    synchronized void checkDrains() throws PersistenceException {
+        List<Machine> allMachines = persistence.getAllMachines(false);
+        if (allMachines.stream().anyMatch(Machine::isDraining)) {
+            Set<Integer> busyMachineIds = getBusyMachineIds();
+            for (Machine machine : allMachines) {
+                if (!machine.isDraining() || busyMachineIds.contains(machine.getId())) {
+                    idleDrainingMachines.remove(machine.getId());
+                } else if (!idleDrainingMachines.add(machine.getId())) {
+                    drained(machine);
+                }
+            }
+        } else {
+            idleDrainingMachines.clear();
+        }
+        advanceRollingDrain(allMachines);
+        if (allMachines.stream().anyMatch(Machine::isDraining) || machines.stream().anyMatch(Machine::isDraining)) {
+            // the drains that other servers of a cluster began or ended are seen here as well
+            setMachines(allMachines);
+        }
+    }
+
+    /**
+     * @return the ids of the machines on which tasks run - the tasks are read from the DB, so the tasks that other
+     * servers of a cluster run on the machines count as well.
+     */
+    private Set<Integer> getBusyMachineIds() throws PersistenceException {
+        Set<Integer> busyMachineIds = persistence.getProcessingTasks().stream()
+                .filter(t -> t.getMachine() != null)
+                .map(t -> t.getMachine().getId())
+                .collect(Collectors.toSet());
+        busyMachineIds.addAll(inFlightTasks.values().stream().map(Machine::getId).collect(Collectors.toSet()));
+        busyMachineIds.addAll(inFlightCopies.values().stream().map(Machine::getId).collect(Collectors.toSet()));
+        return busyMachineIds;
+    }
+
+    private void drained(Machine machine) throws PersistenceException {
+        persistence.changeMachineDrainState(machine.getId(), false, true);
+        idleDrainingMachines.remove(machine.getId());
+        machine.setDraining(false);
+        machine.setDrained(true);
+        machine.setActive(false);
+        metrics.counter("ubongo_machines_drained_total", "Machines that were drained and may be taken down")
+                .increment();
+        logger.warn("Machine with id=" + machine.getId() + " (" + machine.getHost() + ") was drained - it is safe to "
+                + "take it down for maintenance. Activate it to return it to use");
+    }
+
+    private void advanceRollingDrain(List<Machine> allMachines) throws PersistenceException {
+        if (rollingDrainWidth == 0) {
+            return;
+        }
+        Map<Integer, Machine> machinesById = allMachines.stream()
+                .collect(Collectors.toMap(Machine::getId, m -> m));
+        // a machine is back once its drain has ended (by activating or deactivating it)
+        rollingDrainOut.removeIf(id -> machinesById.get(id) == null
+                || !machinesById.get(id).isDraining() && !machinesById.get(id).isDrained());
+        while (rollingDrainOut.size() < rollingDrainWidth && !rollingDrainQueue.isEmpty()) {
+            Machine next = machinesById.get(rollingDrainQueue.poll());
+            if (next == null || !next.isActive() || next.isDrained()) {
+                continue; // taken out of use by someone else in the meantime
+            }
+            if (!next.isDraining()) {
+                persistence.changeMachineDrainState(next.getId(), true, false);
+                next.setDraining(true);
+            }
+            rollingDrainOut.add(next.getId());
+            if (logger.isInfoEnabled()) {
+                logger.info("The rolling drain drains machine with id=" + next.getId() + " ("
+                        + rollingDrainQueue.size() + " machines left)");
+            }
+        }
+        if (rollingDrainQueue.isEmpty() && rollingDrainOut.isEmpty()) {
+            rollingDrainWidth = 0;
+            logger.info("The rolling drain has ended - all the machines were drained and returned to use");
+        }
     }
 
     private Machine createServerMachine() {
@@ -70,12 +334,87 @@ public class MachinesManager {
     }
 
     public Machine getAvailableMachine() throws MachinesManagementException {
-        List<Machine> machinesPool = getAvailableMachines();
+        return getAvailableMachine(null);
+    }
+
+    /**
+     * Selects a machine for the task, preferring the machine that has lately completed a task of the same context (or
+     * at least of the same subject), which may already hold the files the task reads. If the preferred machine is
+     * busy (see {@link LocalityProperties}), no machine is selected until the locality wait of the task passes, so the
+     * caller defers the task and sends other tasks meanwhile (delay scheduling); then any available machine is
+     * selected.
+     * @param avoidedMachineId is the id of a machine that is selected only if no other machine is available, or null.
+     * @return the machine, or null if the task should be deferred until its preferred machine is less busy.
+     * @throws MachinesManagementException if no machine is available or the machines could not be read.
+     */
+    Machine getAvailableMachine(Task task, Integer avoidedMachineId) throws MachinesManagementException {
+        Integer preferredId = locality == null ? null : getRecentMachineId(task.getContext());
+        if (preferredId == null || preferredId.equals(avoidedMachineId)) {
+            return getAvailableMachine(avoidedMachineId);
+        }
+        List<Machine> machinesPool = getAvailableMachines(true);
+        Machine preferred = machinesPool.stream().filter(m -> m.getId() == preferredId).findFirst().orElse(null);
+        if (preferred != null) { // otherwise it is not available (or quarantined)
+            Map<Integer, Long> load = getLoad();
+            long minLoad = machinesPool.stream().mapToLong(m -> load.getOrDefault(m.getId(), 0L)).min().orElse(0);
+            if (hasFreeSlot(preferred, load)
+                    && load.getOrDefault(preferredId, 0L) <= minLoad + locality.getMaxExtraTasks()) {
+                forgetLocalityDeadline(task);
+                metrics.counter("ubongo_locality_selections_total", "Machine selections for tasks that have a "
+                        + "preferred machine, by whether the preferred machine was selected", "result", "local")
+                        .increment();
+                countSelection(preferred);
+                return preferred;
+            }
+            long now = System.currentTimeMillis();
+            long deadline;
+            synchronized (localityDeadlines) {
+                deadline = localityDeadlines.computeIfAbsent(task.getId(), id -> now + locality.getWaitMillis());
+            }
+            if (now < deadline) {
+                return null;
+            }
+        }
+        forgetLocalityDeadline(task);
+        metrics.counter("ubongo_locality_selections_total", "Machine selections for tasks that have a "
+                + "preferred machine, by whether the preferred machine was selected", "result", "fallback").increment();
+        return getAvailableMachine(avoidedMachineId);
+    }
+
+    private void forgetLocalityDeadline(Task task) {
+        synchronized (localityDeadlines) {
+            localityDeadlines.remove(task.getId());
+        }
+    }
+
+    /**
+     * The machines that have a free slot are selected before those that do not.
+     * @param avoidedMachineId is the id of a machine that is selected only if no other machine is available (e.g., the
+     *                         machine on which the task has just failed), or null.
+     * @throws MachinesManagementException if no machine is available or the machines could not be read.
+     */
+    Machine getAvailableMachine(Integer avoidedMachineId) throws MachinesManagementException {
+        List<Machine> machinesPool = getAvailableMachines(true);
+        if (avoidedMachineId != null && machinesPool.size() > 1) {
+            machinesPool = machinesPool.stream()
+                    .filter(m -> m.getId() != avoidedMachineId)
+                    .collect(Collectors.toList());
+        }
+        Map<Integer, Long> load = getLoad();
+        List<Machine> freeMachines = machinesPool.stream()
+                .filter(m -> hasFreeSlot(m, load))
+                .collect(Collectors.toList());
+        if (!freeMachines.isEmpty()) {
+            machinesPool = freeMachines;
+        }
         if (machinesPool.isEmpty()) {
+            metrics.counter("ubongo_machine_selection_failures_total",
+                    "Times no machine was available for a task").increment();
             throw new MachinesManagementException("No available machines");
         }
         counter = (counter + 1) % Integer.MAX_VALUE;
         Machine selected = machinesPool.get(counter % machinesPool.size());
+        countSelection(selected);
         if (logger.isDebugEnabled()) {
             String msg = Utils.concatStrings("Received request for available machine. Found: ", machinesPool.stream()
                     .map(m -> m.getDescription() + " (ID=" + m.getId() + ")")
@@ -85,21 +424,356 @@ public class MachinesManager {
         return selected;
     }
 
-    private List<Machine> getAvailableMachines() throws MachinesManagementException {
+    private static void countSelection(Machine selected) {
+        metrics.counter("ubongo_machine_selections_total", "Times a machine was selected for a task, by machine",
+                "machine", selected.getHost()).increment();
+    }
+
+    /**
+     * @param forNewTasks tells whether the machines are to run new tasks: the draining machines are left out, and so
+     *                    are the quarantined machines (unless all of them are) and then the overloaded machines (unless
+     *                    all of the rest are).
+     */
+    private List<Machine> getAvailableMachines(boolean forNewTasks) throws MachinesManagementException {
         try {
             machines = persistence.getAllMachines(false);
+            machinesReadMillis = System.currentTimeMillis();
         } catch (PersistenceException e) {
             throw new MachinesManagementException("Failed to retrieve machines from DB.", e);
         }
-        final Timestamp oldTime =
-                new Timestamp(new Date().getTime() - 1000 * SECONDS_BETWEEN_HEARTBEAT_CYCLES * 3);
-        return machines.stream()
-                .filter(m -> m.isActive() && m.isConnected() &&
-                        m.getLastHeartbeat() != null && m.getLastHeartbeat().after(oldTime))
+        final Timestamp oldTime = getOldestHeartbeatTime();
+        List<Machine> availableMachines = machines.stream()
+                .filter(m -> isUp(m, oldTime))
+                .collect(Collectors.toList());
+        if (!forNewTasks) {
+            return availableMachines;
+        }
+        availableMachines = availableMachines.stream()
+                .filter(m -> !m.isDraining())
                 .collect(Collectors.toList());
+        long now = System.currentTimeMillis();
+        List<Machine> healthyMachines = availableMachines.stream()
+                .filter(m -> !isQuarantined(m.getId(), now))
+                .collect(Collectors.toList());
+        metrics.gauge("ubongo_machines_quarantined", "Available machines that were quarantined when a machine was "
+                + "last selected").set(availableMachines.size() - healthyMachines.size());
+        if (!healthyMachines.isEmpty()) {
+            // when every machine is quarantined, the failures are probably not the machines' fault
+            availableMachines = healthyMachines;
+        }
+        List<Machine> unloadedMachines = availableMachines.stream()
+                .filter(m -> !telemetry.isOverloaded(m.getId(), now))
+                .collect(Collectors.toList());
+        metrics.gauge("ubongo_machines_overloaded", "Available machines that were overloaded (by their telemetry) when "
+                + "a machine was last selected").set(availableMachines.size() - unloadedMachines.size());
+        if (!unloadedMachines.isEmpty()) {
+            // when every machine is overloaded, the tasks wait on the machines rather than in the queue
+            availableMachines = unloadedMachines;
+        }
+        metrics.gauge("ubongo_machines_available", "Machines that were available when a machine was last selected")
+                .set(availableMachines.size());
+        return availableMachines;
+    }
+
+    /**
+     * @param excludedMachineId is the id of a machine that must not be selected.
+     * @return the available machine that runs the fewest dispatched tasks, or null if no other machine is available.
+     * @throws MachinesManagementException if the machines could not be read.
+     */
+    Machine getLeastLoadedMachine(int excludedMachineId) throws MachinesManagementException {
+        Map<Integer, Long> load = getLoad();
+        return getAvailableMachines(true).stream()
+                .filter(m -> m.getId() != excludedMachineId)
+                .min(Comparator.comparingLong(m -> load.getOrDefault(m.getId(), 0L)))
+                .orElse(null);
+    }
+
+    private static Timestamp getOldestHeartbeatTime() {
+        return new Timestamp(new Date().getTime() - 1000 * SECONDS_BETWEEN_HEARTBEAT_CYCLES * 3);
+    }
+
+    private static boolean isUp(Machine machine, Timestamp oldTime) {
+        return machine.isActive() && machine.isConnected()
+                && machine.getLastHeartbeat() != null && machine.getLastHeartbeat().after(oldTime);
+    }
+
+    /**
+     * @return the number of slots that the dispatched tasks (and speculative copies) that did not end take by machine
+     * id - a batch takes one slot.
+     */
+    private Map<Integer, Long> getLoad() {
+        Map<Integer, Set<Integer>> slots = new HashMap<>();
+        inFlightTasks.forEach((taskId, machine) -> slots.computeIfAbsent(machine.getId(), id -> new HashSet<>())
+                .add(batchLeaders.getOrDefault(taskId, taskId)));
+        Map<Integer, Long> load = new HashMap<>();
+        slots.forEach((machineId, slotKeys) -> load.put(machineId, (long) slotKeys.size()));
+        inFlightCopies.values().forEach(machine -> load.merge(machine.getId(), 1L, Long::sum));
+        return load;
+    }
+
+    /**
+     * @return true iff the machine runs fewer tasks than its slots (a machine whose slots are unknown always has one).
+     */
+    private static boolean hasFreeSlot(Machine machine, Map<Integer, Long> load) {
+        return machine.getSlots() <= 0 || load.getOrDefault(machine.getId(), 0L) < machine.getSlots();
+    }
+
+    /**
+     * Waits until the machines have a free slot, and reserves it for the task that the caller takes from the queue
+     * next, until {@link #releaseSlot()} is called (once the task was dispatched and takes the slot, or was not
+     * dispatched). So the tasks wait in the queue, where the highest ranked of them is taken when a slot frees, rather
+     * than on the machines. A machine whose slots are unknown is not gated, and neither are the tasks when no machine
+     * is available, so they are put on hold as before.
+     */
+    void reserveSlot() throws InterruptedException {
+        synchronized (slotMonitor) {
+            while (!hasFreeSlot()) {
+                if (System.currentTimeMillis() - machinesReadMillis > 1000 * SECONDS_BETWEEN_HEARTBEAT_CYCLES) {
+                    readMachines(); // machines may have been added since they were last read for a task
+                }
+                slotMonitor.wait(SLOT_WAIT_MILLIS);
+            }
+            reservedSlots++;
+        }
+    }
+
+    void releaseSlot() {
+        synchronized (slotMonitor) {
+            reservedSlots--;
+            slotMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * @return true iff no task is being taken from the queue and the machines have no free slot, so no task is
+     * dispatched until a task ends.
+     */
+    boolean isSaturated() {
+        synchronized (slotMonitor) {
+            return reservedSlots == 0 && !hasFreeSlot();
+        }
+    }
+
+    private void readMachines() {
+        try {
+            machines = persistence.getAllMachines(false);
+            machinesReadMillis = System.currentTimeMillis();
+        } catch (PersistenceException e) {
+            logger.debug("Failed to read the machines while waiting for a free slot", e);
+        }
+    }
+
+    /* guarded by slotMonitor */
+    private boolean hasFreeSlot() {
+        Map<Integer, Long> load = getLoad();
+        Timestamp oldTime = getOldestHeartbeatTime();
+        long capacity = 0;
+        long taken = reservedSlots;
+        for (Machine machine : machines) {
+            if (!isUp(machine, oldTime) || machine.isDraining() || machine.isDrained()) {
+                continue;
+            }
+            if (machine.getSlots() <= 0) {
+                return true;
+            }
+            capacity += machine.getSlots();
+            taken += Math.min(load.getOrDefault(machine.getId(), 0L), machine.getSlots());
+        }
+        return capacity == 0 || taken < capacity;
+    }
+
+    /**
+     * Called with the telemetry that a machine has sent.
+     */
+    void telemetryReceived(MachineTelemetry sample) {
+        telemetry.received(sample);
+    }
+
+    MachineTelemetryHistory getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Counts the task as running on its machine until {@link #taskEnded(Task)} is called for it.
+     */
+    void taskDispatched(Task task) {
+        Machine machine = task.getMachine();
+        if (machine != null && inFlightTasks.put(task.getId(), machine) == null) {
+            getInFlightGauge(machine).increment();
+        }
+    }
+
+    /**
+     * Counts the tasks of a batch as running on their machine until {@link #taskEnded(Task)} is called for each of
+     * them. They run one after the other, so together they take one slot of the machine.
+     */
+    void batchDispatched(List<Task> batch) {
+        int leaderId = batch.get(0).getId();
+        for (Task task : batch) {
+            if (task.getId() != leaderId) {
+                batchLeaders.put(task.getId(), leaderId);
+            }
+            taskDispatched(task);
+        }
+    }
+
+    /**
+     * Counts the speculative copy of a task as running on its machine until {@link #copyEnded(Task)} is called for it
+     * (the copy has the id of its task, so it is counted apart from the task).
+     */
+    void copyDispatched(Task copy) {
+        Machine machine = copy.getMachine();
+        if (machine != null && inFlightCopies.put(copy.getId(), machine) == null) {
+            getInFlightGauge(machine).increment();
+        }
+    }
+
+    /**
+     * Stops counting the speculative copy of a task as running on its machine.
+     */
+    void copyEnded(Task copy) {
+        Machine machine = inFlightCopies.remove(copy.getId());
+        if (machine != null) {
+            getInFlightGauge(machine).decrement();
+            slotFreed();
+        }
+    }
+
+    /**
+     * Stops counting the task as running on its machine, and updates the health of the machine by the status
+     * the task has ended with.
+     */
+    void taskEnded(Task task) {
+        Machine machine = inFlightTasks.remove(task.getId());
+        batchLeaders.remove(task.getId());
+        if (machine != null) {
+            getInFlightGauge(machine).decrement();
+            slotFreed();
+        }
+        Machine reporter = task.getMachine() != null ? task.getMachine() : machine;
+        if (reporter == null) {
+            return;
+        }
+        if (task.getStatus() == TaskStatus.COMPLETED) {
+            if (locality != null) {
+                setRecentMachine(task.getContext(), reporter.getId());
+            }
+            MachineHealth machineHealth = health.get(reporter.getId());
+            if (machineHealth != null) {
+                machineHealth.succeeded();
+            }
+        } else if (task.getStatus() == TaskStatus.FAILED && task.getFailureCause() != null
+                && task.getFailureCause().isTransient()) {
+            long quarantineMillis = health.computeIfAbsent(reporter.getId(), id -> new MachineHealth()).failed();
+            if (quarantineMillis > 0) {
+                metrics.counter("ubongo_machine_quarantines_total", "Times a machine was quarantined, by machine",
+                        "machine", reporter.getHost()).increment();
+                logger.warn("Machine with id=" + reporter.getId() + " is quarantined for "
+                        + TimeUnit.MILLISECONDS.toSeconds(quarantineMillis) + " seconds after "
+                        + FAILURES_TO_QUARANTINE + " transient failures in a row (the last of task with id="
+                        + task.getId() + ": " + task.getFailureCause() + ")");
+            }
+        }
+    }
+
+    private void setRecentMachine(Context context, int machineId) {
+        if (context == null) {
+            return;
+        }
+        RecentMachine recent = new RecentMachine(machineId, System.currentTimeMillis());
+        synchronized (recentMachines) {
+            recentMachines.put(contextKey(context), recent);
+            recentMachines.put(subjectKey(context), recent);
+        }
+    }
+
+    private Integer getRecentMachineId(Context context) {
+        if (context == null) {
+            return null;
+        }
+        long oldest = System.currentTimeMillis() - LOCALITY_MAX_AGE_MILLIS;
+        synchronized (recentMachines) {
+            for (String key : new String[] {contextKey(context), subjectKey(context)}) {
+                RecentMachine recent = recentMachines.get(key);
+                if (recent != null && recent.completedMillis >= oldest) {
+                    return recent.machineId;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String contextKey(Context context) {
+        return context.getStudy() + '/' + context.getSubject() + '/' + context.getRun();
+    }
+
+    private static String subjectKey(Context context) {
+        return context.getStudy() + '/' + context.getSubject();
+    }
+
+    private boolean isQuarantined(int machineId, long now) {
+        MachineHealth machineHealth = health.get(machineId);
+        return machineHealth != null && machineHealth.isQuarantined(now);
+    }
+
+    private void slotFreed() {
+        synchronized (slotMonitor) {
+            slotMonitor.notifyAll();
+        }
+    }
+
+    private static Gauge getInFlightGauge(Machine machine) {
+        return metrics.gauge("ubongo_machine_tasks_in_flight", "Tasks that were dispatched and did not end, by machine",
+                "machine", machine.getHost());
+    }
+
+    private static final class RecentMachine {
+
+        private final int machineId;
+        private final long completedMillis;
+
+        RecentMachine(int machineId, long completedMillis) {
+            this.machineId = machineId;
+            this.completedMillis = completedMillis;
+        }
+    }
+
+    /**
+     * Tracks the transient failures of the tasks on a machine and whether the machine is quarantined.
+     */
+    private static final class MachineHealth {
+
+        private int consecutiveFailures = 0;
+        private int consecutiveQuarantines = 0; // without a task completed in between
+        private long quarantinedUntil = 0;
+
+        /**
+         * @return the time in milliseconds the machine is quarantined for, or 0 if it is not quarantined now.
+         */
+        synchronized long failed() {
+            if (++consecutiveFailures < FAILURES_TO_QUARANTINE) {
+                return 0;
+            }
+            consecutiveFailures = 0;
+            long millis = Math.min(MAX_QUARANTINE_MILLIS,
+                    MIN_QUARANTINE_MILLIS << Math.min(consecutiveQuarantines++, 10));
+            quarantinedUntil = System.currentTimeMillis() + millis;
+            return millis;
+        }
+
+        synchronized void succeeded() {
+            consecutiveFailures = 0;
+            if (System.currentTimeMillis() >= quarantinedUntil) {
+                consecutiveQuarantines = 0; // a task that ran during the quarantine does not end it
+            }
+        }
+
+        synchronized boolean isQuarantined(long now) {
+            return now < quarantinedUntil;
+        }
     }
 
     public boolean isAvailable(int machineId) throws MachinesManagementException {
-        return getAvailableMachines().stream().filter(m -> m.getId() == machineId).count() > 0;
+        return getAvailableMachines(false).stream().filter(m -> m.getId() == machineId).count() > 0;
     }
 }
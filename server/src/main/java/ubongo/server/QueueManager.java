@@ -5,13 +5,17 @@ import org.apache.logging.log4j.Logger;
 import ubongo.common.datatypes.Machine;
 import ubongo.common.datatypes.Task;
 import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.metrics.Counter;
+import ubongo.common.metrics.MetricsRegistry;
+import ubongo.persistence.BatchingProperties;
 import ubongo.persistence.Persistence;
+import ubongo.persistence.SpeculationProperties;
+import ubongo.persistence.TaskTimelineRecorder;
 import ubongo.persistence.exceptions.PersistenceException;
 import ubongo.server.exceptions.MachinesManagementException;
 
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -24,19 +28,38 @@ public class QueueManager {
     private static final int MAX_PRODUCER_IDLE_TIME = 1000 * 60 * 30; // 30 minutes
     private static final int MAX_QUEUE_CAPACITY = 500;
     private static final int NUM_CONSUMER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final long LOCALITY_DEFER_MILLIS = 250; // a task that waits for its preferred machine is retried
 
     private static Logger logger = LogManager.getLogger(QueueManager.class);
     private final Object consumerLock = new Object();
     private final Object producerLock = new Object();
     private boolean producerMayWork = true; // lets the producers know whether they may work or not
+    private long producerNotifications = 0; // lets the producer know whether it was notified while it was working
     private boolean producerUpdatingDatabase = false; // lets the consumers know they need to wait
+    private final AtomicInteger tasksInQueue = new AtomicInteger(); // tasks offered to the queue and not handled yet
 
-    private BlockingQueue<Task> queue = new ArrayBlockingQueue<>(MAX_QUEUE_CAPACITY, true);
+    private TaskQueue queue = new TaskQueue(MAX_QUEUE_CAPACITY);
     private Persistence persistence;
-    private ExecutionProxy executionProxy;
+    private TaskDispatcher taskDispatcher;
     private MachinesManager machinesManager;
     private ExecutorService consumers;
     private ExecutorService producer;
+    private ContextExpander contextExpander;
+    private final TaskStateTimer stateTimer;
+    private final UnitRuntimeModel runtimeModel = new UnitRuntimeModel();
+    private final SpeculativeExecution speculation; // null if disabled
+    private final TaskRetries retries = new TaskRetries();
+    private final BatchingProperties batching; // null if disabled
+    private final ServerCluster cluster; // null if this is the only server
+
+    /* the size of the batch of every task that was dispatched in a batch and did not end, by task id */
+    private final Map<Integer, Integer> batchSizes = new ConcurrentHashMap<>();
+    private final Counter dispatchedTasks = MetricsRegistry.getInstance()
+            .counter("ubongo_tasks_dispatched_total", "Tasks that were sent to the machines");
+    private final Counter dispatchedBatches = MetricsRegistry.getInstance()
+            .counter("ubongo_batches_dispatched_total", "Batches of tasks that were sent to the machines");
+    private final Counter batchedTasks = MetricsRegistry.getInstance()
+            .counter("ubongo_batched_tasks_dispatched_total", "Tasks that were sent to the machines in batches");
 
     /**
      * setLocatorMap maps between TaskKey and DependencyKey; TaskKey is an identifier based on a task's flow-id and
@@ -66,10 +89,46 @@ public class QueueManager {
      */
     private final Set<Integer> taskIdsInCancel = new HashSet<>();
 
-    QueueManager(Persistence persistence, MachinesManager machinesManager) {
-        this.executionProxy = ExecutionProxy.getInstance();
+    /**
+     * @param taskDispatcher to send the tasks that are ready for execution to (usually the {@link ExecutionProxy}).
+     */
+    QueueManager(Persistence persistence, MachinesManager machinesManager, TaskDispatcher taskDispatcher) {
+        this(persistence, machinesManager, taskDispatcher, null, null, null);
+    }
+
+    /**
+     * @param taskDispatcher to send the tasks that are ready for execution to (usually the {@link ExecutionProxy}).
+     * @param timeline to record the timelines of the tasks in (may be null).
+     * @param speculationProperties to run speculative copies of straggling tasks (may be null if disabled).
+     * @param batchingProperties to send short tasks to the machines in batches (may be null if disabled).
+     */
+    QueueManager(Persistence persistence, MachinesManager machinesManager, TaskDispatcher taskDispatcher,
+                 TaskTimelineRecorder timeline, SpeculationProperties speculationProperties,
+                 BatchingProperties batchingProperties) {
+        this(persistence, machinesManager, taskDispatcher, timeline, speculationProperties, batchingProperties, null);
+    }
+
+    /**
+     * @param cluster of the servers this server shares the flows and the machines with (may be null if this is the
+     *                only server). Only the tasks of the flows this server holds are scheduled, and a task is only
+     *                dispatched to a machine once it has taken one of the slots of the machine.
+     * @see #QueueManager(Persistence, MachinesManager, TaskDispatcher, TaskTimelineRecorder, SpeculationProperties,
+     * BatchingProperties)
+     */
+    QueueManager(Persistence persistence, MachinesManager machinesManager, TaskDispatcher taskDispatcher,
+                 TaskTimelineRecorder timeline, SpeculationProperties speculationProperties,
+                 BatchingProperties batchingProperties, ServerCluster cluster) {
+        this.taskDispatcher = taskDispatcher;
+        this.cluster = cluster;
+        this.batching = batchingProperties == null || !batchingProperties.isEnabled() ? null : batchingProperties;
+        this.stateTimer = new TaskStateTimer(timeline);
+        this.speculation = speculationProperties == null || !speculationProperties.isEnabled() ? null
+                : new SpeculativeExecution(speculationProperties, runtimeModel, machinesManager, taskDispatcher, this);
         this.persistence = persistence;
         this.machinesManager = machinesManager;
+        this.contextExpander = new ContextExpander(persistence, this::notifyNewTasks);
+        MetricsRegistry.getInstance().gauge("ubongo_queue_depth", "Tasks in the queue of the QueueManager")
+                .setSupplier(queue::size);
     }
 
     /**
@@ -86,10 +145,17 @@ public class QueueManager {
     public void stop() {
         producer.shutdownNow();
         consumers.shutdownNow();
+        contextExpander.stop();
+        retries.stop();
+        if (speculation != null) {
+            speculation.stop();
+        }
         queue.clear();
+        batchSizes.clear();
         dependencyMap.clear();
         taskIdsInCancel.clear();
         setLocatorMap.clear();
+        stateTimer.clear();
         logger.info("Queue Manager stopped");
     }
 
@@ -107,10 +173,32 @@ public class QueueManager {
             producerMayWork = false;
         }
         persistence.startFlow(flowId);
-        synchronized(producerLock) {
-            producerMayWork = true;
-            producerLock.notify();
+        stateTimer.flowStarted(flowId);
+        notifyProducer();
+    }
+
+    /**
+     * Notifies the producer that tasks were set in status 'New' by someone else (e.g., flows that were created and
+     * started in bulk by the web service), so they are added to the queue without waiting for the producer to wake up.
+     */
+    public void notifyNewTasks() {
+        notifyProducer();
+    }
+
+    /**
+     * Tells whether the QueueManager has nothing to do until it is notified again: the producer waits for new tasks,
+     * no task is in the queue or being handled by a consumer and no task is being expanded - or the tasks in the queue
+     * (and the producer, if the queue is full) wait for the machines to free a slot. A simulation uses it to let the
+     * QueueManager finish reacting to an event before the next event happens.
+     */
+    boolean isIdle() {
+        boolean saturated = machinesManager.isSaturated();
+        synchronized (producerLock) {
+            if (producerMayWork && !(saturated && queue.hasWaitingPut())) {
+                return false;
+            }
         }
+        return (tasksInQueue.get() == 0 || saturated) && contextExpander.isIdle();
     }
 
     /**
@@ -124,26 +212,73 @@ public class QueueManager {
         }
         logger.debug("Resuming task with id=" + taskId);
         persistence.resumeTask(taskId);
+        stateTimer.becameNew(taskId);
+        notifyProducer();
+    }
+
+    /**
+     * Lets the producer work and wakes it up. A notification that arrives while the producer is reading the DB makes
+     * it read the DB again, even if the read found no new tasks (the new tasks may have been committed just after).
+     */
+    private void notifyProducer() {
         synchronized(producerLock) {
             producerMayWork = true;
+            producerNotifications++;
             producerLock.notify();
         }
     }
 
     /**
-     * This method is called by the ExecutionProxy {@link ExecutionProxy} to update the system after a task
+     * This method is called by the TaskDispatcher {@link TaskDispatcher} to update the system after a task
      * has been completed, stopped or failed. First, the status of task is persisted in the DB. Second,
      * the QueueManager updates tasks which depend on the completion of task by calling handleCompletedTask
      * {@link #handleCompletedTask(Task)}.
+     * This method is not synchronized on the QueueManager: handleCompletedTask is, and it is called while holding the
+     * dependencyMap, so the QueueManager must never be locked before the dependencyMap (or the consumers, which lock
+     * them in this order, might deadlock with the thread that reports the task).
+     * If the task has a speculative copy, the statuses of the attempt that lost are not handled. If the task has
+     * failed for a transient reason and has attempts left, it is retried instead (see {@link TaskRetries}).
+     * In a cluster, the statuses of the tasks of a flow that was taken over by another server are ignored, since that
+     * server runs the tasks again.
      * @param task to update based on status.
      */
-    synchronized public void updateTaskAfterExecution(Task task) {
+    public void updateTaskAfterExecution(Task task) {
+        if (cluster != null && !cluster.ownsFlow(task.getFlowId())) {
+            ignoreStatusOfLostFlow(task);
+            return;
+        }
+        if (speculation != null && !speculation.statusReceived(task)) {
+            return;
+        }
+        if (retries.retryIfTransient(task, this::retryTask)) {
+            stateTimer.ended(task);
+            batchSizes.remove(task.getId());
+            machinesManager.taskEnded(task);
+            if (cluster != null) {
+                cluster.taskEnded(task);
+            }
+            return;
+        }
         try {
             persistence.updateTaskStatus(task);
         } catch (Exception e) {
             logger.fatal("Failed to update task with id=" + task.getId() + " in DB", e);
             ExecutionServer.notifyFatal(e);
         }
+        if (task.getStatus() != TaskStatus.PROCESSING) {
+            long processingNanos = stateTimer.ended(task);
+            Integer batchSize = batchSizes.remove(task.getId());
+            if (task.getStatus() == TaskStatus.COMPLETED && processingNanos >= 0 && task.getUnit() != null) {
+                // the tasks of a batch run one after the other and are reported together, so each takes its share
+                runtimeModel.taskCompleted(task.getUnit().getId(),
+                        batchSize == null ? processingNanos : processingNanos / batchSize);
+            }
+            machinesManager.taskEnded(task);
+            retries.taskEnded(task.getId());
+            if (cluster != null) {
+                cluster.taskEnded(task);
+            }
+        }
         try {
             TaskStatus status = task.getStatus();
             if (status == TaskStatus.COMPLETED ||
@@ -167,16 +302,124 @@ public class QueueManager {
         }
     }
 
+    private void ignoreStatusOfLostFlow(Task task) {
+        if (logger.isInfoEnabled()) {
+            logger.info("Ignoring status " + task.getStatus() + " of task with id=" + task.getId()
+                    + " since its flow (id=" + task.getFlowId() + ") is scheduled by another server");
+        }
+        if (task.getStatus() != TaskStatus.PROCESSING) {
+            stateTimer.forget(task.getId());
+            batchSizes.remove(task.getId());
+            machinesManager.taskEnded(task);
+            retries.taskEnded(task.getId());
+            cluster.taskEnded(task);
+        }
+    }
+
+    /**
+     * Takes over the tasks of a flow that was scheduled by another server which has not renewed its lease of the flow
+     * in time (or by this server, before it was restarted), and whose state in memory is therefore lost: the tasks that
+     * were pending are set in status 'New' again, and the tasks that were processing are killed and set in status
+     * 'New' as well, since their machines report their statuses to the server that is gone.
+     * @param flowId of the flow whose lease this server has just taken.
+     * @throws PersistenceException if the tasks could not be read or updated.
+     */
+    void adoptFlow(int flowId) throws PersistenceException {
+        List<Task> restarted = new ArrayList<>();
+        for (Task task : persistence.getTasks(flowId)) {
+            if (task.getStatus() == TaskStatus.PROCESSING && task.getMachine() != null) {
+                taskDispatcher.killTask(task);
+            }
+            if (task.getStatus() == TaskStatus.PENDING || task.getStatus() == TaskStatus.PROCESSING) {
+                restarted.add(task);
+            }
+        }
+        restartTasks(restarted);
+        if (logger.isInfoEnabled() && !restarted.isEmpty()) {
+            logger.info("Set " + restarted.size() + " pending or processing tasks of flow with id=" + flowId
+                    + " in status 'New' again");
+        }
+    }
+
+    /**
+     * Takes over the tasks that were dispatched before the server was restarted and are still running on their
+     * machines (see {@link TaskReconciler}): they are counted as running on their machines, and their statuses are
+     * handled like the statuses of the tasks that this server has dispatched. Their runtimes are not learned, since it
+     * is not known when they started.
+     */
+    void adoptRunningTasks(List<Task> tasks) {
+        tasks.forEach(machinesManager::taskDispatched);
+    }
+
+    /**
+     * Sets tasks that are not running anywhere (e.g., their machine has lost them) in status 'New' again, so they are
+     * dispatched again by the producer.
+     * @throws PersistenceException if the tasks could not be updated.
+     */
+    void restartTasks(List<Task> tasks) throws PersistenceException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        tasks.forEach(task -> task.setStatus(TaskStatus.NEW));
+        synchronized(producerLock) {
+            producerMayWork = false;
+        }
+        try {
+            persistence.updateTasksStatus(tasks);
+            stateTimer.becameNew(tasks);
+        } finally {
+            notifyProducer();
+        }
+    }
+
+    /**
+     * Sets the task that has failed for a transient reason in status 'New' again (after its backoff has passed), so it
+     * will be dispatched again by the producer. The task is failed if this cannot be persisted.
+     */
+    private void retryTask(Task task) {
+        synchronized(producerLock) {
+            producerMayWork = false;
+        }
+        task.setStatus(TaskStatus.NEW);
+        task.setFailureCause(null);
+        task.setMachine(null);
+        try {
+            persistence.updateTaskStatus(task);
+            stateTimer.becameNew(task.getId());
+        } catch (PersistenceException e) {
+            logger.error("Failed to retry task with id=" + task.getId(), e);
+            task.setStatus(TaskStatus.FAILED);
+            updateTaskAfterExecution(task);
+        } finally {
+            notifyProducer();
+        }
+    }
+
     /**
      * Initializes all data-structures of the QueueManager. Namely, this method creates thread pools and kick-starts
      * the producer and consumer threads.
      */
     private void initQueue() {
+        runtimeModel.load(persistence);
+        contextExpander.start();
+        retries.start();
         consumers = Executors.newFixedThreadPool(NUM_CONSUMER_THREADS);
         for (int i = 0; i < NUM_CONSUMER_THREADS; i++)
             consumers.execute(new Consumer(queue, persistence));
         producer = Executors.newSingleThreadExecutor();
         producer.execute(new Producer(queue, persistence));
+        if (speculation != null) {
+            speculation.start();
+        }
+    }
+
+    /**
+     * Kills the speculative copy of the task, if it has one, when the task is killed by the user.
+     */
+    void killSpeculativeCopy(Task task) {
+        if (speculation != null) {
+            speculation.killCopy(task);
+        }
     }
 
     /**
@@ -188,11 +431,12 @@ public class QueueManager {
 
     /**
      * The given task is used as a key to retrieve all tasks with the same flow-id and serial number.
-     * If all of these tasks were completed, it means that tasks with greater serial numbers - which depend on the
-     * previous ones - can be now executed. The status of these tasks is updated to 'New' so they will be picked up by
-     * the queue producer and executed in future cycles, now that all of their dependencies are completed.
-     * On the other hand, if some task failed or was stopped, then its dependents (those with a greater serial number)
-     * cannot be executed until manual intervention and therefore will change status to On_Hold.
+     * If all of these tasks were completed, it means that the tasks which depend on them (see
+     * {@link Task#predecessorSerials()}) may be executed now. The status of these tasks is updated to 'New' so they
+     * will be picked up by the queue producer and executed in future cycles, once all of their dependencies are
+     * completed (a task that depends on several serial numbers is checked again, and waits for the next one).
+     * On the other hand, if some task failed or was stopped, then its dependents cannot be executed until manual
+     * intervention and therefore will change status to On_Hold.
      * @param task to be handled.
      * @param letProducerWorkWhenDone tells the method whether the producer can work after this run -
      *        it is required since this method is recursive and we want the producer to work only once it is completed.
@@ -205,8 +449,8 @@ public class QueueManager {
         if (dependencyKey == null) {
             return false;
         }
-        /* the set of all tasks with the same flow id and serial number which need to be completed in order for tasks
-           with greater serial numbers to be executed */
+        /* the set of all tasks with the same flow id and serial number which need to be completed in order for the
+           tasks that depend on them to be executed */
         Set<Integer> taskIdsSet = dependencyKey.getSet();
         if (taskIdsSet != null) {
             taskIdsSet.remove(task.getId());
@@ -223,6 +467,9 @@ public class QueueManager {
                        or change status to On Hold if the flow is stuck */
                     dependingTasks.forEach(t -> t.setStatus(newStatus));
                     persistence.updateTasksStatus(dependingTasks);
+                    if (makeNew) {
+                        stateTimer.becameNew(dependingTasks);
+                    }
                     if (logger.isInfoEnabled()) {
                         logger.info("Changed status to " + newStatus + " for " + dependingTasks.size()
                                 + " tasks from flow with id=" + task.getFlowId() + " after handling task with id="
@@ -235,10 +482,7 @@ public class QueueManager {
                     }
                 }
                 if (letProducerWorkWhenDone) {
-                    synchronized (producerLock) {
-                        producerMayWork = true;
-                        producerLock.notify();
-                    }
+                    notifyProducer();
                 }
                 dependencyMap.remove(dependencyKey.getId());
                 setLocatorMap.remove(key);
@@ -268,6 +512,7 @@ public class QueueManager {
         synchronized (taskIdsInCancel) {
             taskIdsInCancel.remove(task.getId());
         }
+        stateTimer.forget(task.getId());
     }
 
     /**
@@ -276,63 +521,35 @@ public class QueueManager {
      */
     private class Consumer extends Thread {
 
-        BlockingQueue<Task> queue;
+        TaskQueue queue;
         Persistence persistence;
 
-        public Consumer(BlockingQueue<Task> queue, Persistence persistence) {
+        public Consumer(TaskQueue queue, Persistence persistence) {
             this.queue = queue;
             this.persistence = persistence;
         }
 
         /**
-         * Main consumer loop where the queue is polled for new tasks. Each task is tested to see whether it is ready
-         * for execution {@link #taskReadyForExecute(Task)} and if so, is assigned an available machine and sent to
-         * the ExecutionProxy {@link ExecutionProxy} for further processing.
+         * Main consumer loop where the queue is polled for new tasks, once the machines have a free slot for one (see
+         * {@link MachinesManager#reserveSlot()}). Each task is tested to see whether it is ready for execution
+         * {@link #taskReadyForExecute(Task)} and if so, is assigned an available machine and sent to the
+         * TaskDispatcher {@link TaskDispatcher} for further processing.
          */
         @SuppressWarnings("InfiniteLoopStatement")
         @Override
         public void run() {
             try {
                 while (true) {
-                    Task task = queue.take();
-                    Task currTask = (Task) task.clone();
-                    synchronized (consumerLock) {
-                        while (producerUpdatingDatabase) {
-                            consumerLock.wait();
-                        }
-                    }
-                    if (!taskReadyForExecute(currTask)) {
-                        continue;
-                    }
+                    machinesManager.reserveSlot();
                     try {
-                        Machine machine = machinesManager.getAvailableMachine();
-                        currTask.setMachine(machine);
-                        currTask.setStatus(TaskStatus.PROCESSING);
-                        synchronized (taskIdsInCancel) {
-                            if (taskIdsInCancel.contains(currTask.getId())) {
-                                continue;
-                            }
+                        Task task = queue.take();
+                        try {
+                            consume(task);
+                        } finally {
+                            tasksInQueue.decrementAndGet();
                         }
-                    } catch (Exception e) {
-                        logger.warn("Queue consumer thread failed to find available machine to run task. The flow will be stalled.", e);
-                        currTask.setStatus(TaskStatus.ON_HOLD);
-                        updateTaskAfterExecution(currTask);
-                        continue;
-                    }
-                    persistence.updateTaskStatus(currTask);
-                    if (currTask.getOutputPath().contains("*")) {
-                        logger.error("Tried to execute taskId=" + currTask.getId()
-                                + " but found '*' in the output path: " + currTask.getOutputPath());
-                        currTask.setStatus(TaskStatus.FAILED);
-                        updateTaskAfterExecution(currTask);
-                        continue;
-                    }
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Sending task with id=" + currTask.getId() + " for execution...");
-                    }
-                    executionProxy.execute(currTask, QueueManager.this);
-                    if (logger.isInfoEnabled()) {
-                        logger.info("Task with id=" + currTask.getId() + " was sent for execution");
+                    } finally {
+                        machinesManager.releaseSlot();
                     }
                 }
             } catch (InterruptedException | CloneNotSupportedException e) {
@@ -346,24 +563,208 @@ public class QueueManager {
         }
 
         /**
-         * Checks whether all the tasks preceding the given task in its flow has already completed. If the task cannot
-         * currently be executed, a TaskKey {@link TaskKey} is created for it and stored with the set of tasks on which
-         * it depends in dependencyMap {@link #dependencyMap}. After storing the task with its dependencies, the DB is
+         * Sends the task for execution if it is ready, or stores it with the tasks it depends on. If the tasks of its
+         * unit are short, other ready tasks of the unit are taken from the queue and sent with it in a batch.
+         */
+        private void consume(Task task) throws Exception {
+            Task currTask = (Task) task.clone();
+            synchronized (consumerLock) {
+                while (producerUpdatingDatabase) {
+                    consumerLock.wait();
+                }
+            }
+            if (cluster != null && !cluster.ownsFlow(currTask.getFlowId())) {
+                return; // the flow was taken over by another server, which reads its tasks again
+            }
+            if (!taskReadyForExecute(currTask)) {
+                return;
+            }
+            try {
+                Machine machine = selectMachine(currTask);
+                if (machine == null) {
+                    // its preferred machine is busy, so the consumer sends other tasks meanwhile
+                    tasksInQueue.incrementAndGet();
+                    queue.defer(task, LOCALITY_DEFER_MILLIS);
+                    return;
+                }
+                currTask.setMachine(machine);
+                currTask.setStatus(TaskStatus.PROCESSING);
+                if (isAboutToCancel(currTask)) {
+                    if (cluster != null) {
+                        cluster.taskEnded(currTask); // releases the slot
+                    }
+                    return;
+                }
+                if (cluster != null && !cluster.confirmFlow(currTask.getFlowId())) {
+                    cluster.taskEnded(currTask); // the server that took over the flow dispatches the task
+                    return;
+                }
+            } catch (InterruptedException e) {
+                throw e; // the QueueManager is stopped
+            } catch (Exception e) {
+                logger.warn("Queue consumer thread failed to find available machine to run task. The flow will be stalled.", e);
+                currTask.setStatus(TaskStatus.ON_HOLD);
+                updateTaskAfterExecution(currTask);
+                return;
+            }
+            if (!startProcessing(currTask)) {
+                return;
+            }
+            List<Task> batch = collectBatch(currTask);
+            if (batch.size() == 1) {
+                dispatch(currTask);
+            } else {
+                dispatch(batch);
+            }
+        }
+
+        /**
+         * Selects a machine for the task. In a cluster, the task also takes one of the slots of the machine, and if
+         * all of them are taken, the consumer waits for a slot and selects a machine again.
+         * @return the machine, or null if the task should be deferred (see
+         * {@link MachinesManager#getAvailableMachine(Task, Integer)}).
+         */
+        private Machine selectMachine(Task task) throws MachinesManagementException, InterruptedException {
+            while (true) {
+                Machine machine = machinesManager.getAvailableMachine(task, retries.getFailedMachineId(task.getId()));
+                if (cluster == null || machine == null) {
+                    return machine;
+                }
+                task.setMachine(machine);
+                if (cluster.acquireSlot(task)) {
+                    task.setServerId(cluster.getServerId());
+                    return machine;
+                }
+                cluster.awaitSlot();
+            }
+        }
+
+        private void dispatch(Task currTask) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Sending task with id=" + currTask.getId() + " for execution...");
+            }
+            if (speculation != null) {
+                speculation.stage(currTask); // so it may get a speculative copy
+            }
+            machinesManager.taskDispatched(currTask);
+            stateTimer.dispatched(currTask);
+            taskDispatcher.execute(currTask, QueueManager.this);
+            if (speculation != null) {
+                speculation.taskDispatched(currTask);
+            }
+            dispatchedTasks.increment();
+            if (logger.isInfoEnabled()) {
+                logger.info("Task with id=" + currTask.getId() + " was sent for execution");
+            }
+        }
+
+        /**
+         * Sends the tasks of a batch for execution. The tasks of a batch are not speculated on, since every one of
+         * them runs as long as the whole batch as far as the server can tell.
+         */
+        private void dispatch(List<Task> batch) {
+            batch.forEach(task -> batchSizes.put(task.getId(), batch.size()));
+            machinesManager.batchDispatched(batch);
+            batch.forEach(stateTimer::dispatched);
+            taskDispatcher.executeBatch(batch, QueueManager.this);
+            dispatchedTasks.add(batch.size());
+            dispatchedBatches.increment();
+            batchedTasks.add(batch.size());
+            if (logger.isInfoEnabled()) {
+                logger.info("A batch of " + batch.size() + " tasks of unit " + batch.get(0).getUnit().getId()
+                        + " was sent for execution");
+            }
+        }
+
+        /**
+         * Persists the task as 'Processing' on the machine that is set in it.
+         * @return true iff the task may be sent for execution (otherwise it has failed).
+         */
+        private boolean startProcessing(Task currTask) throws PersistenceException {
+            persistence.updateTaskStatus(currTask);
+            stateTimer.becameProcessing(currTask);
+            if (currTask.getOutputPath().contains("*")) {
+                logger.error("Tried to execute taskId=" + currTask.getId()
+                        + " but found '*' in the output path: " + currTask.getOutputPath());
+                currTask.setStatus(TaskStatus.FAILED);
+                updateTaskAfterExecution(currTask);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Takes from the queue the tasks of the same unit as the given task that will be sent with it in a batch,
+         * and starts processing them on its machine. The batch is sized so that it runs about the target time of a
+         * batch, by the expected runtime of the unit, and only the units that are known to be short are batched.
+         * @param first is a task that is processing on its machine.
+         * @return the tasks of the batch, starting with the given task.
+         */
+        private List<Task> collectBatch(Task first) throws Exception {
+            List<Task> batch = new ArrayList<>();
+            batch.add(first);
+            if (batching == null || first.getUnit() == null || !runtimeModel.isKnown(first.getUnit().getId())) {
+                return batch;
+            }
+            int unitId = first.getUnit().getId();
+            double expectedSeconds = runtimeModel.expectedRuntime(unitId);
+            if (expectedSeconds > batching.getMaxTaskSeconds()) {
+                return batch;
+            }
+            int size = (int) Math.min(batching.getMaxTasks(),
+                    Math.max(1, Math.floor(batching.getTargetSeconds() / Math.max(expectedSeconds, 1e-3))));
+            Machine machine = first.getMachine();
+            List<Task> similarTasks = queue.poll(t -> t.getUnit() != null && t.getUnit().getId() == unitId
+                    && !Objects.equals(retries.getFailedMachineId(t.getId()), machine.getId()), size - 1);
+            for (Task similarTask : similarTasks) {
+                try {
+                    Task task = (Task) similarTask.clone();
+                    if (!taskReadyForExecute(task) || isAboutToCancel(task)
+                            || cluster != null && !cluster.confirmFlow(task.getFlowId())) {
+                        continue;
+                    }
+                    task.setMachine(machine);
+                    task.setStatus(TaskStatus.PROCESSING);
+                    if (cluster != null) {
+                        task.setServerId(cluster.getServerId());
+                        cluster.shareSlot(first, task);
+                    }
+                    if (startProcessing(task)) {
+                        batch.add(task);
+                    }
+                } finally {
+                    tasksInQueue.decrementAndGet();
+                }
+            }
+            return batch;
+        }
+
+        private boolean isAboutToCancel(Task task) {
+            synchronized (taskIdsInCancel) {
+                return taskIdsInCancel.contains(task.getId());
+            }
+        }
+
+        /**
+         * Checks whether all the tasks preceding the given task in its flow (those with the serial numbers it depends
+         * on - see {@link Task#predecessorSerials()}) have already completed. If the task cannot currently be
+         * executed, a TaskKey {@link TaskKey} is created for it and stored with the set of tasks of the first serial
+         * number it depends on that was not completed, in dependencyMap {@link #dependencyMap}. After storing the task with its dependencies, the DB is
          * queried once more to verify that no dependency has completed while storing the task; this step is required to
          * prevent a situation where the task is stuck waiting for a dependency to be completed while it was already
          * completed. Note that in this case, the return value would be false as the task is updated in the DB to 'New'
          * and will be retrieved by the QueueManager in its future cycles.
          * @param task to check dependencies for.
-         * @return true iff all previous tasks in the same flow as task were executed and completed successfully.
-         * If the serial number for this task is 0 it can always be executed.
+         * @return true iff all the tasks in the same flow that task depends on were executed and completed
+         * successfully. A task that depends on no other task (e.g., with serial number 0) can always be executed.
          * @throws InterruptedException if the method was interrupted while waiting for the dependencyMap to be available.
          * @throws PersistenceException if tasks retrieval from the DB or updates to the DB failed.
          */
         synchronized private boolean taskReadyForExecute(Task task)
                 throws InterruptedException, PersistenceException {
             boolean ready;
-            int serial = task.getSerialNumber() - 1; // get the serial number of the preceding task
-            if (serial < 0) {
+            List<Integer> predecessors = task.predecessorSerials();
+            if (predecessors.isEmpty()) {
                 return true; // there are no predecessors for this task
             }
             synchronized (dependencyMap) {
@@ -371,11 +772,19 @@ public class QueueManager {
                     dependencyMap.wait();
                 }
                 updatingDependencies = true;
-                // get a list of uncompleted tasks (e.g. failed or stopped) with serial smaller by one
-                List<Task> tasks = persistence.getTasks(task.getFlowId()).stream()
-                        .filter(t -> t.getSerialNumber() == serial &&
-                                t.getStatus() != TaskStatus.COMPLETED).collect(Collectors.toList());
+                // get a list of uncompleted tasks (e.g. failed or stopped) of the first serial it depends on
+                List<Task> flowTasks = persistence.getTasks(task.getFlowId());
+                List<Task> tasks = Collections.emptyList();
+                for (int predecessor : predecessors) {
+                    tasks = flowTasks.stream()
+                            .filter(t -> t.getSerialNumber() == predecessor &&
+                                    t.getStatus() != TaskStatus.COMPLETED).collect(Collectors.toList());
+                    if (!tasks.isEmpty()) {
+                        break;
+                    }
+                }
                 if (!(ready = tasks.isEmpty())) { // if there are some dependencies
+                    int serial = tasks.get(0).getSerialNumber();
                     storeDependencies(task, tasks);
                     // after storing, we need to verify no dependent was completed in the meanwhile
                     // if it were, check if we can run now (return false anyway)
@@ -450,10 +859,10 @@ public class QueueManager {
      */
     private class Producer extends Thread {
 
-        BlockingQueue<Task> queue;
+        TaskQueue queue;
         Persistence persistence;
 
-        public Producer(BlockingQueue<Task> queue, Persistence persistence) {
+        public Producer(TaskQueue queue, Persistence persistence) {
             this.queue = queue;
             this.persistence = persistence;
         }
@@ -473,10 +882,12 @@ public class QueueManager {
         public void run() {
             try {
                 while (true) {
+                    long notifications;
                     synchronized (producerLock) {
                         while (!producerMayWork) {
                             producerLock.wait(MAX_PRODUCER_IDLE_TIME);
                         }
+                        notifications = producerNotifications;
                     }
                     List<Task> tasks;
                     try {
@@ -484,31 +895,45 @@ public class QueueManager {
                     } catch (Exception e) {
                         continue;
                     }
+                    if (cluster != null && tasks != null) {
+                        tasks = claimedTasks(tasks);
+                    }
                     synchronized(producerLock) {
                         if (tasks == null || tasks.isEmpty()) {
-                            producerMayWork = false;
+                            // sleep only if nobody has notified about new tasks since the DB was read
+                            producerMayWork = notifications != producerNotifications;
                             continue;
                         }
                     }
+                    // the tasks of every flow are read once per cycle, however many of its tasks are new
+                    Map<Integer, List<Task>> flowsTasks = new HashMap<>();
                     for (Task task: tasks) {
                         Task currTask = (Task) task.clone();
                         if (!insertContextToTask(currTask)) {
                             continue; // skip this task - it was not filled with context yet
                         }
-                        if (holdTaskIfPreviousTasksAreStuck(currTask)) continue;
+                        List<Task> flowTasks = flowsTasks.get(currTask.getFlowId());
+                        if (flowTasks == null) {
+                            flowTasks = persistence.getTasks(currTask.getFlowId());
+                            flowsTasks.put(currTask.getFlowId(), flowTasks);
+                        }
+                        if (holdTaskIfPreviousTasksAreStuck(currTask, flowTasks)) continue;
+                        double remainingSeconds = remainingRuntime(currTask, flowTasks);
                         if (logger.isDebugEnabled()) {
                             logger.debug("Adding new task to queue (taskId=" + currTask.getId() + ")");
                         }
                         synchronized (consumerLock) {
                             producerUpdatingDatabase = true;
                         }
-                        boolean taskInsertedToQueue = queue.offer(currTask);
+                        stateTimer.becamePending(currTask); // before a consumer may take it
+                        tasksInQueue.incrementAndGet();
+                        boolean taskInsertedToQueue = queue.offer(currTask, remainingSeconds);
                         if (!taskInsertedToQueue) {
                             synchronized (consumerLock) {
                                 producerUpdatingDatabase = false;
                                 consumerLock.notifyAll();
                             }
-                            queue.put(currTask);
+                            queue.put(currTask, remainingSeconds);
                             synchronized (consumerLock) {
                                 producerUpdatingDatabase = true;
                             }
@@ -525,6 +950,7 @@ public class QueueManager {
                             consumerLock.notifyAll();
                         }
                     }
+                    stateTimer.flowsRead(tasks.stream().map(Task::getFlowId).collect(Collectors.toSet()));
                 }
             } catch (InterruptedException e) {
                 /* not interesting to log and certainly not to throw (this is usually triggered by planned
@@ -535,10 +961,56 @@ public class QueueManager {
             }
         }
 
-        private boolean holdTaskIfPreviousTasksAreStuck(Task currTask) throws PersistenceException {
-            int serial = currTask.getSerialNumber() - 1;
-            List<Task> previousHoldingTasks = persistence.getTasks(currTask.getFlowId()).stream()
-                    .filter(t -> t.getSerialNumber() == serial &&
+        /**
+         * @return the new tasks of the flows this server schedules, claiming the flows it is preferred for.
+         */
+        private List<Task> claimedTasks(List<Task> tasks) {
+            Map<Integer, Boolean> claimed = new HashMap<>();
+            return tasks.stream()
+                    .filter(t -> claimed.computeIfAbsent(t.getFlowId(), cluster::claimNewFlow))
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         * @return the expected runtime in seconds of the task and of the tasks that will run after it in its flow -
+         * the longest chain of serial numbers that depend on the task, one task per serial number, as the tasks of
+         * the same serial number (and of independent branches of the flow) run side by side.
+         */
+        private double remainingRuntime(Task currTask, List<Task> flowTasks) {
+            TreeMap<Integer, Task> tasksBySerial = new TreeMap<>();
+            tasksBySerial.put(currTask.getSerialNumber(), currTask);
+            for (Task task : flowTasks) {
+                if (task.getSerialNumber() > currTask.getSerialNumber()) {
+                    tasksBySerial.putIfAbsent(task.getSerialNumber(), task);
+                }
+            }
+            /* the runtime of the longest chain from the task to every serial number that depends on it - predecessors
+               have smaller serial numbers, so they are reached first */
+            Map<Integer, Double> runtimeUpTo = new HashMap<>();
+            double remaining = 0;
+            for (Task task : tasksBySerial.values()) {
+                Double longestBefore = task == currTask ? 0.0 : null;
+                for (int predecessor : task.predecessorSerials()) {
+                    Double upTo = runtimeUpTo.get(predecessor);
+                    if (upTo != null && (longestBefore == null || upTo > longestBefore)) {
+                        longestBefore = upTo;
+                    }
+                }
+                if (longestBefore == null) {
+                    continue; // does not depend on the task
+                }
+                double upTo = longestBefore + runtimeModel.expectedRuntime(task.getUnit().getId());
+                runtimeUpTo.put(task.getSerialNumber(), upTo);
+                remaining = Math.max(remaining, upTo);
+            }
+            return remaining;
+        }
+
+        private boolean holdTaskIfPreviousTasksAreStuck(Task currTask, List<Task> flowTasks)
+                throws PersistenceException {
+            List<Integer> predecessors = currTask.predecessorSerials();
+            List<Task> previousHoldingTasks = flowTasks.stream()
+                    .filter(t -> predecessors.contains(t.getSerialNumber()) &&
                             (t.getStatus() == TaskStatus.FAILED ||
                                     t.getStatus() == TaskStatus.CANCELED ||
                                     t.getStatus() == TaskStatus.STOPPED ||
@@ -562,27 +1034,17 @@ public class QueueManager {
         }
 
         /**
-         * Some tasks in the DB might have wildcard context variables (i.e., ".*") and therefore this method replaces
-         * the given task with the list of tasks corresponding to the different context combinations, if there are
-         * more than one.
+         * Some tasks in the DB might have wildcard context variables (i.e., ".*") and therefore they are replaced with
+         * the list of tasks corresponding to the different context combinations. The expansion involves walking the
+         * file system, so it is handed over to the {@link ContextExpander} instead of being done by the producer.
          * @param task to refactor (insert context values instead of .*)
          * @return true iff the task can be executed as is and no context wildcards were found.
-         * @throws Exception in case of IOException or related exceptions. Another type of exception that may be
-         * thrown is of course a PersistenceException in case the deletion and insertions to the database failed
-         * ({@link Persistence#insertContextToTask(Task, List)}).
          */
-        private boolean insertContextToTask(Task task) throws Exception {
-            List<Task> tasks = Task.createTasks(task.getUnit(), task.getContext(), task.getSerialNumber());
-            if (tasks.size() == 1 && task.getInputPath().equals(tasks.get(0).getInputPath()) &&
-                    task.getOutputPath().equals(tasks.get(0).getOutputPath())) {
+        private boolean insertContextToTask(Task task) {
+            if (!task.hasContextWildcards()) {
                 return true;
             }
-            persistence.insertContextToTask(task, tasks);
-            if (logger.isDebugEnabled()) {
-                logger.debug("Task with id=" + task.getId() +
-                        " was found to include context wildcards. Context was inserted to the task and updated in the database, splitting it to "
-                        + tasks.size() + " different tasks within flow with id=" + task.getFlowId());
-            }
+            contextExpander.expand(task);
             return false;
         }
     }
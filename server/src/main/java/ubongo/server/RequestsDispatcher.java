@@ -0,0 +1,105 @@
+package ubongo.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.ExecutionRequest;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * The RequestsDispatcher handles execution requests in parallel, while keeping the order of requests that refer to
+ * the same entity (e.g., 'Run flow' followed by 'Cancel flow' for the same flow). Every entity is mapped to one of
+ * a fixed number of single-threaded lanes, so requests of the same entity are always handled by the same thread,
+ * one after the other and in order of arrival, whereas requests of different entities usually run concurrently.
+ * The requests of a task are mapped by the flow of the task, so they keep their order with the requests of the flow
+ * as well (e.g., 'Cancel flow' followed by 'Resume task' for one of its tasks).
+ */
+class RequestsDispatcher {
+
+    private static final int NUM_LANES = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static Logger logger = LogManager.getLogger(RequestsDispatcher.class);
+    private final Consumer<ExecutionRequest> handler;
+    private final IntFunction<Integer> flowIdOfTask;
+    private final ExecutorService[] lanes = new ExecutorService[NUM_LANES];
+
+    /**
+     * @param flowIdOfTask returns the id of the flow of a task by the task id, or null if it is unknown (then the
+     *                     requests of the task are only kept in order with each other).
+     */
+    RequestsDispatcher(Consumer<ExecutionRequest> handler, IntFunction<Integer> flowIdOfTask) {
+        this.handler = handler;
+        this.flowIdOfTask = flowIdOfTask;
+        for (int i = 0; i < NUM_LANES; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    void dispatch(ExecutionRequest request) {
+        lanes[getLane(request)].execute(() -> handler.accept(request));
+    }
+
+    /**
+     * Stops accepting requests and waits for the requests that were already dispatched to be handled.
+     * @return true iff all dispatched requests were handled before the timeout has elapsed.
+     */
+    boolean stop(long timeout, TimeUnit unit) {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean terminated = true;
+        for (ExecutorService lane : lanes) {
+            try {
+                terminated &= lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                terminated = false;
+            }
+        }
+        if (!terminated) {
+            logger.warn("Some execution requests were not handled before the requests dispatcher was stopped");
+        }
+        return terminated;
+    }
+
+    private int getLane(ExecutionRequest request) {
+        String entityType = getEntityType(request.getAction());
+        int entityId = request.getEntityId();
+        if (entityType.equals("task")) {
+            Integer flowId = flowIdOfTask.apply(entityId);
+            if (flowId != null) {
+                entityType = "flow";
+                entityId = flowId;
+            }
+        }
+        int hash = 31 * entityType.hashCode() + entityId;
+        return (hash & Integer.MAX_VALUE) % NUM_LANES;
+    }
+
+    private static String getEntityType(ExecutionRequest.Action action) {
+        if (action == null) {
+            return "";
+        }
+        switch (action) {
+            case CANCEL_TASK:
+            case KILL_TASK:
+            case RESUME_TASK:
+                return "task";
+            case RUN_FLOW:
+            case RUN_FLOWS:
+            case CANCEL_FLOW:
+                return "flow";
+            case ACTIVATE_MACHINE:
+            case DEACTIVATE_MACHINE:
+            case DRAIN_MACHINE:
+            case DRAIN_MACHINES:
+                return "machine";
+            default:
+                return "unit";
+        }
+    }
+}
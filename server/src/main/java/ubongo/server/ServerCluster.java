@@ -0,0 +1,441 @@
+package ubongo.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.Lease;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.metrics.MetricsRegistry;
+import ubongo.persistence.ClusterProperties;
+import ubongo.persistence.Persistence;
+import ubongo.persistence.exceptions.PersistenceException;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The part of an execution server in a cluster of servers that run against the same DB (see
+ * {@link ClusterProperties}). Everything a server claims is a lease in the DB (see {@link Lease}):
+ * <ul>
+ *     <li>"server/id" - the server is alive.</li>
+ *     <li>"flow/id" - the server schedules the flow: only it reads the new tasks of the flow, keeps the tasks that wait
+ *     for their predecessors and receives the statuses of the tasks it has dispatched (see
+ *     {@link Task#getServerId()}). A flow is released once it has no 'New', 'Pending' or 'Processing' tasks.</li>
+ *     <li>"slot/machine/n" - a capacity token: one of the slots of a machine is taken by a task (or by a batch of
+ *     tasks) that the server has dispatched to the machine.</li>
+ *     <li>"request/id" - the server handles an execution request that does not belong to a flow.</li>
+ * </ul>
+ * The heartbeat renews all the leases of the server. A new flow is claimed by the server that is preferred for it among
+ * the live servers (by rendezvous hashing, so the flows are spread evenly and every server agrees on the preferred
+ * server without talking to the others), and so is a flow whose server has not renewed its lease in time: the
+ * preferred server takes it over, with the tasks that were pending or processing on the server that is gone (see
+ * {@link QueueManager#adoptFlow(int)}).
+ * The leases are owned by the process rather than by the id of the server (the owner is the id with a token of the
+ * process), so a second process that was started with the id of a live server cannot take its leases: it refuses to
+ * start, and a server that was restarted only takes over its own flows once the leases of its previous process expired.
+ */
+class ServerCluster {
+
+    private static final String SERVER_LEASE_PREFIX = "server/";
+    private static final String FLOW_LEASE_PREFIX = "flow/";
+    private static final String SLOT_LEASE_PREFIX = "slot/";
+    private static final String REQUEST_LEASE_PREFIX = "request/";
+    private static final long SLOT_WAIT_MILLIS = 1000;
+    private static final String OWNER_TOKEN_SEPARATOR = "#";
+
+    private static Logger logger = LogManager.getLogger(ServerCluster.class);
+    private static final MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+    private final ClusterProperties properties;
+    private final Persistence persistence;
+    private final String serverId;
+    private final String owner; // of the leases of this process: the id of the server and a token of the process
+    private final long leaseMillis;
+    private ScheduledExecutorService heartbeat;
+    private QueueManager queueManager;
+
+    /* the ids of the live servers (including this one), as of the last heartbeat */
+    private volatile List<String> liveServers;
+
+    /* the flows whose leases this server holds */
+    private final Set<Integer> ownedFlows = ConcurrentHashMap.newKeySet();
+
+    /* the flows whose leases other servers held (or that were about to be taken over), as of the last heartbeat */
+    private volatile Set<Integer> foreignFlows = Collections.emptySet();
+
+    /* the owned flows that may have no active tasks left - they are checked (and released) by the next heartbeat */
+    private final Set<Integer> flowsToCheck = ConcurrentHashMap.newKeySet();
+
+    /* the slot that every dispatched task takes, by task id, and the number of tasks that share every slot (the
+       tasks of a batch share one) - guarded by slotUsers */
+    private final Map<Integer, String> taskSlots = new HashMap<>();
+    private final Map<String, Integer> slotUsers = new HashMap<>();
+
+    /* the requests whose leases this server holds */
+    private final Set<Integer> claimedRequests = ConcurrentHashMap.newKeySet();
+
+    ServerCluster(ClusterProperties properties, Persistence persistence, String serverId) {
+        this.properties = properties;
+        this.persistence = persistence;
+        this.serverId = serverId;
+        this.owner = serverId + OWNER_TOKEN_SEPARATOR + UUID.randomUUID();
+        this.leaseMillis = TimeUnit.SECONDS.toMillis(properties.getLeaseSeconds());
+        this.liveServers = Collections.singletonList(serverId);
+        metrics.gauge("ubongo_cluster_flows_owned", "Flows scheduled by this server").setSupplier(ownedFlows::size);
+    }
+
+    String getServerId() {
+        return serverId;
+    }
+
+    /**
+     * Joins the cluster: takes the lease of the server and starts the heartbeat, which takes over the flows this server
+     * has held before it was restarted (if its id is the same) once the leases of its previous process expire.
+     * @param queueManager to hand the flows that are taken over to (before it is started, so its producer only reads
+     *                     the new tasks once the live servers are known).
+     * @throws PersistenceException if the leases could not be read or taken, or if a live server has the same id.
+     */
+    void start(QueueManager queueManager) throws PersistenceException {
+        this.queueManager = queueManager;
+        if (!persistence.acquireLease(SERVER_LEASE_PREFIX + serverId, owner, leaseMillis)) {
+            throw new PersistenceException("Another execution server with id=" + serverId + " is running (or has "
+                    + "stopped less than " + properties.getLeaseSeconds() + " seconds ago without leaving the cluster)");
+        }
+        beat();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ubongo-cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(() -> {
+            try {
+                beat();
+            } catch (Exception e) {
+                logger.error("Failed to renew the leases of the server. They expire in "
+                        + properties.getLeaseSeconds() + " seconds unless renewed", e);
+            }
+        }, properties.getHeartbeatSeconds(), properties.getHeartbeatSeconds(), TimeUnit.SECONDS);
+        logger.info("Execution server " + serverId + " joined the cluster (" + liveServers.size() + " live servers)");
+    }
+
+    /**
+     * Leaves the cluster: lets all the leases of the server expire at once, so the other servers take its flows over
+     * (with their pending and processing tasks) without waiting for the leases to expire. Called after the QueueManager
+     * was stopped.
+     */
+    void stop() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        try {
+            persistence.renewLeases(owner, 0);
+        } catch (PersistenceException e) {
+            logger.warn("Failed to give up the leases of the server. They expire in "
+                    + properties.getLeaseSeconds() + " seconds", e);
+        }
+        ownedFlows.clear();
+        flowsToCheck.clear();
+        claimedRequests.clear();
+        synchronized (slotUsers) {
+            taskSlots.clear();
+            slotUsers.clear();
+        }
+    }
+
+    /**
+     * @return true iff this server schedules the flow (as of its last heartbeat or claim).
+     */
+    boolean ownsFlow(int flowId) {
+        return ownedFlows.contains(flowId);
+    }
+
+    /**
+     * Renews the lease of the flow, right before a task of the flow is dispatched: a server that has missed its
+     * heartbeats may have lost the flow to another server without knowing it yet, and must not dispatch the tasks the
+     * other server dispatches as well. Once renewed, the lease is held for leaseSeconds, so the task is dispatched
+     * well before it could be lost again.
+     * @return true iff this server still schedules the flow.
+     */
+    boolean confirmFlow(int flowId) {
+        if (!ownedFlows.contains(flowId)) {
+            return false;
+        }
+        try {
+            if (persistence.acquireLease(FLOW_LEASE_PREFIX + flowId, owner, leaseMillis)) {
+                return true;
+            }
+        } catch (PersistenceException e) {
+            logger.warn("Failed to renew the lease of flow with id=" + flowId, e);
+            return false; // the task is read again - by this server if it still holds the flow
+        }
+        ownedFlows.remove(flowId);
+        metrics.counter("ubongo_cluster_flows_fenced_total", "Dispatches that were stopped since the flow was "
+                + "taken over by another server").increment();
+        logger.warn("Execution server " + serverId + " has lost flow with id=" + flowId
+                + " to another server, since it did not renew its lease in time");
+        return false;
+    }
+
+    /**
+     * Claims a flow whose new tasks were read by the producer, if this server is the preferred server of the flow.
+     * @return true iff this server schedules the flow.
+     */
+    boolean claimNewFlow(int flowId) {
+        if (ownedFlows.contains(flowId)) {
+            return true;
+        }
+        return isPreferred(flowId) && claimFlow(flowId);
+    }
+
+    /**
+     * Claims a flow for an execution request of the flow (or of one of its tasks), whichever server is preferred for
+     * it. A flow that another server held at the last heartbeat is left to that server, or to the server that takes
+     * it over.
+     * @return true iff this server schedules the flow.
+     */
+    boolean claimFlow(int flowId) {
+        if (ownedFlows.contains(flowId)) {
+            return true;
+        }
+        if (foreignFlows.contains(flowId)) {
+            return false;
+        }
+        try {
+            if (persistence.acquireLease(FLOW_LEASE_PREFIX + flowId, owner, leaseMillis)) {
+                ownedFlows.add(flowId);
+                flowsToCheck.add(flowId);
+                return true;
+            }
+        } catch (PersistenceException e) {
+            logger.warn("Failed to claim flow with id=" + flowId, e);
+        }
+        return false;
+    }
+
+    /**
+     * Claims an execution request that does not belong to a flow (e.g., a machine request), so only one server
+     * handles it. The claim is released by {@link #releaseRequest(int)} once the request was handled.
+     * @return true iff this server should handle the request.
+     */
+    boolean claimRequest(int requestId) {
+        try {
+            if (persistence.acquireLease(REQUEST_LEASE_PREFIX + requestId, owner, leaseMillis)) {
+                claimedRequests.add(requestId);
+                return true;
+            }
+        } catch (PersistenceException e) {
+            logger.warn("Failed to claim request with id=" + requestId, e);
+        }
+        return false;
+    }
+
+    void releaseRequest(int requestId) {
+        if (!claimedRequests.remove(requestId)) {
+            return;
+        }
+        try {
+            persistence.releaseLease(REQUEST_LEASE_PREFIX + requestId, owner);
+        } catch (PersistenceException e) {
+            logger.warn("Failed to release request with id=" + requestId + ". Its lease expires in "
+                    + properties.getLeaseSeconds() + " seconds", e);
+        }
+    }
+
+    /**
+     * Takes a free slot of the machine of the task for it. A machine that has registered itself has the slots it has
+     * registered with, and any other machine has slotsPerMachine.
+     * @return true iff a slot was taken (otherwise the machine runs as many tasks as it has slots).
+     */
+    boolean acquireSlot(Task task) {
+        int machineId = task.getMachine().getId();
+        int slots = task.getMachine().getSlots() > 0 ? task.getMachine().getSlots() : properties.getSlotsPerMachine();
+        synchronized (slotUsers) {
+            for (int slot = 0; slot < slots; slot++) {
+                String name = SLOT_LEASE_PREFIX + machineId + "/" + slot;
+                if (slotUsers.containsKey(name)) {
+                    continue; // taken by another task of this server
+                }
+                try {
+                    if (persistence.acquireLease(name, owner, leaseMillis)) {
+                        taskSlots.put(task.getId(), name);
+                        slotUsers.put(name, 1);
+                        return true;
+                    }
+                } catch (PersistenceException e) {
+                    logger.warn("Failed to take slot " + name + " for task with id=" + task.getId(), e);
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lets the task run in the slot of another task (e.g., of the first task of its batch).
+     */
+    void shareSlot(Task holder, Task task) {
+        synchronized (slotUsers) {
+            String name = taskSlots.get(holder.getId());
+            if (name != null) {
+                taskSlots.put(task.getId(), name);
+                slotUsers.merge(name, 1, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * Waits for a slot of this server to be released, or for a while if none is (the slots of the other servers are
+     * released without notice).
+     */
+    void awaitSlot() throws InterruptedException {
+        synchronized (slotUsers) {
+            slotUsers.wait(SLOT_WAIT_MILLIS);
+        }
+    }
+
+    /**
+     * Called when a task of this server has ended (or was not dispatched after all): releases its slot, and checks at
+     * the next heartbeat whether its flow has ended.
+     */
+    void taskEnded(Task task) {
+        flowsToCheck.add(task.getFlowId());
+        synchronized (slotUsers) {
+            String name = taskSlots.remove(task.getId());
+            if (name == null || slotUsers.merge(name, -1, Integer::sum) > 0) {
+                return;
+            }
+            slotUsers.remove(name);
+            try {
+                // while holding the lock, or another task of this server might take the slot before it is released
+                persistence.releaseLease(name, owner);
+            } catch (PersistenceException e) {
+                logger.warn("Failed to release slot " + name + ". It expires in "
+                        + properties.getLeaseSeconds() + " seconds", e);
+            }
+            slotUsers.notifyAll();
+        }
+    }
+
+    /**
+     * Renews the leases of the server, forgets the flows it has lost, takes over the flows of the servers that are
+     * gone, releases the flows that have ended and lets the producer look for new flows.
+     */
+    private void beat() throws PersistenceException {
+        List<Integer> flowIds = new ArrayList<>(ownedFlows); // the flows claimed later are not renewed now
+        Set<String> held = persistence.renewLeases(owner, leaseMillis);
+        if (!held.contains(SERVER_LEASE_PREFIX + serverId)) {
+            persistence.acquireLease(SERVER_LEASE_PREFIX + serverId, owner, leaseMillis);
+        }
+        for (int flowId : flowIds) {
+            if (!held.contains(FLOW_LEASE_PREFIX + flowId)) {
+                ownedFlows.remove(flowId);
+                logger.warn("Execution server " + serverId + " has lost flow with id=" + flowId
+                        + " to another server, since it did not renew its lease in time");
+            }
+        }
+        List<String> servers = new ArrayList<>();
+        for (Lease lease : persistence.getLeases(SERVER_LEASE_PREFIX)) {
+            String id = lease.getName().substring(SERVER_LEASE_PREFIX.length());
+            if (!lease.isExpired() && !id.equals(serverId)) {
+                servers.add(id);
+            }
+        }
+        servers.add(serverId);
+        liveServers = servers;
+        metrics.gauge("ubongo_cluster_live_servers", "Execution servers that have renewed their leases in time")
+                .set(servers.size());
+        Set<Integer> foreign = new HashSet<>();
+        for (Lease lease : persistence.getLeases(FLOW_LEASE_PREFIX)) {
+            int flowId = flowId(lease);
+            if (lease.getOwner().equals(owner) || ownedFlows.contains(flowId)) {
+                continue;
+            }
+            // the flows of the previous process of this server are taken over by it, and any other flow by the
+            // server that is preferred for it - but only once their leases expired
+            if (lease.isExpired() && (isPreferred(flowId) || serverIdOf(lease.getOwner()).equals(serverId))
+                    && persistence.acquireLease(lease.getName(), owner, leaseMillis)) {
+                adopt(flowId, serverIdOf(lease.getOwner()));
+            } else {
+                foreign.add(flowId);
+            }
+        }
+        foreignFlows = foreign;
+        releaseEndedFlows();
+        queueManager.notifyNewTasks();
+    }
+
+    private void adopt(int flowId, String previousOwner) throws PersistenceException {
+        ownedFlows.add(flowId);
+        flowsToCheck.add(flowId);
+        metrics.counter("ubongo_cluster_flows_adopted_total",
+                "Flows taken over from servers that did not renew their leases in time").increment();
+        if (logger.isInfoEnabled()) {
+            logger.info("Execution server " + serverId + " takes over flow with id=" + flowId
+                    + (previousOwner.equals(serverId) ? " it has scheduled before it was restarted"
+                    : " from execution server " + previousOwner));
+        }
+        queueManager.adoptFlow(flowId);
+    }
+
+    private void releaseEndedFlows() throws PersistenceException {
+        List<Integer> flowIds = new ArrayList<>(flowsToCheck);
+        flowsToCheck.removeAll(flowIds);
+        for (int flowId : flowIds) {
+            if (!ownedFlows.contains(flowId)) {
+                continue;
+            }
+            boolean active = persistence.getTasks(flowId).stream()
+                    .anyMatch(t -> t.getStatus() == TaskStatus.NEW || t.getStatus() == TaskStatus.PENDING
+                            || t.getStatus() == TaskStatus.PROCESSING);
+            if (!active) {
+                ownedFlows.remove(flowId);
+                persistence.releaseLease(FLOW_LEASE_PREFIX + flowId, owner);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Execution server " + serverId + " released flow with id=" + flowId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true iff this server is the preferred server of the flow among the live servers - the server whose
+     * hash with the flow is the highest (rendezvous hashing), so when a server joins or leaves the cluster, only the
+     * flows it is preferred for move.
+     */
+    private boolean isPreferred(int flowId) {
+        String preferred = null;
+        long preferredHash = Long.MIN_VALUE;
+        for (String id : liveServers) {
+            long hash = mix(id.hashCode() * 0x9E3779B97F4A7C15L + flowId);
+            if (preferred == null || hash > preferredHash || (hash == preferredHash && id.compareTo(preferred) < 0)) {
+                preferred = id;
+                preferredHash = hash;
+            }
+        }
+        return serverId.equals(preferred);
+    }
+
+    private static long mix(long x) { // the finalizer of MurmurHash3
+        x ^= x >>> 33;
+        x *= 0xFF51AFD7ED558CCDL;
+        x ^= x >>> 33;
+        x *= 0xC4CEB9FE1A85EC53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    /**
+     * @return the id of the server whose process owns a lease.
+     */
+    private static String serverIdOf(String leaseOwner) {
+        int separator = leaseOwner.lastIndexOf(OWNER_TOKEN_SEPARATOR);
+        return separator < 0 ? leaseOwner : leaseOwner.substring(0, separator);
+    }
+
+    private static int flowId(Lease lease) {
+        return Integer.parseInt(lease.getName().substring(FLOW_LEASE_PREFIX.length()));
+    }
+}
@@ -0,0 +1,414 @@
+package ubongo.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.metrics.MetricsRegistry;
+import ubongo.persistence.SpeculationProperties;
+import ubongo.server.exceptions.MachinesManagementException;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Detects stragglers - tasks that have been running for much longer than the other tasks of their unit, usually
+ * because of a faulty machine - and runs a speculative copy of each of them on another machine (see
+ * {@link SpeculationProperties}). The attempt that completes first wins and the other attempt is killed.
+ * Every attempt uploads its output files to a staging directory of its own, next to the output directory of the task
+ * (see {@link #stage(Task)}), and only the files of the attempt that completes are moved to the output directory -
+ * every file by an atomic rename - so the output directory never mixes the files of both attempts, nor holds the
+ * partial output of an attempt that was killed. The staging directory of an attempt that has not completed is deleted
+ * once its status is received, or a while after it was killed if it never reports.
+ * The statuses of both attempts are reported with the same task id, so the QueueManager passes every status through
+ * {@link #statusReceived(Task)}, which only lets through the status of the winner (or the last status, if neither
+ * attempt has completed) and tells the attempts apart by their machines.
+ */
+class SpeculativeExecution {
+
+    private static final long CHECK_INTERVAL_SECONDS = 10;
+    private static final long DECIDED_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(6);
+    private static final long KILLED_ATTEMPT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final String STAGING_DIR_MARKER = ".ubongo-attempt";
+
+    private static Logger logger = LogManager.getLogger(SpeculativeExecution.class);
+    private static final MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+    private final SpeculationProperties properties;
+    private final UnitRuntimeModel runtimeModel;
+    private final MachinesManager machinesManager;
+    private final TaskDispatcher taskDispatcher;
+    private final QueueManager queueManager;
+    private ScheduledExecutorService checker;
+
+    /* the tasks that were dispatched and did not end, by task id, with the time they were dispatched */
+    private final Map<Integer, Attempt> running = new ConcurrentHashMap<>();
+
+    /* the tasks that have a speculative copy, by task id - guarded by this */
+    private final Map<Integer, Speculation> speculations = new HashMap<>();
+
+    SpeculativeExecution(SpeculationProperties properties, UnitRuntimeModel runtimeModel,
+                         MachinesManager machinesManager, TaskDispatcher taskDispatcher, QueueManager queueManager) {
+        this.properties = properties;
+        this.runtimeModel = runtimeModel;
+        this.machinesManager = machinesManager;
+        this.taskDispatcher = taskDispatcher;
+        this.queueManager = queueManager;
+    }
+
+    void start() {
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ubongo-speculation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(() -> {
+            try {
+                checkStragglers();
+            } catch (Exception e) {
+                logger.error("Failed to check for straggling tasks", e);
+            }
+        }, CHECK_INTERVAL_SECONDS, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        logger.info("Speculative execution started (percentile=" + properties.getPercentile() + ")");
+    }
+
+    void stop() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        running.clear();
+        synchronized (this) {
+            speculations.clear();
+        }
+    }
+
+    /**
+     * Called by the QueueManager right before the task is sent to its machine: the output path of the task is set to
+     * the staging directory of the attempt, and the staging directories that earlier attempts of the task have left
+     * are deleted.
+     */
+    void stage(Task task) {
+        String outputPath = task.getOutputPath();
+        if (outputPath == null || isStaged(outputPath) || task.getMachine() == null) {
+            return;
+        }
+        deleteStagingDirectories(task.getId(), Paths.get(outputPath));
+        task.setOutputPath(stagingPath(outputPath, task.getId(), task.getMachine().getId()));
+    }
+
+    /**
+     * Called after the task was sent to its machine by the QueueManager.
+     */
+    void taskDispatched(Task task) {
+        running.put(task.getId(), new Attempt(task, System.nanoTime()));
+        synchronized (this) {
+            speculations.remove(task.getId()); // of a previous run of the task, which has been decided
+        }
+    }
+
+    /**
+     * Called with every status that is reported for a task, before the QueueManager handles it. The output files of
+     * an attempt that has completed are moved from its staging directory to the output directory of the task (the
+     * staging directory is told by the output path the status is reported with, so the tasks that were dispatched
+     * before the server was restarted are handled as well).
+     * @param task whose status was reported (its output path is restored to the output directory of the task).
+     * @return true iff the QueueManager should handle the status as the status of the task.
+     */
+    synchronized boolean statusReceived(Task task) {
+        if (task.getStatus() == TaskStatus.PROCESSING) {
+            return true;
+        }
+        String stagingPath = isStaged(task.getOutputPath()) ? task.getOutputPath() : null;
+        Speculation speculation = speculations.get(task.getId());
+        if (speculation == null) {
+            running.remove(task.getId());
+            if (task.getStatus() == TaskStatus.COMPLETED && stagingPath != null && !promote(task.getId(), stagingPath)) {
+                task.setStatus(TaskStatus.FAILED);
+            } else if (task.getStatus() != TaskStatus.COMPLETED) {
+                deleteStagingDirectory(stagingPath);
+            }
+            task.setOutputPath(null);
+            return true;
+        }
+        boolean fromCopy = task.getMachine() != null
+                && task.getMachine().getId() == speculation.copy.getMachine().getId();
+        if (fromCopy) {
+            speculation.copyRunning = false;
+            machinesManager.copyEnded(speculation.copy);
+        } else {
+            speculation.originalRunning = false;
+        }
+        if (speculation.decidedMillis > 0) {
+            // the loser was killed (or ended on its own)
+            deleteStagingDirectory(stagingPath);
+            return false;
+        }
+        if (task.getStatus() == TaskStatus.COMPLETED) {
+            if (stagingPath != null && !promote(task.getId(), stagingPath)) {
+                return lastAttemptEnded(speculation, task, TaskStatus.FAILED);
+            }
+            task.setOutputPath(null);
+            decide(speculation, fromCopy);
+            return true;
+        }
+        // the attempt has failed or was stopped, so the other attempt is the last chance of the task
+        deleteStagingDirectory(stagingPath);
+        return lastAttemptEnded(speculation, task, task.getStatus());
+    }
+
+    /**
+     * Kills the speculative copy of the task, if it has one (the original attempt is killed by the caller).
+     */
+    synchronized void killCopy(Task task) {
+        Speculation speculation = speculations.get(task.getId());
+        if (speculation != null && speculation.decidedMillis == 0 && speculation.copyRunning) {
+            taskDispatcher.killTask(speculation.copy);
+        }
+    }
+
+    private boolean lastAttemptEnded(Speculation speculation, Task task, TaskStatus status) {
+        if (speculation.originalRunning || speculation.copyRunning) {
+            return false; // the other attempt may still complete
+        }
+        speculations.remove(task.getId());
+        running.remove(task.getId());
+        task.setStatus(status);
+        task.setOutputPath(null);
+        return true;
+    }
+
+    private void decide(Speculation speculation, boolean copyWon) {
+        speculation.decidedMillis = System.currentTimeMillis();
+        running.remove(speculation.original.getId());
+        metrics.counter("ubongo_speculation_wins_total", "Tasks with a speculative copy, by the attempt that won",
+                "winner", copyWon ? "copy" : "original").increment();
+        if (logger.isInfoEnabled()) {
+            logger.info("The " + (copyWon ? "speculative copy" : "original attempt") + " of task with id="
+                    + speculation.original.getId() + " has completed first");
+        }
+        if (copyWon && speculation.originalRunning) {
+            taskDispatcher.killTask(speculation.original);
+        } else if (!copyWon && speculation.copyRunning) {
+            taskDispatcher.killTask(speculation.copy);
+        }
+    }
+
+    /**
+     * Gives up on the statuses of the attempts that were killed long ago and have not reported since (e.g., their
+     * machines went down): their staging directories are deleted, and the copy no longer counts as running.
+     */
+    private void abandonKilledAttempts(Speculation speculation) {
+        if (speculation.copyRunning) {
+            speculation.copyRunning = false;
+            machinesManager.copyEnded(speculation.copy);
+            deleteStagingDirectory(speculation.copy.getOutputPath());
+        }
+        if (speculation.originalRunning) {
+            speculation.originalRunning = false;
+            deleteStagingDirectory(speculation.original.getOutputPath());
+        }
+        logger.warn("The losing attempt of task with id=" + speculation.original.getId() + " has not reported its "
+                + "status since it was killed - its output files were deleted");
+    }
+
+    private void checkStragglers() {
+        long now = System.nanoTime();
+        int numRunningCopies;
+        synchronized (this) {
+            long nowMillis = System.currentTimeMillis();
+            speculations.values().stream()
+                    .filter(s -> s.decidedMillis > 0 && nowMillis - s.decidedMillis > KILLED_ATTEMPT_TIMEOUT_MILLIS
+                            && (s.originalRunning || s.copyRunning))
+                    .forEach(this::abandonKilledAttempts);
+            long oldestDecided = nowMillis - DECIDED_RETENTION_MILLIS;
+            speculations.values().removeIf(s -> s.decidedMillis > 0 && s.decidedMillis < oldestDecided);
+            numRunningCopies = (int) speculations.values().stream().filter(s -> s.decidedMillis == 0).count();
+        }
+        for (Attempt attempt : running.values()) {
+            if (numRunningCopies >= properties.getMaxCopies()) {
+                return;
+            }
+            double runningSeconds = (now - attempt.dispatchedNanos) / 1e9;
+            if (runningSeconds < properties.getMinRuntimeSeconds()) {
+                continue;
+            }
+            double limit = runtimeModel.percentile(attempt.task.getUnit().getId(), properties.getPercentile(),
+                    properties.getMinSamples());
+            if (limit < 0 || runningSeconds <= limit) {
+                continue;
+            }
+            if (launchCopy(attempt.task, runningSeconds, limit)) {
+                numRunningCopies++;
+            }
+        }
+    }
+
+    private boolean launchCopy(Task task, double runningSeconds, double limit) {
+        Task copy;
+        synchronized (this) {
+            if (speculations.containsKey(task.getId()) || !running.containsKey(task.getId())) {
+                return false;
+            }
+            Machine machine;
+            try {
+                machine = machinesManager.getLeastLoadedMachine(task.getMachine().getId());
+            } catch (MachinesManagementException e) {
+                logger.warn("Failed to find a machine for a speculative copy of task with id=" + task.getId(), e);
+                return false;
+            }
+            if (machine == null || !isStaged(task.getOutputPath())) {
+                return false; // the output of a task that is not staged cannot be told apart from that of its copy
+            }
+            try {
+                copy = (Task) task.clone();
+            } catch (CloneNotSupportedException e) {
+                return false; // not possible - Task supports clone
+            }
+            copy.setMachine(machine);
+            copy.setOutputPath(stagingPath(outputPath(task.getOutputPath()), task.getId(), machine.getId()));
+            deleteStagingDirectory(copy.getOutputPath()); // left by an earlier copy of the task
+            speculations.put(task.getId(), new Speculation(task, copy));
+            machinesManager.copyDispatched(copy);
+        }
+        metrics.counter("ubongo_speculative_copies_total", "Speculative copies of straggling tasks").increment();
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("Task with id=%d has been running for %.0f seconds on machine with id=%d "
+                    + "(the %.0fth percentile of its unit is %.0f seconds). Running a speculative copy on "
+                    + "machine with id=%d", task.getId(), runningSeconds, task.getMachine().getId(),
+                    properties.getPercentile() * 100, limit, copy.getMachine().getId()));
+        }
+        taskDispatcher.execute(copy, queueManager);
+        return true;
+    }
+
+    /**
+     * @return the staging directory of the attempt of the task on the machine, next to the output directory.
+     */
+    private static String stagingPath(String outputPath, int taskId, int machineId) {
+        Path outputDir = Paths.get(outputPath);
+        return outputDir.resolveSibling(outputDir.getFileName() + STAGING_DIR_MARKER + taskId + "-" + machineId)
+                .toString();
+    }
+
+    private static boolean isStaged(String outputPath) {
+        return outputPath != null && Paths.get(outputPath).getFileName().toString().contains(STAGING_DIR_MARKER);
+    }
+
+    /**
+     * @return the output directory of the task whose attempt has the given staging directory.
+     */
+    private static String outputPath(String stagingPath) {
+        Path stagingDir = Paths.get(stagingPath);
+        String name = stagingDir.getFileName().toString();
+        return stagingDir.resolveSibling(name.substring(0, name.lastIndexOf(STAGING_DIR_MARKER))).toString();
+    }
+
+    /**
+     * Moves the output files of the attempt that has completed from its staging directory to the output directory of
+     * the task. The output directory may be shared with other units, so it is not replaced - every file is moved by
+     * an atomic rename (the staging directory is next to it, on the same file system).
+     * @return true iff all of the files were moved.
+     */
+    private static boolean promote(int taskId, String stagingPath) {
+        Path source = Paths.get(stagingPath);
+        Path target = Paths.get(outputPath(stagingPath));
+        if (!Files.exists(source)) {
+            return true; // the attempt had no output files
+        }
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path destination = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(destination);
+                } else {
+                    moveAtomically(path, destination);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to move the output files of task with id=" + taskId + " from " + source + " to "
+                    + target, e);
+            return false;
+        }
+        deleteDirectory(source);
+        return true;
+    }
+
+    private static void moveAtomically(Path source, Path destination) throws IOException {
+        try {
+            Files.move(source, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteStagingDirectory(String stagingPath) {
+        if (isStaged(stagingPath)) {
+            deleteDirectory(Paths.get(stagingPath));
+        }
+    }
+
+    /**
+     * Deletes the staging directories of all the attempts of the task next to the given output directory.
+     */
+    private static void deleteStagingDirectories(int taskId, Path outputDir) {
+        Path parent = outputDir.toAbsolutePath().getParent();
+        if (parent == null || !Files.isDirectory(parent)) {
+            return;
+        }
+        String prefix = outputDir.getFileName() + STAGING_DIR_MARKER + taskId + "-";
+        try (DirectoryStream<Path> stagingDirs = Files.newDirectoryStream(parent,
+                path -> path.getFileName().toString().startsWith(prefix))) {
+            stagingDirs.forEach(SpeculativeExecution::deleteDirectory);
+        } catch (IOException e) {
+            logger.warn("Failed to look for the staging directories of task with id=" + taskId + " in " + parent, e);
+        }
+    }
+
+    private static void deleteDirectory(Path directory) {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            List<Path> sorted = new ArrayList<>();
+            paths.forEach(sorted::add);
+            Collections.reverse(sorted); // files before their directories
+            for (Path path : sorted) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to delete the output files of an attempt in " + directory, e);
+        }
+    }
+
+    private static final class Attempt {
+
+        private final Task task;
+        private final long dispatchedNanos;
+
+        Attempt(Task task, long dispatchedNanos) {
+            this.task = task;
+            this.dispatchedNanos = dispatchedNanos;
+        }
+    }
+
+    private static final class Speculation {
+
+        private final Task original;
+        private final Task copy;
+        private boolean originalRunning = true;
+        private boolean copyRunning = true;
+        private long decidedMillis = 0; // when the winner has completed (0 until then)
+
+        Speculation(Task original, Task copy) {
+            this.original = original;
+            this.copy = copy;
+        }
+    }
+}
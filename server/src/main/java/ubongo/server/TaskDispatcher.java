@@ -0,0 +1,32 @@
+package ubongo.server;
+
+import ubongo.common.datatypes.Task;
+
+import java.util.List;
+
+/**
+ * A TaskDispatcher sends tasks that were assigned a machine by the {@link QueueManager} to be executed (or killed) on
+ * that machine. The results are reported back through {@link QueueManager#updateTaskAfterExecution(Task)}.
+ * The {@link ExecutionProxy} is the dispatcher used by the server; other implementations (e.g., for benchmarks) do
+ * not have to involve the machines at all.
+ */
+public interface TaskDispatcher {
+
+    /**
+     * @param task to execute (its machine is already set).
+     * @param queueManager to send the task back after execution.
+     */
+    void execute(Task task, QueueManager queueManager);
+
+    /**
+     * Sends the tasks of a batch to their machine (the same machine for all of them) to be executed one after the
+     * other. A dispatcher that cannot send batches executes the tasks one by one.
+     * @param tasks to execute.
+     * @param queueManager to send the tasks back after execution.
+     */
+    default void executeBatch(List<Task> tasks, QueueManager queueManager) {
+        tasks.forEach(task -> execute(task, queueManager));
+    }
+
+    void killTask(Task task);
+}
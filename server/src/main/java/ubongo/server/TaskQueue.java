@@ -0,0 +1,251 @@
+package ubongo.server;
+
+import ubongo.common.datatypes.Task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * The bounded queue of the QueueManager, between the producer that reads the new tasks from the DB and the consumers
+ * that send them to the machines. Tasks are taken in order of their rank rather than in the order they were put:
+ * the rank of a task is the time it was put minus the expected runtime of what remains of its flow (the task itself
+ * and the longest chain of tasks that depend on it), so a task that many long units still wait for is taken as if it
+ * had been put that much earlier. This keeps the machines busy with the longest flows first, which shortens the time it
+ * takes to complete many flows, and yet no task waits forever, since every task is eventually the oldest in the queue.
+ * Before anything is known about the runtimes, all units are expected to run as long, so the tasks are ranked by the
+ * number of units that remain in their flows. The consumers only take a task once the machines have a free slot for it
+ * (see {@link MachinesManager#reserveSlot()}), so the backlog waits here, where the ranking applies, rather than on the
+ * machines.
+ * A task that was taken may be deferred (see {@link #defer(Task, long)}): it is put back with its rank, and is not
+ * taken again until its delay has passed, so the consumers take the other tasks meanwhile.
+ * The tasks that may be taken are kept in a heap by rank and the deferred ones in a heap by the time they are ready,
+ * so taking a task costs O(log n). Only {@link #poll(Predicate, int)}, which takes the tasks that match a filter,
+ * scans the queue.
+ */
+class TaskQueue {
+
+    private static final Comparator<Entry> READY_ORDER = Comparator.comparingLong(entry -> entry.readyNanos);
+
+    private final int capacity;
+    private final PriorityQueue<Entry> ready; // by rank - guarded by lock
+    private final PriorityQueue<Entry> deferred = new PriorityQueue<>(READY_ORDER); // guarded by lock
+    private long sequence = 0; // guarded by lock
+    private int waitingPuts = 0; // guarded by lock
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /* the ranks of the tasks that were taken lately, by task id, for the tasks that are deferred - guarded by lock */
+    private final Map<Integer, Long> takenRanks = new LinkedHashMap<Integer, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+            return size() > capacity; // the tasks that were not deferred
+        }
+    };
+
+    TaskQueue(int capacity) {
+        this.capacity = capacity;
+        this.ready = new PriorityQueue<>(capacity);
+    }
+
+    /**
+     * Puts the task in the queue if there is room for it.
+     * @param remainingSeconds is the expected runtime of the task and of the tasks of its flow that will run after it.
+     * @return true iff the task was put in the queue.
+     */
+    boolean offer(Task task, double remainingSeconds) {
+        lock.lock();
+        try {
+            if (queued() >= capacity) {
+                return false;
+            }
+            insert(task, remainingSeconds);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts the task in the queue, waiting for room if necessary.
+     * @see #offer(Task, double)
+     */
+    void put(Task task, double remainingSeconds) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            waitingPuts++;
+            try {
+                while (queued() >= capacity) {
+                    notFull.await();
+                }
+            } finally {
+                waitingPuts--;
+            }
+            insert(task, remainingSeconds);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true iff a task waits for room in the queue (see {@link #put(Task, double)}).
+     */
+    boolean hasWaitingPut() {
+        lock.lock();
+        try {
+            return waitingPuts > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the task of the lowest rank among those that were not deferred (or whose delay has passed), waiting for
+     * such a task if there is none.
+     */
+    Task take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                promoteDeferred(now);
+                Entry next = ready.poll();
+                if (next != null) {
+                    takenRanks.put(next.task.getId(), next.rank);
+                    notFull.signal();
+                    return next.task;
+                }
+                if (deferred.isEmpty()) {
+                    notEmpty.await();
+                } else {
+                    // all the tasks were deferred - wait for the first of them to be ready (or for a new task)
+                    notEmpty.awaitNanos(deferred.peek().readyNanos - now);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts a task that was taken back in the queue with the rank it had, to be taken again once the delay has passed.
+     * It is put back even if the queue is full (the producer has filled its room meanwhile), so the queue may exceed
+     * its capacity by the tasks that the consumers defer at once.
+     */
+    void defer(Task task, long delayMillis) {
+        lock.lock();
+        try {
+            Long rank = takenRanks.remove(task.getId());
+            deferred.add(new Entry(task, rank == null ? System.nanoTime() : rank, sequence++,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis)));
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the tasks of the lowest ranks among those that match the filter, without waiting. Since the filter may
+     * match any of the tasks, this scans all the tasks that may be taken, once.
+     * @param max is the number of tasks to take at most.
+     * @return the tasks that were taken, in order of their ranks (may be empty).
+     */
+    List<Task> poll(Predicate<Task> filter, int max) {
+        lock.lock();
+        try {
+            promoteDeferred(System.nanoTime());
+            List<Entry> matching = ready.stream()
+                    .filter(entry -> filter.test(entry.task))
+                    .sorted()
+                    .limit(max)
+                    .collect(Collectors.toList());
+            if (matching.isEmpty()) {
+                return new ArrayList<>();
+            }
+            Set<Entry> taken = Collections.newSetFromMap(new IdentityHashMap<>());
+            taken.addAll(matching);
+            ready.removeIf(taken::contains);
+            notFull.signalAll();
+            return matching.stream().map(entry -> entry.task).collect(Collectors.toList());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return queued();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            ready.clear();
+            deferred.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void insert(Task task, double remainingSeconds) {
+        long remainingNanos = (long) (remainingSeconds * TimeUnit.SECONDS.toNanos(1));
+        long now = System.nanoTime();
+        ready.add(new Entry(task, now - remainingNanos, sequence++, now));
+        notEmpty.signal();
+    }
+
+    /**
+     * Moves the deferred tasks whose delay has passed to the tasks that may be taken.
+     */
+    private void promoteDeferred(long now) {
+        while (!deferred.isEmpty() && deferred.peek().isReady(now)) {
+            ready.add(deferred.poll());
+        }
+    }
+
+    private int queued() {
+        return ready.size() + deferred.size();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private final Task task;
+        private final long rank;
+        private final long sequence;
+        private final long readyNanos; // when the task may be taken (later than it was put if it was deferred)
+
+        Entry(Task task, long rank, long sequence, long readyNanos) {
+            this.task = task;
+            this.rank = rank;
+            this.sequence = sequence;
+            this.readyNanos = readyNanos;
+        }
+
+        boolean isReady(long now) {
+            return now - readyNanos >= 0;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int byRank = Long.compare(rank, other.rank);
+            return byRank != 0 ? byRank : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package ubongo.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.RabbitData;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.metrics.MetricsRegistry;
+import ubongo.common.transport.Transport;
+import ubongo.persistence.Persistence;
+import ubongo.persistence.db.DBConstants;
+import ubongo.persistence.exceptions.PersistenceException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Reconciles the tasks that are 'Processing' in the DB with the tasks that the machines are actually running, when
+ * the server starts. Every machine is asked which tasks it is running (see {@link Transport#queryRunningTasks}), and
+ * then:
+ * <ul>
+ *     <li>a processing task that its machine is running is taken over by the QueueManager, so restarting the server
+ *     does not throw away the work the machines have done;</li>
+ *     <li>a processing task that its machine is not running (e.g., the machine was restarted as well) is set in status
+ *     'New' again;</li>
+ *     <li>a processing task whose machine has not answered in time is killed, as the server did before;</li>
+ *     <li>a task that a machine is running but is not processing in the DB (e.g., it was canceled while the server was
+ *     down) is an orphan - it is killed, and the status it is stopped with is ignored.</li>
+ * </ul>
+ * A machine sends its answer to the queue it reports the statuses of its tasks to, so the statuses it has reported
+ * before it answered are handled first, and the processing tasks are only read from the DB once the machines have
+ * answered. Only the tasks that were already processing before the QueueManager was started are reconciled (see
+ * {@link #snapshot()}) - the tasks it dispatches while the machines are asked are not running on them yet.
+ */
+class TaskReconciler {
+
+    private static final long ANSWER_TIMEOUT_MILLIS = 10000;
+
+    private static Logger logger = LogManager.getLogger(TaskReconciler.class);
+    private static final MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+    private final Persistence persistence;
+    private final Transport transport;
+    private final TaskDispatcher taskDispatcher;
+    private final QueueManager queueManager;
+
+    /* the tasks that every machine that has answered is running, by machine id - guarded by itself */
+    private final Map<Integer, List<Task>> answers = new HashMap<>();
+
+    /* the ids of the tasks that were processing before the QueueManager was started */
+    private final Set<Integer> processingBeforeStart = new HashSet<>();
+
+    /* the orphans that were killed and whose statuses were not received yet */
+    private final Set<Integer> killedOrphans = ConcurrentHashMap.newKeySet();
+
+    TaskReconciler(Persistence persistence, Transport transport, TaskDispatcher taskDispatcher,
+                   QueueManager queueManager) {
+        this.persistence = persistence;
+        this.transport = transport;
+        this.taskDispatcher = taskDispatcher;
+        this.queueManager = queueManager;
+    }
+
+    /**
+     * Reads which tasks are processing before the QueueManager is started, so the tasks it dispatches until the
+     * machines have answered are not taken for lost tasks by {@link #reconcile(List, Consumer)}.
+     * @throws PersistenceException if the processing tasks could not be read.
+     */
+    void snapshot() throws PersistenceException {
+        processingBeforeStart.clear();
+        for (Task task : persistence.getProcessingTasks()) {
+            processingBeforeStart.add(task.getId());
+        }
+    }
+
+    /**
+     * Asks the machines which tasks they are running, and reconciles them with the processing tasks in the DB. Called
+     * once the QueueManager was started and the server listens for statuses (see {@link #answerReceived(RabbitData)}),
+     * after {@link #snapshot()} was taken.
+     * @param machines to ask.
+     * @param killer to kill the processing tasks whose machines have not answered with.
+     * @throws PersistenceException if the processing tasks could not be read or restarted.
+     */
+    void reconcile(List<Machine> machines, Consumer<Task> killer) throws PersistenceException {
+        synchronized (answers) {
+            answers.clear();
+        }
+        Map<Integer, Machine> asked = new HashMap<>();
+        for (Machine machine : machines) {
+            if (machine.getId() == DBConstants.SERVER_ID) {
+                continue;
+            }
+            try {
+                transport.queryRunningTasks(machine, null);
+                asked.put(machine.getId(), machine);
+            } catch (IOException e) {
+                logger.warn("Failed to ask machine with id=" + machine.getId() + " which tasks it is running: "
+                        + e.getMessage());
+            }
+        }
+        Map<Integer, List<Task>> running = awaitAnswers(asked.keySet());
+
+        List<Task> adopted = new ArrayList<>();
+        List<Task> lost = new ArrayList<>();
+        List<Task> unanswered = new ArrayList<>();
+        Set<Integer> processingIds = new HashSet<>();
+        for (Task task : persistence.getProcessingTasks()) {
+            processingIds.add(task.getId());
+            if (!processingBeforeStart.contains(task.getId())) {
+                continue; // dispatched since the server was started
+            }
+            List<Task> machineTasks = task.getMachine() == null ? null : running.get(task.getMachine().getId());
+            if (machineTasks == null) {
+                unanswered.add(task);
+            } else if (machineTasks.stream().anyMatch(t -> t.getId() == task.getId())) {
+                adopted.add(task);
+            } else {
+                lost.add(task);
+            }
+        }
+        List<Task> orphans = new ArrayList<>();
+        for (Map.Entry<Integer, List<Task>> entry : running.entrySet()) {
+            for (Task task : entry.getValue()) {
+                if (!processingIds.contains(task.getId())) {
+                    task.setMachine(asked.get(entry.getKey()));
+                    orphans.add(task);
+                }
+            }
+        }
+
+        processingBeforeStart.clear();
+        queueManager.adoptRunningTasks(adopted);
+        queueManager.restartTasks(lost);
+        unanswered.forEach(killer);
+        for (Task orphan : orphans) {
+            killedOrphans.add(orphan.getId());
+            taskDispatcher.killTask(orphan);
+        }
+        count("adopted", adopted.size());
+        count("restarted", lost.size());
+        count("killed", unanswered.size());
+        count("orphan", orphans.size());
+        if (logger.isInfoEnabled()) {
+            logger.info(running.size() + " of " + asked.size() + " machines reported their running tasks: "
+                    + adopted.size() + " processing tasks were taken over, " + lost.size() + " were set in status 'New' "
+                    + "again, " + unanswered.size() + " were killed and " + orphans.size() + " orphans were killed");
+        }
+    }
+
+    /**
+     * Called with the RUNNING_TASKS_REPORT of a machine.
+     */
+    void answerReceived(RabbitData report) {
+        synchronized (answers) {
+            answers.put(report.getMachineId(), report.getTasks());
+            answers.notifyAll();
+        }
+    }
+
+    /**
+     * @return true iff the status is of an orphan that was killed, and should be ignored.
+     */
+    boolean isKilledOrphan(Task task) {
+        if (!killedOrphans.contains(task.getId())) {
+            return false;
+        }
+        if (task.getStatus() != TaskStatus.PROCESSING) {
+            killedOrphans.remove(task.getId());
+        }
+        return true;
+    }
+
+    /**
+     * Waits until all the given machines have answered, or until the timeout has passed.
+     * @return the tasks that every machine that has answered is running, by machine id.
+     */
+    private Map<Integer, List<Task>> awaitAnswers(Set<Integer> machineIds) {
+        long deadline = System.currentTimeMillis() + ANSWER_TIMEOUT_MILLIS;
+        synchronized (answers) {
+            long millisLeft;
+            while (!answers.keySet().containsAll(machineIds)
+                    && (millisLeft = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    answers.wait(millisLeft);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            Map<Integer, List<Task>> running = new HashMap<>(answers);
+            running.keySet().retainAll(machineIds);
+            return running;
+        }
+    }
+
+    private static void count(String outcome, int tasks) {
+        metrics.counter("ubongo_tasks_reconciled_total", "Processing tasks and orphans that were reconciled with "
+                + "the machines when the server started, by outcome", "outcome", outcome).add(tasks);
+    }
+}
@@ -0,0 +1,127 @@
+package ubongo.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.datatypes.unit.RetryPolicy;
+import ubongo.common.metrics.MetricsRegistry;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Retries the tasks that have failed for a transient reason (see
+ * {@link ubongo.common.datatypes.FailureCause#isTransient()}) according to the retry policy of their units: instead of
+ * failing the task, it is resubmitted after an exponential backoff, and the machine it has failed on is avoided when
+ * the retry is dispatched. The task remains 'Processing' in the DB during the backoff, so the tasks that depend on it
+ * are not put on hold. The attempts are counted in memory only - after a restart of the server, every task has all
+ * of its attempts again.
+ */
+class TaskRetries {
+
+    /* a random part of the backoff, so that the tasks that failed together (e.g., on a machine that went down) are
+       not retried all at once */
+    private static final double JITTER = 0.2;
+
+    private static Logger logger = LogManager.getLogger(TaskRetries.class);
+    private static final MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+    /* the tasks that have failed at least once and did not end yet, by task id */
+    private final Map<Integer, Retry> retries = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ubongo-task-retries");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Tasks that wait for a retry remain 'Processing' in the DB, and are stopped when the server starts again.
+     */
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        retries.clear();
+    }
+
+    /**
+     * Schedules a retry of the task if it has failed for a transient reason and has attempts left.
+     * @param resubmit is called with the task when its backoff has passed.
+     * @return true iff a retry of the task was scheduled (in which case the failure must not be persisted).
+     */
+    boolean retryIfTransient(Task task, Consumer<Task> resubmit) {
+        if (task.getStatus() != TaskStatus.FAILED || task.getFailureCause() == null
+                || !task.getFailureCause().isTransient() || scheduler == null) {
+            return false;
+        }
+        RetryPolicy policy = task.getUnit() == null ? RetryPolicy.DEFAULT : task.getUnit().retryPolicy();
+        Retry retry = retries.computeIfAbsent(task.getId(), id -> new Retry());
+        long backoffMillis;
+        synchronized (retry) {
+            if (retry.failedAttempts + 1 >= policy.getMaxAttempts()) {
+                retries.remove(task.getId());
+                logger.warn("Task with id=" + task.getId() + " has failed (" + task.getFailureCause() + ") in all of its "
+                        + policy.getMaxAttempts() + " attempts");
+                return false;
+            }
+            retry.failedAttempts++;
+            retry.failedMachineId = task.getMachine() == null ? null : task.getMachine().getId();
+            backoffMillis = (long) (policy.backoffMillis(retry.failedAttempts)
+                    * (1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1)));
+            try {
+                retry.future = scheduler.schedule(() -> resubmit.accept(task), backoffMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                return false; // stopped
+            }
+        }
+        metrics.counter("ubongo_task_retries_total", "Retries of tasks that failed for a transient reason, by cause",
+                "cause", task.getFailureCause().name()).increment();
+        if (logger.isInfoEnabled()) {
+            logger.info("Task with id=" + task.getId() + " has failed (" + task.getFailureCause() + ") on machine with id="
+                    + retry.failedMachineId + ". Retrying it in " + backoffMillis + " ms (attempt "
+                    + (retry.failedAttempts + 1) + " of " + policy.getMaxAttempts() + ")");
+        }
+        return true;
+    }
+
+    /**
+     * @return the id of the machine the task has last failed on, or null if the task has not failed.
+     */
+    Integer getFailedMachineId(int taskId) {
+        Retry retry = retries.get(taskId);
+        if (retry == null) {
+            return null;
+        }
+        synchronized (retry) {
+            return retry.failedMachineId;
+        }
+    }
+
+    /**
+     * Forgets the attempts of the task after it has ended, and cancels the retry it waits for, if any (e.g., when the
+     * task was stopped by the user during the backoff).
+     */
+    void taskEnded(int taskId) {
+        Retry retry = retries.remove(taskId);
+        if (retry != null) {
+            synchronized (retry) {
+                if (retry.future != null) {
+                    retry.future.cancel(false);
+                }
+            }
+        }
+    }
+
+    private static final class Retry {
+
+        private int failedAttempts = 0;
+        private Integer failedMachineId;
+        private ScheduledFuture<?> future;
+    }
+}
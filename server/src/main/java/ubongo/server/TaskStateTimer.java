@@ -0,0 +1,146 @@
+package ubongo.server;
+
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskEvent;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.metrics.MetricsRegistry;
+import ubongo.persistence.TaskTimelineRecorder;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time tasks spend in each state on their way through the QueueManager (New, Pending, Processing), in
+ * the ubongo_task_state_seconds histogram by transition (e.g., 'new_to_pending', 'processing_to_completed').
+ * Only the transitions that the QueueManager sees are measured: tasks that were set to 'New' by others (e.g., flows
+ * that were created and started in bulk by the web service) are not measured until they are pending.
+ * If a {@link TaskTimelineRecorder} is given, the transitions are also recorded in the timelines of the tasks.
+ */
+class TaskStateTimer {
+
+    private static final String METRIC_NAME = "ubongo_task_state_seconds";
+    private static final String METRIC_HELP = "Time spent by tasks in a state, by transition to the next state";
+    private static final String METRIC_LABEL = "transition";
+
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final Map<Integer, State> taskStates = new ConcurrentHashMap<>();
+
+    /* when the flows that were started since the producer last read the DB were started - their tasks were all
+       set to 'New' at once, so their ids are not known */
+    private final Map<Integer, Long> flowStarts = new ConcurrentHashMap<>();
+
+    private final TaskTimelineRecorder timeline; // may be null
+
+    TaskStateTimer(TaskTimelineRecorder timeline) {
+        this.timeline = timeline;
+    }
+
+    void flowStarted(int flowId) {
+        flowStarts.put(flowId, System.nanoTime());
+    }
+
+    void becameNew(int taskId) {
+        taskStates.put(taskId, new State(TaskStatus.NEW, System.nanoTime()));
+    }
+
+    void becameNew(Collection<Task> tasks) {
+        long now = System.nanoTime();
+        for (Task task : tasks) {
+            taskStates.put(task.getId(), new State(TaskStatus.NEW, now));
+        }
+    }
+
+    void becamePending(Task task) {
+        long now = System.nanoTime();
+        State previous = taskStates.put(task.getId(), new State(TaskStatus.PENDING, now));
+        Long since = previous != null && previous.status == TaskStatus.NEW ? previous.since
+                : flowStarts.get(task.getFlowId());
+        if (since != null) {
+            record("new_to_pending", now - since);
+        }
+        if (timeline != null) {
+            long wallNow = System.currentTimeMillis();
+            if (since != null) {
+                long newTime = wallNow - TimeUnit.NANOSECONDS.toMillis(now - since);
+                timeline.record(new TaskEvent(task.getId(), TaskEvent.Type.NEW, newTime, null));
+            }
+            timeline.record(new TaskEvent(task.getId(), TaskEvent.Type.PENDING, wallNow, null));
+        }
+    }
+
+    /**
+     * Called by the producer after it has read the tasks of the given flows.
+     */
+    void flowsRead(Collection<Integer> flowIds) {
+        for (Integer flowId : flowIds) {
+            flowStarts.remove(flowId);
+        }
+    }
+
+    void becameProcessing(Task task) {
+        long now = System.nanoTime();
+        State previous = taskStates.put(task.getId(), new State(TaskStatus.PROCESSING, now));
+        if (previous != null && previous.status == TaskStatus.PENDING) {
+            record("pending_to_processing", now - previous.since);
+        }
+    }
+
+    /**
+     * Called just before the task is sent to the machine it was allocated to (so that the event precedes the end of
+     * the task, even if the task fails since it could not be sent).
+     */
+    void dispatched(Task task) {
+        if (timeline != null) {
+            timeline.record(task.getId(), TaskEvent.Type.DISPATCHED, machineId(task));
+        }
+    }
+
+    /**
+     * Called when the QueueManager is done with the task (e.g., it was completed, failed or put on hold).
+     * @return the time in nanoseconds the task was processing, or -1 if the task was not seen processing.
+     */
+    long ended(Task task) {
+        State previous = taskStates.remove(task.getId());
+        long processingNanos = -1;
+        if (previous != null && previous.status == TaskStatus.PROCESSING) {
+            processingNanos = System.nanoTime() - previous.since;
+            record("processing_to_" + task.getStatus().name().toLowerCase(), processingNanos);
+        }
+        if (timeline != null && task.getStatus() == TaskStatus.ON_HOLD) {
+            timeline.record(task.getId(), TaskEvent.Type.HELD, machineId(task));
+        } else if (timeline != null) {
+            timeline.recordEnded(task.getId(), task.getStatus(), machineId(task));
+        }
+        return processingNanos;
+    }
+
+    void forget(int taskId) {
+        taskStates.remove(taskId);
+    }
+
+    void clear() {
+        taskStates.clear();
+        flowStarts.clear();
+    }
+
+    private static Integer machineId(Task task) {
+        return task.getMachine() == null ? null : task.getMachine().getId();
+    }
+
+    private void record(String transition, long nanos) {
+        metrics.histogram(METRIC_NAME, METRIC_HELP, METRIC_LABEL, transition).record(nanos);
+    }
+
+    private static final class State {
+
+        private final TaskStatus status;
+        private final long since;
+
+        State(TaskStatus status, long since) {
+            this.status = status;
+            this.since = since;
+        }
+    }
+}
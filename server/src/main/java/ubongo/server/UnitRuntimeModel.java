@@ -0,0 +1,155 @@
+package ubongo.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.UnitTimeline;
+import ubongo.common.metrics.MetricsRegistry;
+import ubongo.persistence.Persistence;
+import ubongo.persistence.exceptions.PersistenceException;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates how long a task of every unit runs, from the tasks of the unit that were completed: the estimate is an
+ * exponentially weighted moving average of their runtimes (from the moment the task was sent to a machine until the
+ * machine reported it completed), so it follows changes in the data or in the machines within a few tasks.
+ * When the server starts, the estimates are seeded from the timelines of the tasks that ended lately (see
+ * {@link UnitTimeline}), so the server does not have to learn them again after every restart.
+ * A unit that has never run is estimated by the average of the units that have, since the order of the tasks only
+ * depends on the relative estimates of the units.
+ * The runtimes of the last tasks of every unit are also kept, to tell how unusual the runtime of a running task is
+ * (see {@link #percentile(int, double, int)}).
+ */
+class UnitRuntimeModel {
+
+    private static final double ALPHA = 0.2; // the weight of the runtime of the last task
+    private static final double DEFAULT_RUNTIME_SECONDS = 60; // before any unit has run
+    private static final long HISTORY_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final int MAX_HISTORY_TASKS = 10000; // the tasks that ended last are read
+    private static final int MAX_SAMPLES = 100; // runtimes kept per unit
+
+    /* the phases of the timeline of a task during which the task occupies a machine */
+    private static final Set<UnitTimeline.Phase> RUNTIME_PHASES = EnumSet.of(UnitTimeline.Phase.DELIVERY,
+            UnitTimeline.Phase.DOWNLOAD, UnitTimeline.Phase.EXECUTION, UnitTimeline.Phase.UPLOAD,
+            UnitTimeline.Phase.REPORTING);
+
+    private static Logger logger = LogManager.getLogger(UnitRuntimeModel.class);
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+    /* expected runtime in seconds by unit id */
+    private final Map<Integer, Double> estimates = new ConcurrentHashMap<>();
+
+    /* the runtimes in seconds of the last tasks that were completed by unit id */
+    private final Map<Integer, Samples> samples = new ConcurrentHashMap<>();
+
+    /**
+     * Seeds the estimates of the units from the timelines of the tasks that ended in the last days. Failing to read
+     * them is not fatal - the estimates are learned again from the tasks that complete.
+     */
+    void load(Persistence persistence) {
+        try {
+            Timestamp since = new Timestamp(System.currentTimeMillis() - HISTORY_MILLIS);
+            for (UnitTimeline timeline : persistence.getUnitTimelines(since, MAX_HISTORY_TASKS)) {
+                double runtime = 0;
+                boolean known = false;
+                for (UnitTimeline.PhaseSummary phase : timeline.getPhases()) {
+                    if (RUNTIME_PHASES.contains(phase.getPhase())) {
+                        runtime += phase.getMean();
+                        known = true;
+                    }
+                }
+                if (known) {
+                    update(timeline.getUnitId(), runtime);
+                }
+            }
+            if (logger.isInfoEnabled()) {
+                logger.info("Loaded the expected runtime of " + estimates.size() + " units");
+            }
+        } catch (PersistenceException e) {
+            logger.warn("Failed to load the runtimes of the units. They will be learned from the completed tasks", e);
+        }
+    }
+
+    /**
+     * @param unitId of the task that was completed.
+     * @param nanos the task has run.
+     */
+    void taskCompleted(int unitId, long nanos) {
+        double seconds = nanos / 1e9;
+        estimates.compute(unitId, (id, estimate) -> estimate == null ? seconds
+                : ALPHA * seconds + (1 - ALPHA) * estimate);
+        samples.computeIfAbsent(unitId, id -> new Samples()).add(seconds);
+        register(unitId);
+    }
+
+    /**
+     * @param p is the percentile (between 0 and 1).
+     * @param minSamples is the number of completed tasks of the unit below which the percentile is not trusted.
+     * @return the p-th percentile in seconds of the runtimes of the last tasks of the unit that were completed,
+     * or -1 if fewer than minSamples of them were seen since the server started.
+     */
+    double percentile(int unitId, double p, int minSamples) {
+        Samples unitSamples = samples.get(unitId);
+        return unitSamples == null ? -1 : unitSamples.percentile(p, Math.max(1, minSamples));
+    }
+
+    /**
+     * @return true iff the runtime of the tasks of the unit is known (rather than guessed from the other units).
+     */
+    boolean isKnown(int unitId) {
+        return estimates.containsKey(unitId);
+    }
+
+    /**
+     * @return the expected runtime in seconds of a task of the given unit.
+     */
+    double expectedRuntime(int unitId) {
+        Double estimate = estimates.get(unitId);
+        if (estimate != null) {
+            return estimate;
+        }
+        if (estimates.isEmpty()) {
+            return DEFAULT_RUNTIME_SECONDS;
+        }
+        return estimates.values().stream().mapToDouble(Double::doubleValue).average().orElse(DEFAULT_RUNTIME_SECONDS);
+    }
+
+    private void update(int unitId, double seconds) {
+        estimates.put(unitId, seconds);
+        register(unitId);
+    }
+
+    private static final class Samples {
+
+        private final double[] values = new double[MAX_SAMPLES];
+        private int size = 0;
+        private int next = 0; // the oldest value is replaced once the array is full
+
+        synchronized void add(double seconds) {
+            values[next] = seconds;
+            next = (next + 1) % MAX_SAMPLES;
+            size = Math.min(size + 1, MAX_SAMPLES);
+        }
+
+        synchronized double percentile(double p, int minSamples) {
+            if (size < minSamples) {
+                return -1;
+            }
+            double[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, (int) Math.ceil(p * size) - 1)];
+        }
+    }
+
+    private void register(int unitId) {
+        metrics.gauge("ubongo_unit_expected_runtime_seconds", "Expected runtime of a task of a unit (rounded to "
+                + "seconds)", "unit", Integer.toString(unitId))
+                .setSupplier(() -> Math.round(estimates.getOrDefault(unitId, 0.0)));
+    }
+}
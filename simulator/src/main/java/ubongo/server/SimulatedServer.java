@@ -0,0 +1,51 @@
+package ubongo.server;
+
+import ubongo.common.datatypes.Machine;
+import ubongo.common.transport.Transport;
+import ubongo.persistence.Persistence;
+import ubongo.persistence.exceptions.PersistenceException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The part of the server that the simulator ({@link ubongo.simulator.Simulator}) drives: the real QueueManager and
+ * MachinesManager, which send the tasks to the machines and receive their status through the given transport.
+ * This class is in the server's package since the QueueManager and the MachinesManager are only created by the server.
+ */
+public class SimulatedServer {
+
+    private final MachinesManager machinesManager;
+    private final QueueManager queueManager;
+
+    public SimulatedServer(Persistence persistence, List<Machine> machines, Transport transport) throws IOException {
+        machinesManager = new MachinesManager(machines, persistence);
+        queueManager = new QueueManager(persistence, machinesManager, new ExecutionProxy(transport));
+        transport.listenForStatus(message -> queueManager.updateTaskAfterExecution(message.getTask()));
+    }
+
+    public void start() throws PersistenceException {
+        machinesManager.start();
+        queueManager.start();
+    }
+
+    public void stop() {
+        queueManager.stop();
+        machinesManager.stop();
+    }
+
+    public void startFlow(int flowId) throws PersistenceException {
+        queueManager.startFlow(flowId);
+    }
+
+    public void resumeTask(int taskId) throws PersistenceException {
+        queueManager.resumeTask(taskId);
+    }
+
+    /**
+     * @see QueueManager#isIdle()
+     */
+    public boolean isIdle() {
+        return queueManager.isIdle();
+    }
+}
@@ -0,0 +1,78 @@
+package ubongo.simulator;
+
+import java.util.PriorityQueue;
+
+/**
+ * The virtual clock of the simulation and the events that are scheduled on it. Events that happen at the same time
+ * run in the order they were scheduled. Events may be scheduled by any thread (the machines are called by the
+ * consumer threads of the QueueManager), but they all run on the simulation thread.
+ * Background events (e.g., machine failures) do not keep the simulation running: it ends once only background events
+ * remain.
+ */
+class EventQueue {
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private double now = 0;
+    private long sequence = 0;
+    private int pendingEvents = 0; // that are not background events
+
+    synchronized double now() {
+        return now;
+    }
+
+    void schedule(double delay, Action action) {
+        schedule(delay, false, action);
+    }
+
+    synchronized void schedule(double delay, boolean background, Action action) {
+        events.add(new Event(now + Math.max(0, delay), sequence++, background, action));
+        if (!background) {
+            pendingEvents++;
+        }
+    }
+
+    /**
+     * Advances the clock to the next event.
+     * @return the next event, or null if only background events remain.
+     */
+    synchronized Action next() {
+        if (pendingEvents == 0) {
+            return null;
+        }
+        Event event = events.poll();
+        if (!event.background) {
+            pendingEvents--;
+        }
+        now = event.time;
+        return event.action;
+    }
+
+    synchronized long getNumScheduled() {
+        return sequence;
+    }
+
+    interface Action {
+        void run() throws Exception;
+    }
+
+    private static final class Event implements Comparable<Event> {
+
+        private final double time;
+        private final long sequence;
+        private final boolean background;
+        private final Action action;
+
+        Event(double time, long sequence, boolean background, Action action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.background = background;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int result = Double.compare(time, other.time);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
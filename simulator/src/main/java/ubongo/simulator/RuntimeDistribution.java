@@ -0,0 +1,56 @@
+package ubongo.simulator;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import java.util.Random;
+
+/**
+ * The distribution of the runtime (in seconds) of the tasks of a level: 'fixed' (always the mean), 'uniform',
+ * 'exponential' (the stddev is ignored) or 'lognormal' (the default - a few tasks take much longer than the others,
+ * as real units usually do).
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+public class RuntimeDistribution {
+
+    public static final String FIXED = "fixed";
+    public static final String UNIFORM = "uniform";
+    public static final String EXPONENTIAL = "exponential";
+    public static final String LOGNORMAL = "lognormal";
+
+    @XmlAttribute private String type = LOGNORMAL;
+    @XmlAttribute private double mean = 60;
+    @XmlAttribute private double stddev = 20;
+
+    public RuntimeDistribution() {}
+
+    public RuntimeDistribution(String type, double mean, double stddev) {
+        this.type = type;
+        this.mean = mean;
+        this.stddev = stddev;
+    }
+
+    public double sample(Random random) {
+        switch (type) {
+            case FIXED:
+                return mean;
+            case UNIFORM: // mean +- sqrt(3) * stddev has the requested stddev
+                double halfWidth = Math.min(mean, Math.sqrt(3) * stddev);
+                return mean - halfWidth + 2 * halfWidth * random.nextDouble();
+            case EXPONENTIAL:
+                return -mean * Math.log(1 - random.nextDouble());
+            case LOGNORMAL:
+                double variance = Math.log(1 + (stddev * stddev) / (mean * mean));
+                double mu = Math.log(mean) - variance / 2;
+                return Math.exp(mu + Math.sqrt(variance) * random.nextGaussian());
+            default:
+                throw new IllegalArgumentException("Unknown runtime distribution: " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type + "(mean=" + mean + "s" + (FIXED.equals(type) || EXPONENTIAL.equals(type) ? ""
+                : ", stddev=" + stddev + "s") + ")";
+    }
+}
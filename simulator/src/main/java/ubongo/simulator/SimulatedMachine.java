@@ -0,0 +1,165 @@
+package ubongo.simulator;
+
+import ubongo.common.constants.MachineConstants;
+import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.Task;
+import ubongo.common.transport.InProcessTransport;
+import ubongo.persistence.Persistence;
+import ubongo.persistence.exceptions.PersistenceException;
+
+import java.util.*;
+
+/**
+ * A machine of the simulated cluster. It runs up to a given number of tasks at a time and keeps the other tasks that
+ * were sent to it waiting in order of arrival, like the tasks queue of a real machine. When the machine fails, the
+ * tasks that run or wait on it are failed, and the machine is reported as disconnected until it is repaired (so the
+ * MachinesManager does not select it meanwhile).
+ */
+class SimulatedMachine {
+
+    private final Machine machine;
+    private final int slots;
+    private final Simulator simulator;
+    private final EventQueue events;
+    private final Persistence persistence;
+    private final Deque<Task> waiting = new ArrayDeque<>();
+    private final Map<Integer, Run> running = new HashMap<>();
+    private boolean up = true;
+    private double busySeconds = 0;
+    private double downSeconds = 0;
+    private double downSince = 0;
+    private int numTasksRun = 0;
+    private int numFailures = 0;
+
+    SimulatedMachine(Machine machine, int slots, Simulator simulator, EventQueue events, Persistence persistence) {
+        this.machine = machine;
+        this.slots = slots;
+        this.simulator = simulator;
+        this.events = events;
+        this.persistence = persistence;
+    }
+
+    void listen(InProcessTransport transport) {
+        transport.listenForRequests(machine.getId(), message -> {
+            if (message.getMessage().equals(MachineConstants.BASE_UNIT_REQUEST)) {
+                submit(message.getTask());
+            }
+        });
+    }
+
+    Machine getMachine() {
+        return machine;
+    }
+
+    synchronized boolean isUp() {
+        return up;
+    }
+
+    /**
+     * Called by the consumer threads of the QueueManager (through the transport).
+     */
+    private synchronized void submit(Task task) {
+        if (!up) { // the message would be lost with the machine
+            events.schedule(0, () -> simulator.finishTask(task, false));
+            return;
+        }
+        waiting.add(task);
+        startWaitingTasks();
+    }
+
+    private void startWaitingTasks() {
+        while (running.size() < slots && !waiting.isEmpty()) {
+            Task task = waiting.poll();
+            Run run = new Run(task, events.now());
+            running.put(task.getId(), run);
+            Simulator.Attempt attempt = simulator.startTask(task, run.start);
+            events.schedule(attempt.getRuntime(), () -> end(run, !attempt.fails()));
+        }
+    }
+
+    private void end(Run run, boolean completed) throws Exception {
+        synchronized (this) {
+            if (running.get(run.task.getId()) != run) {
+                return; // the task was failed with the machine
+            }
+            running.remove(run.task.getId());
+            busySeconds += events.now() - run.start;
+            numTasksRun++;
+            startWaitingTasks();
+        }
+        simulator.finishTask(run.task, completed);
+    }
+
+    /**
+     * Fails the machine and schedules its repair after the given time.
+     */
+    void fail(double repairSeconds) throws Exception {
+        List<Task> lostTasks = new ArrayList<>();
+        synchronized (this) {
+            double now = events.now();
+            up = false;
+            downSince = now;
+            numFailures++;
+            for (Run run : running.values()) {
+                busySeconds += now - run.start;
+                lostTasks.add(run.task);
+            }
+            running.clear();
+            lostTasks.addAll(waiting);
+            waiting.clear();
+        }
+        setConnected(false);
+        for (Task task : lostTasks) {
+            simulator.finishTask(task, false);
+        }
+        events.schedule(repairSeconds, this::repair);
+    }
+
+    private void repair() throws Exception {
+        synchronized (this) {
+            up = true;
+            downSeconds += events.now() - downSince;
+        }
+        setConnected(true);
+        simulator.machineRepaired(this);
+    }
+
+    /**
+     * Reports the machine (a heartbeat if it is connected).
+     */
+    void setConnected(boolean connected) throws PersistenceException {
+        machine.setConnected(connected);
+        persistence.updateMachine(machine);
+    }
+
+    synchronized double getBusySeconds() {
+        return busySeconds;
+    }
+
+    synchronized double getDownSeconds(double now) {
+        return up ? downSeconds : downSeconds + now - downSince;
+    }
+
+    synchronized int getNumTasksRun() {
+        return numTasksRun;
+    }
+
+    synchronized int getNumFailures() {
+        return numFailures;
+    }
+
+    int getSlots() {
+        return slots;
+    }
+
+    private static final class Run {
+
+        private final Task task;
+        private final double start;
+
+        Run(Task task, double start) {
+            this.task = task;
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ubongo.simulator;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.annotation.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The parameters of a simulation (see data/config/simulator-config.xml). Every parameter that is not given keeps its
+ * default value. All times are in (virtual) seconds.
+ */
+@XmlRootElement(name = "simulation")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class SimulationConfig {
+
+    @XmlElement private long seed = 1;
+
+    /* the flows arrive one after the other; the time between arrivals is exponentially distributed
+       (0 starts all the flows at once) */
+    @XmlElement private int flows = 100;
+    @XmlElement private double flowInterArrivalSeconds = 30;
+
+    /* the units of every flow, by serial number, each with the number of its tasks (e.g., the subjects of a study) */
+    @XmlElementWrapper(name = "levels")
+    @XmlElement(name = "level")
+    private List<Level> levels;
+
+    @XmlElement private int machines = 4;
+    @XmlElement private int slotsPerMachine = 2;
+
+    /* the time between failures of a machine is exponentially distributed (0 means machines never fail);
+       the tasks that run or wait on a machine when it fails are failed */
+    @XmlElement private double machineMtbfSeconds = 0;
+    @XmlElement private double machineRepairSeconds = 600;
+    @XmlElement private double taskFailureProbability = 0;
+
+    /* the operator resumes failed tasks (and the tasks that were put on hold because of them) after this time;
+       a negative value leaves them, so their flows never complete */
+    @XmlElement private double resubmitFailedAfterSeconds = 300;
+
+    public static SimulationConfig load(String path) throws JAXBException {
+        JAXBContext jaxbContext = JAXBContext.newInstance(SimulationConfig.class);
+        return (SimulationConfig) jaxbContext.createUnmarshaller().unmarshal(new File(path));
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getFlows() {
+        return flows;
+    }
+
+    public double getFlowInterArrivalSeconds() {
+        return flowInterArrivalSeconds;
+    }
+
+    public List<Level> getLevels() {
+        if (levels == null || levels.isEmpty()) {
+            levels = new ArrayList<>(Arrays.asList(
+                    new Level(1, new RuntimeDistribution(RuntimeDistribution.LOGNORMAL, 30, 10)),
+                    new Level(8, new RuntimeDistribution(RuntimeDistribution.LOGNORMAL, 120, 60)),
+                    new Level(1, new RuntimeDistribution(RuntimeDistribution.FIXED, 20, 0))));
+        }
+        return levels;
+    }
+
+    public int getMachines() {
+        return machines;
+    }
+
+    public int getSlotsPerMachine() {
+        return slotsPerMachine;
+    }
+
+    public double getMachineMtbfSeconds() {
+        return machineMtbfSeconds;
+    }
+
+    public double getMachineRepairSeconds() {
+        return machineRepairSeconds;
+    }
+
+    public double getTaskFailureProbability() {
+        return taskFailureProbability;
+    }
+
+    public double getResubmitFailedAfterSeconds() {
+        return resubmitFailedAfterSeconds;
+    }
+
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Level {
+
+        @XmlAttribute private int fanOut = 1;
+        @XmlElement private RuntimeDistribution runtime = new RuntimeDistribution();
+
+        public Level() {}
+
+        public Level(int fanOut, RuntimeDistribution runtime) {
+            this.fanOut = fanOut;
+            this.runtime = runtime;
+        }
+
+        public int getFanOut() {
+            return fanOut;
+        }
+
+        public RuntimeDistribution getRuntime() {
+            return runtime;
+        }
+    }
+}
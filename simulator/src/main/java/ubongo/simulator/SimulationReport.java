@@ -0,0 +1,160 @@
+package ubongo.simulator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The results of a simulation. All times are in virtual seconds, except for the wall time of the simulation itself.
+ * The queue wait of a task is the time from the moment it could run (all the tasks it depends on were completed, or
+ * it was resubmitted after a failure) until it started running on a machine - it includes both the time the server
+ * took to dispatch it and the time it waited on a busy machine.
+ */
+public class SimulationReport {
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private final SimulationConfig config;
+    private final double makespan;
+    private final long wallMillis;
+    private final long numEvents;
+    private int numTasks;
+    private int numCompletedTasks;
+    private int numFailedAttempts;
+    private int numFlows;
+    private List<Double> turnarounds = Collections.emptyList();
+    private List<Double> waits = Collections.emptyList();
+    private final List<MachineReport> machines = new ArrayList<>();
+
+    SimulationReport(SimulationConfig config, double makespan, long wallMillis, long numEvents) {
+        this.config = config;
+        this.makespan = makespan;
+        this.wallMillis = wallMillis;
+        this.numEvents = numEvents;
+    }
+
+    void setTasks(int numTasks, int numCompletedTasks, int numFailedAttempts) {
+        this.numTasks = numTasks;
+        this.numCompletedTasks = numCompletedTasks;
+        this.numFailedAttempts = numFailedAttempts;
+    }
+
+    void setFlows(int numFlows, List<Double> turnarounds) {
+        this.numFlows = numFlows;
+        this.turnarounds = sorted(turnarounds);
+    }
+
+    void setWaits(List<Double> waits) {
+        this.waits = sorted(waits);
+    }
+
+    void addMachine(int id, int slots, double busySeconds, double downSeconds, int numTasksRun, int numFailures) {
+        machines.add(new MachineReport(id, slots, busySeconds, downSeconds, numTasksRun, numFailures));
+    }
+
+    public double getMakespan() {
+        return makespan;
+    }
+
+    /**
+     * @return the fraction of the slots of all the machines that was used during the makespan.
+     */
+    public double getUtilization() {
+        double busySeconds = 0;
+        int slots = 0;
+        for (MachineReport machine : machines) {
+            busySeconds += machine.busySeconds;
+            slots += machine.slots;
+        }
+        return utilization(busySeconds, slots);
+    }
+
+    /**
+     * @return the given percentile of the queue waits of the tasks (nearest rank), or 0 if no task started.
+     */
+    public double getWaitPercentile(double percentile) {
+        return percentile(waits, percentile);
+    }
+
+    public int getNumStuckTasks() {
+        return numTasks - numCompletedTasks;
+    }
+
+    public void print(PrintStream out) {
+        out.println("Cluster: " + machines.size() + " machines x " + config.getSlotsPerMachine() + " slots"
+                + (config.getMachineMtbfSeconds() > 0 ? String.format(", MTBF %.0fs, repair %.0fs",
+                        config.getMachineMtbfSeconds(), config.getMachineRepairSeconds()) : ""));
+        StringBuilder levels = new StringBuilder();
+        for (SimulationConfig.Level level : config.getLevels()) {
+            levels.append(levels.length() == 0 ? "" : " -> ").append(level.getFanOut()).append(" x ")
+                    .append(level.getRuntime());
+        }
+        out.println("Flows: " + numFlows + " (" + levels + ")");
+        out.println(String.format("Makespan: %.1fs", makespan));
+        out.println("Tasks: " + numTasks + " (" + numCompletedTasks + " completed, " + getNumStuckTasks()
+                + " not completed, " + numFailedAttempts + " failed attempts)");
+        out.println("Queue wait: " + summary(waits));
+        out.println("Flow turnaround: " + summary(turnarounds));
+        out.println(String.format("Utilization: %.1f%%", 100 * getUtilization()));
+        for (MachineReport machine : machines) {
+            out.println(String.format("  machine %d: %.1f%% busy, %d tasks, %d failures, down %.1fs", machine.id,
+                    100 * utilization(machine.busySeconds, machine.slots), machine.numTasksRun,
+                    machine.numFailures, machine.downSeconds));
+        }
+        out.println(String.format("Simulated in %.1fs of wall time (%d events)", wallMillis / 1000.0, numEvents));
+    }
+
+    private double utilization(double busySeconds, int slots) {
+        return makespan <= 0 || slots == 0 ? 0 : busySeconds / (slots * makespan);
+    }
+
+    private static String summary(List<Double> sortedValues) {
+        if (sortedValues.isEmpty()) {
+            return "-";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (double percentile : PERCENTILES) {
+            sb.append(String.format("p%.0f=%.1fs ", percentile, percentile(sortedValues, percentile)));
+        }
+        double sum = 0;
+        for (double value : sortedValues) {
+            sum += value;
+        }
+        return sb.append(String.format("max=%.1fs mean=%.1fs", sortedValues.get(sortedValues.size() - 1),
+                sum / sortedValues.size())).toString();
+    }
+
+    private static double percentile(List<Double> sortedValues, double percentile) {
+        if (sortedValues.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sortedValues.size());
+        return sortedValues.get(Math.max(0, Math.min(sortedValues.size(), rank) - 1));
+    }
+
+    private static List<Double> sorted(List<Double> values) {
+        List<Double> sortedValues = new ArrayList<>(values);
+        Collections.sort(sortedValues);
+        return sortedValues;
+    }
+
+    private static final class MachineReport {
+
+        private final int id;
+        private final int slots;
+        private final double busySeconds;
+        private final double downSeconds;
+        private final int numTasksRun;
+        private final int numFailures;
+
+        MachineReport(int id, int slots, double busySeconds, double downSeconds, int numTasksRun, int numFailures) {
+            this.id = id;
+            this.slots = slots;
+            this.busySeconds = busySeconds;
+            this.downSeconds = downSeconds;
+            this.numTasksRun = numTasksRun;
+            this.numFailures = numFailures;
+        }
+    }
+}
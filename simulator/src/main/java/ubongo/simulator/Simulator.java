@@ -0,0 +1,388 @@
+package ubongo.simulator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ubongo.common.datatypes.Context;
+import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskStatus;
+import ubongo.common.datatypes.unit.Unit;
+import ubongo.common.transport.InProcessTransport;
+import ubongo.persistence.exceptions.PersistenceException;
+import ubongo.persistence.memory.InMemoryPersistence;
+import ubongo.server.SimulatedServer;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A discrete-event simulator of a cluster, for experimenting with the scheduling of the server (the consumer threads
+ * and the capacity of the queue of the QueueManager, the selection of machines, the handling of the dependencies
+ * between units) without the real rack. It drives the real QueueManager and MachinesManager over the in-memory
+ * persistence and the in-process transport, with simulated machines ({@link SimulatedMachine}) and a virtual clock:
+ * after every event (the arrival of a flow, the end of a task, the failure or repair of a machine) the simulator waits
+ * until the QueueManager has dispatched everything it can, and only then advances the clock to the next event. So the
+ * results do not depend on the speed of the computer that runs the simulation, and a day of work takes seconds.
+ * The runtime and the failure of every attempt of a task are drawn from a random generator seeded by the task, so
+ * they do not depend on the order in which the consumer threads dispatch the tasks (although this order, and thus
+ * the machines that are selected, may still vary a little between runs).
+ * Usage: java -jar ubongo-simulator.jar [path to simulation configuration]
+ */
+public class Simulator {
+
+    private static final long MAX_IDLE_WAIT_MILLIS = 60 * 1000;
+    private static final long IDLE_POLL_NANOS = 20 * 1000;
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 60 * 1000;
+    private static final String STUDY = "simulation";
+
+    private static Logger logger = LogManager.getLogger(Simulator.class);
+    private final SimulationConfig config;
+    private final EventQueue events = new EventQueue();
+    private final Random random;
+    private InMemoryPersistence persistence;
+    private InProcessTransport transport;
+    private SimulatedServer server;
+    private List<SimulatedMachine> machines;
+    private List<Unit> analysis;
+
+    // guarded by this
+    private final Map<Integer, TaskState> tasks = new HashMap<>();
+    private final List<FlowState> flows = new ArrayList<>();
+    private final List<Double> waits = new ArrayList<>();
+    private int numFailedAttempts = 0;
+    private double lastCompletion = 0;
+
+    public Simulator(SimulationConfig config) {
+        this.config = config;
+        this.random = new Random(config.getSeed());
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimulationConfig config = args.length > 0 ? SimulationConfig.load(args[0]) : new SimulationConfig();
+        new Simulator(config).run().print(System.out);
+    }
+
+    /**
+     * Runs the simulation until all the flows are completed, or until nothing can happen anymore (e.g., if failed
+     * tasks are not resubmitted).
+     */
+    public SimulationReport run() throws Exception {
+        long startMillis = System.currentTimeMillis();
+        setUp();
+        try {
+            long lastHeartbeatMillis = System.currentTimeMillis();
+            events.schedule(0, this::addFlow);
+            for (SimulatedMachine machine : machines) {
+                scheduleFailure(machine);
+            }
+            EventQueue.Action event;
+            while ((event = events.next()) != null) {
+                event.run();
+                awaitIdle();
+                // the MachinesManager checks the heartbeats against the real time
+                if (System.currentTimeMillis() - lastHeartbeatMillis > HEARTBEAT_INTERVAL_MILLIS) {
+                    sendHeartbeats();
+                    lastHeartbeatMillis = System.currentTimeMillis();
+                }
+            }
+            return createReport(System.currentTimeMillis() - startMillis);
+        } finally {
+            tearDown();
+        }
+    }
+
+    private void setUp() throws PersistenceException, IOException {
+        List<Machine> clusterMachines = new ArrayList<>();
+        for (int i = 1; i <= config.getMachines(); i++) {
+            Machine machine = new Machine();
+            machine.setId(i);
+            machine.setHost("machine" + i);
+            machine.setDescription("machine" + i);
+            machine.setActive(true);
+            machine.setConnected(true);
+            machine.setSlots(config.getSlotsPerMachine());
+            clusterMachines.add(machine);
+        }
+        persistence = new InMemoryPersistence(null, clusterMachines);
+        transport = new InProcessTransport();
+        machines = new ArrayList<>();
+        for (Machine machine : clusterMachines) {
+            SimulatedMachine simulatedMachine =
+                    new SimulatedMachine(machine, config.getSlotsPerMachine(), this, events, persistence);
+            simulatedMachine.listen(transport);
+            machines.add(simulatedMachine);
+        }
+        server = new SimulatedServer(persistence, clusterMachines, transport);
+        server.start();
+        sendHeartbeats();
+        analysis = new ArrayList<>();
+        List<SimulationConfig.Level> levels = config.getLevels();
+        for (int serial = 0; serial < levels.size(); serial++) {
+            Unit unit = new Unit(serial + 1);
+            unit.setInputPaths("/" + STUDY + "/{study}/{subject}/{run}/unit" + serial + "/");
+            unit.setOutputDir("/" + STUDY + "/{study}/{subject}/{run}/unit" + (serial + 1) + "/");
+            unit.setParameters(new ArrayList<>());
+            analysis.add(unit);
+        }
+    }
+
+    private void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    private void sendHeartbeats() throws PersistenceException {
+        for (SimulatedMachine machine : machines) {
+            if (machine.isUp()) {
+                machine.setConnected(true);
+            }
+        }
+    }
+
+    /**
+     * Waits until the QueueManager has finished reacting to the last event.
+     */
+    private void awaitIdle() {
+        long deadline = System.currentTimeMillis() + MAX_IDLE_WAIT_MILLIS;
+        while (!server.isIdle()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("The QueueManager did not become idle within "
+                        + MAX_IDLE_WAIT_MILLIS + " ms at time " + events.now());
+            }
+            LockSupport.parkNanos(IDLE_POLL_NANOS);
+        }
+    }
+
+    private void addFlow() throws PersistenceException {
+        double now = events.now();
+        FlowState flow;
+        synchronized (this) {
+            flow = new FlowState(flows.size(), now, config.getLevels());
+            flows.add(flow);
+        }
+        String subject = "flow" + flow.index;
+        List<Task> flowTasks = new ArrayList<>();
+        for (int serial = 0; serial < analysis.size(); serial++) {
+            for (int i = 0; i < config.getLevels().get(serial).getFanOut(); i++) {
+                flowTasks.add(new Task(serial, analysis.get(serial), new Context(STUDY, subject, "task" + i)));
+            }
+        }
+        flow.flowId = persistence.createFlow(new Context(STUDY, subject, null), flowTasks);
+        synchronized (this) {
+            for (Task task : persistence.getTasks(flow.flowId)) {
+                TaskState state = new TaskState(flow, task.getSerialNumber());
+                if (state.serial == 0) {
+                    state.readyTime = now;
+                }
+                flow.levels.get(state.serial).add(state);
+                tasks.put(task.getId(), state);
+            }
+        }
+        server.startFlow(flow.flowId);
+        if (flows.size() < config.getFlows()) {
+            double interArrival = config.getFlowInterArrivalSeconds();
+            events.schedule(interArrival <= 0 ? 0 : -interArrival * Math.log(1 - random.nextDouble()), this::addFlow);
+        }
+    }
+
+    private void scheduleFailure(SimulatedMachine machine) {
+        double mtbf = config.getMachineMtbfSeconds();
+        if (mtbf > 0) {
+            double timeToFailure = -mtbf * Math.log(1 - random.nextDouble());
+            events.schedule(timeToFailure, true, () -> machine.fail(config.getMachineRepairSeconds()));
+        }
+    }
+
+    /**
+     * Called by a machine when it starts running a task.
+     * @return the runtime of this attempt and whether it fails.
+     */
+    synchronized Attempt startTask(Task task, double now) {
+        TaskState state = tasks.get(task.getId());
+        waits.add(now - state.readyTime);
+        Random taskRandom = new Random(mix(mix(config.getSeed() + task.getId()) + state.attempts++));
+        double runtime = config.getLevels().get(state.serial).getRuntime().sample(taskRandom);
+        return new Attempt(runtime, taskRandom.nextDouble() < config.getTaskFailureProbability());
+    }
+
+    /**
+     * Reports the status of the task to the server, as a machine does when a task ends.
+     */
+    void finishTask(Task task, boolean completed) throws Exception {
+        double now = events.now();
+        FlowState flow;
+        boolean levelCompleted = false;
+        synchronized (this) {
+            TaskState state = tasks.get(task.getId());
+            flow = state.flow;
+            if (completed) {
+                state.completed = true;
+                lastCompletion = now;
+                if (--flow.remaining[state.serial] == 0) {
+                    levelCompleted = true;
+                    if (state.serial + 1 < flow.levels.size()) {
+                        flow.levels.get(state.serial + 1).forEach(t -> t.readyTime = now);
+                    } else {
+                        flow.completionTime = now;
+                    }
+                }
+            } else {
+                numFailedAttempts++;
+            }
+        }
+        task.setStatus(completed ? TaskStatus.COMPLETED : TaskStatus.FAILED);
+        transport.sendStatus(task);
+        double resubmitDelay = config.getResubmitFailedAfterSeconds();
+        if (resubmitDelay < 0) {
+            return;
+        }
+        if (!completed) {
+            events.schedule(resubmitDelay, () -> resubmitTask(task.getId()));
+        } else if (levelCompleted) {
+            resumeHeldTasks(flow);
+        }
+    }
+
+    private void resubmitTask(int taskId) throws PersistenceException {
+        synchronized (this) {
+            tasks.get(taskId).readyTime = events.now();
+        }
+        server.resumeTask(taskId);
+    }
+
+    void machineRepaired(SimulatedMachine machine) throws PersistenceException {
+        scheduleFailure(machine);
+        if (config.getResubmitFailedAfterSeconds() < 0) {
+            return;
+        }
+        // tasks may have been put on hold while no machine was available
+        List<FlowState> activeFlows;
+        synchronized (this) {
+            activeFlows = new ArrayList<>();
+            for (FlowState flow : flows) {
+                if (flow.completionTime < 0) {
+                    activeFlows.add(flow);
+                }
+            }
+        }
+        for (FlowState flow : activeFlows) {
+            resumeHeldTasks(flow);
+        }
+    }
+
+    /**
+     * Resumes the tasks of the flow that are on hold although all the tasks they depend on were completed (the
+     * QueueManager puts the tasks that depend on a failed task on hold, and does not release them when the failed
+     * task is resumed and completed).
+     */
+    private void resumeHeldTasks(FlowState flow) throws PersistenceException {
+        for (Task task : persistence.getTasks(flow.flowId)) {
+            boolean dependenciesCompleted;
+            synchronized (this) {
+                int serial = task.getSerialNumber();
+                dependenciesCompleted = serial == 0 || flow.remaining[serial - 1] == 0;
+            }
+            if (task.getStatus() == TaskStatus.ON_HOLD && dependenciesCompleted) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Resuming task with id=" + task.getId() + " at time " + events.now());
+                }
+                server.resumeTask(task.getId());
+            }
+        }
+    }
+
+    /**
+     * Scrambles the bits of a seed (the finalizer of MurmurHash3): Random generators that are created with close
+     * seeds return close first values.
+     */
+    private static long mix(long seed) {
+        seed = (seed ^ (seed >>> 33)) * 0xff51afd7ed558ccdL;
+        seed = (seed ^ (seed >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return seed ^ (seed >>> 33);
+    }
+
+    private SimulationReport createReport(long wallMillis) {
+        SimulationReport report;
+        synchronized (this) {
+            int numCompleted = 0;
+            for (TaskState state : tasks.values()) {
+                if (state.completed) {
+                    numCompleted++;
+                }
+            }
+            List<Double> turnarounds = new ArrayList<>();
+            for (FlowState flow : flows) {
+                if (flow.completionTime >= 0) {
+                    turnarounds.add(flow.completionTime - flow.arrivalTime);
+                }
+            }
+            report = new SimulationReport(config, lastCompletion, wallMillis, events.getNumScheduled());
+            report.setTasks(tasks.size(), numCompleted, numFailedAttempts);
+            report.setFlows(flows.size(), turnarounds);
+            report.setWaits(waits);
+        }
+        for (SimulatedMachine machine : machines) {
+            report.addMachine(machine.getMachine().getId(), machine.getSlots(), machine.getBusySeconds(),
+                    machine.getDownSeconds(lastCompletion), machine.getNumTasksRun(), machine.getNumFailures());
+        }
+        return report;
+    }
+
+    static final class Attempt {
+
+        private final double runtime;
+        private final boolean fails;
+
+        Attempt(double runtime, boolean fails) {
+            this.runtime = runtime;
+            this.fails = fails;
+        }
+
+        double getRuntime() {
+            return runtime;
+        }
+
+        boolean fails() {
+            return fails;
+        }
+    }
+
+    private static final class FlowState {
+
+        private final int index;
+        private final double arrivalTime;
+        private final List<List<TaskState>> levels = new ArrayList<>(); // by serial number
+        private final int[] remaining; // tasks that were not completed, by serial number
+        private int flowId;
+        private double completionTime = -1;
+
+        FlowState(int index, double arrivalTime, List<SimulationConfig.Level> levelsConfig) {
+            this.index = index;
+            this.arrivalTime = arrivalTime;
+            this.remaining = new int[levelsConfig.size()];
+            for (int serial = 0; serial < levelsConfig.size(); serial++) {
+                levels.add(new ArrayList<>());
+                remaining[serial] = levelsConfig.get(serial).getFanOut();
+            }
+        }
+    }
+
+    private static final class TaskState {
+
+        private final FlowState flow;
+        private final int serial;
+        private double readyTime = Double.NaN; // when all the tasks it depends on were completed
+        private int attempts = 0;
+        private boolean completed = false;
+
+        TaskState(FlowState flow, int serial) {
+            this.flow = flow;
+            this.serial = serial;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package ubongo.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import ubongo.common.datatypes.ExecutionRequest;
+import ubongo.common.datatypes.FlowData;
+import ubongo.common.datatypes.Machine;
+import ubongo.common.datatypes.Task;
+
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ChangeFeed is the single reader of the DB on behalf of all open dashboards. It periodically reads machines,
+ * flows, the latest tasks and the latest requests, compares them to the previous read and pushes the differences as
+ * Server-Sent Events to every subscribed client. Hence, the DB load does not depend on the number of open browsers.
+ * The following events are sent (the data of each event is JSON):
+ *  machines - the full list of machines (including the server), whenever any of them has changed;
+ *  flow - a flow that was created or whose status has changed;
+ *  task - {id, flowId, serialNumber, status, machineId} of a task that was created or whose status has changed;
+ *  request - an execution request that was created or whose status has changed.
+ * The DB is read only while there are subscribers. Changes are also reported to the {@link ResponseCache}, so
+ * cached resources are reloaded as soon as the feed notices they have changed.
+ */
+public class ChangeFeed {
+
+    private static final long POLL_INTERVAL_MILLIS = 3000;
+    private static final long KEEP_ALIVE_INTERVAL_MILLIS = 15000;
+    private static final int REQUESTS_LIMIT = 100;
+
+    private static Logger logger = LogManager.getLogger(ChangeFeed.class);
+    private static final ObjectMapper mapper = RestService.mapper;
+
+    private final ServiceProvider serviceProvider;
+    private final ResponseCache responseCache;
+    private final int queryLimit;
+    private final Set<EventOutput> subscribers = new CopyOnWriteArraySet<>();
+    private ScheduledExecutorService reader;
+    private long lastEventTime = 0;
+
+    /* state of the last read - null means that the state was not read yet (and no events are sent for it) */
+    private String machinesState = null;
+    private Map<Integer, String> flowsState = null;
+    private Map<Integer, String> tasksState = null;
+    private Map<Integer, String> requestsState = null;
+
+    public ChangeFeed(ServiceProvider serviceProvider, ResponseCache responseCache, int queryLimit) {
+        this.serviceProvider = serviceProvider;
+        this.responseCache = responseCache;
+        this.queryLimit = queryLimit;
+    }
+
+    /**
+     * Registers a new client. The client receives the events from the next read of the DB onwards, so it is expected
+     * to fetch the current state using the regular REST resources.
+     * @return the event stream to return to the client.
+     */
+    public EventOutput subscribe() {
+        EventOutput eventOutput = new EventOutput();
+        subscribers.add(eventOutput);
+        startReader();
+        return eventOutput;
+    }
+
+    synchronized public void stop() {
+        if (reader != null) {
+            reader.shutdownNow();
+            reader = null;
+        }
+        for (EventOutput subscriber : subscribers) {
+            close(subscriber);
+        }
+        subscribers.clear();
+    }
+
+    synchronized private void startReader() {
+        if (reader != null) {
+            return;
+        }
+        reader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ubongo-change-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reader.scheduleWithFixedDelay(this::readChanges, 0, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        logger.info("Change feed started");
+    }
+
+    private void readChanges() {
+        subscribers.removeIf(EventOutput::isClosed);
+        if (subscribers.isEmpty()) {
+            // forget the state, since nobody is listening to the changes that will happen meanwhile
+            machinesState = null;
+            flowsState = tasksState = requestsState = null;
+            return;
+        }
+        try {
+            readMachines();
+            readFlows();
+            readTasks();
+            readRequests();
+            if (System.currentTimeMillis() - lastEventTime > KEEP_ALIVE_INTERVAL_MILLIS) {
+                // also lets us find out about clients that went away
+                broadcast("keep-alive", "{}");
+            }
+        } catch (Exception e) {
+            logger.error("Change feed failed to read changes from the DB", e);
+        }
+    }
+
+    private void readMachines() throws Exception {
+        List<Machine> machines = serviceProvider.getAllMachines();
+        String state = mapper.writeValueAsString(machines);
+        if (machinesState != null && !machinesState.equals(state)) {
+            responseCache.invalidate(ResponseCache.Region.MACHINES);
+            broadcast("machines", state);
+        }
+        machinesState = state;
+    }
+
+    private void readFlows() throws Exception {
+        Map<Integer, String> state = new HashMap<>();
+        List<FlowData> changed = new ArrayList<>();
+        for (FlowData flow : serviceProvider.getAllFlows(queryLimit)) {
+            String flowState = String.valueOf(flow.getStatus());
+            state.put(flow.getFlowId(), flowState);
+            if (flowsState != null && !flowState.equals(flowsState.get(flow.getFlowId()))) {
+                changed.add(flow);
+            }
+        }
+        for (FlowData flow : changed) {
+            responseCache.invalidate(ResponseCache.Region.FLOW_TASKS, Integer.toString(flow.getFlowId()));
+            broadcast("flow", mapper.writeValueAsString(flow));
+        }
+        flowsState = state;
+    }
+
+    private void readTasks() throws Exception {
+        Map<Integer, String> state = new HashMap<>();
+        List<Map<String, Object>> changed = new ArrayList<>();
+        for (Task task : serviceProvider.getAllTasks(queryLimit)) {
+            Integer machineId = task.getMachine() == null ? null : task.getMachine().getId();
+            String taskState = task.getStatus() + "/" + machineId;
+            state.put(task.getId(), taskState);
+            if (tasksState != null && !taskState.equals(tasksState.get(task.getId()))) {
+                Map<String, Object> event = new LinkedHashMap<>();
+                event.put("id", task.getId());
+                event.put("flowId", task.getFlowId());
+                event.put("serialNumber", task.getSerialNumber());
+                event.put("status", task.getStatus());
+                event.put("machineId", machineId);
+                changed.add(event);
+            }
+        }
+        for (Map<String, Object> event : changed) {
+            responseCache.invalidate(ResponseCache.Region.FLOW_TASKS, event.get("flowId").toString());
+            broadcast("task", mapper.writeValueAsString(event));
+        }
+        tasksState = state;
+    }
+
+    private void readRequests() throws Exception {
+        Map<Integer, String> state = new HashMap<>();
+        List<ExecutionRequest> changed = new ArrayList<>();
+        for (ExecutionRequest request : serviceProvider.getAllRequests(REQUESTS_LIMIT)) {
+            String requestState = String.valueOf(request.getStatus());
+            state.put(request.getId(), requestState);
+            if (requestsState != null && !requestState.equals(requestsState.get(request.getId()))) {
+                changed.add(request);
+            }
+        }
+        for (ExecutionRequest request : changed) {
+            broadcast("request", mapper.writeValueAsString(request));
+        }
+        requestsState = state;
+    }
+
+    private void broadcast(String name, String data) {
+        OutboundEvent event = new OutboundEvent.Builder()
+                .name(name)
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(String.class, data)
+                .build();
+        for (EventOutput subscriber : subscribers) {
+            try {
+                subscriber.write(event);
+            } catch (IOException e) {
+                // the client has gone away
+                subscribers.remove(subscriber);
+                close(subscriber);
+            }
+        }
+        lastEventTime = System.currentTimeMillis();
+    }
+
+    private static void close(EventOutput eventOutput) {
+        try {
+            eventOutput.close();
+        } catch (IOException e) {
+            // ignore - the connection is closed anyway
+        }
+    }
+}
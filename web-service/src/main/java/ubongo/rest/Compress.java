@@ -0,0 +1,17 @@
+package ubongo.rest;
+
+import javax.ws.rs.NameBinding;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks resource methods whose responses may be large, so they are gzip-compressed for clients that accept it
+ * (see {@link GZipWriterInterceptor}). Other responses, and in particular the event stream, are sent as is.
+ */
+@NameBinding
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface Compress {
+}
@@ -0,0 +1,57 @@
+package ubongo.rest;
+
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses the responses of resource methods annotated with {@link Compress} if the client accepts gzip.
+ */
+@Provider
+@Compress
+public class GZipWriterInterceptor implements WriterInterceptor {
+
+    private static final String GZIP = "gzip";
+
+    @Context
+    private HttpHeaders httpHeaders;
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        context.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (!acceptsGzip(httpHeaders)) {
+            context.proceed();
+            return;
+        }
+        context.getHeaders().putSingle(HttpHeaders.CONTENT_ENCODING, GZIP);
+        GZIPOutputStream outputStream = new GZIPOutputStream(context.getOutputStream());
+        context.setOutputStream(outputStream);
+        try {
+            context.proceed();
+        } finally {
+            outputStream.finish();
+        }
+    }
+
+    /**
+     * @return true iff the responses of the resource methods annotated with {@link Compress} are compressed for the
+     * request with the given headers.
+     */
+    static boolean acceptsGzip(HttpHeaders httpHeaders) {
+        List<String> acceptEncoding = httpHeaders.getRequestHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String value : acceptEncoding) {
+            if (value.toLowerCase().contains(GZIP)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
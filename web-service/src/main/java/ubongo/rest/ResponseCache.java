@@ -0,0 +1,215 @@
+package ubongo.rest;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ResponseCache keeps the serialized bodies of read-mostly resources, together with their ETag and Last-Modified
+ * validators, so a request for unchanged data is answered from memory - or with 304 (Not Modified) if the client
+ * already has it - without reading the DB or the units directory.
+ * Every region (and every key within a region) has a version stamp. Writes that the {@link ServiceProviderImpl}
+ * applies itself bump the version of what they change, which makes the cached entries stale. The data that the server
+ * changes (the tasks and the machines, including the changes the web service requests from it) is invalidated by the
+ * {@link ChangeFeed} once it notices that the change was applied, and since the feed only reads while dashboards
+ * listen to it, the entries of such regions are also considered stale after a maximal age. A stale entry is reloaded on the next request, and if
+ * its content has not changed it keeps its validators, so clients still receive 304.
+ * Resources that are too large to hold are streamed instead (see {@link #getStreamed}): only their validators are
+ * kept, and their ETag is derived from the version stamp, so it changes whenever the resource is invalidated or has
+ * reached its maximal age.
+ * The cache keeps at most MAX_ENTRIES entries, dropping the least recently used ones. The ETag of a compressed
+ * response differs from that of the same resource uncompressed, since the bodies differ.
+ */
+public class ResponseCache {
+
+    public enum Region {
+        UNITS(60000),              // the units directory is only changed by hand
+        ANALYSES(Long.MAX_VALUE),  // analyses are only created through the web service
+        MACHINES(5000),            // the server updates the machines' heartbeats
+        FLOW_TASKS(5000);          // the server updates the statuses of tasks
+
+        private final long maxAgeMillis;
+
+        Region(long maxAgeMillis) {
+            this.maxAgeMillis = maxAgeMillis;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Loader {
+        byte[] load() throws UbongoHttpException;
+    }
+
+    private static final int MAX_ENTRIES = 1000;
+    private static final int MAX_KEY_VERSIONS = 10 * MAX_ENTRIES;
+
+    /* the version stamps are drawn from one counter, so a new stamp is greater than all the stamps before it, and the
+       version of an entry - the greater of the stamps of its region and of its key - changes on every invalidation */
+    private final AtomicLong stamps = new AtomicLong();
+    private final Map<Region, Long> regionVersions = new ConcurrentHashMap<>();
+
+    /* the version stamps of the keys, the least recently used first - guarded by itself. A stamp that is dropped is
+       replaced by a new stamp of its region, which makes all the entries of the region stale */
+    private final Map<String, Long> keyVersions = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() <= MAX_KEY_VERSIONS) {
+                return false;
+            }
+            String entryKey = eldest.getKey();
+            invalidate(Region.valueOf(entryKey.substring(0, entryKey.indexOf('/'))));
+            return true;
+        }
+    };
+
+    /* the entries by region and key, the least recently used first - guarded by itself */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /* the ETags of the streamed resources are unique across restarts of the web service */
+    private final String streamedTagPrefix = Long.toHexString(System.currentTimeMillis());
+    private final AtomicLong streamedTags = new AtomicLong();
+
+    /**
+     * Returns the cached resource, or loads it if it was not cached yet or is stale.
+     * @param request to evaluate the preconditions (If-None-Match, If-Modified-Since) of.
+     * @param contentEncoding that the response will be written with (e.g., "gzip"), or null if it is not encoded.
+     * @param region of the resource.
+     * @param key identifying the resource within the region.
+     * @param loader to load the serialized resource (JSON) if needed.
+     * @return 304 if the client's copy is up to date, or 200 with the resource and its validators otherwise.
+     * @throws UbongoHttpException if the loader has failed.
+     */
+    public Response get(Request request, String contentEncoding, Region region, String key, Loader loader)
+            throws UbongoHttpException {
+        String entryKey = getEntryKey(region, key);
+        long version = getVersion(region, key);
+        Entry entry = getEntry(entryKey);
+        if (entry == null || entry.isStale(version)) {
+            byte[] body = loader.load();
+            String digest = digest(body);
+            long lastModified = entry != null && entry.tag.equals(digest)
+                    ? entry.lastModified : System.currentTimeMillis();
+            entry = new Entry(body, digest, lastModified, version, region.maxAgeMillis);
+            putEntry(entryKey, entry);
+        }
+        return respond(request, contentEncoding, entry, entry.body);
+    }
+
+    /**
+     * Returns the resource as it is written by the given output, unless the client's copy is up to date. The
+     * resource itself is not cached, only its validators.
+     * @see #get(Request, String, Region, String, Loader)
+     */
+    public Response getStreamed(Request request, String contentEncoding, Region region, String key,
+                                StreamingOutput output) {
+        String entryKey = getEntryKey(region, key);
+        long version = getVersion(region, key);
+        Entry entry = getEntry(entryKey);
+        if (entry == null || entry.isStale(version)) {
+            String tag = streamedTagPrefix + "-" + Long.toHexString(streamedTags.incrementAndGet());
+            entry = new Entry(null, tag, System.currentTimeMillis(), version, region.maxAgeMillis);
+            putEntry(entryKey, entry);
+        }
+        return respond(request, contentEncoding, entry, output);
+    }
+
+    /**
+     * Makes all the entries of the region stale.
+     */
+    public void invalidate(Region region) {
+        regionVersions.merge(region, stamps.incrementAndGet(), Math::max);
+    }
+
+    /**
+     * Makes the entry of the given key within the region stale.
+     */
+    public void invalidate(Region region, String key) {
+        synchronized (keyVersions) {
+            keyVersions.put(getEntryKey(region, key), stamps.incrementAndGet());
+        }
+    }
+
+    private Response respond(Request request, String contentEncoding, Entry entry, Object body) {
+        EntityTag etag = new EntityTag(contentEncoding == null ? entry.tag : entry.tag + "-" + contentEncoding);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(new Date(entry.lastModified), etag);
+        if (notModified != null) {
+            return notModified.tag(etag).build();
+        }
+        return Response.ok(body, MediaType.APPLICATION_JSON_TYPE)
+                .tag(etag)
+                .lastModified(new Date(entry.lastModified))
+                .header("Cache-Control", "no-cache") // clients must revalidate, which costs them a 304 at most
+                .build();
+    }
+
+    private Entry getEntry(String entryKey) {
+        synchronized (entries) {
+            return entries.get(entryKey);
+        }
+    }
+
+    private void putEntry(String entryKey, Entry entry) {
+        synchronized (entries) {
+            entries.put(entryKey, entry);
+        }
+    }
+
+    private long getVersion(Region region, String key) {
+        Long keyVersion;
+        synchronized (keyVersions) {
+            keyVersion = keyVersions.get(getEntryKey(region, key));
+        }
+        return Math.max(regionVersions.getOrDefault(region, 0L), keyVersion == null ? 0 : keyVersion);
+    }
+
+    private static String getEntryKey(Region region, String key) {
+        return region.name() + "/" + key;
+    }
+
+    private static String digest(byte[] body) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(body);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported by the JVM", e); // not possible
+        }
+    }
+
+    private static final class Entry {
+
+        private final byte[] body; // null if the resource is streamed
+        private final String tag; // the ETag of the resource when it is not encoded
+        private final long lastModified;
+        private final long version;
+        private final long expiry;
+
+        Entry(byte[] body, String tag, long lastModified, long version, long maxAgeMillis) {
+            this.body = body;
+            this.tag = tag;
+            this.lastModified = lastModified;
+            this.version = version;
+            long now = System.currentTimeMillis();
+            this.expiry = maxAgeMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + maxAgeMillis;
+        }
+
+        boolean isStale(long currentVersion) {
+            return version != currentVersion || System.currentTimeMillis() >= expiry;
+        }
+    }
+}
@@ -1,29 +1,46 @@
 package ubongo.rest;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
 import ubongo.common.datatypes.ExecutionRequest;
 import ubongo.common.datatypes.FlowData;
 import ubongo.common.datatypes.Machine;
 import ubongo.common.datatypes.Task;
+import ubongo.common.datatypes.TaskEvent;
+import ubongo.common.datatypes.UnitTimeline;
 import ubongo.common.datatypes.unit.Unit;
+import ubongo.common.metrics.MetricsHttpServer;
+import ubongo.common.metrics.MetricsRegistry;
+import ubongo.common.metrics.PrometheusFormat;
 import ubongo.persistence.Configuration;
+import ubongo.persistence.MetricsProperties;
 import ubongo.persistence.exceptions.PersistenceException;
 
 import javax.servlet.ServletContext;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.xml.bind.UnmarshalException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 @Path("/api")
 public final class RestService {
@@ -33,6 +50,9 @@ public final class RestService {
 
     private static boolean serviceProviderInitAttempted = false;
     private static ServiceProvider serviceProvider = null;
+    private static ChangeFeed changeFeed = null;
+    private static MetricsProperties metricsProperties = null;
+    private static final ResponseCache responseCache = new ResponseCache();
 
     private static final int DEFAULT_QUERY_LIMIT_FALLBACK = 1000;
     private static boolean defaultQueryLimitRetrieved = false;
@@ -40,6 +60,16 @@ public final class RestService {
 
     private static Logger logger = LogManager.getLogger(RestService.class);
 
+    /* ObjectMapper is thread-safe once configured, so a single instance is shared by all requests */
+    static final ObjectMapper mapper = new ObjectMapper();
+    static {
+        // a failure in the middle of a stream must not produce a truncated, yet well-formed, JSON array
+        mapper.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+        mapper.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+    private static final ObjectWriter streamWriter = mapper.writer()
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
     private static final String APP_VERSION = "1.0.0";
     private static final String TOMCAT_CONTEXT_CONFIGURED =
             "Please make sure context.xml is configured correctly in the Tomcat directory.";
@@ -53,6 +83,25 @@ public final class RestService {
         if (!defaultQueryLimitRetrieved) {
             initDbQueryLimit();
         }
+        if (changeFeed == null) {
+            initChangeFeed();
+        }
+    }
+
+    synchronized private static void initChangeFeed() {
+        if (changeFeed == null) {
+            changeFeed = new ChangeFeed(serviceProvider, responseCache, defaultQueryLimit);
+            serviceProvider.setChangeFeed(changeFeed);
+        }
+    }
+
+    /**
+     * Stops the service provider (and the change feed with it) when the web application is undeployed.
+     */
+    synchronized static void shutdown() {
+        if (serviceProvider != null) {
+            serviceProvider.stop();
+        }
     }
 
     private void initServiceProvider() throws UbongoHttpException {
@@ -73,7 +122,9 @@ public final class RestService {
                 logAndWrapException(500, FAILURE_MSG, e);
             }
             if (configuration != null) {
-                serviceProvider = new ServiceProviderImpl(configuration, unitsPath, queriesPath, configuration.getDebug());
+                metricsProperties = configuration.getMetricsProperties();
+                serviceProvider = new ServiceProviderImpl(configuration, unitsPath, queriesPath, configuration.getDebug(),
+                        responseCache);
             }
             serviceProvider.start();
         } catch (UbongoHttpException e) {
@@ -115,25 +166,71 @@ public final class RestService {
         return "{\"version\": \"" + APP_VERSION + "\"}";
     }
 
+    /**
+     * Returns the metrics of the web service and of the execution server (if it serves them - see
+     * {@link MetricsProperties}) in the Prometheus text format, to be scraped by Prometheus.
+     */
+    @GET
+    @Path("metrics")
+    @Produces(PrometheusFormat.CONTENT_TYPE)
+    public String getMetrics() throws UbongoHttpException {
+        init();
+        List<String> texts = new ArrayList<>();
+        String serverError = null;
+        if (metricsProperties != null && metricsProperties.isServerExported()) {
+            try {
+                texts.add(MetricsHttpServer.fetch(metricsProperties.getServerHost(), metricsProperties.getPort()));
+            } catch (IOException e) {
+                logger.warn("Failed to fetch the metrics of the execution server: " + e.getMessage());
+                serverError = e.getMessage();
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        try {
+            MetricsRegistry.getInstance().writePrometheus(sb, "web-service");
+        } catch (IOException e) {
+            logAndWrapException(500, "Failed to write the metrics", e);
+        }
+        texts.add(sb.toString());
+        String metrics = PrometheusFormat.merge(texts);
+        return serverError == null ? metrics
+                : metrics + "# The metrics of the execution server are unavailable: " + serverError + "\n";
+    }
+
+    /**
+     * Opens a stream of Server-Sent Events describing changes to machines, flows, tasks and requests
+     * (see {@link ChangeFeed}), to be used by clients instead of polling the other resources.
+     */
+    @GET
+    @Path("events")
+    @Produces(SseFeature.SERVER_SENT_EVENTS)
+    public EventOutput getEvents() throws UbongoHttpException {
+        init();
+        return changeFeed.subscribe();
+    }
+
     @GET
     @Path("machines")
     @Produces(MediaType.APPLICATION_JSON)
-    public String getAllMachines() throws UbongoHttpException {
+    public Response getAllMachines(@Context Request request) throws UbongoHttpException {
         init();
-        ObjectMapper mapper = new ObjectMapper();
-        String response = "[]";
-        try {
-            List<Machine> machines = serviceProvider.getAllMachines();
-            if (machines == null) {
-                logAndWrapException(500, "Failed to retrieve machines.");
+        return responseCache.get(request, null, ResponseCache.Region.MACHINES, "all", () -> {
+            byte[] response = null;
+            try {
+                List<Machine> machines = serviceProvider.getAllMachines();
+                if (machines == null) {
+                    logAndWrapException(500, "Failed to retrieve machines.");
+                }
+                response = mapper.writeValueAsBytes(machines);
+            } catch (JsonProcessingException e) {
+                logAndWrapException(500, "Failed to serialize machines to JSON.", e);
+            } catch (UbongoHttpException e) {
+                throw e;
+            } catch (Exception e) {
+                logAndWrapException(500, "Failed to retrieve machines from DB.", e);
             }
-            response = mapper.writeValueAsString(machines);
-        } catch (JsonProcessingException e) {
-            logAndWrapException(500, "Failed to serialize machines to JSON.", e);
-        } catch (Exception e) {
-            logAndWrapException(500, "Failed to retrieve machines from DB.", e);
-        }
-        return response;
+            return response;
+        });
     }
 
     @POST
@@ -142,13 +239,14 @@ public final class RestService {
     public void changeMachineActivityStatus(
             @PathParam("machineId") int machineId,
             @DefaultValue("false") @QueryParam("activate") boolean activate,
-            @DefaultValue("false") @QueryParam("deactivate") boolean deactivate) throws UbongoHttpException {
+            @DefaultValue("false") @QueryParam("deactivate") boolean deactivate,
+            @DefaultValue("false") @QueryParam("drain") boolean drain) throws UbongoHttpException {
         init();
+        if ((activate ? 1 : 0) + (deactivate ? 1 : 0) + (drain ? 1 : 0) > 1) {
+            logAndWrapException(400, "Received a POST request to machines/" + machineId
+                    + " with more than one of the activate, deactivate and drain query params turned on. Please choose only one.");
+        }
         if (activate) {
-            if (deactivate) {
-                logAndWrapException(400, "Received a POST request to machines/"
-                        + machineId + " with both activate and deactivate query params turned on. Please choose only one.");
-            }
             try {
                 serviceProvider.changeMachineActivityStatus(machineId, true);
             } catch (Exception e) {
@@ -160,57 +258,114 @@ public final class RestService {
             } catch (Exception e) {
                 logAndWrapException(500, "Failed to send deactivation request for machine with ID=" + machineId, e);
             }
+        } else if (drain) {
+            try {
+                serviceProvider.drainMachine(machineId);
+            } catch (Exception e) {
+                logAndWrapException(500, "Failed to send drain request for machine with ID=" + machineId, e);
+            }
         } else {
-            logAndWrapException(400, "Received a POST request to machines/"
-                    + machineId + " without any query param. Please send query param 'activate' or 'deactivate'.");
+            logAndWrapException(400, "Received a POST request to machines/" + machineId
+                    + " without any query param. Please send query param 'activate', 'deactivate' or 'drain'.");
         }
     }
 
+    /**
+     * Returns the recent telemetry of the machine, the oldest sample first, as the execution server has received it
+     * (the load, free memory and disk of the machine, and the memory and CPU of every task it runs), to be graphed.
+     * The execution server serves it with its metrics, so it is only available if they are exported (see
+     * {@link MetricsProperties}).
+     */
     @GET
-    @Path("analyses/{analysisName}")
+    @Path("machines/{machineId}/telemetry")
     @Produces(MediaType.APPLICATION_JSON)
-    public String getAnalysis(@PathParam("analysisName") String analysisName) throws UbongoHttpException {
+    public String getMachineTelemetry(@PathParam("machineId") int machineId) throws UbongoHttpException {
         init();
-        ObjectMapper mapper = new ObjectMapper();
-        String response = "[]";
+        if (metricsProperties == null || !metricsProperties.isServerExported()) {
+            logAndWrapException(503, "The telemetry of the machines is only available when the metrics of the "
+                    + "execution server are exported.");
+        }
+        String telemetry = null;
         try {
-            List<Unit> units = serviceProvider.getAnalysis(analysisName);
-            if (units == null) {
-                logAndWrapException(500, "Failed to retrieve analysis from DB.");
-            }
-            response = mapper.writeValueAsString(units);
-        } catch (JsonProcessingException e) {
-            logAndWrapException(500, "Failed to serialize analysis units to JSON.", e);
+            telemetry = MetricsHttpServer.fetch(metricsProperties.getServerHost(), metricsProperties.getPort(),
+                    MetricsHttpServer.TELEMETRY_PATH + "/" + machineId);
+        } catch (IOException e) {
+            logAndWrapException(503, "Failed to fetch the telemetry of machine with ID=" + machineId
+                    + " from the execution server", e);
+        }
+        return telemetry;
+    }
+
+    @POST
+    @Path("machines/drain")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void drainMachines(
+            @DefaultValue("1") @QueryParam("machinesAtOnce") int machinesAtOnce) throws UbongoHttpException {
+        init();
+        if (machinesAtOnce < 1) {
+            logAndWrapException(400, "Received a POST request to machines/drain with machinesAtOnce="
+                    + machinesAtOnce + ". Please send a positive number.");
+        }
+        try {
+            serviceProvider.drainMachines(machinesAtOnce);
         } catch (Exception e) {
-            logAndWrapException(500, "Failed to read analysis from DB.", e);
+            logAndWrapException(500, "Failed to send rolling drain request", e);
         }
-        return response;
+    }
+
+    @GET
+    @Path("analyses/{analysisName}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getAnalysis(@PathParam("analysisName") String analysisName,
+                                @Context Request request) throws UbongoHttpException {
+        init();
+        return responseCache.get(request, null, ResponseCache.Region.ANALYSES, "analysis/" + analysisName, () -> {
+            byte[] response = null;
+            try {
+                List<Unit> units = serviceProvider.getAnalysis(analysisName);
+                if (units == null) {
+                    logAndWrapException(500, "Failed to retrieve analysis from DB.");
+                }
+                response = mapper.writeValueAsBytes(units);
+            } catch (JsonProcessingException e) {
+                logAndWrapException(500, "Failed to serialize analysis units to JSON.", e);
+            } catch (UbongoHttpException e) {
+                throw e;
+            } catch (Exception e) {
+                logAndWrapException(500, "Failed to read analysis from DB.", e);
+            }
+            return response;
+        });
     }
 
     @GET
     @Path("analyses")
     @Produces(MediaType.APPLICATION_JSON)
-    public String getAllAnalysisNames(@DefaultValue("false") @QueryParam("names") boolean names,
-                                      @QueryParam("limit") int limit) throws UbongoHttpException {
+    public Response getAllAnalysisNames(@DefaultValue("false") @QueryParam("names") boolean names,
+                                        @QueryParam("limit") int limit,
+                                        @Context Request request) throws UbongoHttpException {
         if (!names) {
             logAndWrapException(500, "Invalid request: names=true must be set.");
         }
         init();
-        ObjectMapper mapper = new ObjectMapper();
-        String response = "[]";
-        try {
-            List<String> analysisNames =
-                    serviceProvider.getAllAnalysisNames(limit > 0 ? limit : defaultQueryLimit);
-            if (analysisNames == null) {
-                logAndWrapException(500, "Failed to retrieve analysis names from DB.");
+        int queryLimit = limit > 0 ? limit : defaultQueryLimit;
+        return responseCache.get(request, null, ResponseCache.Region.ANALYSES, "names/" + queryLimit, () -> {
+            byte[] response = null;
+            try {
+                List<String> analysisNames = serviceProvider.getAllAnalysisNames(queryLimit);
+                if (analysisNames == null) {
+                    logAndWrapException(500, "Failed to retrieve analysis names from DB.");
+                }
+                response = mapper.writeValueAsBytes(analysisNames);
+            } catch (JsonProcessingException e) {
+                logAndWrapException(500, "Failed to serialize analysis names to JSON.", e);
+            } catch (UbongoHttpException e) {
+                throw e;
+            } catch (Exception e) {
+                logAndWrapException(500, "Failed to read analysis names from DB.", e);
             }
-            response = mapper.writeValueAsString(analysisNames);
-        } catch (JsonProcessingException e) {
-            logAndWrapException(500, "Failed to serialize analysis names to JSON.", e);
-        } catch (Exception e) {
-            logAndWrapException(500, "Failed to read analysis names from DB.", e);
-        }
-        return response;
+            return response;
+        });
     }
 
     @POST
@@ -221,7 +376,6 @@ public final class RestService {
         init();
         String analysisName = null;
         List<Unit> units = null;
-        ObjectMapper mapper = new ObjectMapper();
         try {
             JsonNode jsonNode = mapper.readTree(requestBody);
             if (jsonNode.hasNonNull("analysisName")) {
@@ -240,6 +394,8 @@ public final class RestService {
         } catch (IOException e) {
             logAndWrapException(400, "The request is malformed - expected array of unit objects but received: "
                     + requestBody, e);
+        } catch (IllegalArgumentException e) {
+            logAndWrapException(400, "Invalid dependencies between the units of the analysis: " + e.getMessage(), e);
         } catch (Exception e) {
             logAndWrapException(500, "Failed to create analysis in the DB", e);
         }
@@ -248,9 +404,9 @@ public final class RestService {
     @GET
     @Path("flows")
     @Produces(MediaType.APPLICATION_JSON)
+    @Compress
     public String getAllFlows(@QueryParam("limit") int limit) throws UbongoHttpException {
         init();
-        ObjectMapper mapper = new ObjectMapper();
         String response = "[]";
         try {
             List<FlowData> flows = serviceProvider.getAllFlows(limit > 0 ? limit : defaultQueryLimit);
@@ -275,7 +431,6 @@ public final class RestService {
         int flow = -1;
         ubongo.common.datatypes.Context context = null;
         List<Task> tasks = null;
-        ObjectMapper mapper = new ObjectMapper();
         try {
             JsonNode jsonNode = mapper.readTree(requestBody);
             if (jsonNode.hasNonNull("context")) {
@@ -293,12 +448,59 @@ public final class RestService {
             flow = serviceProvider.createFlow(context, tasks);
         } catch (IOException e) {
             logAndWrapException(500, "Failed to deserialize JSON to FlowData.", e);
+        } catch (IllegalArgumentException e) {
+            logAndWrapException(400, "Invalid dependencies between the tasks of the flow: " + e.getMessage(), e);
         } catch (Exception e) {
             logAndWrapException(500, "Failed to create flow in DB.", e);
         }
         return "{\"flowId\": \"" + flow + "\"}";
     }
 
+    /**
+     * Creates a flow of the given analysis for every context in the request body, which looks like:
+     * {"analysisName": "...", "contexts": [{"study": "...", "subject": "...", "run": "..."}, ...], "start": true}.
+     * A context may contain wildcards (e.g., "subject": ".*"), in which case its flow is expanded by the server.
+     * @return the ids of the created flows, in the order of the contexts: {"flowIds": [...]}.
+     */
+    @POST
+    @Path("flows/bulk")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public String createFlows(String requestBody) throws UbongoHttpException {
+        init();
+        String analysisName = null;
+        List<ubongo.common.datatypes.Context> contexts = null;
+        boolean start = false;
+        String response = "{}";
+        try {
+            JsonNode jsonNode = mapper.readTree(requestBody);
+            if (jsonNode.hasNonNull("analysisName")) {
+                analysisName = jsonNode.get("analysisName").asText();
+            } else {
+                logAndWrapException(400, "Analysis name cannot be empty nor null.");
+            }
+            if (jsonNode.hasNonNull("contexts") && jsonNode.get("contexts").size() > 0) {
+                contexts = mapper.readValue(jsonNode.get("contexts").traverse(),
+                        new TypeReference<List<ubongo.common.datatypes.Context>>(){});
+            } else {
+                logAndWrapException(400, "At least one context must be given.");
+            }
+            if (jsonNode.hasNonNull("start")) {
+                start = jsonNode.get("start").asBoolean();
+            }
+            List<Integer> flowIds = serviceProvider.createFlows(analysisName, contexts, start);
+            response = "{\"flowIds\": " + mapper.writeValueAsString(flowIds) + "}";
+        } catch (UbongoHttpException e) {
+            throw e;
+        } catch (IOException e) {
+            logAndWrapException(400, "The request is malformed - expected analysis name and contexts but received: "
+                    + requestBody, e);
+        } catch (Exception e) {
+            logAndWrapException(500, "Failed to create flows in DB.", e);
+        }
+        return response;
+    }
+
     @POST
     @Path("flows/{flowId}")
     @Produces(MediaType.APPLICATION_JSON)
@@ -329,47 +531,26 @@ public final class RestService {
     @GET
     @Path("flows/all/tasks")
     @Produces(MediaType.APPLICATION_JSON)
-    public String getAllTasks(@QueryParam("limit") int limit) throws UbongoHttpException {
+    @Compress
+    public StreamingOutput getAllTasks(@QueryParam("limit") int limit) throws UbongoHttpException {
         init();
-        ObjectMapper mapper = new ObjectMapper();
-        String response = "[]";
-        try {
-            List<Task> tasks = serviceProvider.getAllTasks(limit > 0 ? limit : defaultQueryLimit);
-            if (tasks == null) {
-                logAndWrapException(500, "Failed to retrieve tasks from DB.");
-            }
-            response = mapper.writeValueAsString(tasks);
-        } catch (JsonProcessingException e) {
-            logAndWrapException(500, "Failed to serialize tasks to JSON.", e);
-        } catch (Exception e) {
-            logAndWrapException(500, "Failed to read tasks from DB.", e);
-        }
-        return response;
+        int queryLimit = limit > 0 ? limit : defaultQueryLimit;
+        return streamTasks(consumer -> serviceProvider.streamAllTasks(queryLimit, consumer));
     }
 
     @GET
     @Path("flows/{flowId}/tasks")
     @Produces(MediaType.APPLICATION_JSON)
-    public String getTasks(@DefaultValue("-1") @PathParam("flowId") int flowId) throws UbongoHttpException {
+    @Compress
+    public Response getTasks(@DefaultValue("-1") @PathParam("flowId") int flowId,
+                             @Context Request request, @Context HttpHeaders headers) throws UbongoHttpException {
         init();
         if (flowId < 0) {
             throw new UbongoHttpException(400, "Flow ID must be a positive integer.");
         }
-        ObjectMapper mapper = new ObjectMapper();
-        String response = "[]";
-        try {
-            List<Task> tasks = serviceProvider.getTasks(flowId);
-            if (tasks == null) {
-                logAndWrapException(500, "Failed to retrieve tasks.");
-            }
-            response = mapper.writeValueAsString(tasks);
-        }
-        catch (JsonProcessingException e) {
-            logAndWrapException(500, "Failed to serialize tasks to JSON.", e);
-        } catch (Exception e) {
-            logAndWrapException(500, "Failed to read tasks from DB.", e);
-        }
-        return response;
+        // the tasks are streamed to the response while they are read, so only their validators are cached
+        return responseCache.getStreamed(request, getCompressedEncoding(headers), ResponseCache.Region.FLOW_TASKS,
+                Integer.toString(flowId), streamTasks(consumer -> serviceProvider.streamTasks(flowId, consumer)));
     }
 
     @POST
@@ -417,27 +598,84 @@ public final class RestService {
         }
     }
 
+    /**
+     * Returns the timeline of the task: when it was created, became new, pending and dispatched, when the machine
+     * downloaded its input files, ran it and uploaded its output files, and the status it ended with.
+     */
     @GET
-    @Path("units")
+    @Path("flows/{flowId}/tasks/{taskId}/timeline")
     @Produces(MediaType.APPLICATION_JSON)
-    public String getAllUnits() throws UbongoHttpException {
+    @Compress
+    public String getTaskTimeline(@PathParam("flowId") int flowId,
+                                  @PathParam("taskId") int taskId) throws UbongoHttpException {
         init();
-        ObjectMapper mapper = new ObjectMapper();
-        String response = "{}";
+        Task task = null;
+        try {
+            task = serviceProvider.getTask(taskId);
+        } catch (PersistenceException e) {
+            logAndWrapException(500, "Failed to retrieve task from DB.", e);
+        }
+        if (task == null || task.getFlowId() != flowId) {
+            logAndWrapException(400, "The taskId does not match the flowId.");
+        }
         try {
-            List<Unit> units = new ArrayList<>(serviceProvider.getAllUnits().values());
-            response = mapper.writeValueAsString(units);
+            List<TaskEvent> timeline = serviceProvider.getTaskTimeline(taskId);
+            return mapper.writeValueAsString(timeline);
         } catch (JsonProcessingException e) {
-            logAndWrapException(500, "Failed to serialize units to JSON.", e);
+            logAndWrapException(500, "Failed to serialize the task timeline to JSON.", e);
         } catch (Exception e) {
-            logAndWrapException(500, "One or more units could not be read.", e);
+            logAndWrapException(500, "Failed to retrieve the task timeline from the DB.", e);
         }
-        return response;
+        return "[]";
+    }
+
+    /**
+     * Returns the durations of the phases of the tasks that have ended since the given time (all of them by
+     * default, up to the limit of tasks - those that have ended last), aggregated by unit (see {@link UnitTimeline}).
+     */
+    @GET
+    @Path("units/timeline")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Compress
+    public String getUnitTimelines(@QueryParam("t") Long fromTime,
+                                   @QueryParam("limit") int limit) throws UbongoHttpException {
+        init();
+        try {
+            List<UnitTimeline> timelines = serviceProvider.getUnitTimelines(
+                    new Timestamp(fromTime == null ? 0 : fromTime), limit > 0 ? limit : defaultQueryLimit);
+            return mapper.writeValueAsString(timelines);
+        } catch (JsonProcessingException e) {
+            logAndWrapException(500, "Failed to serialize the unit timelines to JSON.", e);
+        } catch (Exception e) {
+            logAndWrapException(500, "Failed to retrieve the unit timelines from the DB.", e);
+        }
+        return "[]";
+    }
+
+    @GET
+    @Path("units")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Compress
+    public Response getAllUnits(@Context Request request, @Context HttpHeaders headers) throws UbongoHttpException {
+        init();
+        return responseCache.get(request, getCompressedEncoding(headers), ResponseCache.Region.UNITS, "all", () -> {
+            byte[] response = null;
+            try {
+                List<Unit> units = new ArrayList<>(serviceProvider.getAllUnits().values());
+                response = mapper.writeValueAsBytes(units);
+            } catch (JsonProcessingException e) {
+                logAndWrapException(500, "Failed to serialize units to JSON.", e);
+            } catch (Exception e) {
+                logAndWrapException(500, "One or more units could not be read.", e);
+            }
+            return response;
+        });
     }
 
     @GET
     @Path("requests")
     @Produces(MediaType.APPLICATION_JSON)
+    @Compress
     public String getRequests(@DefaultValue("false") @QueryParam("count") boolean count,
                               @QueryParam("t") Long fromTime,
                               @QueryParam("limit")int limit) throws UbongoHttpException {
@@ -450,7 +688,6 @@ public final class RestService {
                 logAndWrapException(500, "Failed to count requests.", e);
             }
         } else {
-            ObjectMapper mapper = new ObjectMapper();
             try {
                 List<ExecutionRequest> requests = serviceProvider.getAllRequests(limit);
                 return mapper.writeValueAsString(requests);
@@ -475,6 +712,47 @@ public final class RestService {
         }
     }
 
+    /**
+     * Writes the tasks to the response as a JSON array while they are read from the DB, instead of building the
+     * whole list and its JSON string in memory.
+     */
+    private static StreamingOutput streamTasks(TasksQuery query) {
+        return output -> {
+            JsonGenerator generator = mapper.getFactory().createGenerator(output);
+            try {
+                generator.writeStartArray();
+                query.run(task -> {
+                    try {
+                        streamWriter.writeValue(generator, task);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                generator.writeEndArray();
+            } catch (UncheckedIOException e) {
+                logger.error("Failed to write tasks to the response.", e.getCause());
+                throw e.getCause();
+            } catch (PersistenceException e) {
+                logger.error("Status: 500. Message: Failed to read tasks from DB.", e);
+                throw new WebApplicationException("Failed to read tasks from DB.", e, 500);
+            } finally {
+                generator.close();
+            }
+        };
+    }
+
+    /**
+     * @return the Content-Encoding of the response of a resource method annotated with {@link Compress}.
+     */
+    private static String getCompressedEncoding(HttpHeaders headers) {
+        return GZipWriterInterceptor.acceptsGzip(headers) ? "gzip" : null;
+    }
+
+    @FunctionalInterface
+    private interface TasksQuery {
+        void run(Consumer<Task> consumer) throws PersistenceException;
+    }
+
     private static void logAndWrapException(int status, String msg) throws UbongoHttpException {
         logAndWrapException(status, msg, null);
     }
@@ -7,6 +7,7 @@ import ubongo.persistence.exceptions.PersistenceException;
 import java.sql.Timestamp;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * This class is the service provider for the Rest Service. It is used by the latter to execute the actual
@@ -40,8 +41,10 @@ public interface ServiceProvider {
     /**
      * Creates an analysis in the DB with the given analysis name and list of units.
      * @param analysisName for the analysis.
-     * @param units to compose the analysis content.
+     * @param units to compose the analysis content, in order - a unit may declare the units it depends on by their
+     *              positions (see {@link Unit#getPredecessors()}), otherwise it depends on the unit before it.
      * @throws PersistenceException if the update has failed in the DB.
+     * @throws IllegalArgumentException if some unit depends on a unit that does not come before it.
      */
     void createAnalysis(String analysisName, List<Unit> units) throws PersistenceException;
 
@@ -74,9 +77,21 @@ public interface ServiceProvider {
      * @param tasks composed of the units and the flow context.
      * @return flow id to identify the created flow.
      * @throws PersistenceException if the creation of the flow in the DB failed.
+     * @throws IllegalArgumentException if some task depends on a serial number that is not smaller than its own.
      */
     int createFlow(Context context, List<Task> tasks) throws PersistenceException;
 
+    /**
+     * Creates a flow of the given analysis for each of the contexts in one transaction, and optionally starts them
+     * all with a single request to the server.
+     * @param analysisName whose units compose the tasks of every flow.
+     * @param contexts of the flows (one flow per context, possibly with wildcards).
+     * @param start true iff the flows should be sent for execution.
+     * @return the ids of the created flows, in the order of the contexts.
+     * @throws PersistenceException if the analysis could not be read or the flows could not be created.
+     */
+    List<Integer> createFlows(String analysisName, List<Context> contexts, boolean start) throws PersistenceException;
+
     /**
      * Sends a request to cancel a flow in execution or waiting for execution.
      * @param flowId of the flow to cancel.
@@ -92,6 +107,14 @@ public interface ServiceProvider {
      */
     List<Task> getAllTasks(int limit) throws PersistenceException;
 
+    /**
+     * Passes all the tasks from the DB up to given limit to the consumer, one by one as they are read.
+     * @param limit for SQL query.
+     * @param consumer to receive the tasks.
+     * @throws PersistenceException in case the query failed.
+     */
+    void streamAllTasks(int limit, Consumer<Task> consumer) throws PersistenceException;
+
     /**
      * Retrieves all the tasks of the desired flow, ordered by serial number order (ascending).
      * @param flowId to identify flow.
@@ -100,6 +123,15 @@ public interface ServiceProvider {
      */
     List<Task> getTasks(int flowId) throws PersistenceException;
 
+    /**
+     * Passes the tasks of the desired flow to the consumer, one by one as they are read,
+     * ordered by serial number order (ascending).
+     * @param flowId to identify flow.
+     * @param consumer to receive the tasks.
+     * @throws PersistenceException if the query has failed to be executed in the DB.
+     */
+    void streamTasks(int flowId, Consumer<Task> consumer) throws PersistenceException;
+
     /**
      * Retrieves a certain task corresponding to the given id.
      * @param taskId to identify task.
@@ -138,6 +170,22 @@ public interface ServiceProvider {
      */
     void changeMachineActivityStatus(int machineId, boolean activate) throws PersistenceException;
 
+    /**
+     * Sends a request to drain the given machine: no new tasks are sent to it, and once its tasks end it is set as
+     * drained (and inactive), so it can be taken down for maintenance. It returns to use when it is activated.
+     * @param machineId to drain.
+     * @throws PersistenceException if the request has failed to be persisted.
+     */
+    void drainMachine(int machineId) throws PersistenceException;
+
+    /**
+     * Sends a request to drain all the active machines in a rolling drain, where the next machine is drained once a
+     * drained machine is returned to use.
+     * @param machinesAtOnce is the number of machines that may be out of use at the same time.
+     * @throws PersistenceException if the request has failed to be persisted.
+     */
+    void drainMachines(int machinesAtOnce) throws PersistenceException;
+
     /**
      * Sends a request to generate a bash script file for the given unit in the server.
      * Requires that the unit has its XML and Matlab files already in place.
@@ -162,8 +210,31 @@ public interface ServiceProvider {
      */
     List<ExecutionRequest> getAllRequests(int limit) throws PersistenceException;
 
+    /**
+     * Retrieves the timeline of a task: the events of its execution in chronological order.
+     * @param taskId to identify task.
+     * @return the events of the task.
+     * @throws PersistenceException if the query has failed in the DB.
+     */
+    List<TaskEvent> getTaskTimeline(int taskId) throws PersistenceException;
+
+    /**
+     * Retrieves the timelines of the tasks that have ended since the given time, aggregated by unit.
+     * @param since is the timestamp of interest (only tasks that have ended later are taken into account).
+     * @param limit is the maximal number of tasks that are taken into account (those that have ended last).
+     * @return the timeline of every unit that has such tasks, ordered by unit id.
+     * @throws PersistenceException if the query has failed in the DB.
+     */
+    List<UnitTimeline> getUnitTimelines(Timestamp since, int limit) throws PersistenceException;
+
     void start() throws PersistenceException;
 
+    /**
+     * Sets the change feed that reads the DB through this service provider, so it is stopped before the persistence
+     * when the service provider is stopped.
+     */
+    void setChangeFeed(ChangeFeed changeFeed);
+
     void stop();
 
 }
\ No newline at end of file
@@ -4,21 +4,26 @@ import ubongo.common.datatypes.*;
 import ubongo.common.datatypes.unit.Unit;
 import ubongo.persistence.Configuration;
 import ubongo.persistence.Persistence;
+import ubongo.persistence.PersistenceFactory;
 import ubongo.persistence.exceptions.PersistenceException;
 import ubongo.persistence.PersistenceImpl;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public class ServiceProviderImpl implements ServiceProvider {
 
     private Persistence persistence;
+    private ResponseCache responseCache;
+    private ChangeFeed changeFeed;
 
     public ServiceProviderImpl(Configuration configuration, String unitSettingsDirPath,
-                               String queriesPath, boolean debug) {
-        persistence = new PersistenceImpl(unitSettingsDirPath,
-                configuration.getDbConnectionProperties(), configuration.getSshConnectionProperties(),
+                               String queriesPath, boolean debug, ResponseCache responseCache) {
+        this.responseCache = responseCache;
+        persistence = PersistenceFactory.create(configuration, unitSettingsDirPath,
                 configuration.getMachines(), queriesPath, debug);
     }
 
@@ -27,8 +32,16 @@ public class ServiceProviderImpl implements ServiceProvider {
         persistence.start();
     }
 
+    @Override
+    public void setChangeFeed(ChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+    }
+
     @Override
     public void stop() {
+        if (changeFeed != null) {
+            changeFeed.stop(); // its reader would fail on the stopped persistence
+        }
         try {
             persistence.stop();
         } catch (PersistenceException e) {
@@ -54,7 +67,9 @@ public class ServiceProviderImpl implements ServiceProvider {
 
     @Override
     public void createAnalysis(String analysisName, List<Unit> units) throws PersistenceException {
+        Unit.checkPredecessors(units);
         persistence.createAnalysis(analysisName, units);
+        responseCache.invalidate(ResponseCache.Region.ANALYSES);
     }
 
     @Override
@@ -75,9 +90,29 @@ public class ServiceProviderImpl implements ServiceProvider {
 
     @Override
     public int createFlow(Context context, List<Task> tasks) throws PersistenceException {
+        Task.checkPredecessors(tasks);
         return persistence.createFlow(context, tasks);
     }
 
+    @Override
+    public List<Integer> createFlows(String analysisName, List<Context> contexts, boolean start)
+            throws PersistenceException {
+        List<Unit> units = persistence.getAnalysis(analysisName);
+        if (units == null || units.isEmpty()) {
+            throw new PersistenceException("Analysis " + analysisName + " does not exist or has no units.");
+        }
+        List<Task> tasks = new ArrayList<>(units.size());
+        for (int i = 0; i < units.size(); i++) {
+            tasks.add(new Task(0, 0, i, units.get(i), null, null, TaskStatus.CREATED));
+        }
+        List<Integer> flowIds = persistence.createFlows(contexts, tasks, start);
+        if (start) {
+            // the tasks were created in status 'New', so one request is enough to let the server know about them
+            persistence.saveRequest(new ExecutionRequest(flowIds.get(0), ExecutionRequest.Action.RUN_FLOWS));
+        }
+        return flowIds;
+    }
+
     @Override
     public void cancelFlow(int flowId) throws PersistenceException {
         ExecutionRequest request = new ExecutionRequest(flowId, ExecutionRequest.Action.CANCEL_FLOW);
@@ -89,11 +124,21 @@ public class ServiceProviderImpl implements ServiceProvider {
         return persistence.getAllTasks(limit);
     }
 
+    @Override
+    public void streamAllTasks(int limit, Consumer<Task> consumer) throws PersistenceException {
+        persistence.streamAllTasks(limit, consumer);
+    }
+
     @Override
     public List<Task> getTasks(int flowId) throws PersistenceException {
         return persistence.getTasks(flowId);
     }
 
+    @Override
+    public void streamTasks(int flowId, Consumer<Task> consumer) throws PersistenceException {
+        persistence.streamTasks(flowId, consumer);
+    }
+
     @Override
     public Task getTask(int taskId) throws PersistenceException {
         return persistence.getTask(taskId);
@@ -123,6 +168,18 @@ public class ServiceProviderImpl implements ServiceProvider {
         persistence.saveRequest(request);
     }
 
+    @Override
+    public void drainMachine(int machineId) throws PersistenceException {
+        ExecutionRequest request = new ExecutionRequest(machineId, ExecutionRequest.Action.DRAIN_MACHINE);
+        persistence.saveRequest(request);
+    }
+
+    @Override
+    public void drainMachines(int machinesAtOnce) throws PersistenceException {
+        ExecutionRequest request = new ExecutionRequest(machinesAtOnce, ExecutionRequest.Action.DRAIN_MACHINES);
+        persistence.saveRequest(request);
+    }
+
     @Override
     public void generateBashFileForUnit(int unitId) throws PersistenceException {
         ExecutionRequest request = new ExecutionRequest(unitId, ExecutionRequest.Action.GENERATE_BASH);
@@ -139,9 +196,21 @@ public class ServiceProviderImpl implements ServiceProvider {
         return persistence.getAllRequests(limit);
     }
 
+    @Override
+    public List<TaskEvent> getTaskTimeline(int taskId) throws PersistenceException {
+        return persistence.getTaskTimeline(taskId);
+    }
+
+    @Override
+    public List<UnitTimeline> getUnitTimelines(Timestamp since, int limit) throws PersistenceException {
+        return persistence.getUnitTimelines(since, limit);
+    }
+
     public void clearDebugData() {
         try {
-            ((PersistenceImpl) persistence).clearDebugData();
+            if (persistence instanceof PersistenceImpl) {
+                ((PersistenceImpl) persistence).clearDebugData();
+            }
         } catch (PersistenceException e) {
             // do nothing - it is only relevant for tests and the exception is already logged
         }
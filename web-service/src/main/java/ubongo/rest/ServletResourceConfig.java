@@ -1,6 +1,9 @@
 package ubongo.rest;
 
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.spi.AbstractContainerLifecycleListener;
+import org.glassfish.jersey.server.spi.Container;
 
 import javax.ws.rs.ApplicationPath;
 
@@ -8,5 +11,12 @@ import javax.ws.rs.ApplicationPath;
 public class ServletResourceConfig extends ResourceConfig {
     public ServletResourceConfig() {
         packages("ubongo.rest");
+        register(SseFeature.class);
+        register(new AbstractContainerLifecycleListener() {
+            @Override
+            public void onShutdown(Container container) {
+                RestService.shutdown();
+            }
+        });
     }
 }
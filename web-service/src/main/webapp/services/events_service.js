@@ -0,0 +1,56 @@
+(function(){
+  'use strict';
+
+  /*
+   * A single connection to the server's change feed (Server-Sent Events), shared by all controllers.
+   * Controllers register callbacks by event name instead of polling the REST resources.
+   */
+  angular.module('ubongoApp')
+    .service('ubongoEventsService', function($rootScope) {
+
+      var source = null;
+      var listeners = {};
+
+      function connect() {
+        if (source != null || typeof EventSource === 'undefined') {
+          return;
+        }
+        source = new EventSource('rest/api/events');
+      }
+
+      function dispatch(name, event) {
+        var data = JSON.parse(event.data);
+        $rootScope.$applyAsync(function() {
+          listeners[name].forEach(function(callback) {
+            callback(data);
+          });
+        });
+      }
+
+      /*
+       * Registers a callback for events with the given name. The callback receives the parsed event data.
+       * Returns a function that removes the callback.
+       */
+      this.on = function(name, callback) {
+        connect();
+        if (source == null) {
+          return function() {};
+        }
+        if (listeners[name] === undefined) {
+          listeners[name] = [];
+          source.addEventListener(name, function(event) {
+            dispatch(name, event);
+          });
+        }
+        listeners[name].push(callback);
+        return function() {
+          var index = listeners[name].indexOf(callback);
+          if (index >= 0) {
+            listeners[name].splice(index, 1);
+          }
+        };
+      };
+
+  });
+
+})();
@@ -2,39 +2,35 @@
   'use strict';
 
   angular.module('ubongoApp')
-    .service('ubongoNotificationsService', function($http, $interval) {
+    .service('ubongoNotificationsService', function(ubongoEventsService) {
 
-      var intervalPromise = null;
+      var unsubscribe = null;
+      var countedRequests = {};
       var notifications = {
         requests: 0,
         lastRequest: new Date().getTime()
       };
       this.notifications = notifications;
 
-      function countRequests() {
-        var date = new Date();
-        var currTime = date.getTime() - date.getUTCMilliseconds();
-        $http.get('/rest/api/requests?count=true&t=' + notifications.lastRequest)
-          .success(function(data, status, headers, config) {
-            notifications.lastRequest = currTime;
-            notifications.requests = notifications.requests + data*1;
-          })
-          .error(function(data, status, headers, config) {
-            notifications.requests = 0;
-          });
+      // requests are pushed by the server whenever they are created or their status changes
+      function countRequest(request) {
+        if (request.creationTime >= notifications.lastRequest && !countedRequests[request.id]) {
+          countedRequests[request.id] = true;
+          notifications.requests++;
+        }
       }
 
       this.getPushNotifications = function() {
-        if (intervalPromise == null) {
+        if (unsubscribe == null) {
           clearNotifications();
-          intervalPromise = $interval(countRequests, 1000 * 10);
+          unsubscribe = ubongoEventsService.on('request', countRequest);
         }
       };
 
       this.stopPushNotifications = function() {
-        if (intervalPromise != null) {
-          $interval.cancel(intervalPromise);
-          intervalPromise = null;
+        if (unsubscribe != null) {
+          unsubscribe();
+          unsubscribe = null;
         }
         clearNotifications();
       };
@@ -42,6 +38,7 @@
       function clearNotifications() {
         notifications.lastRequest = new Date().getTime();
         notifications.requests = 0;
+        countedRequests = {};
       }
 
   });
@@ -32,7 +32,8 @@
               serialNumber: serialNumberCounter++,
               unit: {
                 id: unit.id,
-                parameters: unit.parameters
+                parameters: unit.parameters,
+                predecessors: unit.predecessors
               },
               context: context
             };
@@ -90,7 +91,8 @@
                   id: unit.id,
                   name: unit.name,
                   description: unit.description,
-                  parameters: $.extend(true, [], unit.parameters)
+                  parameters: $.extend(true, [], unit.parameters),
+                  predecessors: unit.predecessors
                 };
               });
             }
@@ -2,14 +2,22 @@
   'use strict';
 
   angular.module('ubongoApp').controller('MachinesController',
-    ['$scope', '$http', '$interval', function ($scope, $http, $interval) {
+    ['$scope', '$http', '$interval', 'ubongoEventsService', function ($scope, $http, $interval, ubongoEventsService) {
 
       var GOOD_STYLE = {paddingTop: '4px', color: 'green'};
       var BAD_STYLE = {paddingTop: '4px', color: 'red'};
       var SERVER_DOWN = {color: 'red', fontWeight: 'bold'};
 
+      var machinesData = [];
+
       fetchMachines();
-      $interval(fetchMachines, 1000 * 30); // refresh machines every 30 seconds
+      // changes are pushed by the server; the connection state only depends on time, so it is re-evaluated locally
+      var unsubscribe = ubongoEventsService.on('machines', showMachines);
+      var intervalPromise = $interval(refreshConnectionState, 1000 * 30);
+      $scope.$on('$destroy', function() {
+        unsubscribe();
+        $interval.cancel(intervalPromise);
+      });
       $scope.machines = [];
       $scope.err = {
         display: false,
@@ -24,39 +32,63 @@
 
       function fetchMachines() {
         $http.get('rest/api/machines')
-          .success(function(data) {
-            var machinesWithoutServer = [];
-            for (var i = 0; i < data.length; ++i) {
-              if (data[i].lastHeartbeat <= 0) {
-                data[i].lastHeartbeat = '-';
-                data[i].connected = false;
-              } else {
-                var date = new Date(0);
-                var utcSeconds = data[i].lastHeartbeat / 1000;
-                date.setUTCSeconds(utcSeconds);
-                data[i].lastHeartbeat = dateInNiceFormat(date);
-                data[i].connected = !isDateTooOld(utcSeconds);
-              }
-              if (data[i].id*1 != 0) {
-                machinesWithoutServer.push(data[i]);
-                $scope.currMachine = {id: -1};
-              } else {
-                $scope.server.lastHeartbeat = data[i].lastHeartbeat;
-                if (data[i].connected) {
-                  $scope.server.style = {};
-                } else {
-                  $scope.server.style = SERVER_DOWN;
-                }
-              }
-            }
-            $scope.machines = machinesWithoutServer;
-            $scope.machineGridOptions.data = $scope.machines;
-          })
+          .success(showMachines)
           .error(function() {
             displayMsg(true, 'Failed to load machines', BAD_STYLE);
           });
       }
 
+      function showMachines(data) {
+        notifyDrainedMachines(machinesData, data);
+        machinesData = data;
+        var machinesWithoutServer = [];
+        for (var i = 0; i < data.length; ++i) {
+          var machine = $.extend({}, data[i]);
+          if (data[i].lastHeartbeat <= 0) {
+            machine.lastHeartbeat = '-';
+            machine.connected = false;
+          } else {
+            var date = new Date(0);
+            var utcSeconds = data[i].lastHeartbeat / 1000;
+            date.setUTCSeconds(utcSeconds);
+            machine.lastHeartbeat = dateInNiceFormat(date);
+            machine.connected = !isDateTooOld(utcSeconds);
+          }
+          machine.state = machine.drained ? 'Drained' : (machine.draining ? 'Draining' :
+            (machine.active ? 'Active' : 'Inactive'));
+          if (machine.id*1 != 0) {
+            machinesWithoutServer.push(machine);
+            $scope.currMachine = {id: -1};
+          } else {
+            $scope.server.lastHeartbeat = machine.lastHeartbeat;
+            if (machine.connected) {
+              $scope.server.style = {};
+            } else {
+              $scope.server.style = SERVER_DOWN;
+            }
+          }
+        }
+        $scope.machines = machinesWithoutServer;
+        $scope.machineGridOptions.data = $scope.machines;
+      }
+
+      // tells when a machine has just finished draining, so it can be taken down
+      function notifyDrainedMachines(oldData, newData) {
+        var wasDraining = {};
+        for (var i = 0; i < oldData.length; ++i) {
+          wasDraining[oldData[i].id] = oldData[i].draining;
+        }
+        for (var j = 0; j < newData.length; ++j) {
+          if (newData[j].drained && wasDraining[newData[j].id]) {
+            displayMsg(true, 'Machine ' + newData[j].host + ' was drained and is safe to take down', GOOD_STYLE);
+          }
+        }
+      }
+
+      function refreshConnectionState() {
+        showMachines(machinesData);
+      }
+
       function isDateTooOld(utcSeconds) {
         return new Date().getTime()/1000 - utcSeconds > 60 * 2; // 2 minutes interval to detect disconnected machine
       }
@@ -82,6 +114,10 @@
           {name: 'description'},
           {name: 'connected', cellTemplate: template},
           {name: 'active', cellTemplate: template},
+          {name: 'state'},
+          {name: 'cores', visible: false},
+          {name: 'memoryMb', displayName: "Memory (MB)", visible: false},
+          {name: 'slots', visible: false},
           {name: 'lastHeartbeat', displayName: "Last Heartbeat", visible: false}
         ]
       };
@@ -110,6 +146,26 @@
           });
       };
 
+      $scope.drainMachine = function() {
+        $http.post('rest/api/machines/' + $scope.currMachine.id + '?drain=true', {})
+          .success(function() {
+            displayMsg(true, 'A request to drain machine was sent to the server', GOOD_STYLE);
+          })
+          .error(function() {
+            displayMsg(true, 'Failed to drain machine', BAD_STYLE);
+          });
+      };
+
+      $scope.drainAllMachines = function() {
+        $http.post('rest/api/machines/drain?machinesAtOnce=1', {})
+          .success(function() {
+            displayMsg(true, 'A request to drain all machines one by one was sent to the server', GOOD_STYLE);
+          })
+          .error(function() {
+            displayMsg(true, 'Failed to drain machines', BAD_STYLE);
+          });
+      };
+
       function displayMsg(disp, msg, style) {
         $scope.err.display = disp;
         $scope.err.msg = msg;
@@ -2,7 +2,8 @@
   'use strict';
 
   angular.module('ubongoApp').controller('TasksController',
-    ['$scope', '$http', 'uiGridConstants', function ($scope, $http, uiGridConstants) {
+    ['$scope', '$http', 'uiGridConstants', 'ubongoEventsService',
+      function ($scope, $http, uiGridConstants, ubongoEventsService) {
 
       var GOOD_STYLE = {paddingTop: '4px', color: 'green'};
       var BAD_STYLE = {paddingTop: '4px', color: 'red'};
@@ -27,6 +28,14 @@
       };
       reloadFlows();
 
+      // flows and tasks are updated by the server's change feed rather than by reloading them
+      var unsubscribeFlows = ubongoEventsService.on('flow', updateFlow);
+      var unsubscribeTasks = ubongoEventsService.on('task', updateTask);
+      $scope.$on('$destroy', function() {
+        unsubscribeFlows();
+        unsubscribeTasks();
+      });
+
       // tasks grid
       $scope.taskGridOptions = {
         data: [],
@@ -106,6 +115,45 @@
           });
       }
 
+      function updateFlow(flow) {
+        var existing = $scope.flows.filter(function(elem) {
+          return elem.flowId == flow.flowId;
+        })[0];
+        if (existing === undefined) {
+          $scope.flows.unshift(flow);
+          $scope.defaultFlowText.value = 'Select flow';
+        } else {
+          existing.status = flow.status;
+        }
+        if (flow.flowId+'' == $scope.selectedOption) {
+          $scope.currFlow.status = flow.status;
+        }
+      }
+
+      function updateTask(task) {
+        if (task.flowId+'' != $scope.selectedOption || $scope.currFlow.tasks === undefined) {
+          return;
+        }
+        var row = $scope.taskGridOptions.data.filter(function(elem) {
+          return elem.id == task.id;
+        })[0];
+        if (row === undefined) {
+          // a new task of the selected flow (e.g., a task that was created from a wildcard context)
+          $scope.loadFlow();
+          return;
+        }
+        row.status = task.status;
+        row.machine = task.machineId == null ? '' : task.machineId;
+        $scope.currFlow.tasks.forEach(function(elem) {
+          if (elem.id == task.id) {
+            elem.status = task.status;
+          }
+        });
+        if ($scope.currTask.id == task.id && $scope.taskDetailsGridOptions.data.length > 0) {
+          $scope.taskDetailsGridOptions.data[0].value = task.status;
+        }
+      }
+
       $scope.refreshFlows = function() {
         $scope.taskGridOptions.data = [];
         $scope.taskDetailsGridOptions.data = [];